@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.room.Room;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class BankingTokenCacheTest {
+
+    private static final int READERS = 8;
+
+    private AppDatabase database;
+    private ExecutorService executor;
+
+    @Before
+    public void createDatabase() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase.class).build();
+        executor = Executors.newFixedThreadPool(READERS);
+    }
+
+    @After
+    public void closeDatabase() {
+        executor.shutdownNow();
+        database.close();
+    }
+
+    /**
+     * Cache, whose queries are counted and wait until they are released.
+     */
+    private static class ControlledCache extends BankingTokenCache {
+        final AtomicInteger queryCount = new AtomicInteger();
+        final CountDownLatch queryStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile RuntimeException failure;
+
+        ControlledCache(AppDatabase database) {
+            super(database);
+        }
+
+        @NonNull
+        @Override
+        List<BankingToken> loadAll() {
+            queryCount.incrementAndGet();
+            queryStarted.countDown();
+            try {
+                Assert.assertTrue(release.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+
+            RuntimeException failure = this.failure;
+            if (failure != null) {
+                this.failure = null;
+                throw failure;
+            }
+            return super.loadAll();
+        }
+    }
+
+    private Future<BankingTokenCache.Snapshot> readInBackground(BankingTokenCache cache) {
+        return executor.submit(cache::getSnapshot);
+    }
+
+    @Test
+    public void concurrentReadersShareOneQuery() throws Exception {
+        ControlledCache cache = new ControlledCache(database);
+
+        List<Future<BankingTokenCache.Snapshot>> readers = new ArrayList<>();
+        readers.add(readInBackground(cache));
+        Assert.assertTrue(cache.queryStarted.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < READERS; i++) {
+            readers.add(readInBackground(cache));
+        }
+        // Give the other readers time to wait for the running query
+        TimeUnit.MILLISECONDS.sleep(100);
+        cache.release.countDown();
+
+        BankingTokenCache.Snapshot snapshot = readers.get(0).get();
+        for (Future<BankingTokenCache.Snapshot> reader : readers) {
+            Assert.assertSame(snapshot, reader.get());
+        }
+        Assert.assertSame(snapshot, cache.getSnapshot());
+        Assert.assertEquals(1, cache.queryCount.get());
+    }
+
+    @Test
+    public void invalidationDuringQueryDiscardsResult() throws Exception {
+        ControlledCache cache = new ControlledCache(database);
+
+        Future<BankingTokenCache.Snapshot> reader = readInBackground(cache);
+        Assert.assertTrue(cache.queryStarted.await(10, TimeUnit.SECONDS));
+        cache.invalidate();
+        cache.release.countDown();
+
+        // The reader gets the result of its query, but it is not kept
+        BankingTokenCache.Snapshot outdatedSnapshot = reader.get();
+        Assert.assertEquals(1, cache.queryCount.get());
+
+        BankingTokenCache.Snapshot snapshot = cache.getSnapshot();
+        Assert.assertNotSame(outdatedSnapshot, snapshot);
+        Assert.assertEquals(2, cache.queryCount.get());
+
+        Assert.assertSame(snapshot, cache.getSnapshot());
+        Assert.assertEquals(2, cache.queryCount.get());
+    }
+
+    @Test
+    public void failedQueryIsRetriedByNextReader() {
+        ControlledCache cache = new ControlledCache(database);
+        cache.failure = new IllegalStateException("Simulated failure");
+        cache.release.countDown();
+
+        try {
+            cache.getSnapshot();
+            Assert.fail("Failure of the query has been ignored");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Simulated failure", e.getMessage());
+        }
+        Assert.assertEquals(1, cache.queryCount.get());
+
+        Assert.assertNotNull(cache.getSnapshot());
+        Assert.assertEquals(2, cache.queryCount.get());
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@RunWith(AndroidJUnit4.class)
+public class BankingTokenRepositoryTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 400;
+
+    private Context context;
+    private AppDatabase database;
+
+    @Before
+    public void createDatabase() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase.class).build();
+        AppDatabase.setInstance(database);
+    }
+
+    @After
+    public void closeDatabase() {
+        AppDatabase.setInstance(null);
+        database.close();
+    }
+
+    private BankingToken insertToken(int transactionCounter) {
+        BankingToken token = new BankingToken();
+        token.id = "XX1234567890";
+        token.keyAlias = "key1";
+        token.usage = BankingTokenUsage.DISABLED_AUTH_PROMPT;
+        token.transactionCounter = transactionCounter;
+        token.createdOn = new Date();
+        database.bankingTokenDao().insert(token);
+        return token;
+    }
+
+    private void insertToken(String id, Date lastUsed) {
+        BankingToken token = new BankingToken();
+        token.id = id;
+        token.keyAlias = "key-" + id;
+        token.usage = BankingTokenUsage.DISABLED_AUTH_PROMPT;
+        token.createdOn = new Date(0);
+        token.lastUsed = lastUsed;
+        database.bankingTokenDao().insert(token);
+    }
+
+    @Test
+    public void pagesFollowRecencyWithoutGapsOrDuplicates() {
+        insertToken("XX0000000004", null);
+        insertToken("XX0000000002", new Date(2000));
+        insertToken("XX0000000001", new Date(3000));
+        insertToken("XX0000000005", new Date(2000));
+        insertToken("XX0000000003", null);
+        insertToken("XX0000000006", new Date(1000));
+
+        List<String> ids = new ArrayList<>();
+        BankingToken previousToken = null;
+        List<BankingToken> page;
+        do {
+            page = BankingTokenRepository.getPage(context, previousToken, 2);
+            for (BankingToken token : page) {
+                ids.add(token.id);
+                previousToken = token;
+            }
+        } while (!page.isEmpty());
+
+        Assert.assertEquals(Arrays.asList(
+                "XX0000000001",
+                "XX0000000002",
+                "XX0000000005",
+                "XX0000000006",
+                "XX0000000003",
+                "XX0000000004"), ids);
+    }
+
+    @Test
+    public void nextPageIgnoresDeletedPreviousToken() {
+        insertToken("XX0000000001", new Date(3000));
+        insertToken("XX0000000002", new Date(2000));
+        insertToken("XX0000000003", new Date(1000));
+
+        List<BankingToken> firstPage = BankingTokenRepository.getPage(context, null, 2);
+        database.bankingTokenDao().delete(firstPage.get(1));
+
+        List<BankingToken> secondPage = BankingTokenRepository.getPage(
+                context, firstPage.get(1), 2);
+        Assert.assertEquals(1, secondPage.size());
+        Assert.assertEquals("XX0000000003", secondPage.get(0).id);
+    }
+
+    @Test
+    public void concurrentIncrementsReserveDistinctCounters() throws Exception {
+        BankingToken token = insertToken(0);
+
+        List<Callable<Integer>> increments = new ArrayList<>(INCREMENTS);
+        for (int i = 0; i < INCREMENTS; i++) {
+            // Each caller has its own copy of the token, like the GUI
+            BankingToken copy = database.bankingTokenDao().findById(token.id);
+            increments.add(() -> BankingTokenRepository.incTransactionCounter(context, copy));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        Set<Integer> reservedCounters = new HashSet<>();
+        try {
+            for (Future<Integer> result : executor.invokeAll(increments)) {
+                reservedCounters.add(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(INCREMENTS, reservedCounters.size());
+        for (int atc = 1; atc <= INCREMENTS; atc++) {
+            Assert.assertTrue(reservedCounters.contains(atc));
+        }
+        Assert.assertEquals(INCREMENTS,
+                database.bankingTokenDao().findById(token.id).transactionCounter);
+    }
+
+    @Test
+    public void incrementReturnsReservedCounter() {
+        BankingToken token = insertToken(12);
+
+        Assert.assertEquals(13, BankingTokenRepository.incTransactionCounter(context, token));
+        Assert.assertEquals(13, token.transactionCounter);
+        Assert.assertNotNull(token.lastUsed);
+
+        BankingToken persistentToken = database.bankingTokenDao().findById(token.id);
+        Assert.assertEquals(13, persistentToken.transactionCounter);
+        Assert.assertEquals(token.lastUsed, persistentToken.lastUsed);
+    }
+
+    @Test
+    public void exhaustedTokenCannotBeIncremented() {
+        BankingToken token = insertToken(0xffff - 1);
+
+        Assert.assertEquals(0xffff, BankingTokenRepository.incTransactionCounter(context, token));
+
+        try {
+            BankingTokenRepository.incTransactionCounter(context, token);
+            Assert.fail("exhausted token has been incremented");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        Assert.assertEquals(0xffff,
+                database.bankingTokenDao().findById(token.id).transactionCounter);
+    }
+
+    @Test
+    public void cachedTokensReflectModifications() {
+        BankingToken token = insertToken(0);
+        database.getTokenCache().invalidate();
+
+        BankingToken cachedToken = BankingTokenRepository.findById(context, token.id);
+        Assert.assertNotNull(cachedToken);
+        Assert.assertEquals(0, cachedToken.transactionCounter);
+
+        // Modifications of returned tokens must not affect the cache
+        cachedToken.name = "Modified";
+        Assert.assertNull(BankingTokenRepository.getAll(context).get(0).name);
+
+        BankingTokenRepository.incTransactionCounter(context, cachedToken);
+        Assert.assertEquals(1, BankingTokenRepository.getAll(context).get(0).transactionCounter);
+
+        BankingTokenRepository.updateTokenSettings(context, cachedToken);
+        Assert.assertEquals("Modified", BankingTokenRepository.findByFormattedSerialNumber(
+                context, token.getFormattedSerialNumber()).name);
+    }
+
+}
@@ -21,6 +21,7 @@ package de.efdis.tangenerator.persistence.database;
 
 import androidx.annotation.NonNull;
 import androidx.room.Room;
+import androidx.test.espresso.IdlingRegistry;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import org.junit.Assert;
@@ -34,6 +35,7 @@ import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.gui.common.AppActivity;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
 
 public class InMemoryDatabaseRule implements TestRule {
 
@@ -101,13 +103,15 @@ public class InMemoryDatabaseRule implements TestRule {
             token.name += " " + (tanGeneratorIdx + 1);
         }
 
-        BankingTokenRepository.saveNewToken(null, token);
+        BankingTokenRepository.saveNewToken(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(), token);
 
         if (transactionCounter != 0) {
             // saveNewToken() resets the transaction counter,
             // so we need an extra update
             token.transactionCounter = transactionCounter;
             database.bankingTokenDao().update(token);
+            database.getTokenCache().invalidate();
         }
     }
 
@@ -138,7 +142,15 @@ public class InMemoryDatabaseRule implements TestRule {
                 AppActivity.setMockAuthentication(true);
             }
 
-            base.evaluate();
+            // Wait for database and key store operations in the background
+            IdlingRegistry.getInstance().register(DatabaseExecutor.getIdlingResource(),
+                    KeyStoreExecutor.getIdlingResource());
+            try {
+                base.evaluate();
+            } finally {
+                IdlingRegistry.getInstance().unregister(DatabaseExecutor.getIdlingResource(),
+                        KeyStoreExecutor.getIdlingResource());
+            }
         }
     }
 
@@ -149,4 +149,38 @@ public class MigrationTest {
         Assert.assertEquals(new Date(2), token2.createdOn);
         Assert.assertEquals(new Date(3), token2.lastUsed);
     }
+
+    @Test
+    public void migrate3To4() throws IOException {
+        {
+            // Delete and create database with schema version 3
+            SupportSQLiteDatabase db = helper.createDatabase(DATABASE_NAME, 3);
+
+            // Insert test data
+            db.execSQL(
+                    "INSERT INTO `banking_token` (`id`, `backend_id`, `name`, `usage`, `key_alias`, `atc`, `created_on`, `last_used`) " +
+                            "VALUES " +
+                            "('XX1234567890', 1, 'My token', 0, 'key1', 12, 1, NULL)");
+
+            db.close();
+        }
+
+        // Migrate schema to version 4 and validate schema version 4
+        helper.runMigrationsAndValidate(DATABASE_NAME, 4, true);
+
+        // Verify test data after migration
+        AppDatabase database = getMigratedRoomDatabase();
+        Assert.assertEquals(1, database.bankingTokenDao().getAll().size());
+
+        TanUsage entry = new TanUsage();
+        entry.tokenId = "XX1234567890";
+        entry.transactionCounter = 13;
+        entry.generatedOn = new Date(4);
+        entry.hashPrefix = "01234567";
+        database.tanUsageDao().insertAll(Collections.singletonList(entry));
+
+        // The entry is older than the retention limit
+        Assert.assertEquals(1, database.tanUsageDao().compact(new Date(5), 10));
+    }
+
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyStoreException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import de.efdis.tangenerator.persistence.keystore.AndroidKeyStoreBackend;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.InMemoryKeyStoreBackend;
+
+@RunWith(AndroidJUnit4.class)
+public class OrphanedKeySweeperTest {
+
+    private static final String PREFIX = "banking_key_";
+
+    private Context context;
+    private AppDatabase database;
+    private InMemoryKeyStoreBackend keyStore;
+
+    @Before
+    public void createDatabase() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase.class).build();
+        AppDatabase.setInstance(database);
+
+        keyStore = new InMemoryKeyStoreBackend();
+        BankingKeyRepository.setBackend(keyStore);
+    }
+
+    @After
+    public void closeDatabase() {
+        BankingKeyRepository.setBackend(new AndroidKeyStoreBackend());
+
+        AppDatabase.setInstance(null);
+        database.close();
+    }
+
+    private String insertKey(long ageMillis) throws KeyStoreException {
+        BankingKeyComponents keyComponents = new BankingKeyComponents();
+        keyComponents.generateDeviceKeyComponent();
+        keyComponents.letterKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+        keyComponents.portalKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+        keyComponents.userAuthMandatoryForUsage = Boolean.FALSE;
+
+        String tokenAlias = BankingKeyRepository.insertNewBankingKey(keyComponents);
+        keyStore.setCreationDate(PREFIX + tokenAlias,
+                new Date(System.currentTimeMillis() - ageMillis));
+        return tokenAlias;
+    }
+
+    @Test
+    public void onlyOldKeysWithoutTokenAreDeleted() throws KeyStoreException {
+        BankingToken token = new BankingToken();
+        token.id = "XX1234567890";
+        token.keyAlias = insertKey(TimeUnit.DAYS.toMillis(1));
+        token.usage = BankingTokenUsage.DISABLED_AUTH_PROMPT;
+        token.createdOn = new Date();
+        database.bankingTokenDao().insert(token);
+
+        String oldOrphan = insertKey(TimeUnit.DAYS.toMillis(1));
+        // Like a running initialization, which has not stored the token yet
+        String youngOrphan = insertKey(0);
+
+        Assert.assertEquals(1, OrphanedKeySweeper.sweep(context));
+        Assert.assertTrue(keyStore.containsKey(PREFIX + token.keyAlias));
+        Assert.assertFalse(keyStore.containsKey(PREFIX + oldOrphan));
+        Assert.assertTrue(keyStore.containsKey(PREFIX + youngOrphan));
+    }
+
+}
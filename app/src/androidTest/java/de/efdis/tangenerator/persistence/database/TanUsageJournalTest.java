@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import de.efdis.tangenerator.activetan.VisualisationClass;
+
+@RunWith(AndroidJUnit4.class)
+public class TanUsageJournalTest {
+
+    private Context context;
+    private AppDatabase database;
+    private BankingToken token;
+
+    @Before
+    public void createDatabase() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase.class).build();
+        AppDatabase.setInstance(database);
+
+        token = new BankingToken();
+        token.id = "XX1234567890";
+    }
+
+    @After
+    public void closeDatabase() throws Exception {
+        // Wait for pending journal writes, before the database is gone
+        waitForDatabaseThread();
+        AppDatabase.setInstance(null);
+        database.close();
+    }
+
+    private static void waitForDatabaseThread() throws Exception {
+        DatabaseExecutor.execute(() -> null, null).get(10, TimeUnit.SECONDS);
+    }
+
+    private void record(int transactionCounter) {
+        TanUsageJournal.record(context, token, transactionCounter,
+                VisualisationClass.CREDIT_TRANSFER_SEPA, new byte[]{1, 2, 3},
+                TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    private List<Integer> queryTransactionCounters() {
+        List<Integer> result = new ArrayList<>();
+        try (Cursor cursor = database.tanUsageDao().queryAll()) {
+            int transactionCounter = cursor.getColumnIndexOrThrow("atc");
+            while (cursor.moveToNext()) {
+                result.add(cursor.getInt(transactionCounter));
+            }
+        }
+        return result;
+    }
+
+    private TanUsage createEntry(int transactionCounter, Date generatedOn) {
+        TanUsage entry = new TanUsage();
+        entry.tokenId = token.id;
+        entry.transactionCounter = transactionCounter;
+        entry.generatedOn = generatedOn;
+        entry.hashPrefix = "00000000";
+        return entry;
+    }
+
+    @Test
+    public void recordedEntriesAreFlushed() throws Exception {
+        record(1);
+        record(2);
+        record(3);
+        waitForDatabaseThread();
+
+        Assert.assertEquals(Arrays.asList(1, 2, 3), queryTransactionCounters());
+
+        StringWriter csv = new StringWriter();
+        TanUsageJournal.export(context, csv);
+        String[] lines = csv.toString().split("\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(lines[1].startsWith(token.id + ",1,"));
+        Assert.assertTrue(lines[3].endsWith(",2000"));
+    }
+
+    @Test
+    public void overflowDropsOldestEntries() throws Exception {
+        // Block the database thread, so that the buffer cannot be flushed
+        CountDownLatch blocked = new CountDownLatch(1);
+        Future<Void> blocker = DatabaseExecutor.execute(() -> {
+            blocked.await();
+            return null;
+        }, null);
+
+        int overflow = 6;
+        int recorded = TanUsageJournal.BUFFER_CAPACITY + overflow;
+        try {
+            for (int i = 1; i <= recorded; i++) {
+                record(i);
+            }
+        } finally {
+            blocked.countDown();
+        }
+        blocker.get(10, TimeUnit.SECONDS);
+        waitForDatabaseThread();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = overflow + 1; i <= recorded; i++) {
+            expected.add(i);
+        }
+        Assert.assertEquals(expected, queryTransactionCounters());
+    }
+
+    @Test
+    public void compactionDeletesOldAndExcessEntries() {
+        long now = System.currentTimeMillis();
+        database.tanUsageDao().insertAll(Arrays.asList(
+                createEntry(1, new Date(now - TimeUnit.DAYS.toMillis(500))),
+                createEntry(2, new Date(now - TimeUnit.DAYS.toMillis(3))),
+                createEntry(3, new Date(now - TimeUnit.DAYS.toMillis(2))),
+                createEntry(4, new Date(now - TimeUnit.DAYS.toMillis(1))),
+                createEntry(5, new Date(now))));
+
+        int deleted = database.tanUsageDao().compact(
+                new Date(now - TimeUnit.DAYS.toMillis(400)), 3);
+
+        Assert.assertEquals(2, deleted);
+        Assert.assertEquals(Arrays.asList(3, 4, 5), queryTransactionCounters());
+    }
+
+}
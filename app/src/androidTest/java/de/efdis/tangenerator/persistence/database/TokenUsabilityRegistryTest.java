@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyStoreException;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import de.efdis.tangenerator.persistence.keystore.AndroidKeyStoreBackend;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.InMemoryKeyStoreBackend;
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
+
+@RunWith(AndroidJUnit4.class)
+public class TokenUsabilityRegistryTest {
+
+    private Context context;
+    private AppDatabase database;
+    private InMemoryKeyStoreBackend keyStore;
+    private BankingToken token;
+
+    @Before
+    public void createToken() throws KeyStoreException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase.class).build();
+        AppDatabase.setInstance(database);
+
+        keyStore = new InMemoryKeyStoreBackend();
+        BankingKeyRepository.setBackend(keyStore);
+
+        SecureRandom random = new SecureRandom();
+        BankingKeyComponents keyComponents = new BankingKeyComponents();
+        keyComponents.generateDeviceKeyComponent();
+        keyComponents.letterKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+        random.nextBytes(keyComponents.letterKeyComponent);
+        keyComponents.portalKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+        random.nextBytes(keyComponents.portalKeyComponent);
+        keyComponents.userAuthMandatoryForUsage = Boolean.FALSE;
+
+        token = new BankingToken();
+        token.id = "XX1234567890";
+        token.keyAlias = BankingKeyRepository.insertNewBankingKey(keyComponents);
+        token.usage = BankingTokenUsage.DISABLED_AUTH_PROMPT;
+        token.createdOn = new Date();
+        database.bankingTokenDao().insert(token);
+    }
+
+    @After
+    public void deleteToken() throws Exception {
+        keyStore.setLatency(0, 0, TimeUnit.MILLISECONDS);
+        BankingKeyRepository.deleteBankingKey(token.keyAlias);
+        BankingKeyRepository.setBackend(new AndroidKeyStoreBackend());
+
+        AppDatabase.setInstance(null);
+        database.close();
+    }
+
+    @Test
+    public void stalledKeyStoreIsNotRegisteredAsInvalidKey() throws KeyStoreException {
+        TokenUsabilityRegistry registry = TokenUsabilityRegistry.getInstance(context);
+
+        // Every check of the key times out, also the one in the background
+        long timeoutMillis = KeyStoreExecutor.Operation.VALIDATE_KEY.getTimeoutMillis();
+        keyStore.setLatency(0, timeoutMillis + 500, TimeUnit.MILLISECONDS);
+        registry.invalidateAll();
+
+        try {
+            registry.hasValidKey(token);
+            Assert.fail("Stalled key store has not been reported");
+        } catch (KeyStoreException e) {
+            // expected
+        }
+        Assert.assertNull(registry.getSnapshot().hasValidKey(token.keyAlias));
+        Assert.assertNotEquals(Boolean.FALSE, registry.getKeyValidity(token));
+
+        // The key is checked again, once the key store responds
+        keyStore.setLatency(0, 0, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(registry.hasValidKey(token));
+        Assert.assertEquals(Boolean.TRUE, registry.getSnapshot().hasValidKey(token.keyAlias));
+    }
+
+    @Test
+    public void invalidatedKeyIsRegistered() throws KeyStoreException {
+        TokenUsabilityRegistry registry = TokenUsabilityRegistry.getInstance(context);
+
+        keyStore.invalidateAllKeys();
+        registry.invalidateAll();
+
+        Assert.assertFalse(registry.hasValidKey(token));
+        Assert.assertEquals(Boolean.FALSE, registry.getSnapshot().hasValidKey(token.keyAlias));
+    }
+
+}
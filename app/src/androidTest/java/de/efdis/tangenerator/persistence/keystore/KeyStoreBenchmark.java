@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import de.efdis.tangenerator.activetan.DataElementType;
+import de.efdis.tangenerator.activetan.HHDuc;
+import de.efdis.tangenerator.activetan.TanGenerator;
+import de.efdis.tangenerator.activetan.VisualisationClass;
+import de.efdis.tangenerator.persistence.database.BankingToken;
+import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
+import de.efdis.tangenerator.persistence.database.BankingTokenUsage;
+import de.efdis.tangenerator.tracing.LatencyHistogram;
+
+/**
+ * Measures the key handling of {@link BankingKeyRepository} and {@link BankingTokenRepository},
+ * like for the list of usable tokens and for a scanned transaction.
+ * <p>
+ * The keys are stored in an {@link InMemoryKeyStoreBackend} with a simulated latency, so that the
+ * overhead of the app's code can be separated from the time spent waiting for the key store
+ * service. The results are written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyStoreBenchmark {
+
+    private static final String TAG = KeyStoreBenchmark.class.getSimpleName();
+
+    private static final int TOKENS = 16;
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int ITERATIONS = 500;
+
+    /** Simulated latency of each key store operation */
+    private static final long LATENCY_MICROS = 250;
+
+    private interface Flow {
+        void run(BankingToken token) throws Exception;
+    }
+
+    private InMemoryKeyStoreBackend keyStore;
+    private final List<BankingToken> tokens = new ArrayList<>(TOKENS);
+    private HHDuc hhduc;
+
+    @Before
+    public void createTokens() throws KeyStoreException {
+        keyStore = new InMemoryKeyStoreBackend();
+        keyStore.setLatency(10 * LATENCY_MICROS, LATENCY_MICROS, TimeUnit.MICROSECONDS);
+        BankingKeyRepository.setBackend(keyStore);
+
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < TOKENS; i++) {
+            BankingKeyComponents keyComponents = new BankingKeyComponents();
+            keyComponents.generateDeviceKeyComponent();
+            keyComponents.letterKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+            random.nextBytes(keyComponents.letterKeyComponent);
+            keyComponents.portalKeyComponent = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+            random.nextBytes(keyComponents.portalKeyComponent);
+            keyComponents.userAuthMandatoryForUsage = Boolean.FALSE;
+
+            BankingToken token = new BankingToken();
+            token.id = String.format("XX%010d", i);
+            token.keyAlias = BankingKeyRepository.insertNewBankingKey(keyComponents);
+            token.usage = BankingTokenUsage.DISABLED_AUTH_PROMPT;
+            token.createdOn = new Date();
+            tokens.add(token);
+        }
+
+        hhduc = new HHDuc(VisualisationClass.CREDIT_TRANSFER_SEPA);
+        hhduc.setDataElement(DataElementType.IBAN_RECIPIENT,
+                "DE9912345678901234567890");
+        hhduc.setDataElement(DataElementType.AMOUNT,
+                BigDecimal.valueOf(12345, 2));
+    }
+
+    @After
+    public void deleteTokens() throws KeyStoreException {
+        for (BankingToken token : tokens) {
+            BankingKeyRepository.deleteBankingKey(token.keyAlias);
+        }
+        BankingKeyRepository.setBackend(new AndroidKeyStoreBackend());
+    }
+
+    /** Load a key and check that it can be used, like for the list of usable tokens */
+    @Test
+    public void validateKey() throws Exception {
+        measure("validateKey",
+                token -> Assert.assertTrue(BankingTokenRepository.hasValidKey(token)));
+    }
+
+    /** Check whether authentication is required, like after a token has been selected */
+    @Test
+    public void userMustAuthenticateToUse() throws Exception {
+        measure("userMustAuthenticateToUse",
+                token -> Assert.assertFalse(
+                        BankingTokenRepository.userMustAuthenticateToUse(token)));
+    }
+
+    /** Load a key without validation and compute a TAN, like for a scanned transaction */
+    @Test
+    public void loadKeyAndGenerateTan() throws Exception {
+        measure("loadKeyAndGenerateTan",
+                token -> KeyStoreExecutor.call(KeyStoreExecutor.Operation.GENERATE_TAN, () -> {
+                    try (AutoDestroyable<SecretKey> bankingKey
+                                 = BankingKeyRepository.getBankingKeyForUse(token.keyAlias)) {
+                        Assert.assertNotNull(bankingKey);
+                        return TanGenerator.generateTan(
+                                bankingKey.getKeyMaterial(), token.transactionCounter++, hhduc);
+                    } catch (GeneralSecurityException e) {
+                        throw new KeyStoreException(e);
+                    }
+                }));
+    }
+
+    private void measure(String name, Flow flow) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            flow.run(tokens.get(i % TOKENS));
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        int keyStoreLoads = keyStore.getLoadCount();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            flow.run(tokens.get(i % TOKENS));
+            histogram.record(System.nanoTime() - start);
+        }
+
+        StringWriter executorStatistics = new StringWriter();
+        KeyStoreExecutor.dump("", new PrintWriter(executorStatistics));
+
+        Log.i(TAG, name + ": " + histogram.getSnapshot()
+                + ", key store loads " + (keyStore.getLoadCount() - keyStoreLoads));
+        Log.i(TAG, executorStatistics.toString());
+    }
+
+}
@@ -19,13 +19,14 @@
 
 package de.efdis.tangenerator.activetan;
 
-import android.util.Pair;
-
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.zip.Checksum;
 
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
+
 /**
  * Container format for Banking QR codes
  */
@@ -71,7 +72,37 @@ public class BQRContainer {
         }
     }
 
-    public static Pair<ContentType, byte[]> unwrap(byte[] bqr) throws InvalidBankingQrCodeException {
+    /**
+     * Unwrapped content of a BQR container
+     */
+    public static class Content {
+        private final ContentType contentType;
+        private final byte[] payload;
+
+        Content(ContentType contentType, byte[] payload) {
+            this.contentType = contentType;
+            this.payload = payload;
+        }
+
+        public ContentType getContentType() {
+            return contentType;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public static Content unwrap(byte[] bqr) throws InvalidBankingQrCodeException {
+        long traceStart = Tracing.begin(TraceSpan.BQR_UNWRAP);
+        try {
+            return unwrapContent(bqr);
+        } finally {
+            Tracing.end(TraceSpan.BQR_UNWRAP, traceStart);
+        }
+    }
+
+    private static Content unwrapContent(byte[] bqr) throws InvalidBankingQrCodeException {
         bqr = unscramble(bqr);
 
         checkCrc16(bqr);
@@ -110,14 +141,14 @@ public class BQRContainer {
                             "Unexpected data after last block found");
                 }
 
-                return new Pair<>(contentType, hhduc);
+                return new Content(contentType, hhduc);
             }
 
             case KEY_MATERIAL: {
                 // 'KM' prefix: key material for device initialization
                 byte[] hhdkm = new byte[blockInputStream.available()];
                 blockInputStream.read(hhdkm, 0, hhdkm.length);
-                return new Pair<>(contentType, hhdkm);
+                return new Content(contentType, hhdkm);
             }
 
             default:
@@ -34,6 +34,9 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.zip.Checksum;
 
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
+
 public class HHDuc {
 
     /**
@@ -200,6 +203,15 @@ public class HHDuc {
     private static final int HHD_CONTROL_BYTE = 0x01;
 
     public static HHDuc parse(byte[] rawBytes) throws UnsupportedDataFormatException {
+        long traceStart = Tracing.begin(TraceSpan.HHDUC_PARSE);
+        try {
+            return parseChallenge(rawBytes);
+        } finally {
+            Tracing.end(TraceSpan.HHDUC_PARSE, traceStart);
+        }
+    }
+
+    private static HHDuc parseChallenge(byte[] rawBytes) throws UnsupportedDataFormatException {
         ByteArrayInputStream bais = new ByteArrayInputStream(rawBytes);
 
         // LC
@@ -320,7 +332,7 @@ public class HHDuc {
         switch (startCodeEncoding) {
             case ASCII:
                 try {
-                    startCode = Integer.parseInt(new String(rawStartCode, DKCharset.INSTANCE));
+                    startCode = Long.parseLong(new String(rawStartCode, DKCharset.INSTANCE));
                 } catch (NumberFormatException e) {
                     throw new UnsupportedDataFormatException("Start code is not numeric");
                 }
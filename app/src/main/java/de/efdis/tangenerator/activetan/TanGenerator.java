@@ -21,17 +21,15 @@ package de.efdis.tangenerator.activetan;
 
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.KeyStoreException;
+import java.security.Key;
 import java.security.MessageDigest;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 
 import javax.crypto.Mac;
-import javax.crypto.SecretKey;
 
-import de.efdis.tangenerator.persistence.database.BankingToken;
-import de.efdis.tangenerator.persistence.keystore.AutoDestroyable;
-import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
 
 public class TanGenerator {
 
@@ -60,8 +58,10 @@ public class TanGenerator {
     /**
      * Compute a tan with a secret master key, transaction counter and transaction data.
      *
-     * @param token
-     *      Defines secret key alias in the key store and the current transaction counter.
+     * @param bankingKey
+     *      Secret banking key of the security token, usually from the key store.
+     * @param transactionCounter
+     *      Current transaction counter (ATC) of the security token.
      * @param hhduc
      *      Transaction data
      * @return
@@ -69,57 +69,68 @@ public class TanGenerator {
      * @throws GeneralSecurityException
      *      If the secret key cannot be used
      */
-    public static int generateTan(BankingToken token, HHDuc hhduc) throws GeneralSecurityException {
-        VisDataBuffer visData = new VisDataBuffer();
-        visData.write(hhduc);
-
-        MessageDigest hashAlgorithm = MessageDigest.getInstance(VIS_DATA_HASH);
-        byte[] visDataDigest = visData.getHash(hashAlgorithm);
-
-        return generateTan(token, visDataDigest);
+    public static int generateTan(Key bankingKey, int transactionCounter, HHDuc hhduc) throws GeneralSecurityException {
+        long traceStart = Tracing.begin(TraceSpan.TAN_GENERATION);
+        try {
+            VisDataBuffer visData = new VisDataBuffer();
+            visData.write(hhduc);
+
+            MessageDigest hashAlgorithm = MessageDigest.getInstance(VIS_DATA_HASH);
+            byte[] visDataDigest = visData.getHash(hashAlgorithm);
+
+            return generateTan(bankingKey, transactionCounter, visDataDigest);
+        } finally {
+            Tracing.end(TraceSpan.TAN_GENERATION, traceStart);
+        }
     }
 
     /**
      * Compute a tan for initialization of the security token with a secret master key.
      *
-     * @param token
-     *      Defines secret key alias in the key store. The transaction counter must be zero.
+     * @param bankingKey
+     *      Secret banking key of the security token, usually from the key store.
+     * @param transactionCounter
+     *      Current transaction counter (ATC) of the security token, which must be zero.
      * @return
      *      TAN for initialization of the security token (6-digit decimal number)
      * @throws GeneralSecurityException
      *      If the secret key cannot be used
      */
-    public static int generateTanForInitialization(BankingToken token) throws GeneralSecurityException {
-        if (token.transactionCounter != 0) {
+    public static int generateTanForInitialization(Key bankingKey, int transactionCounter) throws GeneralSecurityException {
+        if (transactionCounter != 0) {
             throw new IllegalStateException(
                     "static TAN can only be generated for a new token");
         }
 
-        return generateTan(token, GENERATE_STATIC_TAN);
+        return generateTan(bankingKey, transactionCounter, GENERATE_STATIC_TAN);
     }
 
     /**
      * Compute a tan using an application cryptogram from arbitrary input data.
      *
-     * @param token
-     *      Defines secret key alias in the key store and the current transaction counter.
+     * @param bankingKey
+     *      Secret banking key of the security token.
+     * @param transactionCounter
+     *      Current transaction counter (ATC) of the security token.
      * @return
      *      TAN (6-digit decimal number)
      * @throws GeneralSecurityException
      *      If the secret key cannot be used
      */
-    private static int generateTan(BankingToken token, byte[] commandData) throws GeneralSecurityException {
-        byte[] aac = computeApplicationAuthenticationCryptogram(token, commandData);
+    private static int generateTan(Key bankingKey, int transactionCounter, byte[] commandData) throws GeneralSecurityException {
+        byte[] aac = computeApplicationAuthenticationCryptogram(bankingKey, transactionCounter, commandData);
 
         return decimalization(aac, TAN_DIGITS);
     }
 
     /**
      * Cryptographically sign a digest with the transaction counter and secret banking key
-     * associated with the {@link BankingToken}.
+     * of a security token.
      *
-     * @param token
-     *      Defines secret key and transaction counter (ATC).
+     * @param bankingKey
+     *      Secret banking key of the security token.
+     * @param atc
+     *      Transaction counter of the security token.
      * @param digest
      *      Hash value of the data to be signed, e. g., from a {@link VisDataBuffer}.
      * @return
@@ -127,20 +138,19 @@ public class TanGenerator {
      * @throws InvalidKeyException
      *      If the secret key cannot be used, e. g., because of unsatisfied protection constraints
      */
-    private static byte[] computeApplicationAuthenticationCryptogram(BankingToken token, byte[] digest) throws KeyStoreException, InvalidKeyException {
-        int atc = token.transactionCounter;
-
+    private static byte[] computeApplicationAuthenticationCryptogram(Key bankingKey, int atc, byte[] digest) throws InvalidKeyException {
         byte[] inputAAC = Arrays.copyOf(digest, 33);
         inputAAC[31] = (byte) ((atc & 0xff00) >> 8);
         inputAAC[32] = (byte) (atc & 0x00ff);
 
         // AAC computation
-        try (
-                AutoDestroyable<SecretKey> key = BankingKeyRepository.getBankingKey(token.keyAlias)
-        ) {
+        long traceStart = Tracing.begin(TraceSpan.AES_CBC_MAC);
+        try {
             Mac mac = AesCbcMac.getInstance();
-            mac.init(key.getKeyMaterial());
+            mac.init(bankingKey);
             return mac.doFinal(inputAAC);
+        } finally {
+            Tracing.end(TraceSpan.AES_CBC_MAC, traceStart);
         }
     }
 
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import de.efdis.tangenerator.BuildConfig;
+import de.efdis.tangenerator.R;
+
+/**
+ * Shared {@link SecuredRestApiEndpoint} per backend, configured from the app's resources.
+ */
+final class ApiEndpoints {
+
+    private static final String API_USER_AGENT =
+            BuildConfig.APPLICATION_ID + "/" + BuildConfig.VERSION_CODE +
+                    " Android/" + Build.VERSION.SDK_INT;
+
+    /**
+     * Connects to the fastest address of the api host and keeps connections alive. It is shared
+     * by all endpoints, so that the recorded latencies and open connections are used for every
+     * request. With a proxy, the platform's connection is used.
+     */
+    private static final HttpTransport transport = new PooledHttpTransport(
+            new RacingConnector(
+                    HttpsURLConnection.getDefaultSSLSocketFactory(),
+                    HttpsURLConnection.getDefaultHostnameVerifier()),
+            SecuredRestApiEndpoint.CONNECT_TIMEOUT_MILLIS,
+            SecuredRestApiEndpoint.READ_TIMEOUT_MILLIS,
+            new UrlConnectionTransport(
+                    SecuredRestApiEndpoint.CONNECT_TIMEOUT_MILLIS,
+                    SecuredRestApiEndpoint.READ_TIMEOUT_MILLIS));
+
+    /** Endpoints by backend ID, with parsed api URL and key */
+    private static final Map<Integer, SecuredRestApiEndpoint> endpoints
+            = new ConcurrentHashMap<>();
+
+    private ApiEndpoints() {
+    }
+
+    /**
+     * @return The shared endpoint for the backend, its URL and key are only loaded once
+     */
+    @NonNull
+    static SecuredRestApiEndpoint forBackend(@NonNull Context context, int backendId) {
+        SecuredRestApiEndpoint endpoint = endpoints.get(backendId);
+        if (endpoint == null) {
+            // A concurrent call may have loaded the same endpoint, which is harmless
+            endpoint = loadEndpoint(context, backendId);
+            SecuredRestApiEndpoint previous = endpoints.putIfAbsent(backendId, endpoint);
+            if (previous != null) {
+                endpoint = previous;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Start connecting to the backend in the background, see
+     * {@link SecuredRestApiEndpoint#prewarm()}.
+     */
+    static void prewarm(@NonNull Context context, int backendId) {
+        SecuredRestApiEndpoint endpoint;
+        try {
+            endpoint = forBackend(context, backendId);
+        } catch (SecuredRestApiEndpoint.ApiConfigurationException e) {
+            Log.e(ApiEndpoints.class.getSimpleName(), "Cannot pre-warm api connection", e);
+            return;
+        }
+        endpoint.prewarm();
+    }
+
+    private static SecuredRestApiEndpoint loadEndpoint(Context context, int backendId) {
+        String[] apiUrls = context.getResources().getStringArray(R.array.backend_api_url);
+        if (backendId < 0 || backendId >= apiUrls.length) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException("Invalid backend ID");
+        }
+
+        URL apiUrl;
+        try {
+            apiUrl = new URL(apiUrls[backendId]);
+        } catch (MalformedURLException e) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException("Invalid api URL", e);
+        }
+
+        PublicKey apiKey;
+        try {
+            apiKey = loadApiKey(context);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException(
+                    "Cannot load api key", e);
+        }
+
+        return new SecuredRestApiEndpoint(apiUrl, apiKey, API_USER_AGENT, transport);
+    }
+
+    private static PublicKey loadApiKey(Context context)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        KeyFactory keyFactory = KeyFactory.getInstance(
+                SecuredRestApiEndpoint.API_UPLOAD_ALGORITHM);
+
+        RSAPublicKeySpec keySpec = new RSAPublicKeySpec(
+                new BigInteger(context.getResources().getString(
+                        R.string.backend_api_key_modulus)),
+                new BigInteger(context.getResources().getString(
+                        R.string.backend_api_key_exponent)));
+
+        PublicKey publicKey = keyFactory.generatePublic(keySpec);
+        return publicKey;
+    }
+
+}
@@ -102,6 +102,9 @@ public class BankingAppApi extends AppCompatActivity {
     private Date activityCreationTime;
     private ActivityResultLauncher<Intent> challengeLauncher;
 
+    /** Usable tokens, loaded before the challenge is processed */
+    private List<BankingToken> usableTokens;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -268,6 +271,19 @@ public class BankingAppApi extends AppCompatActivity {
             return;
         }
 
+        BankingTokenRepository.getAllUsableAsync(this, usableTokens -> {
+            this.usableTokens = usableTokens;
+            if (!isFinishing()) {
+                processApiChallenge(challenge);
+            }
+        });
+    }
+
+    /**
+     * Start the transaction verification activity for a valid challenge, after the usable tokens
+     * have been loaded.
+     */
+    private void processApiChallenge(BankingAppChallenge challenge) {
         final Collection<BankingToken> eligibleTokens;
         try {
             eligibleTokens = findMatchingBankingTokens(challenge.tanMediaDescriptions).values();
@@ -432,6 +448,8 @@ public class BankingAppApi extends AppCompatActivity {
      * The returned {@link Map} uses the TAN media descriptions as keys and the matching
      * {@link BankingToken}s as values. If a TAN media description has no matching
      * {@link BankingToken}, it is removed from the {@link Map}.
+     * <p/>
+     * The {@link #usableTokens} must have been loaded before.
      *
      * @return TAN generators, which may be used for the api call. The list may be empty, if no
      * TAN generator has been activated.
@@ -445,7 +463,7 @@ public class BankingAppApi extends AppCompatActivity {
     @NonNull
     private Map<String, BankingToken> findMatchingBankingTokens(String[] tanMediaDescriptions) throws TanGeneratorMismatchException {
         Map<String, BankingToken> usableTokensById = new HashMap<>();
-        for (BankingToken token : BankingTokenRepository.getAllUsable(this)) {
+        for (BankingToken token : usableTokens) {
             usableTokensById.put(token.id, token);
         }
 
@@ -516,6 +534,18 @@ public class BankingAppApi extends AppCompatActivity {
      * Handle the result of {@link VerifyTransactionDetailsActivity}.
      */
     private void onChallengeResult(int resultCode, Intent challengeResponse) {
+        if (usableTokens == null) {
+            // The activity has been recreated and the tokens have not been loaded again yet.
+            // They are needed to identify the used TAN generator's TAN media description.
+            BankingTokenRepository.getAllUsableAsync(this, loadedTokens -> {
+                usableTokens = loadedTokens;
+                if (!isFinishing()) {
+                    onChallengeResult(resultCode, challengeResponse);
+                }
+            });
+            return;
+        }
+
         switch (resultCode) {
             case Activity.RESULT_OK:
                 if (sendApiResponse(
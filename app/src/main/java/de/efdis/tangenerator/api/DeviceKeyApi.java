@@ -22,6 +22,11 @@ package de.efdis.tangenerator.api;
 import android.content.Context;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Internet API of the banking system to upload device keys during initialization of the app.
@@ -44,6 +49,14 @@ import java.nio.charset.StandardCharsets;
  */
 public class DeviceKeyApi {
 
+    /**
+     * Connect to the banking system in the background, so that the following
+     * {@link #uploadDeviceKey(Context, int, byte[])} need not wait for the TLS handshake.
+     */
+    public static void prewarm(Context context, int backendId) {
+        ApiEndpoints.prewarm(context, backendId);
+    }
+
     /**
      * Sends the device key component to the banking system and receives a token ID for
      * identification of this device.
@@ -55,9 +68,52 @@ public class DeviceKeyApi {
      */
     public static String uploadDeviceKey(Context context, int backendId, byte[] deviceKey)
             throws SecuredRestApiEndpoint.CallFailedException {
-        SecuredRestApiEndpoint apiEndpoint = new SecuredRestApiEndpoint(context, backendId);
+        SecuredRestApiEndpoint apiEndpoint = ApiEndpoints.forBackend(context, backendId);
         byte[] rawTokenId = apiEndpoint.performRequest(deviceKey);
         return new String(rawTokenId, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Sends several device key components to the banking system in one request and receives a
+     * token ID for each of them.
+     * <p/>
+     * Unlike {@link #uploadDeviceKey(Context, int, byte[])}, the caller need not repeat the
+     * upload, if a token ID is already known in this app. The banking system avoids the known
+     * token IDs instead.
+     *
+     * @param deviceKeys AES key components, at most
+     *                   {@link SecuredRestApiEndpoint#MAX_BATCH_SIZE}
+     * @param knownTokenIds Token IDs, which must not be returned
+     * @return Distinct token IDs, in the order of the device keys
+     */
+    public static List<String> uploadDeviceKeys(Context context, int backendId,
+                                                List<byte[]> deviceKeys,
+                                                Collection<String> knownTokenIds)
+            throws SecuredRestApiEndpoint.CallFailedException {
+        SecuredRestApiEndpoint apiEndpoint = ApiEndpoints.forBackend(context, backendId);
+        return uploadDeviceKeys(apiEndpoint, deviceKeys, knownTokenIds);
+    }
+
+    static List<String> uploadDeviceKeys(SecuredRestApiEndpoint apiEndpoint,
+                                         List<byte[]> deviceKeys,
+                                         Collection<String> knownTokenIds)
+            throws SecuredRestApiEndpoint.CallFailedException {
+        List<byte[]> rawKnownTokenIds = new ArrayList<>(knownTokenIds.size());
+        for (String tokenId : knownTokenIds) {
+            rawKnownTokenIds.add(tokenId.getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<String> tokenIds = new ArrayList<>(deviceKeys.size());
+        Set<String> usedTokenIds = new HashSet<>(knownTokenIds);
+        for (byte[] rawTokenId : apiEndpoint.performBatchRequest(deviceKeys, rawKnownTokenIds)) {
+            String tokenId = new String(rawTokenId, StandardCharsets.UTF_8);
+            if (!usedTokenIds.add(tokenId)) {
+                throw new SecuredRestApiEndpoint.CallFailedException(
+                        "Backend returned a token ID which is already in use");
+            }
+            tokenIds.add(tokenId);
+        }
+        return tokenIds;
+    }
+
 }
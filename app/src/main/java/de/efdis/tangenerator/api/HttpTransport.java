@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of a {@link SecuredRestApiEndpoint}.
+ * <p/>
+ * The transport only moves bytes, encryption and signature verification remain in the endpoint.
+ * Implementations may keep connections alive and reuse them for following requests.
+ */
+interface HttpTransport {
+
+    /**
+     * Open a connection to the server, a new one or one kept alive from a previous request.
+     * Any TLS handshake has completed when this method returns.
+     *
+     * @param headers Request headers for the following {@link Exchange#post(byte[])}
+     */
+    @NonNull
+    Exchange open(@NonNull URL url, @NonNull Map<String, String> headers) throws IOException;
+
+    /**
+     * A single request and its response on an open connection.
+     */
+    interface Exchange extends Closeable {
+
+        /**
+         * Send a POST request and receive the response status and headers.
+         */
+        void post(@NonNull byte[] body) throws IOException;
+
+        int getResponseCode() throws IOException;
+
+        @Nullable
+        String getHeaderField(@NonNull String name);
+
+        /**
+         * @return Length of the response body or <code>-1</code>, if it is unknown
+         */
+        long getContentLength();
+
+        @NonNull
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Finish the exchange. The connection is kept alive for following requests, if the
+         * response has been read completely or no request has been sent.
+         */
+        @Override
+        void close();
+    }
+
+}
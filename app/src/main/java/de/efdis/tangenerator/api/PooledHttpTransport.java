@@ -0,0 +1,654 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTP/1.1 transport over TLS sockets from the {@link RacingConnector}, which keeps connections
+ * alive and reuses them for following requests.
+ * <p/>
+ * The platform's {@link javax.net.ssl.HttpsURLConnection} cannot be bound to a specific server
+ * address, so this class implements the small part of HTTP needed for the api: a request with a
+ * body of known length and a response with a content length, chunked transfer encoding or a body
+ * until the end of the connection.
+ * <p/>
+ * Idle connections are kept for a limited time and are checked for a close by the server before
+ * they are reused. If the request still cannot be written to a reused connection, it is sent once
+ * more on a new connection. Requests, which the server may have received, are never sent twice.
+ */
+class PooledHttpTransport implements HttpTransport {
+
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /** Wait for the server's close of an idle connection, which should already have arrived */
+    private static final int LIVENESS_TIMEOUT_MILLIS = 1;
+
+    private final RacingConnector connector;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final HttpTransport proxyTransport;
+    private final int maxIdleConnections;
+    private final long keepAliveNanos;
+
+    /** Idle connections by host and port, the most recently used first */
+    private final Map<String, Deque<Connection>> idleConnections = new HashMap<>();
+
+    private final AtomicInteger connectCount = new AtomicInteger();
+
+    /**
+     * @param proxyTransport Used, if a proxy is configured for the URL, or <code>null</code>
+     */
+    PooledHttpTransport(@NonNull RacingConnector connector,
+                        int connectTimeoutMillis, int readTimeoutMillis,
+                        @Nullable HttpTransport proxyTransport) {
+        this(connector, connectTimeoutMillis, readTimeoutMillis, proxyTransport,
+                DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    PooledHttpTransport(@NonNull RacingConnector connector,
+                        int connectTimeoutMillis, int readTimeoutMillis,
+                        @Nullable HttpTransport proxyTransport,
+                        int maxIdleConnections, long keepAliveMillis) {
+        this.connector = connector;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.proxyTransport = proxyTransport;
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+    }
+
+    /** Number of new connections, which have been opened */
+    int getConnectCount() {
+        return connectCount.get();
+    }
+
+    int getIdleConnectionCount() {
+        synchronized (idleConnections) {
+            int count = 0;
+            for (Deque<Connection> connections : idleConnections.values()) {
+                count += connections.size();
+            }
+            return count;
+        }
+    }
+
+    /** Close all idle connections */
+    void evictAll() {
+        List<Connection> evicted = new ArrayList<>();
+        synchronized (idleConnections) {
+            for (Deque<Connection> connections : idleConnections.values()) {
+                evicted.addAll(connections);
+            }
+            idleConnections.clear();
+        }
+        for (Connection connection : evicted) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Check whether connections to the URL must use a proxy, which chooses the server address
+     * on its own.
+     */
+    private static boolean usesProxy(URL url) {
+        ProxySelector proxySelector = ProxySelector.getDefault();
+        if (proxySelector == null) {
+            return false;
+        }
+        try {
+            for (Proxy proxy : proxySelector.select(url.toURI())) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    @NonNull
+    @Override
+    public Exchange open(@NonNull URL url, @NonNull Map<String, String> headers)
+            throws IOException {
+        if (!"https".equalsIgnoreCase(url.getProtocol())) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException(
+                    "communication is only allowed via HTTPS for server verification");
+        }
+        if (proxyTransport != null && usesProxy(url)) {
+            return proxyTransport.open(url, headers);
+        }
+
+        Connection connection = takeIdleConnection(url);
+        boolean reused = connection != null;
+        if (!reused) {
+            connection = connect(url);
+        }
+        return new PooledExchange(url, headers, connection, reused);
+    }
+
+    private static String getAddress(URL url) {
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase(Locale.ROOT) + ':' + port;
+    }
+
+    @NonNull
+    private Connection connect(URL url) throws IOException {
+        int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        SSLSocket socket = connector.connect(url.getHost(), port, connectTimeoutMillis);
+        try {
+            socket.setSoTimeout(readTimeoutMillis);
+            connectCount.incrementAndGet();
+            return new Connection(getAddress(url), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Nullable
+    private Connection takeIdleConnection(URL url) {
+        while (true) {
+            Connection candidate;
+            synchronized (idleConnections) {
+                Deque<Connection> connections = idleConnections.get(getAddress(url));
+                if (connections == null || connections.isEmpty()) {
+                    return null;
+                }
+                candidate = connections.pollFirst();
+            }
+
+            // The check may block for a moment, so it is done outside of the lock
+            if (!candidate.isExpired() && candidate.isAlive()) {
+                return candidate;
+            }
+            candidate.close();
+        }
+    }
+
+    private void release(Connection connection) {
+        connection.idleSince = System.nanoTime();
+
+        Connection evicted = null;
+        synchronized (idleConnections) {
+            Deque<Connection> connections = idleConnections.get(connection.address);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idleConnections.put(connection.address, connections);
+            }
+            connections.addFirst(connection);
+            if (connections.size() > maxIdleConnections) {
+                evicted = connections.pollLast();
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * TLS connection to a server.
+     */
+    private class Connection {
+        final String address;
+        final SSLSocket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+
+        Connection(String address, SSLSocket socket) throws IOException {
+            this.address = address;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        boolean isExpired() {
+            return socket.isClosed() || System.nanoTime() - idleSince > keepAliveNanos;
+        }
+
+        /**
+         * Check that the server has not closed the idle connection. An idle connection must not
+         * have any data to read, so the end of the stream or unexpected data make it unusable.
+         */
+        boolean isAlive() {
+            try {
+                socket.setSoTimeout(LIVENESS_TIMEOUT_MILLIS);
+                try {
+                    // Returns the end of the stream or unexpected data
+                    in.read();
+                    return false;
+                } finally {
+                    socket.setSoTimeout(readTimeoutMillis);
+                }
+            } catch (SocketTimeoutException e) {
+                // Nothing to read, like expected
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to clean up
+            }
+        }
+    }
+
+    private class PooledExchange implements Exchange {
+        private final URL url;
+        private final Map<String, String> requestHeaders;
+
+        private Connection connection;
+        private boolean reused;
+        private boolean sent;
+
+        private int responseCode;
+        private final List<String> responseHeaderKeys = new ArrayList<>();
+        private final List<String> responseHeaderValues = new ArrayList<>();
+        private InputStream responseBody;
+        private boolean keepAlive;
+
+        PooledExchange(URL url, Map<String, String> requestHeaders,
+                       Connection connection, boolean reused) {
+            this.url = url;
+            this.requestHeaders = requestHeaders;
+            this.connection = connection;
+            this.reused = reused;
+        }
+
+        @Override
+        public void post(@NonNull byte[] body) throws IOException {
+            if (sent) {
+                throw new ProtocolException("Request has already been sent");
+            }
+            sent = true;
+
+            if (!sendRequestAndAwaitResponse(body)) {
+                // The server has closed the idle connection before the request was written
+                connection.close();
+                connection = connect(url);
+                reused = false;
+                sendRequestAndAwaitResponse(body);
+            }
+
+            readResponseHeaders();
+        }
+
+        /**
+         * Send the request and wait for the first byte of the response.
+         * <p/>
+         * The request must not be sent twice, if the server might have processed it. This is only
+         * ruled out for a reused connection, if the request could not be written. Once it has
+         * been written, the server may have received it, even if the connection is closed or
+         * reset without any response afterwards. The idle connection has been checked before, so
+         * a close by the server is usually noticed before the request is written.
+         *
+         * @return <code>false</code>, if the request could not be written to the reused
+         * connection and can be sent again on a new connection
+         */
+        private boolean sendRequestAndAwaitResponse(byte[] body) throws IOException {
+            try {
+                sendRequest(body);
+            } catch (SocketTimeoutException e) {
+                // The server may still process the request
+                throw e;
+            } catch (IOException e) {
+                if (reused) {
+                    return false;
+                }
+                throw e;
+            }
+
+            connection.in.mark(1);
+            if (connection.in.read() < 0) {
+                throw new IOException("Connection has been closed by the server");
+            }
+            connection.in.reset();
+            return true;
+        }
+
+        private void sendRequest(byte[] body) throws IOException {
+            StringBuilder request = new StringBuilder();
+            request.append("POST ")
+                    .append(url.getFile().isEmpty() ? "/" : url.getFile())
+                    .append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(url.getHost());
+            if (url.getPort() >= 0 && url.getPort() != url.getDefaultPort()) {
+                request.append(':').append(url.getPort());
+            }
+            request.append("\r\n");
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                request.append(header.getKey()).append(": ")
+                        .append(header.getValue()).append("\r\n");
+            }
+            request.append("Content-Length: ").append(body.length).append("\r\n");
+            request.append("\r\n");
+
+            connection.out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+            connection.out.write(body);
+            connection.out.flush();
+        }
+
+        private void readResponseHeaders() throws IOException {
+            InputStream in = connection.in;
+
+            // HTTP/1.1 200 OK
+            String statusLine = readLine(in);
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/1.")) {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+            try {
+                responseCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: " + statusLine);
+            }
+
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new ProtocolException("Unexpected header line: " + line);
+                }
+                responseHeaderKeys.add(line.substring(0, colon).trim());
+                responseHeaderValues.add(line.substring(colon + 1).trim());
+            }
+
+            String connectionHeader = getHeaderField("Connection");
+            keepAlive = !"HTTP/1.0".equals(status[0]) && (connectionHeader == null
+                    || !connectionHeader.toLowerCase(Locale.ROOT).contains("close"));
+
+            String transferEncoding = getHeaderField("Transfer-Encoding");
+            String contentLength = getHeaderField("Content-Length");
+            if (responseCode == HttpURLConnection.HTTP_NO_CONTENT
+                    || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                responseBody = new BoundedInputStream(in, 0);
+            } else if (transferEncoding != null
+                    && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                responseBody = new ChunkedInputStream(in);
+            } else if (contentLength != null) {
+                try {
+                    responseBody = new BoundedInputStream(in, Long.parseLong(contentLength));
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Illegal content length: " + contentLength);
+                }
+            } else {
+                // Body until the server closes the connection
+                keepAlive = false;
+                responseBody = new FilterInputStream(in) {
+                    @Override
+                    public void close() {
+                        // The connection is closed by the exchange
+                    }
+                };
+            }
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (!sent) {
+                throw new ProtocolException("Request has not been sent");
+            }
+            return responseCode;
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            String value = null;
+            for (int i = 0; i < responseHeaderKeys.size(); i++) {
+                if (responseHeaderKeys.get(i).equalsIgnoreCase(name)) {
+                    // The last one wins, like in the platform implementation
+                    value = responseHeaderValues.get(i);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public long getContentLength() {
+            String contentLength = getHeaderField("Content-Length");
+            if (contentLength == null || getHeaderField("Transfer-Encoding") != null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @NonNull
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (responseBody == null) {
+                throw new ProtocolException("Request has not been sent");
+            }
+            return responseBody;
+        }
+
+        @Override
+        public void close() {
+            boolean reusable = !sent || (keepAlive
+                    && responseBody instanceof ResponseBody
+                    && ((ResponseBody) responseBody).isComplete());
+            if (reusable) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = is.read()) != '\n') {
+            if (c < 0) {
+                throw new ProtocolException("Unexpected end of response");
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response line too long");
+            }
+            line.append((char) c);
+        }
+        if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+            line.setLength(line.length() - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Response body, which ends before the end of the connection.
+     */
+    private abstract static class ResponseBody extends FilterInputStream {
+        ResponseBody(InputStream in) {
+            super(in);
+        }
+
+        /** Whether the body has been read completely, so the connection can be reused */
+        abstract boolean isComplete();
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            int length;
+            while (skipped < n && (length = read(buffer, 0,
+                    (int) Math.min(buffer.length, n - skipped))) >= 0) {
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The connection is released by the exchange
+        }
+    }
+
+    /**
+     * Body with a content length.
+     */
+    private static class BoundedInputStream extends ResponseBody {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int length = in.read(b, off, (int) Math.min(len, remaining));
+            if (length < 0) {
+                throw new IOException("Unexpected end of content stream");
+            }
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Body with chunked transfer encoding.
+     */
+    private static class ChunkedInputStream extends ResponseBody {
+        private long remainingInChunk;
+        private boolean lastChunk;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        boolean isComplete() {
+            return lastChunk;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (remainingInChunk == 0 && !nextChunk()) {
+                return -1;
+            }
+            int length = in.read(b, off, (int) Math.min(len, remainingInChunk));
+            if (length < 0) {
+                throw new IOException("Unexpected end of content stream");
+            }
+            remainingInChunk -= length;
+            return length;
+        }
+
+        /**
+         * @return <code>false</code> after the last chunk
+         */
+        private boolean nextChunk() throws IOException {
+            if (lastChunk) {
+                return false;
+            }
+
+            String line = readLine(in);
+            if (line.isEmpty()) {
+                // End of the previous chunk's data
+                line = readLine(in);
+            }
+            int extension = line.indexOf(';');
+            try {
+                remainingInChunk = Long.parseLong(
+                        (extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Illegal chunk size: " + line);
+            }
+
+            if (remainingInChunk == 0) {
+                // Skip trailers
+                while (!readLine(in).isEmpty()) {
+                    // Discard
+                }
+                lastChunk = true;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remainingInChunk);
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens a TLS connection to a host, which may resolve to several addresses.
+ * <p/>
+ * The attempts to the addresses are staggered in Happy-Eyeballs style: if an address does not
+ * complete the TLS handshake within a short delay, the next address is tried in parallel. The
+ * first completed connection is kept and the other attempts are cancelled. Thus, a slow or
+ * black-holed address does not block the connection until the connect timeout.
+ * <p/>
+ * The time until the handshake completed is recorded per address, so that the fastest address
+ * is tried first for following connections.
+ * <p/>
+ * The connections are opened for the {@link PooledHttpTransport}, which performs the requests
+ * and keeps the connections alive.
+ */
+class RacingConnector {
+
+    static final long DEFAULT_STAGGER_MILLIS = 250;
+
+    /**
+     * Resolves the addresses of a host.
+     */
+    interface Resolver {
+        @NonNull
+        List<InetSocketAddress> resolve(@NonNull String host, int port)
+                throws UnknownHostException;
+    }
+
+    static final Resolver DNS = (host, port) -> {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            addresses.add(new InetSocketAddress(address, port));
+        }
+        return addresses;
+    };
+
+    private static final ExecutorService attemptExecutor = Executors.newCachedThreadPool(
+            runnable -> {
+                Thread thread = new Thread(runnable, "ApiConnect");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final SSLSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final Resolver resolver;
+    private final long staggerMillis;
+
+    /** Smoothed handshake latency by address, failed addresses have the connect timeout */
+    private final Map<InetSocketAddress, Long> latencyNanos = new ConcurrentHashMap<>();
+
+    RacingConnector(@NonNull SSLSocketFactory socketFactory,
+                    @NonNull HostnameVerifier hostnameVerifier) {
+        this(socketFactory, hostnameVerifier, DNS, DEFAULT_STAGGER_MILLIS);
+    }
+
+    RacingConnector(@NonNull SSLSocketFactory socketFactory,
+                    @NonNull HostnameVerifier hostnameVerifier,
+                    @NonNull Resolver resolver, long staggerMillis) {
+        this.socketFactory = socketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+        this.resolver = resolver;
+        this.staggerMillis = staggerMillis;
+    }
+
+    /**
+     * @return Recorded latency of the address or <code>-1</code>, if it is unknown
+     */
+    long getLatencyNanos(@NonNull InetSocketAddress address) {
+        Long latency = latencyNanos.get(address);
+        return latency == null ? -1 : latency;
+    }
+
+    private void recordLatency(InetSocketAddress address, long nanos) {
+        // Exponential moving average, which quickly reacts to changes of the network
+        latencyNanos.merge(address, nanos, (previous, current) -> (previous + current) / 2);
+    }
+
+    /**
+     * Order the addresses for the next connection. Addresses with the lowest latency come first,
+     * followed by unknown addresses in the resolver's order.
+     */
+    @NonNull
+    List<InetSocketAddress> order(@NonNull List<InetSocketAddress> addresses) {
+        List<InetSocketAddress> ordered = new ArrayList<>(addresses);
+        // Stable sort keeps the resolver's order for unknown addresses
+        Collections.sort(ordered, (a, b) -> {
+            long latencyA = getLatencyNanos(a);
+            long latencyB = getLatencyNanos(b);
+            return Long.compare(
+                    latencyA < 0 ? Long.MAX_VALUE / 2 : latencyA,
+                    latencyB < 0 ? Long.MAX_VALUE / 2 : latencyB);
+        });
+        return ordered;
+    }
+
+    /**
+     * Connect to the host and complete the TLS handshake including server verification.
+     *
+     * @param timeoutMillis Timeout for each address to complete the handshake
+     * @throws IOException The error of the preferred address, if no address was successful
+     */
+    @NonNull
+    SSLSocket connect(@NonNull String host, int port, int timeoutMillis) throws IOException {
+        List<InetSocketAddress> addresses = order(resolver.resolve(host, port));
+        if (addresses.isEmpty()) {
+            throw new UnknownHostException(host);
+        }
+
+        if (addresses.size() == 1) {
+            return new Attempt(host, port, addresses.get(0), timeoutMillis).connect();
+        }
+
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Attempt> attempts = new ArrayList<>(addresses.size());
+        Attempt winner = null;
+        try {
+            long nextStart = System.nanoTime();
+            int running = 0;
+            while (true) {
+                if (attempts.size() < addresses.size()
+                        && (running == 0 || System.nanoTime() - nextStart >= 0)) {
+                    Attempt attempt = new Attempt(
+                            host, port, addresses.get(attempts.size()), timeoutMillis);
+                    attempts.add(attempt);
+                    running++;
+                    attemptExecutor.execute(() -> {
+                        attempt.run();
+                        completed.add(attempt);
+                    });
+                    nextStart = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(staggerMillis);
+                }
+
+                Attempt attempt;
+                if (attempts.size() < addresses.size()) {
+                    // Start the next attempt after the delay or as soon as one fails
+                    attempt = completed.poll(
+                            Math.max(0, nextStart - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } else {
+                    attempt = completed.take();
+                }
+                if (attempt == null) {
+                    continue;
+                }
+
+                running--;
+                if (attempt.socket != null) {
+                    winner = attempt;
+                    return attempt.socket;
+                }
+                if (running == 0 && attempts.size() == addresses.size()) {
+                    throw preferredError(attempts);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Connection has been cancelled");
+        } finally {
+            for (Attempt attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+    }
+
+    private static IOException preferredError(List<Attempt> attempts) {
+        IOException error = attempts.get(0).error;
+        for (Attempt attempt : attempts.subList(1, attempts.size())) {
+            error.addSuppressed(attempt.error);
+        }
+        return error;
+    }
+
+    /**
+     * Connection attempt to a single address.
+     */
+    private class Attempt implements Runnable {
+        private final String host;
+        private final int port;
+        private final InetSocketAddress address;
+        private final int timeoutMillis;
+
+        private Socket rawSocket;
+        private volatile boolean cancelled;
+
+        volatile SSLSocket socket;
+        volatile IOException error;
+
+        Attempt(String host, int port, InetSocketAddress address, int timeoutMillis) {
+            this.host = host;
+            this.port = port;
+            this.address = address;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket = connect();
+                if (cancelled) {
+                    // Lost the race
+                    cancel();
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Connection failed", e);
+            }
+        }
+
+        @NonNull
+        SSLSocket connect() throws IOException {
+            long start = System.nanoTime();
+            Socket rawSocket = new Socket();
+            synchronized (this) {
+                this.rawSocket = rawSocket;
+            }
+            try {
+                if (cancelled) {
+                    throw new SocketTimeoutException("Connection has been cancelled");
+                }
+                rawSocket.connect(address, timeoutMillis);
+                rawSocket.setSoTimeout(timeoutMillis);
+
+                // Layered with the host name for SNI and session resumption
+                SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(
+                        rawSocket, host, port, true);
+                sslSocket.startHandshake();
+                if (!hostnameVerifier.verify(host, sslSocket.getSession())) {
+                    sslSocket.close();
+                    throw new SSLPeerUnverifiedException(
+                            "Server certificate does not match " + host);
+                }
+
+                recordLatency(address, System.nanoTime() - start);
+                return sslSocket;
+            } catch (IOException e) {
+                rawSocket.close();
+                if (!cancelled) {
+                    recordLatency(address, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Abort a running attempt or close the connection of a losing attempt.
+         */
+        void cancel() {
+            cancelled = true;
+            Socket rawSocket;
+            synchronized (this) {
+                rawSocket = this.rawSocket;
+            }
+            try {
+                SSLSocket socket = this.socket;
+                if (socket != null) {
+                    socket.close();
+                } else if (rawSocket != null) {
+                    rawSocket.close();
+                }
+            } catch (IOException e) {
+                // Nothing to clean up
+            }
+        }
+    }
+
+}
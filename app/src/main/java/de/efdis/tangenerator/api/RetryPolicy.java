@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed api call is retried.
+ * <p/>
+ * Delays grow exponentially with decorrelated jitter, so that many devices failing at the same
+ * time do not retry in lockstep. A <code>Retry-After</code> from the backend takes precedence.
+ * All retries of a call share a time budget.
+ * <p/>
+ * The waiting thread may be interrupted to cancel the retries, e. g., if the user has left the
+ * activity.
+ */
+class RetryPolicy {
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(
+            250, TimeUnit.SECONDS.toMillis(8), TimeUnit.SECONDS.toMillis(30), 6);
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long budgetMillis;
+    private final int maxRetries;
+    private final Random random;
+
+    RetryPolicy(long baseDelayMillis, long maxDelayMillis, long budgetMillis, int maxRetries) {
+        this(baseDelayMillis, maxDelayMillis, budgetMillis, maxRetries, new Random());
+    }
+
+    RetryPolicy(long baseDelayMillis, long maxDelayMillis, long budgetMillis, int maxRetries,
+                @NonNull Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetMillis = budgetMillis;
+        this.maxRetries = maxRetries;
+        this.random = random;
+    }
+
+    /** Start the retries for a new call, the time budget starts now. */
+    @NonNull
+    Execution start() {
+        return new Execution();
+    }
+
+    /**
+     * Check whether the backend is overloaded and the call should be repeated later.
+     */
+    static boolean isBusy(int responseCode) {
+        return responseCode == 429 // Too many requests
+                || responseCode == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    /**
+     * Parse the <code>Retry-After</code> header, which contains either the delay in seconds or
+     * an HTTP date.
+     *
+     * @return The delay in milliseconds or <code>-1</code>, if the header is missing or invalid
+     */
+    static long parseRetryAfter(@Nullable String retryAfter, long nowMillis) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+
+        try {
+            long seconds = Long.parseLong(retryAfter);
+            return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException e) {
+            // Maybe an HTTP date
+        }
+
+        SimpleDateFormat httpDate = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, httpDate.parse(retryAfter).getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /** State of the retries for a single call */
+    class Execution {
+        private final long startNanos = System.nanoTime();
+        private long previousDelayMillis = baseDelayMillis;
+        private int retries;
+
+        /**
+         * @param retryAfterMillis Delay requested by the backend or <code>-1</code>
+         * @return The delay before the next attempt or <code>-1</code>, if the call must not be
+         * retried anymore
+         */
+        synchronized long nextDelayMillis(long retryAfterMillis) {
+            if (retries >= maxRetries) {
+                return -1;
+            }
+
+            // Decorrelated jitter: random delay between the base and three times the previous
+            long upperBound = Math.min(maxDelayMillis, 3 * previousDelayMillis);
+            long delayMillis = baseDelayMillis
+                    + (long) (random.nextDouble() * Math.max(0, upperBound - baseDelayMillis));
+            previousDelayMillis = delayMillis;
+
+            if (retryAfterMillis >= 0) {
+                // Respect the backend, but still spread the devices a little
+                delayMillis = retryAfterMillis
+                        + (long) (random.nextDouble() * baseDelayMillis);
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            if (elapsedMillis + delayMillis > budgetMillis) {
+                return -1;
+            }
+
+            retries++;
+            return delayMillis;
+        }
+
+        /**
+         * Wait before the next attempt.
+         *
+         * @param retryAfterMillis Delay requested by the backend or <code>-1</code>
+         * @return <code>false</code>, if the call must not be retried anymore
+         * @throws InterruptedIOException if the retries have been cancelled
+         */
+        boolean awaitRetry(long retryAfterMillis) throws InterruptedIOException {
+            long delayMillis = nextDelayMillis(retryAfterMillis);
+            if (delayMillis < 0) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Retry has been cancelled");
+            }
+            return true;
+        }
+    }
+
+}
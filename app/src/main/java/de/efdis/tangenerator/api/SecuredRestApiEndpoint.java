@@ -19,214 +19,274 @@
 
 package de.efdis.tangenerator.api;
 
-import android.content.Context;
-import android.os.Build;
-import android.security.keystore.KeyProperties;
-import android.util.Base64;
-import android.util.Log;
-
 import androidx.annotation.NonNull;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.math.BigInteger;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.CertPathValidatorException;
 import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
 
-import de.efdis.tangenerator.BuildConfig;
-import de.efdis.tangenerator.R;
-
 /**
  * Handles connection (HTTPS) and encryption for a rest api endpoint.
+ * <p/>
+ * There is one instance per backend, see {@link ApiEndpoints}. Requests may be performed
+ * concurrently, each thread uses its own cipher and signature.
+ * <p/>
+ * This class does not depend on the Android platform, so that the api protocol can be tested
+ * and load tested on a plain JVM.
  */
 public class SecuredRestApiEndpoint {
 
     /**
      * Algorithm used to encrypt the uploaded data of a POST request.
      */
-    private static final String API_UPLOAD_ALGORITHM = KeyProperties.KEY_ALGORITHM_RSA;
-    private static final String API_UPLOAD_CIPHER =
+    static final String API_UPLOAD_ALGORITHM = "RSA";
+    static final String API_UPLOAD_CIPHER =
             API_UPLOAD_ALGORITHM + "/ECB/OAEPPadding";
 
     /**
      * Algorithm used to sign the encrypted request and response data payload.
      */
-    private static final String API_DOWNLOAD_SIGNATURE = "SHA512withRSA";
+    static final String API_DOWNLOAD_SIGNATURE = "SHA512withRSA";
 
     /**
      * Response HTTP header field which contains the signature in BASE64 encoding.
      */
-    private static final String API_SIGNATURE_HEADER = "X-Signature";
+    static final String API_SIGNATURE_HEADER = "X-Signature";
+
+    /**
+     * Path of the batch api, which is appended to the path of the api URL as a sub-path.
+     */
+    static final String API_BATCH_PATH = "batch";
+
+    /**
+     * Maximum length of one result in a batch response, without the line terminator.
+     */
+    static final int MAX_BATCH_RESULT_LENGTH = 63;
+
+    /**
+     * Maximum number of items in a batch request. The response of a full batch must not exceed
+     * the maximum response size, even if each result has the maximum length.
+     */
+    public static final int MAX_BATCH_SIZE = SignedResponseReader.DEFAULT_MAX_RESPONSE_SIZE
+            / (MAX_BATCH_RESULT_LENGTH + 1);
+
+    /**
+     * Maximum number of excluded results in a batch request, the count is encoded in two bytes.
+     */
+    public static final int MAX_EXCLUDED_RESULTS = 0xffff;
 
-    private static final String API_USER_AGENT =
-            BuildConfig.APPLICATION_ID + "/" + BuildConfig.VERSION_CODE +
-                    " Android/" + Build.VERSION.SDK_INT;
+    private static final Logger LOG = Logger.getLogger(
+            SecuredRestApiEndpoint.class.getSimpleName());
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The pre-warmed connection is kept alive for a limited time only, afterwards a new
+     * pre-warming connection is useful again.
+     */
+    static final long PREWARM_VALIDITY_MILLIS = PooledHttpTransport.DEFAULT_KEEP_ALIVE_MILLIS;
+
+    private static final ExecutorService prewarmExecutor = Executors.newCachedThreadPool(
+            runnable -> {
+                Thread thread = new Thread(runnable, "ApiPrewarm");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static class Prewarm {
+        final long startTime = System.currentTimeMillis();
+        volatile Future<?> connection;
+    }
 
     /**
      * HTTPS URL for the REST api endpoint
      */
     private final URL apiUrl;
 
+    /**
+     * HTTPS URL for batch requests to the REST api
+     */
+    private final URL batchUrl;
+
     /**
      * Key used to encrypt the request data and verify the api response.
      */
     private final PublicKey apiKey;
 
+    private final Map<String, String> requestHeaders;
+
+    private final HttpTransport transport;
+
     /**
-     * Cipher to encrypt the request data
+     * Crypto instances are not thread-safe, so they are confined to the calling thread and reused
+     * for its following requests.
      */
-    private Cipher cipher;
+    private final ThreadLocal<Crypto> crypto = new ThreadLocal<Crypto>() {
+        @Override
+        protected Crypto initialValue() {
+            return new Crypto();
+        }
+    };
+
+    /** Latest pre-warming connection */
+    private final AtomicReference<Prewarm> prewarm = new AtomicReference<>();
+
+    SecuredRestApiEndpoint(@NonNull URL apiUrl, @NonNull PublicKey apiKey,
+                           @NonNull String userAgent, @NonNull HttpTransport transport) {
+        this.apiUrl = apiUrl;
+        this.batchUrl = getBatchUrl(apiUrl);
+        this.apiKey = apiKey;
+        this.transport = transport;
+
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        requestHeaders.put("User-Agent", userAgent);
+        requestHeaders.put("Accept", "text/*");
+        requestHeaders.put("Content-Type", "application/octet-stream");
+        this.requestHeaders = Collections.unmodifiableMap(requestHeaders);
+    }
 
     /**
-     * Signature to verify the response data
+     * Append the {@link #API_BATCH_PATH} to the path of the api URL. Unlike resolving a relative
+     * URL, this does not replace the last path segment, if the api URL has no trailing slash.
      */
-    private Signature signature;
-
-    SecuredRestApiEndpoint(Context context, int backendId) {
-        String[] apiUrls = context.getResources().getStringArray(R.array.backend_api_url);
-        if (backendId < 0 || backendId >= apiUrls.length) {
-            throw new ApiConfigurationException("Invalid backend ID");
+    @NonNull
+    static URL getBatchUrl(@NonNull URL apiUrl) {
+        String path = apiUrl.getPath();
+        if (!path.endsWith("/")) {
+            path += "/";
         }
         try {
-            this.apiUrl = new URL(apiUrls[backendId]);
+            return new URL(apiUrl.getProtocol(), apiUrl.getHost(), apiUrl.getPort(),
+                    path + API_BATCH_PATH);
         } catch (MalformedURLException e) {
-            throw new ApiConfigurationException("Invalid api URL", e);
-        }
-        try {
-            this.apiKey = loadApiKey(context);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new ApiConfigurationException("Cannot load api key", e);
+            throw new ApiConfigurationException("Invalid batch api URL", e);
         }
     }
 
-    private static PublicKey loadApiKey(Context context)
-            throws NoSuchAlgorithmException, InvalidKeySpecException {
-        KeyFactory keyFactory = KeyFactory.getInstance(API_UPLOAD_ALGORITHM);
-
-        RSAPublicKeySpec keySpec = new RSAPublicKeySpec(
-                new BigInteger(context.getResources().getString(
-                        R.string.backend_api_key_modulus)),
-                new BigInteger(context.getResources().getString(
-                        R.string.backend_api_key_exponent)));
-
-        PublicKey publicKey = keyFactory.generatePublic(keySpec);
-        return publicKey;
-    }
-
     /**
-     * Set up a new HTTPS connection for a following api call.
-     * <p/>
-     * This method does not yet connect to the server.
-     *
-     * @return Connection to the rest api endpoint.
+     * Cipher and signature of one thread.
      */
-    @NonNull
-    private HttpsURLConnection prepareConnection() {
-        HttpsURLConnection connection;
-        try {
-            URLConnection urlConnection = apiUrl.openConnection();
-            if (urlConnection instanceof HttpsURLConnection) {
-                connection = (HttpsURLConnection) urlConnection;
-            } else {
-                throw new ApiConfigurationException(
-                        "communication is only allowed via HTTPS for server verification");
+    private class Crypto {
+        /**
+         * Cipher to encrypt the request data
+         */
+        final Cipher cipher;
+
+        /**
+         * Signature to verify the response data
+         */
+        final Signature signature;
+
+        final SignedResponseReader responseReader = new SignedResponseReader();
+
+        /**
+         * Whether the previous request has been aborted and may have left data in the cipher or
+         * signature.
+         */
+        private boolean dirty;
+
+        Crypto() {
+            try {
+                cipher = Cipher.getInstance(API_UPLOAD_CIPHER);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new ApiConfigurationException("api cipher unusable", e);
             }
-        } catch (IOException e) {
-            throw new ApiConfigurationException(
-                    "unable to initialize connection for api URL", e);
+            try {
+                signature = Signature.getInstance(API_DOWNLOAD_SIGNATURE);
+            } catch (NoSuchAlgorithmException e) {
+                throw new ApiConfigurationException("api signature unusable", e);
+            }
+            init();
         }
 
-        connection.setAllowUserInteraction(false);
-        connection.setUseCaches(false);
-        connection.setConnectTimeout(10000);
-        connection.setReadTimeout(10000);
-        connection.setRequestProperty("User-Agent", API_USER_AGENT);
-
-        // Prepare API request
-        connection.setRequestProperty("Accept", "text/*");
-        connection.setRequestProperty("Content-Type", "application/octet-stream");
-        connection.setDoOutput(true);
-        try {
-            connection.setRequestMethod("POST");
-        } catch (ProtocolException e) {
-            throw new ApiConfigurationException("POST method not supported by HTTP", e);
+        private void init() {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, apiKey);
+            } catch (InvalidKeyException e) {
+                throw new ApiConfigurationException("api key unusable for encryption", e);
+            }
+            try {
+                signature.initVerify(apiKey);
+            } catch (InvalidKeyException e) {
+                throw new ApiConfigurationException(
+                        "api key unusable for signature verification", e);
+            }
         }
 
-        return connection;
-    }
-
-    private void prepareCrypto() {
-        try {
-            cipher = Cipher.getInstance(API_UPLOAD_CIPHER);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new ApiConfigurationException("api cipher unusable", e);
-        }
-        try {
-            cipher.init(Cipher.ENCRYPT_MODE, apiKey);
-        } catch (InvalidKeyException e) {
-            throw new ApiConfigurationException("api key unusable for encryption", e);
+        /**
+         * Prepare cipher and signature for the next request.
+         * <p/>
+         * After a completed request, {@link Cipher#doFinal(byte[])} and
+         * {@link Signature#verify(byte[])} have already reset them to their initialized state.
+         */
+        void reset() {
+            if (dirty) {
+                init();
+            }
+            dirty = true;
         }
 
-        try {
-            signature = Signature.getInstance(API_DOWNLOAD_SIGNATURE);
-        } catch (NoSuchAlgorithmException e) {
-            throw new ApiConfigurationException("api signature unusable", e);
-        }
-        try {
-            signature.initVerify(apiKey);
-        } catch (InvalidKeyException e) {
-            throw new ApiConfigurationException("api key unusable for signature verification", e);
+        /**
+         * Mark the request as completed.
+         */
+        void completed() {
+            dirty = false;
         }
     }
 
-    private HttpsURLConnection prepareAndOpenConnection() throws IOException {
-        IOException connectionError = null;
-
-        for (int retryCount = 0; connectionError == null || retryCount < 5; retryCount++) {
-            if (retryCount > 0) {
-                Log.i(getClass().getSimpleName(),
-                        "Retrying connection automatically ...");
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Reconnect has been interrupted", ie);
-                }
-            }
-
-            HttpsURLConnection connection = prepareConnection();
+    /**
+     * Encrypted request data, which is created with the calling thread's cipher.
+     */
+    private interface RequestBody {
+        byte[] encrypt(Cipher cipher) throws IllegalBlockSizeException, BadPaddingException;
+    }
 
+    private HttpTransport.Exchange openExchange(URL url, RetryPolicy.Execution retries)
+            throws IOException {
+        while (true) {
+            IOException connectionError;
             try {
-                connection.connect();
-                return connection;
+                return transport.open(url, requestHeaders);
             } catch (IOException e) {
-                Log.e(getClass().getSimpleName(), "Connection failed", e);
+                LOG.log(Level.SEVERE, "Connection failed", e);
                 connectionError = e;
             }
 
-            connection.disconnect();
-
             /*
              * During the first API call, it happens quite often that the OCSP server
              * responds with 'tryLater' or not at all.
@@ -234,40 +294,185 @@ public class SecuredRestApiEndpoint {
              */
             if (connectionError instanceof SSLHandshakeException
                     && connectionError.getCause() instanceof CertificateException
-                    && connectionError.getCause().getCause() instanceof CertPathValidatorException) {
-                // OCSP response error: TRY_LATER or UNKNOWN
+                    && connectionError.getCause().getCause() instanceof CertPathValidatorException
+                    // OCSP response error: TRY_LATER or UNKNOWN
+                    && retries.awaitRetry(-1)) {
+                LOG.info("Retrying connection automatically ...");
                 continue;
             }
 
-            // Don't retry for other connection errors
-            break;
+            // Don't retry for other connection errors or after the last retry
+            throw connectionError;
+        }
+    }
+
+    /**
+     * Connect to the api in the background, before the first request is performed. This resolves
+     * the host name and completes the TLS handshake including the certificate and OCSP
+     * validation, but does not send a request. The following request reuses the connection, if
+     * the transport keeps it alive, or resumes the cached TLS session.
+     * <p/>
+     * Repeated calls are ignored, while the pre-warmed connection is kept alive.
+     */
+    void prewarm() {
+        Prewarm next = new Prewarm();
+        if (prewarm.updateAndGet(current -> current != null
+                && next.startTime - current.startTime < PREWARM_VALIDITY_MILLIS
+                ? current : next) != next) {
+            return;
+        }
+
+        next.connection = prewarmExecutor.submit(() -> {
+            try {
+                openExchange(apiUrl, RetryPolicy.DEFAULT.start()).close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Pre-warming the api connection failed", e);
+            }
+        });
+    }
+
+    /**
+     * Wait for a running pre-warming connection, to avoid a second full TLS handshake.
+     */
+    private void awaitPrewarm() {
+        Prewarm prewarm = this.prewarm.get();
+        Future<?> connection = prewarm == null ? null : prewarm.connection;
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Connect anyway
+        }
+    }
+
+    public byte[] performRequest(@NonNull byte[] postData)
+            throws CallFailedException {
+        return perform(apiUrl, cipher -> cipher.doFinal(postData));
+    }
+
+    /**
+     * Send several items in one request, instead of one request per item. This needs only one
+     * round-trip and one signature for all items.
+     * <p/>
+     * Each item is encrypted on its own. The request data contains the number of items, followed
+     * by each encrypted item, and then the number of excluded results, followed by each excluded
+     * result. Every number and item is preceded by its length in two bytes (big-endian).
+     * <p/>
+     * The response data contains one line (terminated by <code>\n</code>) per item, in the same
+     * order. Each line has at most {@link #MAX_BATCH_RESULT_LENGTH} bytes. None of the results is
+     * contained in the excluded results or occurs twice.
+     *
+     * @param postData Items to encrypt and send
+     * @param excludedResults Results, which must not be returned for any item, e. g., because
+     *                        they are already in use by this client. They are not encrypted.
+     * @return One result per item
+     */
+    @NonNull
+    public List<byte[]> performBatchRequest(@NonNull List<byte[]> postData,
+                                            @NonNull Collection<byte[]> excludedResults)
+            throws CallFailedException {
+        if (postData.isEmpty() || postData.size() > MAX_BATCH_SIZE
+                || excludedResults.size() > MAX_EXCLUDED_RESULTS) {
+            throw new IllegalArgumentException("Unsupported batch size");
+        }
+
+        byte[] responseData = perform(batchUrl, cipher -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (DataOutputStream envelope = new DataOutputStream(buffer)) {
+                envelope.writeShort(postData.size());
+                for (byte[] item : postData) {
+                    byte[] encryptedItem = cipher.doFinal(item);
+                    envelope.writeShort(encryptedItem.length);
+                    envelope.write(encryptedItem);
+                }
+                envelope.writeShort(excludedResults.size());
+                for (byte[] excludedResult : excludedResults) {
+                    envelope.writeShort(excludedResult.length);
+                    envelope.write(excludedResult);
+                }
+            } catch (IOException e) {
+                // Not possible for a byte array
+                throw new IllegalStateException(e);
+            }
+            return buffer.toByteArray();
+        });
+
+        List<byte[]> results = new ArrayList<>(postData.size());
+        int start = 0;
+        for (int i = 0; i < responseData.length; i++) {
+            if (responseData[i] == '\n') {
+                if (i - start > MAX_BATCH_RESULT_LENGTH) {
+                    throw new CallFailedException("Api response contains a too long result");
+                }
+                results.add(Arrays.copyOfRange(responseData, start, i));
+                start = i + 1;
+            }
+        }
+        if (start != responseData.length || results.size() != postData.size()) {
+            throw new CallFailedException("Api response does not match the batch request");
         }
+        return results;
+    }
+
+    private byte[] perform(URL url, RequestBody body) throws CallFailedException {
+        awaitPrewarm();
 
-        // Rethrow connection error after last retry
-        throw connectionError;
+        // Connection errors and a busy backend share the retries and their time budget
+        RetryPolicy.Execution retries = RetryPolicy.DEFAULT.start();
+        while (true) {
+            try {
+                return performAttempt(url, body, retries);
+            } catch (BackendBusyException e) {
+                boolean retry;
+                try {
+                    retry = retries.awaitRetry(e.getRetryAfterMillis());
+                } catch (InterruptedIOException ie) {
+                    throw new CallFailedException("Api call has been cancelled", ie);
+                }
+                if (!retry) {
+                    throw e;
+                }
+                LOG.info("Backend is busy, retrying api call ...");
+            }
+        }
     }
 
-    public synchronized byte[] performRequest(@NonNull byte[] postData)
+    private byte[] performAttempt(URL url, RequestBody body, RetryPolicy.Execution retries)
             throws CallFailedException {
-        prepareCrypto();
-        HttpsURLConnection connection;
+        Crypto crypto = this.crypto.get();
+        crypto.reset();
+        Cipher cipher = crypto.cipher;
+        Signature signature = crypto.signature;
+
+        HttpTransport.Exchange exchange;
         try {
-            connection = prepareAndOpenConnection();
+            exchange = openExchange(url, retries);
         } catch (IOException e) {
             throw new ConnectException("Connecting to api failed", e);
         }
         try {
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] encryptedPostData = cipher.doFinal(postData);
-                os.write(encryptedPostData);
+            try {
+                byte[] encryptedPostData = body.encrypt(cipher);
                 signature.update(encryptedPostData);
+                exchange.post(encryptedPostData);
             } catch (IllegalBlockSizeException | BadPaddingException e) {
                 throw new ApiConfigurationException("Could not encrypt request data", e);
             } catch (SignatureException e) {
                 throw new ApiConfigurationException("Could not verify request data", e);
             }
 
-            switch (connection.getResponseCode()) {
+            if (RetryPolicy.isBusy(exchange.getResponseCode())) {
+                throw new BackendBusyException(RetryPolicy.parseRetryAfter(
+                        exchange.getHeaderField("Retry-After"),
+                        System.currentTimeMillis()));
+            }
+
+            switch (exchange.getResponseCode()) {
                 case HttpURLConnection.HTTP_OK:
                 case HttpURLConnection.HTTP_CREATED:
                     // success
@@ -280,59 +485,37 @@ public class SecuredRestApiEndpoint {
                     throw new IncompatibleClientException(
                             "HTTP request did not succeed, this client should be updated");
 
-                case 429: // Too many requests
-                    throw new CallFailedException(
-                            "Backend is busy, try again later");
-
                 default:
                     throw new IOException(
                             "HTTP request did not succeed, response code = "
-                                    + connection.getResponseCode());
-            }
-
-            byte[] responseData = new byte[Math.max(0, connection.getContentLength())];
-            if (responseData.length > 0) {
-                try (InputStream is = connection.getInputStream()) {
-                    if (responseData.length != is.read(responseData)) {
-                        throw new IOException(
-                                "Unexpected end of content stream");
-                    }
-                }
+                                    + exchange.getResponseCode());
             }
 
             byte[] sigData;
             {
-                String sigBase64 = connection.getHeaderField(API_SIGNATURE_HEADER);
+                String sigBase64 = exchange.getHeaderField(API_SIGNATURE_HEADER);
                 if (sigBase64 == null) {
                     throw new IOException("Missing signature for api response");
                 }
-                try {
-                    sigData = Base64.decode(sigBase64, Base64.DEFAULT);
-                } catch (IllegalArgumentException e) {
-                    throw new IOException("Illegal format of api response signature", e);
-                }
+                sigData = SignedResponseReader.decodeSignature(sigBase64);
             }
 
-            try {
-                signature.update(responseData);
+            // The body is only returned, if the signature is valid
+            byte[] responseData;
+            try (InputStream is = exchange.getInputStream()) {
+                responseData = crypto.responseReader.read(
+                        is, exchange.getContentLength(), signature, sigData);
             } catch (SignatureException e) {
                 throw new ApiConfigurationException("Unable to verify api response data");
             }
 
-            try {
-                if (!signature.verify(sigData)) {
-                    throw new IOException("Invalid api response signature");
-                }
-            } catch (SignatureException e) {
-                throw new IOException("Unable to verify api response signature", e);
-            }
-
+            crypto.completed();
             return responseData;
         } catch (IOException e) {
             throw new CallFailedException(
                     "Connection error or illegal response during api call", e);
         } finally {
-            connection.disconnect();
+            exchange.close();
         }
     }
 
@@ -375,6 +558,25 @@ public class SecuredRestApiEndpoint {
         }
     }
 
+    /**
+     * Exception that the backend is overloaded and the call may be repeated later.
+     */
+    public static class BackendBusyException extends CallFailedException {
+        private final long retryAfterMillis;
+
+        public BackendBusyException(long retryAfterMillis) {
+            super("Backend is busy, try again later");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * @return The delay requested by the backend or <code>-1</code>
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
     /**
      * Exception that the client is not compatible with the rest api endpoint anymore.
      */
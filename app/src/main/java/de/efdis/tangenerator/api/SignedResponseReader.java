@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Reads the body of an api response and feeds it into the signature verification while the data
+ * arrives.
+ * <p/>
+ * The body may arrive in arbitrary fragments and with or without a content length, e. g., with
+ * chunked transfer encoding. It is only returned after the signature has been verified.
+ * <p/>
+ * Instances reuse their read buffer and must not be used by concurrent threads.
+ */
+class SignedResponseReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+    static final int DEFAULT_MAX_RESPONSE_SIZE = 64 * 1024;
+
+    private final byte[] buffer;
+    private final int maxResponseSize;
+
+    SignedResponseReader() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RESPONSE_SIZE);
+    }
+
+    SignedResponseReader(int bufferSize, int maxResponseSize) {
+        this.buffer = new byte[bufferSize];
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * @param contentLength Announced length of the body or <code>-1</code>, if unknown
+     * @param signature     Initialized for verification, any data preceding the body must have
+     *                      been fed already
+     * @param signatureData Expected signature of all data
+     * @return The verified body
+     * @throws IOException        if the body is incomplete, too large or has not been signed
+     *                            correctly
+     * @throws SignatureException if the signature has not been initialized
+     */
+    @NonNull
+    byte[] read(@NonNull InputStream is, long contentLength,
+                @NonNull Signature signature, @NonNull byte[] signatureData)
+            throws IOException, SignatureException {
+        if (contentLength > maxResponseSize) {
+            throw new IOException("Api response exceeds maximum size, length = "
+                    + contentLength);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                contentLength >= 0 ? (int) contentLength : buffer.length);
+        int length;
+        while ((length = is.read(buffer)) >= 0) {
+            if (body.size() + length > maxResponseSize) {
+                throw new IOException("Api response exceeds maximum size");
+            }
+            if (contentLength >= 0 && body.size() + length > contentLength) {
+                throw new IOException("Api response exceeds announced content length");
+            }
+
+            signature.update(buffer, 0, length);
+            body.write(buffer, 0, length);
+        }
+
+        if (contentLength >= 0 && body.size() != contentLength) {
+            throw new IOException("Unexpected end of content stream");
+        }
+
+        boolean valid;
+        try {
+            valid = signature.verify(signatureData);
+        } catch (SignatureException e) {
+            throw new IOException("Unable to verify api response signature", e);
+        }
+        if (!valid) {
+            throw new IOException("Invalid api response signature");
+        }
+
+        return body.toByteArray();
+    }
+
+    /**
+     * Decode the signature from the BASE64 encoded response header. Line breaks and missing
+     * padding are tolerated.
+     *
+     * @throws IOException if the signature is not BASE64 encoded
+     */
+    @NonNull
+    static byte[] decodeSignature(@NonNull String base64) throws IOException {
+        ByteArrayOutputStream signature = new ByteArrayOutputStream(base64.length() * 3 / 4);
+        int bits = 0;
+        int bitCount = 0;
+        boolean padding = false;
+        for (int i = 0; i < base64.length(); i++) {
+            char c = base64.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                value = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                value = c - '0' + 52;
+            } else if (c == '+') {
+                value = 62;
+            } else if (c == '/') {
+                value = 63;
+            } else if (c == '=') {
+                padding = true;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                continue;
+            } else {
+                throw new IOException("Illegal format of api response signature");
+            }
+            if (padding) {
+                throw new IOException("Illegal format of api response signature");
+            }
+
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                signature.write(bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+
+        // A single character of a group does not make up a byte
+        if (bitCount >= 6) {
+            throw new IOException("Illegal format of api response signature");
+        }
+
+        return signature.toByteArray();
+    }
+
+}
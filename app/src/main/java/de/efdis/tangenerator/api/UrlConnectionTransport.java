@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Transport by the platform's {@link HttpsURLConnection}, which also supports proxies.
+ * <p/>
+ * The platform keeps a connection alive, if the response has been read completely and the
+ * connection is not disconnected.
+ */
+class UrlConnectionTransport implements HttpTransport {
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    UrlConnectionTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @NonNull
+    @Override
+    public Exchange open(@NonNull URL url, @NonNull Map<String, String> headers)
+            throws IOException {
+        HttpsURLConnection connection;
+        try {
+            URLConnection urlConnection = url.openConnection();
+            if (urlConnection instanceof HttpsURLConnection) {
+                connection = (HttpsURLConnection) urlConnection;
+            } else {
+                throw new SecuredRestApiEndpoint.ApiConfigurationException(
+                        "communication is only allowed via HTTPS for server verification");
+            }
+        } catch (IOException e) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException(
+                    "unable to initialize connection for api URL", e);
+        }
+
+        connection.setAllowUserInteraction(false);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setDoOutput(true);
+        try {
+            connection.setRequestMethod("POST");
+        } catch (ProtocolException e) {
+            throw new SecuredRestApiEndpoint.ApiConfigurationException(
+                    "POST method not supported by HTTP", e);
+        }
+
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return new UrlConnectionExchange(connection);
+    }
+
+    private static class UrlConnectionExchange implements Exchange {
+        private final HttpsURLConnection connection;
+        private InputStream responseBody;
+        private boolean complete;
+
+        UrlConnectionExchange(HttpsURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void post(@NonNull byte[] body) throws IOException {
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            connection.getResponseCode();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            return connection.getContentLength();
+        }
+
+        @NonNull
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (responseBody == null) {
+                responseBody = new FilterInputStream(connection.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        complete |= b < 0;
+                        return b;
+                    }
+
+                    @Override
+                    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                        int length = super.read(b, off, len);
+                        complete |= length < 0;
+                        return length;
+                    }
+                };
+            }
+            return responseBody;
+        }
+
+        @Override
+        public void close() {
+            if (complete) {
+                // Closing the stream returns the connection to the platform's pool
+                try {
+                    responseBody.close();
+                } catch (IOException e) {
+                    connection.disconnect();
+                }
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.view.MenuItem;
 import android.widget.Toast;
 
@@ -45,6 +46,16 @@ import androidx.drawerlayout.widget.DrawerLayout;
 
 import com.google.android.material.navigation.NavigationView;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import de.efdis.tangenerator.BuildConfig;
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.gui.instruction.InstructionActivity;
@@ -52,6 +63,14 @@ import de.efdis.tangenerator.gui.misc.CopyrightActivity;
 import de.efdis.tangenerator.gui.misc.ImprintActivity;
 import de.efdis.tangenerator.gui.misc.PrivacyStatementActivity;
 import de.efdis.tangenerator.gui.settings.SettingsActivity;
+import de.efdis.tangenerator.persistence.database.DatabaseExecutor;
+import de.efdis.tangenerator.persistence.database.OrphanedKeySweeper;
+import de.efdis.tangenerator.persistence.database.TanUsageJournal;
+import de.efdis.tangenerator.persistence.database.TokenUsabilityRegistry;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
+import de.efdis.tangenerator.tracing.AndroidTraceSections;
+import de.efdis.tangenerator.tracing.Tracing;
 
 /**
  * This is the base class for all activities used in this app.
@@ -65,6 +84,9 @@ import de.efdis.tangenerator.gui.settings.SettingsActivity;
 public abstract class AppActivity
         extends AppCompatActivity {
 
+    /** Well below the timeout for an unresponsive main thread */
+    private static final long JOURNAL_DUMP_TIMEOUT_MILLIS = 1_000;
+
     protected abstract Toolbar getToolbar();
 
     protected DrawerLayout getDrawerLayout() {
@@ -79,6 +101,21 @@ public abstract class AppActivity
     protected void onCreate(@Nullable  Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        if (BuildConfig.DEBUG && !Tracing.isEnabled()) {
+            // Latencies can be shown with "adb shell dumpsys activity top"
+            Tracing.enable(new AndroidTraceSections());
+        }
+        if (BuildConfig.DEBUG) {
+            enableStrictMode();
+        }
+
+        // Load the key store in the background, before the user needs a key
+        BankingKeyRepository.prewarmKeyStore();
+        // Check the tokens' keys in the background, before a screen needs the result
+        TokenUsabilityRegistry.getInstance(this);
+        // Remove banking keys of deleted tokens and aborted initializations
+        OrphanedKeySweeper.sweepInBackground(this);
+
         keyguardAuthenticationLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
                 result -> {
@@ -96,6 +133,80 @@ public abstract class AppActivity
         );
     }
 
+    private static boolean strictModeEnabled;
+
+    /**
+     * Log disk and network access on the main thread, e. g., database queries, and leaked
+     * resources. Database access must use the DatabaseExecutor instead.
+     */
+    private static void enableStrictMode() {
+        if (strictModeEnabled) {
+            return;
+        }
+        strictModeEnabled = true;
+
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .penaltyLog()
+                .build());
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectLeakedSqlLiteObjects()
+                .detectLeakedClosableObjects()
+                .detectActivityLeaks()
+                .penaltyLog()
+                .build());
+    }
+
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd,
+                     @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Tracing.dump(prefix, writer);
+        writer.print(prefix);
+        writer.println("Key store loads: " + BankingKeyRepository.getKeyStoreLoadCount());
+        KeyStoreExecutor.dump(prefix, writer);
+
+        // In debug builds, export the TAN usage journal with
+        // adb shell dumpsys activity <activity> --journal
+        if (BuildConfig.DEBUG && args != null && Arrays.asList(args).contains("--journal")) {
+            dumpTanUsageJournal(prefix, writer);
+        }
+    }
+
+    /**
+     * The dump runs on the main thread, so it must not wait long for the database. The export is
+     * written into a buffer, which is discarded if the export is not finished in time.
+     */
+    private void dumpTanUsageJournal(@NonNull String prefix, @NonNull PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("TAN usage journal");
+
+        Context applicationContext = getApplicationContext();
+        StringWriter export = new StringWriter();
+        Future<Void> exported = DatabaseExecutor.execute(() -> {
+            // Errors of the diagnostic output must not crash the app
+            try {
+                TanUsageJournal.export(applicationContext, export);
+            } catch (IOException | RuntimeException e) {
+                export.write("Export failed: " + e + "\n");
+            }
+        });
+        try {
+            exported.get(JOURNAL_DUMP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            writer.print(export);
+        } catch (TimeoutException e) {
+            // The export continues into the buffer, which is discarded
+            writer.println("Journal busy, try again");
+        } catch (ExecutionException e) {
+            writer.println("Export failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.flush();
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -37,6 +37,9 @@ public abstract class AbstractBackgroundTask<INPUT, OUTPUT> {
     private final Handler handler = new Handler(Looper.getMainLooper());
 
     private BackgroundTaskListener<OUTPUT> listener;
+    /** Thread executing {@link #doInBackground(Object)}, to interrupt it on cancellation */
+    private volatile Thread worker;
+    private volatile boolean cancelled;
 
     @StringRes
     protected int failedReason;
@@ -57,23 +60,52 @@ public abstract class AbstractBackgroundTask<INPUT, OUTPUT> {
     public void execute(final INPUT input) {
         idlingResource.increment();
 
-        handler.post(() -> listener.onStart());
+        handler.post(() -> {
+            if (listener != null) {
+                listener.onStart();
+            }
+        });
 
         executor.execute(() -> {
             OUTPUT output = null;
+            worker = Thread.currentThread();
             try {
-                output = doInBackground(input);
+                if (!cancelled) {
+                    output = doInBackground(input);
+                }
             } catch (Throwable throwable) {
                 failedCause = throwable;
             } finally {
+                worker = null;
+                // Don't leak the interruption of a cancelled task into the pool
+                Thread.interrupted();
                 onPostExecute(output);
                 idlingResource.decrement();
             }
         });
     }
 
+    /**
+     * Cancel the task, e. g., because the activity is destroyed. The background thread is
+     * interrupted and the listener will not be notified anymore. Must be called on the main
+     * thread.
+     */
+    public void cancel() {
+        listener = null;
+        cancelled = true;
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
     private void onPostExecute(final OUTPUT output) {
         handler.post(() -> {
+            if (listener == null) {
+                // cancelled
+                return;
+            }
+
             if (output != null) {
                 listener.onSuccess(output);
             } else {
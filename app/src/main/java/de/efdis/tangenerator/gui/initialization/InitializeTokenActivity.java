@@ -45,12 +45,14 @@ import androidx.fragment.app.FragmentTransaction;
 
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
-import java.util.stream.Collectors;
+
+import javax.crypto.SecretKey;
 
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.activetan.HHDkm;
 import de.efdis.tangenerator.activetan.KeyMaterialType;
 import de.efdis.tangenerator.activetan.TanGenerator;
+import de.efdis.tangenerator.api.DeviceKeyApi;
 import de.efdis.tangenerator.databinding.ActivityInitializeTokenBinding;
 import de.efdis.tangenerator.gui.common.AppActivity;
 import de.efdis.tangenerator.gui.common.ErrorDialogBuilder;
@@ -59,8 +61,10 @@ import de.efdis.tangenerator.gui.qrscanner.BankingQrCodeListener;
 import de.efdis.tangenerator.gui.qrscanner.BankingQrCodeScannerFragment;
 import de.efdis.tangenerator.persistence.database.BankingToken;
 import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
+import de.efdis.tangenerator.persistence.keystore.AutoDestroyable;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
 
 public class InitializeTokenActivity
         extends AppActivity
@@ -85,6 +89,12 @@ public class InitializeTokenActivity
 
     private boolean showBackendName;
     private int backendId;
+
+    /** The key store is being probed by {@link #checkRequirements(RequirementsListener)} */
+    private boolean checkingRequirements;
+
+    /** Running upload, which is cancelled if the activity is destroyed */
+    private UploadEncryptedDeviceKeyTask uploadTask;
     private boolean initializationCompleted;
     private BankingToken bankingToken;
 
@@ -118,6 +128,17 @@ public class InitializeTokenActivity
                 WindowManager.LayoutParams.FLAG_SECURE);
     }
 
+    @Override
+    protected void onDestroy() {
+        // Stop retrying the upload, nobody would receive the result
+        if (uploadTask != null) {
+            uploadTask.cancel();
+            uploadTask = null;
+        }
+
+        super.onDestroy();
+    }
+
     @Override
     protected void onStart() {
         super.onStart();
@@ -139,11 +160,26 @@ public class InitializeTokenActivity
                 dialog = null;
             }
 
+            prewarmApiConnection();
             doStartProcess();
         }
     }
 
-    private boolean checkRequirements() {
+    /**
+     * Connect to the current backend in the background, while the user is busy with the first
+     * steps. The backend is taken from the intent, like in {@link #doStartProcess()}.
+     */
+    protected void prewarmApiConnection() {
+        Bundle extras = getIntent().getExtras();
+        DeviceKeyApi.prewarm(this, extras == null
+                ? backendId : extras.getInt(EXTRA_BACKEND_ID, backendId));
+    }
+
+    /**
+     * Check the requirements and continue with <code>onFulfilled</code>. The key store is probed
+     * in the background, because this may take seconds on some devices.
+     */
+    private void checkRequirements(@NonNull RequirementsListener onFulfilled) {
         /*
          * Without the device being secured,
          * we cannot store the banking key in the Android key store.
@@ -152,22 +188,46 @@ public class InitializeTokenActivity
         if (keyguardManager == null || !keyguardManager.isDeviceSecure()) {
             onInitializationFailed(R.string.initialization_failed_unprotected_device,
                     SuggestedActionAfterFailure.SYSTEM_SETTINGS);
-            return false;
+            return;
         }
 
+        if (checkingRequirements) {
+            // The process continues, once the pending check has completed
+            return;
+        }
+        checkingRequirements = true;
+
+        KeyStoreExecutor.execute(KeyStoreExecutor.Operation.CHECK_DEVICE,
+                () -> BankingKeyRepository.checkDeviceSupport(getApplicationContext()),
+                new KeyStoreExecutor.Callback<>() {
+                    @Override
+                    public void onSuccess(BankingKeyRepository.DeviceSupport deviceSupport) {
+                        checkingRequirements = false;
+                        if (!isDestroyed() && !isFinishing()) {
+                            checkRequirements(deviceSupport, onFulfilled);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        checkingRequirements = false;
+                        if (!isDestroyed() && !isFinishing()) {
+                            onInitializationFailed(R.string.initialization_failed_keystore,
+                                    SuggestedActionAfterFailure.NONE, e);
+                        }
+                    }
+                });
+    }
+
+    private void checkRequirements(@NonNull BankingKeyRepository.DeviceSupport deviceSupport,
+                                   @NonNull RequirementsListener onFulfilled) {
         /*
          * Check key store and key parameter compatibility.
          */
-        try {
-            if (!BankingKeyRepository.isNonBiometricKeySupportedByDevice()) {
-                onInitializationFailed(R.string.initialization_failed_incompatible_device,
-                        SuggestedActionAfterFailure.NONE);
-                return false;
-            }
-        } catch (KeyStoreException e) {
-            onInitializationFailed(R.string.initialization_failed_keystore,
-                    SuggestedActionAfterFailure.NONE, e);
-            return false;
+        if (!deviceSupport.nonBiometricKeySupported) {
+            onInitializationFailed(R.string.initialization_failed_incompatible_device,
+                    SuggestedActionAfterFailure.NONE);
+            return;
         }
 
         /*
@@ -178,16 +238,10 @@ public class InitializeTokenActivity
          * initialization. Because of its KeyProtectionParameters, the user must have been
          * authenticated to be able to use the key from the key store.
          */
-        try {
-            if (BankingKeyRepository.isDeviceMissingUnlock()) {
-                onInitializationFailed(R.string.initialization_failed_missing_user_auth,
-                        SuggestedActionAfterFailure.USER_AUTHENTICATION);
-                return false;
-            }
-        } catch (KeyStoreException e) {
-            onInitializationFailed(R.string.initialization_failed_keystore,
-                    SuggestedActionAfterFailure.NONE, e);
-            return false;
+        if (deviceSupport.deviceMissingUnlock) {
+            onInitializationFailed(R.string.initialization_failed_missing_user_auth,
+                    SuggestedActionAfterFailure.USER_AUTHENTICATION);
+            return;
         }
 
         /*
@@ -195,7 +249,7 @@ public class InitializeTokenActivity
          */
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
             requestCameraPermission();
-            return false;
+            return;
         }
 
         /*
@@ -209,7 +263,12 @@ public class InitializeTokenActivity
          * user to indicate that the device might be offline.
          */
 
-        return true;
+        onFulfilled.onRequirementsFulfilled(deviceSupport);
+    }
+
+    /** Continues the process, after {@link #checkRequirements(RequirementsListener)} */
+    private interface RequirementsListener {
+        void onRequirementsFulfilled(@NonNull BankingKeyRepository.DeviceSupport deviceSupport);
     }
 
     private void requestCameraPermission() {
@@ -242,15 +301,11 @@ public class InitializeTokenActivity
                                         @NonNull SuggestedActionAfterFailure suggestedAction,
                                         final Throwable cause) {
         if (reason == 0) {
-            if (checkRequirements()) {
-                // Requirements have been fulfilled.
-                // It is unknown why the initialization has failed.
-                reason = R.string.initialization_failed_unknown_reason;
-            } else {
-                // This method has been called by checkRequirements()
-                // with an appropriate reason.
-                return;
-            }
+            // If the requirements are not fulfilled, checkRequirements() shows the reason.
+            // Otherwise, it is unknown why the initialization has failed.
+            checkRequirements(deviceSupport -> onInitializationFailed(
+                    R.string.initialization_failed_unknown_reason, suggestedAction, cause));
+            return;
         }
 
         ErrorDialogBuilder builder = new ErrorDialogBuilder(this);
@@ -316,9 +371,12 @@ public class InitializeTokenActivity
             return;
         }
 
-        if (!checkRequirements()) {
-            return;
-        }
+        checkRequirements(deviceSupport -> continueStartProcess(letterKeyMaterial, deviceSupport));
+    }
+
+    private void continueStartProcess(@NonNull HHDkm letterKeyMaterial,
+                                      @NonNull BankingKeyRepository.DeviceSupport deviceSupport) {
+        Bundle extras = getIntent().getExtras();
 
         if (keyComponents == null) {
             keyComponents = new BankingKeyComponents();
@@ -328,26 +386,20 @@ public class InitializeTokenActivity
         }
 
         if (keyComponents.userAuthMandatoryForUsage == null) {
-            try {
-                if (BankingKeyRepository.isNoAuthKeySupportedByDevice()
-                        && !extras.getBoolean(EXTRA_ENFORCE_COMPATIBILITY_MODE, false)) {
-                    /*
-                     * Let the user decide about authentication during key use, if supported by the
-                     * device. This can be configured in the settings activity later. Do not disturb
-                     * the initialization process.
-                     */
-                    keyComponents.userAuthMandatoryForUsage = Boolean.FALSE;
-                } else {
-                    /*
-                     * Inform the user that the app is not 100% compatible and it is mandatory to
-                     * authenticate for each usage.
-                     */
-                    doStepAskForCompatibilityMode();
-                    return;
-                }
-            } catch (KeyStoreException e) {
-                onInitializationFailed(R.string.initialization_failed_keystore,
-                        SuggestedActionAfterFailure.NONE, e);
+            if (deviceSupport.noAuthKeySupported
+                    && !extras.getBoolean(EXTRA_ENFORCE_COMPATIBILITY_MODE, false)) {
+                /*
+                 * Let the user decide about authentication during key use, if supported by the
+                 * device. This can be configured in the settings activity later. Do not disturb
+                 * the initialization process.
+                 */
+                keyComponents.userAuthMandatoryForUsage = Boolean.FALSE;
+            } else {
+                /*
+                 * Inform the user that the app is not 100% compatible and it is mandatory to
+                 * authenticate for each usage.
+                 */
+                doStepAskForCompatibilityMode();
                 return;
             }
         }
@@ -421,11 +473,11 @@ public class InitializeTokenActivity
         UploadEncryptedDeviceKeyTask.Input taskInput = new UploadEncryptedDeviceKeyTask.Input();
         taskInput.context = getApplicationContext();
         taskInput.backendId = backendId;
-        taskInput.knownTokenIds = BankingTokenRepository.getAll(getApplicationContext())
-                .stream().map(token -> token.id)
-                .collect(Collectors.toList());
 
-        UploadEncryptedDeviceKeyTask uploadTask = new UploadEncryptedDeviceKeyTask(onUploadComplete);
+        if (uploadTask != null) {
+            uploadTask.cancel();
+        }
+        uploadTask = new UploadEncryptedDeviceKeyTask(onUploadComplete);
         uploadTask.execute(taskInput);
     }
 
@@ -506,6 +558,9 @@ public class InitializeTokenActivity
         // Restart the process with a new backend
         this.showBackendName = true;
         this.backendId = newBackendId;
+        // The process takes the backend from the intent, whenever it is (re)started
+        getIntent().putExtra(EXTRA_BACKEND_ID, newBackendId);
+        prewarmApiConnection();
         doStartProcess();
     }
 
@@ -625,52 +680,94 @@ public class InitializeTokenActivity
     }
 
     private void doStepComputeInitialTan() {
-        int tan;
-        try {
-            tan = TanGenerator.generateTanForInitialization(bankingToken);
-        } catch (GeneralSecurityException e) {
-            Log.e(getClass().getSimpleName(),
-                    "failed to compute initial TAN", e);
-
-            if (e.getCause() != null
-                    && e.getCause().getCause() instanceof UserNotAuthenticatedException) {
-                /*
-                 * If the device hasn't been unlocked within the banking key's user authentication
-                 * validity duration, we must perform a fresh user authentication before we may use
-                 * the key.
-                 */
-                authenticateUser(R.string.authorize_to_generate_tan,
-                        new BiometricPrompt.AuthenticationCallback() {
-                            @Override
-                            public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
-                                doStepComputeInitialTan();
-                            }
+        BankingToken token = bankingToken;
+        KeyStoreExecutor.execute(KeyStoreExecutor.Operation.GENERATE_TAN,
+                () -> computeInitialTan(token),
+                new KeyStoreExecutor.Callback<>() {
+                    @Override
+                    public void onPreparing() {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        binding.progressDescription.setText(R.string.preparing_key);
+                        binding.groupProgress.setVisibility(View.VISIBLE);
+                    }
+
+                    @Override
+                    public void onSuccess(Integer tan) {
+                        BankingTokenRepository.getAllAsync(InitializeTokenActivity.this,
+                                allTokens -> {
+                                    if (isDestroyed()) {
+                                        return;
+                                    }
+                                    binding.groupProgress.setVisibility(View.GONE);
+                                    showInitialTAN(tan, allTokens.size() > 1);
+                                });
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        binding.groupProgress.setVisibility(View.GONE);
+                        onComputeInitialTanFailed(e);
+                    }
+                });
+    }
 
-                            @Override
-                            public void onAuthenticationError(int errorCode, @NonNull CharSequence errString) {
-                                doStepComputeInitialTan();
-                            }
-                        });
-                return;
+    private static int computeInitialTan(BankingToken bankingToken)
+            throws GeneralSecurityException {
+        try (AutoDestroyable<SecretKey> bankingKey
+                     = BankingKeyRepository.getBankingKeyForUse(bankingToken.keyAlias)) {
+            if (bankingKey == null) {
+                throw new KeyStoreException("Banking key is not available");
             }
+            return TanGenerator.generateTanForInitialization(
+                    bankingKey.getKeyMaterial(), bankingToken.transactionCounter);
+        } catch (GeneralSecurityException e) {
+            BankingKeyRepository.reportBankingKeyFailure(bankingToken.keyAlias, e);
+            throw e;
+        }
+    }
 
-            onInitializationFailed(R.string.initialization_failed_tan_computation,
-                    SuggestedActionAfterFailure.NONE, e);
+    private void onComputeInitialTanFailed(Exception e) {
+        Log.e(getClass().getSimpleName(),
+                "failed to compute initial TAN", e);
+
+        if (e.getCause() != null
+                && e.getCause().getCause() instanceof UserNotAuthenticatedException) {
+            /*
+             * If the device hasn't been unlocked within the banking key's user authentication
+             * validity duration, we must perform a fresh user authentication before we may use
+             * the key.
+             */
+            authenticateUser(R.string.authorize_to_generate_tan,
+                    new BiometricPrompt.AuthenticationCallback() {
+                        @Override
+                        public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
+                            doStepComputeInitialTan();
+                        }
+
+                        @Override
+                        public void onAuthenticationError(int errorCode, @NonNull CharSequence errString) {
+                            doStepComputeInitialTan();
+                        }
+                    });
             return;
         }
 
-        showInitialTAN(tan);
+        onInitializationFailed(R.string.initialization_failed_tan_computation,
+                SuggestedActionAfterFailure.NONE, e);
     }
 
-    private void showInitialTAN(int tan) {
+    private void showInitialTAN(int tan, boolean hasMultipleGenerators) {
         FragmentManager manager = getSupportFragmentManager();
 
         // Initialization has completed. Don't allow to go back to re-scan the portal key.
         // Instead, go back to the previous activity.
         manager.popBackStack();
 
-        boolean hasMultipleGenerators = BankingTokenRepository.getAll(this).size() > 1;
-
         InitializeTokenStep3Fragment stepFragment = InitializeTokenStep3Fragment.newInstance(tan, hasMultipleGenerators);
 
         {
@@ -23,10 +23,12 @@ import android.content.Context;
 import android.util.Log;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.api.DeviceKeyApi;
 import de.efdis.tangenerator.api.SecuredRestApiEndpoint;
+import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
 
 /**
@@ -40,7 +42,6 @@ public class UploadEncryptedDeviceKeyTask
     public static class Input {
         public Context context;
         public int backendId;
-        public List<String> knownTokenIds;
     }
 
     public static class Output {
@@ -56,6 +57,10 @@ public class UploadEncryptedDeviceKeyTask
     protected Output doInBackground(Input input) {
         Output result = new Output();
 
+        List<String> knownTokenIds = BankingTokenRepository.getAll(input.context)
+                .stream().map(token -> token.id)
+                .collect(Collectors.toList());
+
         for (int attempt = 1; attempt <= 5; attempt++) {
             {
                 BankingKeyComponents keyComponents = new BankingKeyComponents();
@@ -93,7 +98,7 @@ public class UploadEncryptedDeviceKeyTask
             // This simplifies management of tokens in this app, because every token has a unique
             // ID. Also, this handles the case where two different backends could use the same token
             // ID.
-            if (!input.knownTokenIds.contains(result.tokenId)) {
+            if (!knownTokenIds.contains(result.tokenId)) {
                 return result;
             }
         }
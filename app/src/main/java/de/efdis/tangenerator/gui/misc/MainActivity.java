@@ -38,6 +38,8 @@ import androidx.fragment.app.Fragment;
 
 import com.google.android.material.navigation.NavigationView;
 
+import java.util.List;
+
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.activetan.KeyMaterialType;
 import de.efdis.tangenerator.databinding.ActivityMainBinding;
@@ -46,6 +48,7 @@ import de.efdis.tangenerator.gui.initialization.InitializeTokenActivity;
 import de.efdis.tangenerator.gui.qrscanner.BankingQrCodeListener;
 import de.efdis.tangenerator.gui.qrscanner.BankingQrCodeScannerFragment;
 import de.efdis.tangenerator.gui.transaction.VerifyTransactionDetailsActivity;
+import de.efdis.tangenerator.persistence.database.BankingToken;
 import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
 
 /**
@@ -81,6 +84,9 @@ public class MainActivity
 
     private ActivityResultLauncher<Intent> childActivityLauncher;
 
+    /** Result of the last check for usable tokens, <code>null</code> while unknown */
+    private Boolean hasUsableTokens;
+
     @Override
     protected Toolbar getToolbar() {
         return binding.actionBar;
@@ -120,9 +126,19 @@ public class MainActivity
     protected void onStart() {
         super.onStart();
 
-        // Check if we have a valid TAN generator.
-        // If not, suggest to start initialization in the banking frontend.
-        if (BankingTokenRepository.getAllUsable(this).isEmpty()) {
+        // Check if we have a valid TAN generator in the background.
+        BankingTokenRepository.getAllUsableAsync(this, this::onUsableTokensLoaded);
+    }
+
+    private void onUsableTokensLoaded(List<BankingToken> usableTokens) {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        hasUsableTokens = !usableTokens.isEmpty();
+
+        // If there is no valid TAN generator,
+        // suggest to start initialization in the banking frontend.
+        if (!hasUsableTokens) {
             Bundle extras = getIntent().getExtras();
             if (extras != null && extras.getBoolean(EXTRA_SKIP_WELCOME_ACTIVITY, false)) {
                 // The user has seen the welcome activity and knows what to do.
@@ -140,6 +156,9 @@ public class MainActivity
             if (!ActivityCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.CAMERA)) {
                 requestCameraPermission();
             }
+        } else {
+            // The instruction depends on the usable tokens
+            resetInstructionMessage();
         }
     }
 
@@ -200,7 +219,7 @@ public class MainActivity
         binding.buttonRepeat.setVisibility(View.INVISIBLE);
 
         binding.textInstruction.setTextSize(TypedValue.COMPLEX_UNIT_SP, INSTRUCTION_SIZE_LARGE);
-        if (BankingTokenRepository.getAllUsable(this).isEmpty()) {
+        if (Boolean.FALSE.equals(hasUsableTokens)) {
             if (getResources().getBoolean(R.bool.email_initialization_enabled)) {
                 binding.textInstruction.setText(R.string.scan_email_qr_code);
             } else {
@@ -24,6 +24,7 @@ import android.content.res.TypedArray;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,7 +34,15 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import java.io.File;
+import java.io.IOException;
+
+import de.efdis.tangenerator.BuildConfig;
 import de.efdis.tangenerator.R;
+import me.dm7.barcodescanner.core.FrameStatistics;
+import me.dm7.barcodescanner.core.ScanSessionStatistics;
+import me.dm7.barcodescanner.core.ScanTelemetryListener;
+import me.dm7.barcodescanner.zxing.FrameRecording;
 import me.dm7.barcodescanner.zxing.QrCodeScannerView;
 
 /**
@@ -42,9 +51,16 @@ import me.dm7.barcodescanner.zxing.QrCodeScannerView;
  * <p/>
  * Detected QR codes are parsed and forwarded to the Listener
  * defined by {@link #setBankingQrCodeListener(BankingQrCodeListener)}.
+ * <p/>
+ * In debug builds, the preview frames of each scan are recorded for offline benchmarking, if
+ * the directory {@value #FRAME_RECORDING_DIRECTORY} exists in the app's external files
+ * directory. It can be created and downloaded with adb, e. g.,
+ * <code>adb shell mkdir /sdcard/Android/data/&lt;package&gt;/files/frame-recordings</code>.
  */
 public class BankingQrCodeScannerFragment extends Fragment {
 
+    private static final String FRAME_RECORDING_DIRECTORY = "frame-recordings";
+
     private QrCodeScannerView previewImage;
     private QrCodeHandler detectionHandler;
 
@@ -99,6 +115,20 @@ public class BankingQrCodeScannerFragment extends Fragment {
         previewImage.setFlash(false);
         previewImage.setAutoFocus(true);
 
+        if (BuildConfig.DEBUG) {
+            previewImage.setScanTelemetryListener(new ScanTelemetryListener() {
+                @Override
+                public void onFrameProcessed(FrameStatistics frame) {
+                }
+
+                @Override
+                public void onScanSessionEnd(ScanSessionStatistics session) {
+                    Log.d(BankingQrCodeScannerFragment.class.getSimpleName(),
+                            "Scan session: " + session);
+                }
+            });
+        }
+
         return previewImage;
     }
 
@@ -108,6 +138,9 @@ public class BankingQrCodeScannerFragment extends Fragment {
 
         if (detectionHandler != null) {
             previewImage.setResultHandler(detectionHandler);
+            if (BuildConfig.DEBUG) {
+                startFrameRecording();
+            }
             previewImage.startCamera();
         }
     }
@@ -124,8 +157,31 @@ public class BankingQrCodeScannerFragment extends Fragment {
     @Override
     public void onPause() {
         previewImage.stopCamera();
+        previewImage.stopFrameRecording();
 
         super.onPause();
     }
 
+    private void startFrameRecording() {
+        File baseDirectory = requireContext().getExternalFilesDir(null);
+        if (baseDirectory == null) {
+            return;
+        }
+        File directory = new File(baseDirectory, FRAME_RECORDING_DIRECTORY);
+        if (!directory.isDirectory()) {
+            return;
+        }
+
+        File file = new File(directory,
+                "scan-" + System.currentTimeMillis() + FrameRecording.FILE_SUFFIX);
+        try {
+            previewImage.startFrameRecording(file);
+            Log.d(BankingQrCodeScannerFragment.class.getSimpleName(),
+                    "Recording frames to " + file);
+        } catch (IOException e) {
+            Log.e(BankingQrCodeScannerFragment.class.getSimpleName(),
+                    "Cannot record frames", e);
+        }
+    }
+
 }
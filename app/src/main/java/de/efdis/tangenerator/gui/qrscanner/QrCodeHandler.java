@@ -20,7 +20,6 @@
 package de.efdis.tangenerator.gui.qrscanner;
 
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.Result;
@@ -29,6 +28,8 @@ import com.google.zxing.qrcode.decoder.Mode;
 import java.util.Arrays;
 
 import de.efdis.tangenerator.activetan.BQRContainer;
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
 import me.dm7.barcodescanner.zxing.ResultHandler;
 
 /** Filter and parse QR codes in Banking QR code format */
@@ -50,6 +51,15 @@ public class QrCodeHandler implements ResultHandler {
      */
     @Override
     public void handleResult(Result result) {
+        long traceStart = Tracing.begin(TraceSpan.SCAN_RESULT);
+        try {
+            handleBankingQrCode(result);
+        } finally {
+            Tracing.end(TraceSpan.SCAN_RESULT, traceStart);
+        }
+    }
+
+    private void handleBankingQrCode(Result result) {
         Log.i(getClass().getSimpleName(),
                 "Barcode detected");
 
@@ -63,7 +73,7 @@ public class QrCodeHandler implements ResultHandler {
         }
 
 
-        Pair<BQRContainer.ContentType, byte[]> content;
+        BQRContainer.Content content;
         try {
             content = BQRContainer.unwrap(bqr);
         } catch (BQRContainer.InvalidBankingQrCodeException e) {
@@ -72,13 +82,13 @@ public class QrCodeHandler implements ResultHandler {
             return;
         }
 
-        switch (content.first) {
+        switch (content.getContentType()) {
             case TRANSACTION_DATA:
-                listener.onTransactionData(content.second);
+                listener.onTransactionData(content.getPayload());
                 break;
 
             case KEY_MATERIAL:
-                listener.onKeyMaterial(content.second);
+                listener.onKeyMaterial(content.getPayload());
                 break;
 
             default:
@@ -34,18 +34,18 @@ import androidx.biometric.BiometricPrompt;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.List;
-
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.databinding.ActivitySettingsBinding;
 import de.efdis.tangenerator.gui.common.AppActivity;
 import de.efdis.tangenerator.persistence.database.BankingToken;
 import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
 import de.efdis.tangenerator.persistence.database.BankingTokenUsage;
+import de.efdis.tangenerator.persistence.database.TokenUsabilityRegistry;
 
 public class SettingsActivity
         extends AppActivity
-        implements TokenSettingsAdapter.TokenSettingsListener {
+        implements TokenSettingsAdapter.TokenSettingsListener,
+        TokenUsabilityRegistry.Listener {
 
     private ActivitySettingsBinding binding;
 
@@ -62,27 +62,60 @@ public class SettingsActivity
         binding = ActivitySettingsBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
 
-        // Load the token data to be displayed
-        List<BankingToken> data = BankingTokenRepository.getAll(getApplicationContext());
-        tokenSettings = new TokenSettingsAdapter(data, this);
-
-        // Show the token data in the recycler
         binding.bankingTokenRecyclerView.setHasFixedSize(true);
         binding.bankingTokenRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+
+        // Show the token data in the recycler, the pages are loaded in the background
+        binding.notActivatedHint.setVisibility(View.GONE);
+        tokenSettings = new TokenSettingsAdapter(this, this);
         binding.bankingTokenRecyclerView.setAdapter(tokenSettings);
 
-        // Show a hint is no tokens are available and as soon as all tokens have been deleted
-        if (!data.isEmpty()) {
-            binding.notActivatedHint.setVisibility(View.GONE);
-
-            tokenSettings.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
-                @Override
-                public void onItemRangeRemoved(int positionStart, int itemCount) {
-                    if (tokenSettings.getItemCount() == 0) {
-                        binding.notActivatedHint.setVisibility(View.VISIBLE);
-                    }
-                }
-            });
+        // Show a hint if no tokens are available and as soon as all tokens have been deleted
+        tokenSettings.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateNotActivatedHint();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateNotActivatedHint();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateNotActivatedHint();
+            }
+        });
+    }
+
+    private void updateNotActivatedHint() {
+        binding.notActivatedHint.setVisibility(
+                tokenSettings.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        TokenUsabilityRegistry.getInstance(this).addListener(this);
+
+        // Tokens may have been used or added meanwhile
+        tokenSettings.refresh();
+    }
+
+    @Override
+    protected void onStop() {
+        TokenUsabilityRegistry.getInstance(this).removeListener(this);
+
+        super.onStop();
+    }
+
+    @Override
+    public void onTokenUsabilityChanged(@NonNull TokenUsabilityRegistry.Snapshot snapshot) {
+        // Show the current key state of each token
+        if (tokenSettings != null) {
+            tokenSettings.notifyDataSetChanged();
         }
     }
 
@@ -120,7 +153,9 @@ public class SettingsActivity
     private void onChangeTokenDescriptionConfirmed(BankingToken token, final String newName) {
         if (!newName.equals(token.name)) {
             token.name = newName;
-            token = BankingTokenRepository.updateTokenSettings(getApplicationContext(), token);
+            BankingTokenRepository.updateTokenSettingsAsync(this, token,
+                    this::onTokenUpdated);
+            return;
         }
 
         tokenSettings.updateItem(token);
@@ -172,7 +207,9 @@ public class SettingsActivity
 
             if (token.usage != newUsage) {
                 token.usage = newUsage;
-                token = BankingTokenRepository.updateTokenSettings(getApplicationContext(), token);
+                BankingTokenRepository.updateTokenSettingsAsync(this, token,
+                        this::onTokenUpdated);
+                return;
             }
         }
 
@@ -181,9 +218,16 @@ public class SettingsActivity
         tokenSettings.updateItem(token);
     }
 
+    private void onTokenUpdated(BankingToken token) {
+        if (!isDestroyed()) {
+            tokenSettings.updateItem(token);
+        }
+    }
+
     @Override
     public void onDeleteToken(final BankingToken token) {
-        if (!BankingTokenRepository.isUsable(token)) {
+        if (BankingTokenRepository.isExhausted(token) || Boolean.FALSE.equals(
+                TokenUsabilityRegistry.getInstance(this).getKeyValidity(token))) {
             // delete unusable tokens w/o confirmation
             onDeleteTokenConfirmed(token);
             return;
@@ -219,7 +263,7 @@ public class SettingsActivity
     }
 
     private void onDeleteTokenConfirmed(BankingToken token) {
-        BankingTokenRepository.deleteToken(getApplicationContext(), token);
+        BankingTokenRepository.deleteTokenAsync(this, token, null);
         tokenSettings.deleteItem(token);
         Toast.makeText(this, R.string.message_token_deleted, Toast.LENGTH_SHORT).show();
     }
@@ -19,50 +19,188 @@
 
 package de.efdis.tangenerator.gui.settings;
 
-import android.app.Activity;
-import android.os.Handler;
+import android.content.Context;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
-import androidx.core.util.Consumer;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.function.Predicate;
+import java.util.Objects;
+import java.util.Set;
 
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.persistence.database.BankingToken;
 import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
 import de.efdis.tangenerator.persistence.database.BankingTokenUsage;
+import de.efdis.tangenerator.persistence.database.DatabaseExecutor;
+import de.efdis.tangenerator.persistence.database.TokenUsabilityRegistry;
 
+/**
+ * Shows the banking tokens page by page, so that devices with many tokens need not load all of
+ * them at once. Pages are loaded when one of their items is bound. Each page continues after the
+ * last token of the previous page, so the previous pages are loaded first. Items of a reloaded
+ * page are only rebound if their content has changed.
+ */
 public class TokenSettingsAdapter
         extends RecyclerView.Adapter<TokenSettingsItemHolder>
         implements TokenSettingsItemHolder.TokenSettingsItemListener {
 
     private static final String TAG = TokenSettingsAdapter.class.getSimpleName();
 
-    private final List<BankingToken> data;
+    private static final int PAGE_SIZE = 20;
+
     private final TokenSettingsListener listener;
+    private final Context context;
 
-    private final boolean displayBackendName;
+    /** Tokens by position, <code>null</code> if the page has not been loaded yet */
+    private BankingToken[] data = new BankingToken[0];
+    /** Pages, which have been loaded since the last refresh */
+    private final Set<Integer> loadedPages = new HashSet<>();
+    private final Set<Integer> loadingPages = new HashSet<>();
+    /** Pages, which wait for the previous page to be loaded */
+    private final Set<Integer> waitingPages = new HashSet<>();
+    /** Incremented whenever the positions change, to discard outdated pages */
+    private int generation;
 
-    public TokenSettingsAdapter(List<BankingToken> data, TokenSettingsListener listener) {
-        this.data = data;
+    private boolean refreshed;
+    private boolean displayBackendName;
+
+    public TokenSettingsAdapter(Context context, TokenSettingsListener listener) {
         this.listener = listener;
+        this.context = context.getApplicationContext();
+    }
+
+    /** Load the number of tokens and the first page again */
+    public void refresh() {
+        int refreshGeneration = ++generation;
+        loadedPages.clear();
+        loadingPages.clear();
+        waitingPages.clear();
+        loadingPages.add(0);
+
+        DatabaseExecutor.execute(() -> {
+            Refresh refresh = new Refresh();
+            refresh.tokenCount = BankingTokenRepository.getTokenCount(context);
+            // If the user has initialized a token for a non-default backend,
+            // we must display the backend name for each token.
+            refresh.displayBackendName = BankingTokenRepository.hasNonDefaultBackend(context);
+            refresh.firstPage = BankingTokenRepository.getPage(context, null, PAGE_SIZE);
+            return refresh;
+        }, refresh -> onRefreshed(refreshGeneration, refresh));
+    }
+
+    private static class Refresh {
+        int tokenCount;
+        boolean displayBackendName;
+        List<BankingToken> firstPage;
+    }
+
+    private void onRefreshed(int refreshGeneration, Refresh refresh) {
+        if (refreshGeneration != generation) {
+            return;
+        }
+        loadingPages.remove(0);
+
+        // Keep the previous tokens until their pages have been reloaded
+        int previousCount = data.length;
+        data = Arrays.copyOf(data, refresh.tokenCount);
+        if (!refreshed) {
+            refreshed = true;
+            displayBackendName = refresh.displayBackendName;
+            notifyDataSetChanged();
+        } else if (refresh.tokenCount > previousCount) {
+            notifyItemRangeInserted(previousCount, refresh.tokenCount - previousCount);
+        } else if (refresh.tokenCount < previousCount) {
+            notifyItemRangeRemoved(refresh.tokenCount, previousCount - refresh.tokenCount);
+        }
+
+        if (displayBackendName != refresh.displayBackendName) {
+            displayBackendName = refresh.displayBackendName;
+            notifyItemRangeChanged(0, data.length);
+        }
+
+        onPageLoaded(0, refresh.firstPage);
+    }
+
+    private void loadPage(int page) {
+        if (loadedPages.contains(page) || loadingPages.contains(page)) {
+            return;
+        }
+
+        BankingToken previousToken = null;
+        if (page > 0) {
+            if (!loadedPages.contains(page - 1)) {
+                waitingPages.add(page);
+                loadPage(page - 1);
+                return;
+            }
+
+            previousToken = data[page * PAGE_SIZE - 1];
+            if (previousToken == null) {
+                // Tokens have been deleted meanwhile, there is no such page until the next refresh
+                return;
+            }
+        }
+
+        loadingPages.add(page);
+        int loadGeneration = generation;
+        BankingToken pageStart = previousToken;
+        DatabaseExecutor.execute(
+                () -> BankingTokenRepository.getPage(context, pageStart, PAGE_SIZE),
+                tokens -> {
+                    if (loadGeneration == generation) {
+                        loadingPages.remove(page);
+                        onPageLoaded(page, tokens);
+                    }
+                });
+    }
+
+    private void onPageLoaded(int page, List<BankingToken> tokens) {
+        loadedPages.add(page);
+
+        for (int i = 0; i < tokens.size(); i++) {
+            int position = page * PAGE_SIZE + i;
+            if (position >= data.length) {
+                // Tokens have been added meanwhile, they will be shown after the next refresh
+                break;
+            }
+
+            BankingToken previousToken = data[position];
+            data[position] = tokens.get(i);
+            if (!hasSameContent(previousToken, tokens.get(i))) {
+                notifyItemChanged(position);
+            }
+        }
 
-        // If the user has initialized a token for a non-default backend,
-        // we must display the backend name for each token.
-        this.displayBackendName = data.stream()
-                .anyMatch(Predicate.not(BankingToken::isDefaultBackend));
+        if (waitingPages.remove(page + 1)) {
+            loadPage(page + 1);
+        }
+    }
+
+    private static boolean hasSameContent(BankingToken a, BankingToken b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+
+        return a.id.equals(b.id)
+                && a.backendId == b.backendId
+                && Objects.equals(a.name, b.name)
+                && a.usage == b.usage
+                && Objects.equals(a.keyAlias, b.keyAlias)
+                && a.transactionCounter == b.transactionCounter
+                && Objects.equals(a.createdOn, b.createdOn)
+                && Objects.equals(a.lastUsed, b.lastUsed);
     }
 
     @Override
     public int getItemCount() {
-        return data.size();
+        return data.length;
     }
 
     @NonNull
@@ -76,11 +214,23 @@ public class TokenSettingsAdapter
 
     @Override
     public void onBindViewHolder(@NonNull TokenSettingsItemHolder holder, int position) {
-        BankingToken bankingToken = data.get(position);
+        loadPage(position / PAGE_SIZE);
+
+        // Disable possibly existing listener
+        holder.setListener(null, position);
+
+        BankingToken bankingToken = data[position];
+        if (bankingToken == null) {
+            // Placeholder until the page has been loaded
+            holder.itemView.setVisibility(View.INVISIBLE);
+            return;
+        }
+        holder.itemView.setVisibility(View.VISIBLE);
 
         String backendName = null;
         if (displayBackendName) {
-            String[] backendNames = ((Activity) listener).getResources().getStringArray(R.array.backend_name);
+            String[] backendNames = holder.itemView.getContext().getResources().getStringArray(
+                    R.array.backend_name);
             if (bankingToken.backendId >= 0 && bankingToken.backendId < backendNames.length) {
                 backendName = backendNames[bankingToken.backendId];
             } else {
@@ -88,74 +238,78 @@ public class TokenSettingsAdapter
             }
         }
 
-        // Disable possibly existing listener
-        holder.setListener(null, position);
-
         holder.setSerialNumber(bankingToken.getFormattedSerialNumber());
         holder.setBackendName(backendName);
         holder.setTokenDescription(bankingToken.getDisplayName());
         holder.setProtectUsage(bankingToken.usage != BankingTokenUsage.DISABLED_AUTH_PROMPT);
         holder.setActiveSince(bankingToken.createdOn);
         holder.setLastUsed(bankingToken.lastUsed);
-        holder.setHasValidKey(BankingTokenRepository.hasValidKey(bankingToken));
+        // An unknown key state is shown as valid until the background check has completed
+        Boolean validKey = TokenUsabilityRegistry.getInstance(holder.itemView.getContext())
+                .getKeyValidity(bankingToken);
+        holder.setHasValidKey(!Boolean.FALSE.equals(validKey));
         holder.setIsExhausted(BankingTokenRepository.isExhausted(bankingToken));
 
         holder.setListener(this, position);
     }
 
-    /** For UI updates, notifications must be executed in the main thread */
-    private <T> void doOnMainThread(final Consumer<T> consumer, final T arg) {
-        // For UI updates, notifications must be executed in the main thread
-        Handler handler = ((Activity) listener).getWindow().getDecorView().getHandler();
-        handler.post(() -> consumer.accept(arg));
+    private int indexOf(BankingToken token) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != null && token.id.equals(data[i].id)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-
+    /** Must be called on the main thread */
     public void updateItem(BankingToken token) {
-        ListIterator<BankingToken> iterator = data.listIterator();
-        for (int i = 0; iterator.hasNext(); i++) {
-            if (token.id.equals(iterator.next().id)) {
-                iterator.set(token);
-
-                doOnMainThread(this::notifyItemChanged, i);
-
-                break;
-            }
+        int position = indexOf(token);
+        if (position >= 0) {
+            data[position] = token;
+            notifyItemChanged(position);
         }
     }
 
+    /** Must be called on the main thread */
     public void deleteItem(BankingToken token) {
-        ListIterator<BankingToken> iterator = data.listIterator();
-        for (int i = 0; iterator.hasNext(); i++) {
-            if (token.id.equals(iterator.next().id)) {
-                iterator.remove();
+        int position = indexOf(token);
+        if (position < 0) {
+            return;
+        }
 
-                doOnMainThread(arg -> {
-                    notifyItemRemoved(arg);
-                    // the index of the remaining items has changed
-                    notifyItemRangeChanged(arg, data.size() - arg);
-                }, i);
+        BankingToken[] remainingData = new BankingToken[data.length - 1];
+        System.arraycopy(data, 0, remainingData, 0, position);
+        System.arraycopy(data, position + 1, remainingData, position,
+                remainingData.length - position);
+        data = remainingData;
 
-                break;
-            }
-        }
+        // Pages after the deleted token have been shifted and may miss their last token
+        generation++;
+        loadingPages.clear();
+        waitingPages.clear();
+        loadedPages.removeIf(page -> page >= position / PAGE_SIZE);
+
+        notifyItemRemoved(position);
+        // the index of the remaining items has changed
+        notifyItemRangeChanged(position, data.length - position);
     }
 
     @Override
     public void onChangeTokenDescriptionButtonClick(int itemPosition) {
-        BankingToken token = data.get(itemPosition);
+        BankingToken token = data[itemPosition];
         listener.onChangeTokenDescription(token);
     }
 
     @Override
     public void onProtectUsageCheckedChange(int itemPosition, boolean isChecked) {
-        BankingToken token = data.get(itemPosition);
+        BankingToken token = data[itemPosition];
         listener.onChangeProtectUsage(token, isChecked);
     }
 
     @Override
     public void onDeleteButtonClick(int itemPosition) {
-        BankingToken token = data.get(itemPosition);
+        BankingToken token = data[itemPosition];
         listener.onDeleteToken(token);
     }
 
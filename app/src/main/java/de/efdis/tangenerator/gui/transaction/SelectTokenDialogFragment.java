@@ -55,22 +55,36 @@ import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
  * </ul>
  * <p>
  * The calling activity must implement {@link SelectTokenListener} and
- * will be notified if a TAN generator has been selected.
+ * will be notified if a TAN generator has been selected. It must load the usable tokens with
+ * {@link BankingTokenRepository#getAllUsableAsync} before, because the dialog cannot wait for the
+ * database.
  */
 public class SelectTokenDialogFragment extends DialogFragment {
 
     private final Set<String> eligibleTokenIds;
+    private final List<BankingToken> usableTokens;
     private SelectTokenListener tokenListener;
     private List<BankingToken> availableTokens;
     private BankingToken selectedToken;
 
-    /** Create new Dialog, which offers all usable tokens */
+    /**
+     * Only used when the dialog is restored by the system. The usable tokens are unknown, thus the
+     * dialog dismisses itself.
+     */
     public SelectTokenDialogFragment() {
         this.eligibleTokenIds = null;
+        this.usableTokens = null;
+    }
+
+    /** Create new Dialog, which offers all usable tokens */
+    public SelectTokenDialogFragment(@NonNull List<BankingToken> usableTokens) {
+        this(usableTokens, null);
     }
 
     /** Create new Dialog, which offers only a limited set of usable tokens */
-    public SelectTokenDialogFragment(String[] eligibleTokenIds) {
+    public SelectTokenDialogFragment(@NonNull List<BankingToken> usableTokens,
+                                     String[] eligibleTokenIds) {
+        this.usableTokens = new ArrayList<>(usableTokens);
         if (eligibleTokenIds == null) {
             this.eligibleTokenIds = null;
         } else {
@@ -94,7 +108,10 @@ public class SelectTokenDialogFragment extends DialogFragment {
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        List<BankingToken> usableTokens = BankingTokenRepository.getAllUsable(getContext());
+        if (usableTokens == null) {
+            return;
+        }
+
         if (eligibleTokenIds != null) {
             Iterator<BankingToken> it = usableTokens.iterator();
             while (it.hasNext()) {
@@ -158,6 +175,11 @@ public class SelectTokenDialogFragment extends DialogFragment {
     public void onStart() {
         super.onStart();
 
+        if (usableTokens == null) {
+            dismissAllowingStateLoss();
+            return;
+        }
+
         // Automatically select the only available token
         Dialog dialog = getDialog();
         if (availableTokens != null && availableTokens.size() == 1 && dialog != null) {
@@ -35,7 +35,6 @@ import androidx.biometric.BiometricPrompt;
 
 import java.math.BigDecimal;
 import java.security.GeneralSecurityException;
-import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
@@ -45,6 +44,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import javax.crypto.SecretKey;
+
 import de.efdis.tangenerator.R;
 import de.efdis.tangenerator.activetan.DataElementType;
 import de.efdis.tangenerator.activetan.HHDuc;
@@ -56,6 +57,11 @@ import de.efdis.tangenerator.gui.common.AppActivity;
 import de.efdis.tangenerator.gui.common.ErrorDialogBuilder;
 import de.efdis.tangenerator.persistence.database.BankingToken;
 import de.efdis.tangenerator.persistence.database.BankingTokenRepository;
+import de.efdis.tangenerator.persistence.database.DatabaseExecutor;
+import de.efdis.tangenerator.persistence.database.TanUsageJournal;
+import de.efdis.tangenerator.persistence.keystore.AutoDestroyable;
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
 
 public class VerifyTransactionDetailsActivity
         extends AppActivity
@@ -320,30 +326,87 @@ public class VerifyTransactionDetailsActivity
     }
 
     public void onButtonValidate(View button) {
-        // Select token in dialog and continue in onTokenSelected...
+        // Load the usable tokens, select token in dialog and continue in onTokenSelected...
+        binding.validateButton.setEnabled(false);
+        BankingTokenRepository.getAllUsableAsync(this, this::onUsableTokensLoaded);
+    }
+
+    private void onUsableTokensLoaded(List<BankingToken> usableTokens) {
+        binding.validateButton.setEnabled(true);
+        if (isFinishing() || getSupportFragmentManager().isStateSaved()) {
+            return;
+        }
+
         SelectTokenDialogFragment dialog;
         if (getIntent().hasExtra(EXTRA_LIMIT_TOKEN_IDS)) {
-            dialog = new SelectTokenDialogFragment(
+            dialog = new SelectTokenDialogFragment(usableTokens,
                     getIntent().getStringArrayExtra(EXTRA_LIMIT_TOKEN_IDS));
         } else {
-            dialog = new SelectTokenDialogFragment();
+            dialog = new SelectTokenDialogFragment(usableTokens);
         }
         dialog.show(getSupportFragmentManager(), null);
     }
 
-    private int computeTan(BankingToken token)
-            throws HHDuc.UnsupportedDataFormatException, GeneralSecurityException {
-        HHDuc hhduc = HHDuc.parse(rawHHDuc);
+    /** Result of {@link #loadKey(BankingToken)}, the key must be destroyed after use */
+    private static final class LoadedKey {
+        AutoDestroyable<SecretKey> bankingKey;
+        HHDuc hhduc;
+        long latencyNanos;
+    }
 
-        BankingTokenRepository.incTransactionCounter(getApplicationContext(), token);
-        return TanGenerator.generateTan(token, hhduc);
+    /** Result of {@link #computeTan(BankingToken, LoadedKey, int)}, journaled once it is shown */
+    private static final class ComputedTan {
+        int tan;
+        int transactionCounter;
+        VisualisationClass visualisationClass;
+        long latencyNanos;
     }
 
-    private String computeFormattedTan(BankingToken token)
-            throws HHDuc.UnsupportedDataFormatException, GeneralSecurityException {
-        int tan = computeTan(token);
+    /**
+     * Parse the TAN challenge and load the banking key. No transaction counter is spent, because
+     * this may stall and the result is discarded after the timeout.
+     */
+    private LoadedKey loadKey(BankingToken token)
+            throws HHDuc.UnsupportedDataFormatException, KeyStoreException {
+        long start = System.nanoTime();
+        LoadedKey result = new LoadedKey();
+        result.hhduc = HHDuc.parse(rawHHDuc);
+
+        result.bankingKey = BankingKeyRepository.getBankingKeyForUse(token.keyAlias);
+        if (result.bankingKey == null) {
+            throw new KeyStoreException("Banking key is not available");
+        }
+        if (KeyStoreExecutor.isAbandoned()) {
+            result.bankingKey.close();
+            throw new KeyStoreExecutor.StalledException(KeyStoreExecutor.Operation.LOAD_KEY);
+        }
+
+        result.latencyNanos = System.nanoTime() - start;
+        return result;
+    }
 
-        return TanGenerator.formatTAN(tan);
+    /**
+     * Generate the TAN with a reserved transaction counter.
+     * <p/>
+     * The counter is spent, if the key store stalls now. This is unlikely, since the key has
+     * already been loaded, and the generation itself is a single cipher operation.
+     */
+    private ComputedTan computeTan(BankingToken token, LoadedKey loadedKey,
+                                   int transactionCounter) throws GeneralSecurityException {
+        try (AutoDestroyable<SecretKey> bankingKey = loadedKey.bankingKey) {
+            long start = System.nanoTime();
+            ComputedTan result = new ComputedTan();
+            result.transactionCounter = transactionCounter;
+            result.tan = TanGenerator.generateTan(
+                    bankingKey.getKeyMaterial(), transactionCounter, loadedKey.hhduc);
+            result.visualisationClass = loadedKey.hhduc.getVisualisationClass();
+            // The database write of the transaction counter is not part of the TAN computation
+            result.latencyNanos = loadedKey.latencyNanos + (System.nanoTime() - start);
+            return result;
+        } catch (GeneralSecurityException e) {
+            BankingKeyRepository.reportBankingKeyFailure(token.keyAlias, e);
+            throw e;
+        }
     }
 
     private String getFormattedTransactionCounter(BankingToken token) {
@@ -356,15 +419,33 @@ public class VerifyTransactionDetailsActivity
     public void onTokenSelected(BankingToken bankingToken) {
         this.bankingToken = bankingToken;
 
-        try {
-            if (!BankingTokenRepository.userMustAuthenticateToUse(bankingToken)) {
-                onTokenReadyToUse();
-                return;
-            }
-        } catch (KeyStoreException | InvalidKeyException e) {
-            Log.e(getClass().getSimpleName(), "Invalid token selected", e);
-        }
+        // The key store might be slow, don't block the main thread
+        KeyStoreExecutor.execute(KeyStoreExecutor.Operation.VALIDATE_KEY,
+                () -> BankingTokenRepository.userMustAuthenticateToUse(bankingToken),
+                new PreparingKeyCallback<>() {
+                    @Override
+                    protected void onKeySuccess(Boolean userMustAuthenticate) {
+                        if (userMustAuthenticate) {
+                            authenticateUserForTan();
+                        } else {
+                            onTokenReadyToUse();
+                        }
+                    }
+
+                    @Override
+                    protected void onKeyFailure(@NonNull Exception e) {
+                        if (e instanceof KeyStoreExecutor.StalledException) {
+                            onTokenError(e);
+                        } else {
+                            Log.e(VerifyTransactionDetailsActivity.class.getSimpleName(),
+                                    "Invalid token selected", e);
+                            authenticateUserForTan();
+                        }
+                    }
+                });
+    }
 
+    private void authenticateUserForTan() {
         // Confirm credentials
         authenticateUser(R.string.authorize_to_generate_tan,
                 new BiometricPrompt.AuthenticationCallback() {
@@ -375,18 +456,123 @@ public class VerifyTransactionDetailsActivity
     }
 
     private void onTokenReadyToUse() {
-        String tan;
-        try {
-            tan = computeFormattedTan(bankingToken);
-        } catch (HHDuc.UnsupportedDataFormatException e) {
-            Log.e(getClass().getSimpleName(), "Illegal QR code data, cannot compute TAN", e);
-            return;
-        } catch (GeneralSecurityException e) {
-            Log.e(getClass().getSimpleName(), "Key store error, cannot compute TAN", e);
-            onTokenError(e);
-            return;
+        BankingToken token = bankingToken;
+        KeyStoreExecutor.execute(KeyStoreExecutor.Operation.LOAD_KEY,
+                () -> loadKey(token),
+                new PreparingKeyCallback<>() {
+                    @Override
+                    protected void onKeySuccess(LoadedKey loadedKey) {
+                        reserveTransactionCounter(token, loadedKey);
+                    }
+
+                    @Override
+                    protected void onKeyFailure(@NonNull Exception e) {
+                        if (e instanceof HHDuc.UnsupportedDataFormatException) {
+                            Log.e(VerifyTransactionDetailsActivity.class.getSimpleName(),
+                                    "Illegal QR code data, cannot compute TAN", e);
+                        } else {
+                            Log.e(VerifyTransactionDetailsActivity.class.getSimpleName(),
+                                    "Key store error, cannot compute TAN", e);
+                            onTokenError(e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Reserve the transaction counter outside of the key store operation. A slow database must
+     * not cause a key store timeout, after which the reserved counter would never be used.
+     */
+    private void reserveTransactionCounter(BankingToken token, LoadedKey loadedKey) {
+        DatabaseExecutor.execute(() -> {
+            try {
+                return BankingTokenRepository.incTransactionCounter(
+                        getApplicationContext(), token);
+            } catch (IllegalStateException e) {
+                Log.e(VerifyTransactionDetailsActivity.class.getSimpleName(),
+                        "Cannot reserve transaction counter", e);
+                return null;
+            }
+        }, transactionCounter -> {
+            if (isFinishing() || isDestroyed()) {
+                loadedKey.bankingKey.close();
+                return;
+            }
+            if (transactionCounter == null) {
+                loadedKey.bankingKey.close();
+                onTokenError(new IllegalStateException("Transaction counter cannot be reserved"));
+                return;
+            }
+            generateTan(token, loadedKey, transactionCounter);
+        });
+    }
+
+    private void generateTan(BankingToken token, LoadedKey loadedKey, int transactionCounter) {
+        KeyStoreExecutor.execute(KeyStoreExecutor.Operation.GENERATE_TAN,
+                () -> computeTan(token, loadedKey, transactionCounter),
+                new PreparingKeyCallback<>() {
+                    @Override
+                    protected void onKeySuccess(ComputedTan computedTan) {
+                        TanUsageJournal.record(getApplicationContext(), token,
+                                computedTan.transactionCounter, computedTan.visualisationClass,
+                                rawHHDuc, computedTan.latencyNanos);
+                        onTanComputed(TanGenerator.formatTAN(computedTan.tan));
+                    }
+
+                    @Override
+                    protected void onKeyFailure(@NonNull Exception e) {
+                        Log.e(VerifyTransactionDetailsActivity.class.getSimpleName(),
+                                "Key store error, cannot compute TAN", e);
+                        onTokenError(e);
+                    }
+                });
+    }
+
+    /**
+     * Show that the key is being prepared, while the key store is slow,
+     * and prevent the user from starting another key store operation.
+     * The result is ignored, if the activity has been closed meanwhile.
+     */
+    private abstract class PreparingKeyCallback<T> implements KeyStoreExecutor.Callback<T> {
+        @Override
+        public void onPreparing() {
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            binding.validateButton.setEnabled(false);
+            binding.validateButton.setText(R.string.preparing_key);
+        }
+
+        @Override
+        public final void onSuccess(T result) {
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            resetValidateButton();
+            onKeySuccess(result);
         }
 
+        @Override
+        public final void onFailure(@NonNull Exception e) {
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            resetValidateButton();
+            onKeyFailure(e);
+        }
+
+        protected abstract void onKeySuccess(T result);
+
+        protected abstract void onKeyFailure(@NonNull Exception e);
+
+        private void resetValidateButton() {
+            binding.validateButton.setEnabled(true);
+            binding.validateButton.setText(
+                    R.string.confirm_transaction_details_and_release_transaction);
+        }
+    }
+
+    private void onTanComputed(String tan) {
         if (BankingTokenRepository.isExhausted(bankingToken)) {
             binding.exhaustedLabel.setText(R.string.exhausted_generator_label);
             binding.exhaustedDescription.setText(R.string.exhausted_generator_description);
@@ -28,13 +28,18 @@ import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
 
 @Database(
-        entities = {BankingToken.class},
-        version = 3,
+        entities = {BankingToken.class, TanUsage.class},
+        version = 4,
         autoMigrations = {
                 @AutoMigration(
                         // New column backing_token.backend_id will be initialized with the default
                         from = 2,
                         to = 3
+                ),
+                @AutoMigration(
+                        // New table tan_usage
+                        from = 3,
+                        to = 4
                 )
         }
 )
@@ -45,8 +50,19 @@ public abstract class AppDatabase extends RoomDatabase {
 
     private static AppDatabase instance;
 
+    private BankingTokenCache tokenCache;
+
     public abstract BankingTokenDao bankingTokenDao();
 
+    abstract TanUsageDao tanUsageDao();
+
+    synchronized BankingTokenCache getTokenCache() {
+        if (tokenCache == null) {
+            tokenCache = new BankingTokenCache(this);
+        }
+        return tokenCache;
+    }
+
     // For testing
     protected static void setInstance(AppDatabase database) {
         instance = database;
@@ -56,7 +72,7 @@ public abstract class AppDatabase extends RoomDatabase {
         if (instance == null) {
             Builder<AppDatabase> builder = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, DATABASE_NAME);
             builder.addMigrations(Migrations.MIGRATION_1_2);
-            builder.allowMainThreadQueries();
+            // Queries must be executed in the background, see DatabaseExecutor
             instance = builder.build();
         }
 
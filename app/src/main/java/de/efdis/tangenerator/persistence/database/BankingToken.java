@@ -128,4 +128,18 @@ public class BankingToken implements Serializable {
         return backendId == 0;
     }
 
+    /** Create a copy, which can be modified without affecting cached instances. */
+    BankingToken copy() {
+        BankingToken copy = new BankingToken();
+        copy.id = id;
+        copy.backendId = backendId;
+        copy.name = name;
+        copy.usage = usage;
+        copy.keyAlias = keyAlias;
+        copy.transactionCounter = transactionCounter;
+        copy.createdOn = createdOn == null ? null : new Date(createdOn.getTime());
+        copy.lastUsed = lastUsed == null ? null : new Date(lastUsed.getTime());
+        return copy;
+    }
+
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.room.InvalidationTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide cache of all banking tokens in the database.
+ * <p>
+ * The tokens are loaded once into an immutable {@link Snapshot}, which is discarded whenever
+ * Room's {@link InvalidationTracker} reports a change of the <code>banking_token</code> table.
+ * Since the tracker notifies asynchronously, the {@link BankingTokenRepository} also invalidates
+ * the cache directly after its own modifications. Concurrent readers of an invalidated cache
+ * share a single query.
+ */
+class BankingTokenCache {
+
+    /** Immutable state of the table at the time of the query */
+    static final class Snapshot {
+        private final List<BankingToken> tokens;
+        private final Map<String, BankingToken> tokensById;
+        private final Map<String, BankingToken> tokensByFormattedSerialNumber;
+
+        private Snapshot(List<BankingToken> tokens) {
+            this.tokens = tokens;
+            this.tokensById = new HashMap<>(tokens.size() * 2);
+            this.tokensByFormattedSerialNumber = new HashMap<>(tokens.size() * 2);
+            for (BankingToken token : tokens) {
+                tokensById.put(token.id, token);
+                tokensByFormattedSerialNumber.put(token.getFormattedSerialNumber(), token);
+            }
+        }
+
+        /**
+         * @return copies of all tokens, ordered by their last usage
+         */
+        @NonNull
+        List<BankingToken> getAll() {
+            List<BankingToken> result = new ArrayList<>(tokens.size());
+            for (BankingToken token : tokens) {
+                result.add(token.copy());
+            }
+            return result;
+        }
+
+        @Nullable
+        BankingToken findById(@NonNull String id) {
+            BankingToken token = tokensById.get(id);
+            return token == null ? null : token.copy();
+        }
+
+        @Nullable
+        BankingToken findByFormattedSerialNumber(@NonNull String formattedSerialNumber) {
+            BankingToken token = tokensByFormattedSerialNumber.get(formattedSerialNumber);
+            return token == null ? null : token.copy();
+        }
+
+    }
+
+    private final BankingTokenDao dao;
+
+    /** Incremented by each invalidation, to discard results of outdated queries */
+    private int generation;
+    private Snapshot snapshot;
+    private FutureTask<Snapshot> pendingQuery;
+
+    BankingTokenCache(@NonNull AppDatabase database) {
+        this.dao = database.bankingTokenDao();
+
+        database.getInvalidationTracker().addObserver(
+                new InvalidationTracker.Observer("banking_token") {
+                    @Override
+                    public void onInvalidated(@NonNull Set<String> tables) {
+                        invalidate();
+                    }
+                });
+    }
+
+    /** Discard the current snapshot, the next reader will query the database again. */
+    synchronized void invalidate() {
+        generation++;
+        snapshot = null;
+        pendingQuery = null;
+    }
+
+    /**
+     * Return the current snapshot. If it has been invalidated, the database is queried in the
+     * calling thread or the result of another thread's running query is awaited.
+     */
+    @WorkerThread
+    @NonNull
+    Snapshot getSnapshot() {
+        FutureTask<Snapshot> query;
+        boolean runQuery = false;
+        synchronized (this) {
+            if (snapshot != null) {
+                return snapshot;
+            }
+
+            if (pendingQuery == null) {
+                int queryGeneration = generation;
+                pendingQuery = new FutureTask<>(() -> query(queryGeneration));
+                runQuery = true;
+            }
+            query = pendingQuery;
+        }
+
+        if (runQuery) {
+            query.run();
+        }
+
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading banking tokens", e);
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (pendingQuery == query) {
+                    // Let the next reader try again
+                    pendingQuery = null;
+                }
+            }
+
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Cannot load banking tokens", cause);
+        }
+    }
+
+    // For testing
+    @WorkerThread
+    @NonNull
+    List<BankingToken> loadAll() {
+        return dao.getAll();
+    }
+
+    private Snapshot query(int queryGeneration) {
+        Snapshot result = new Snapshot(Collections.unmodifiableList(loadAll()));
+
+        synchronized (this) {
+            if (queryGeneration == generation) {
+                snapshot = result;
+                pendingQuery = null;
+            }
+        }
+
+        return result;
+    }
+
+}
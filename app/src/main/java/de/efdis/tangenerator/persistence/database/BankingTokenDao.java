@@ -23,8 +23,10 @@ import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -32,21 +34,80 @@ import java.util.List;
  * {@link BankingTokenRepository} instead.
  */
 @Dao
-interface BankingTokenDao {
+abstract class BankingTokenDao {
 
     @Query("select * from banking_token order by last_used desc")
-    List<BankingToken> getAll();
+    abstract List<BankingToken> getAll();
+
+    @Query("select count(*) from banking_token")
+    abstract int count();
+
+    @Query("select exists(select 1 from banking_token where backend_id != 0)")
+    abstract boolean hasNonDefaultBackend();
+
+    /**
+     * First page of all tokens, ordered by recency like {@link #getAll()}. Tokens with the same
+     * date of last usage are ordered by their id, so that the order is stable between pages.
+     */
+    @Query("select * from banking_token order by last_used desc, id limit :limit")
+    abstract List<BankingToken> getFirstPage(int limit);
+
+    /**
+     * Next page after the token with the given <code>lastUsed</code> and <code>id</code>, in the
+     * order of {@link #getFirstPage(int)}. Unlike an offset, the key of the previous page neither
+     * skips nor repeats tokens, if tokens have been inserted or deleted meanwhile.
+     * <p>
+     * Tokens, which have never been used, come last.
+     */
+    @Query("select * from banking_token"
+            + " where (:lastUsed is null and last_used is null and id > :id)"
+            + " or (:lastUsed is not null and (last_used < :lastUsed or last_used is null"
+            + " or (last_used = :lastUsed and id > :id)))"
+            + " order by last_used desc, id limit :limit")
+    abstract List<BankingToken> getPageAfter(Date lastUsed, String id, int limit);
+
+    @Query("select key_alias from banking_token")
+    abstract List<String> getAllKeyAliases();
 
     @Query("select * from banking_token where id = :id limit 1")
-    BankingToken findById(String id);
+    abstract BankingToken findById(String id);
+
+    /**
+     * Increment the transaction counter and set the last usage in a single statement, unless the
+     * counter is exhausted.
+     *
+     * @return number of updated rows, i.e. 0 if the token is missing or exhausted
+     */
+    @Query("update banking_token set atc = atc + 1, last_used = :lastUsed"
+            + " where id = :id and atc < " + BankingTokenRepository.MAX_TRANSACTION_COUNTER)
+    abstract int incTransactionCounter(String id, Date lastUsed);
+
+    @Query("select atc from banking_token where id = :id")
+    abstract int getTransactionCounter(String id);
+
+    /**
+     * Reserve the next transaction counter of a token. The increment and the read of the new
+     * value are isolated from other transactions, so that concurrent callers never reserve the
+     * same counter value.
+     *
+     * @return the reserved transaction counter or <code>null</code>,
+     * if the token is missing or exhausted
+     */
+    @Transaction
+    Integer reserveTransactionCounter(String id, Date lastUsed) {
+        if (incTransactionCounter(id, lastUsed) == 0) {
+            return null;
+        }
+        return getTransactionCounter(id);
+    }
 
     @Insert
-    void insert(BankingToken bankingToken);
+    abstract void insert(BankingToken bankingToken);
 
     @Update
-    void update(BankingToken bankingToken);
+    abstract void update(BankingToken bankingToken);
 
     @Delete
-    void delete(BankingToken bankingToken);
+    abstract void delete(BankingToken bankingToken);
 
 }
@@ -23,12 +23,19 @@ import android.content.Context;
 import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
@@ -36,23 +43,108 @@ import javax.crypto.SecretKey;
 
 import de.efdis.tangenerator.persistence.keystore.AutoDestroyable;
 import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
-
+import de.efdis.tangenerator.persistence.keystore.KeyStoreExecutor;
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
+
+/**
+ * Business logic for the banking tokens in the database and their keys in the key store.
+ * <p>
+ * Most reading methods are answered by the {@link BankingTokenCache}, modifying methods access
+ * the database directly and invalidate the cache afterwards.
+ * <p>
+ * The synchronous methods must not be called on the main thread. The main thread uses the
+ * asynchronous variants, which are executed by the {@link DatabaseExecutor} and return the
+ * result to a callback on the main thread.
+ */
 public class BankingTokenRepository {
 
-    private static final int MAX_TRANSACTION_COUNTER = 0xffff;
+    static final int MAX_TRANSACTION_COUNTER = 0xffff;
     private static final int TRANSACTION_COUNTER_WARN_AFTER = MAX_TRANSACTION_COUNTER - 100;
 
+    /**
+     * Aliases of tokens, whose banking key is known to be permanently invalidated.
+     * Such keys will not become valid again, so they need not be checked in the key store.
+     */
+    private static final Set<String> invalidatedKeyAliases = ConcurrentHashMap.newKeySet();
+
+    static {
+        BankingKeyRepository.addKeyInvalidationListener(invalidatedKeyAliases::add);
+    }
+
     private static AppDatabase getDatabase(Context context) {
         return AppDatabase.getInstance(context);
     }
 
+    /** Return all tokens, ordered by their last usage. The result may be modified freely. */
+    @WorkerThread
     public static List<BankingToken> getAll(Context context) {
-        AppDatabase database = getDatabase(context);
+        return getDatabase(context).getTokenCache().getSnapshot().getAll();
+    }
+
+    /** Asynchronous variant of {@link #getAll(Context)} */
+    public static Future<List<BankingToken>> getAllAsync(
+            @NonNull Context context,
+            @NonNull DatabaseExecutor.Callback<List<BankingToken>> callback) {
+        Context applicationContext = context.getApplicationContext();
+        return DatabaseExecutor.execute(() -> getAll(applicationContext), callback);
+    }
+
+    @WorkerThread
+    public static int getTokenCount(Context context) {
+        return getDatabase(context).bankingTokenDao().count();
+    }
+
+    /** Check whether tokens of different backends might have to be distinguished. */
+    @WorkerThread
+    public static boolean hasNonDefaultBackend(Context context) {
+        return getDatabase(context).bankingTokenDao().hasNonDefaultBackend();
+    }
+
+    /**
+     * Return a page of tokens, ordered by recency like {@link #getAll(Context)}. Unlike the other
+     * reading methods, the page is queried from the database directly, so that devices with many
+     * tokens need not load all of them.
+     *
+     * @param previousToken Last token of the previous page, or <code>null</code> for the first
+     *                      page
+     */
+    @WorkerThread
+    public static List<BankingToken> getPage(Context context,
+                                             @Nullable BankingToken previousToken, int limit) {
+        BankingTokenDao dao = getDatabase(context).bankingTokenDao();
+        if (previousToken == null) {
+            return dao.getFirstPage(limit);
+        }
+        return dao.getPageAfter(previousToken.lastUsed, previousToken.id, limit);
+    }
 
-        return database.bankingTokenDao().getAll();
+    @WorkerThread
+    @Nullable
+    public static BankingToken findById(Context context, String id) {
+        return getDatabase(context).getTokenCache().getSnapshot().findById(id);
     }
 
-    public static boolean hasValidKey(BankingToken bankingToken) {
+    @WorkerThread
+    @Nullable
+    public static BankingToken findByFormattedSerialNumber(
+            Context context, String formattedSerialNumber) {
+        return getDatabase(context).getTokenCache().getSnapshot()
+                .findByFormattedSerialNumber(formattedSerialNumber);
+    }
+
+    /**
+     * Check whether the token's key exists and has not been invalidated.
+     *
+     * @throws KeyStoreException if the key store cannot be used right now, e. g., because it has
+     *                           not responded in time. This says nothing about the key.
+     */
+    @WorkerThread
+    public static boolean hasValidKey(BankingToken bankingToken) throws KeyStoreException {
+        if (invalidatedKeyAliases.contains(bankingToken.keyAlias)) {
+            return false;
+        }
+
         try (
             AutoDestroyable<SecretKey> bankingKey = BankingKeyRepository.getBankingKey(bankingToken.keyAlias)
         ) {
@@ -63,10 +155,6 @@ public class BankingTokenRepository {
             }
 
             return true;
-        } catch (KeyStoreException e) {
-            Log.e(BankingTokenRepository.class.getSimpleName(),
-                    "Cannot read banking key for token " + bankingToken.id);
-            return false;
         }
     }
 
@@ -79,8 +167,17 @@ public class BankingTokenRepository {
                 && bankingToken.transactionCounter < MAX_TRANSACTION_COUNTER;
     }
 
-    public static boolean isUsable(BankingToken bankingToken) {
-        return hasValidKey(bankingToken) && !isExhausted(bankingToken);
+    /**
+     * Check whether the token can be used for TAN generation. The key check is answered by the
+     * {@link TokenUsabilityRegistry}, if possible.
+     *
+     * @throws KeyStoreException if the key could not be checked right now
+     */
+    @WorkerThread
+    public static boolean isUsable(Context context, BankingToken bankingToken)
+            throws KeyStoreException {
+        return !isExhausted(bankingToken)
+                && TokenUsabilityRegistry.getInstance(context).hasValidKey(bankingToken);
     }
 
     public static boolean userMustAuthenticateToUse(BankingToken bankingToken)
@@ -89,35 +186,54 @@ public class BankingTokenRepository {
             return true;
         }
 
-        try (
-                AutoDestroyable<SecretKey> bankingKey = BankingKeyRepository.getBankingKey(bankingToken.keyAlias)
-        ) {
-            if (bankingKey == null) {
-                throw new KeyStoreException("Banking key is missing for token " + bankingToken.id);
+        return KeyStoreExecutor.call(KeyStoreExecutor.Operation.VALIDATE_KEY, () -> {
+            // The cipher initialization below checks the key, no need for an extra validation
+            try (
+                    AutoDestroyable<SecretKey> bankingKey = BankingKeyRepository.getBankingKeyForUse(bankingToken.keyAlias)
+            ) {
+                if (bankingKey == null) {
+                    throw new KeyStoreException("Banking key is missing for token " + bankingToken.id);
+                }
+
+                Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+                aes.init(Cipher.ENCRYPT_MODE, bankingKey.getKeyMaterial());
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new KeyStoreException(
+                        "Cannot initialize AES cipher", e);
+            } catch (UserNotAuthenticatedException e) {
+                return true;
+            } catch (InvalidKeyException e) {
+                BankingKeyRepository.reportBankingKeyFailure(bankingToken.keyAlias, e);
+                throw e;
             }
 
-            Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
-            aes.init(Cipher.ENCRYPT_MODE, bankingKey.getKeyMaterial());
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new KeyStoreException(
-                    "Cannot initialize AES cipher", e);
-        } catch (UserNotAuthenticatedException e) {
-            return true;
-        }
-
-        return false;
+            return false;
+        });
     }
 
     /** Return all available tokens which can be used to TAN generation. */
+    @WorkerThread
     public static List<BankingToken> getAllUsable(Context context) {
-        AppDatabase database = getDatabase(context);
-
-        List<BankingToken> unfilteredTokens = database.bankingTokenDao().getAll();
+        return filterUsable(context, getAll(context));
+    }
 
+    @WorkerThread
+    private static List<BankingToken> filterUsable(Context context,
+                                                   List<BankingToken> unfilteredTokens) {
         List<BankingToken> filteredTokens = new ArrayList<>(unfilteredTokens.size());
 
         for (BankingToken bankingToken : unfilteredTokens) {
-            if (!isUsable(bankingToken)) {
+            boolean usable;
+            try {
+                usable = isUsable(context, bankingToken);
+            } catch (KeyStoreException e) {
+                // Like in getAllUsableAsync(), only keys known to be invalid are omitted
+                Log.e(BankingTokenRepository.class.getSimpleName(),
+                        "Cannot check banking key for token " + bankingToken.id, e);
+                usable = !isExhausted(bankingToken);
+            }
+
+            if (!usable) {
                 // The corresponding key probably has been deleted,
                 // because the device's protection has been removed
                 Log.i(BankingTokenRepository.class.getSimpleName(),
@@ -131,25 +247,82 @@ public class BankingTokenRepository {
         return filteredTokens;
     }
 
-    /** Increase the transaction counter of a banking token persistently. */
-    public static void incTransactionCounter(Context context, BankingToken token) {
-        AppDatabase database = getDatabase(context);
-
-        // Reload the token from the database to avoid concurrency problems
-        BankingToken persistentToken = database.bankingTokenDao().findById(token.id);
+    /**
+     * Asynchronous variant of {@link #getAllUsable(Context)}. The tokens are loaded by the
+     * {@link DatabaseExecutor}, but their keys are checked by the {@link KeyStoreExecutor}, so that
+     * a slow key store does not delay other database operations.
+     * <p>
+     * If the key store does not respond in time, only tokens with keys known to be invalid are
+     * omitted. Other key failures are reported, once the token is used.
+     */
+    public static void getAllUsableAsync(
+            @NonNull Context context,
+            @NonNull DatabaseExecutor.Callback<List<BankingToken>> callback) {
+        Context applicationContext = context.getApplicationContext();
+        getAllAsync(applicationContext, allTokens -> KeyStoreExecutor.execute(
+                KeyStoreExecutor.Operation.LIST_USABLE_TOKENS,
+                () -> filterUsable(applicationContext, allTokens),
+                new KeyStoreExecutor.Callback<>() {
+                    @Override
+                    public void onSuccess(List<BankingToken> usableTokens) {
+                        callback.onResult(usableTokens);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        Log.e(BankingTokenRepository.class.getSimpleName(),
+                                "Cannot check the banking keys", e);
+
+                        TokenUsabilityRegistry registry
+                                = TokenUsabilityRegistry.getInstance(applicationContext);
+                        List<BankingToken> usableTokens = new ArrayList<>(allTokens.size());
+                        for (BankingToken bankingToken : allTokens) {
+                            if (!isExhausted(bankingToken) && !Boolean.FALSE.equals(
+                                    registry.getKeyValidity(bankingToken))) {
+                                usableTokens.add(bankingToken);
+                            }
+                        }
+                        callback.onResult(usableTokens);
+                    }
+                }));
+    }
 
-        // Only update certain settings to avoid security problems
-        persistentToken.transactionCounter = persistentToken.transactionCounter + 1;
-        persistentToken.lastUsed = new Date();
+    /**
+     * Increase the transaction counter of a banking token persistently.
+     * <p>
+     * The counter is incremented by a single guarded statement in the database, so concurrent
+     * calls for the same token reserve distinct counter values.
+     *
+     * @return the reserved transaction counter, which must be used for the next TAN
+     * @throws IllegalStateException if the token has been deleted or is exhausted
+     */
+    @WorkerThread
+    public static int incTransactionCounter(Context context, BankingToken token) {
+        long traceStart = Tracing.begin(TraceSpan.INC_TRANSACTION_COUNTER);
+        try {
+            AppDatabase database = getDatabase(context);
+
+            Date lastUsed = new Date();
+            Integer transactionCounter = database.bankingTokenDao()
+                    .reserveTransactionCounter(token.id, lastUsed);
+            database.getTokenCache().invalidate();
+            if (transactionCounter == null) {
+                throw new IllegalStateException(
+                        "Token " + token.id + " is missing or exhausted");
+            }
 
-        database.bankingTokenDao().update(persistentToken);
+            // Return the modifications to the caller
+            token.transactionCounter = transactionCounter;
+            token.lastUsed = lastUsed;
 
-        // Return the modifications to the caller
-        token.transactionCounter = persistentToken.transactionCounter;
-        token.lastUsed = persistentToken.lastUsed;
+            return transactionCounter;
+        } finally {
+            Tracing.end(TraceSpan.INC_TRANSACTION_COUNTER, traceStart);
+        }
     }
 
     /** Store a new banking token persistently. */
+    @WorkerThread
     public static void saveNewToken(Context context, BankingToken newToken) {
         AppDatabase database = getDatabase(context);
 
@@ -169,9 +342,13 @@ public class BankingTokenRepository {
         newToken.createdOn = new Date();
 
         database.bankingTokenDao().insert(newToken);
+        database.getTokenCache().invalidate();
+
+        TokenUsabilityRegistry.getInstance(context).invalidate(newToken, false);
     }
 
     /** Change token settings and store the new values. */
+    @WorkerThread
     public static BankingToken updateTokenSettings(Context context, BankingToken updatedToken) {
         AppDatabase database = getDatabase(context);
 
@@ -182,11 +359,22 @@ public class BankingTokenRepository {
         persistentToken.name = updatedToken.name;
         persistentToken.usage = updatedToken.usage;
         database.bankingTokenDao().update(persistentToken);
+        database.getTokenCache().invalidate();
 
         return persistentToken;
     }
 
+    /** Asynchronous variant of {@link #updateTokenSettings(Context, BankingToken)} */
+    public static Future<BankingToken> updateTokenSettingsAsync(
+            @NonNull Context context, @NonNull BankingToken updatedToken,
+            @NonNull DatabaseExecutor.Callback<BankingToken> callback) {
+        Context applicationContext = context.getApplicationContext();
+        return DatabaseExecutor.execute(
+                () -> updateTokenSettings(applicationContext, updatedToken), callback);
+    }
+
     /** Delete a token persistently. */
+    @WorkerThread
     public static void deleteToken(Context context, BankingToken token) {
         AppDatabase database = getDatabase(context);
 
@@ -197,11 +385,25 @@ public class BankingTokenRepository {
                     "unable to delete key entry", e);
         }
 
+        TokenUsabilityRegistry.getInstance(context).invalidate(token, true);
+
         // Reload the token from the database to avoid concurrency problems
         token = database.bankingTokenDao().findById(token.id);
         if (token != null) {
             database.bankingTokenDao().delete(token);
+            database.getTokenCache().invalidate();
         }
     }
 
+    /** Asynchronous variant of {@link #deleteToken(Context, BankingToken)} */
+    public static Future<Void> deleteTokenAsync(
+            @NonNull Context context, @NonNull BankingToken token,
+            @Nullable DatabaseExecutor.Callback<Void> callback) {
+        Context applicationContext = context.getApplicationContext();
+        return DatabaseExecutor.execute(() -> {
+            deleteToken(applicationContext, token);
+            return null;
+        }, callback);
+    }
+
 }
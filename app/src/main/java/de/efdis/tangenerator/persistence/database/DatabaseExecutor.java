@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.test.espresso.IdlingResource;
+import androidx.test.espresso.idling.CountingIdlingResource;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes all database access on a dedicated thread, so that the main thread never waits for
+ * SQLite. Operations are executed one after another in the order of submission, thus a query
+ * always sees the modifications submitted before.
+ */
+public final class DatabaseExecutor {
+
+    /** Receives the result of {@link #execute(Callable, Callback)} on the main thread */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static final CountingIdlingResource idlingResource
+            = new CountingIdlingResource(DatabaseExecutor.class.getName(), true);
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Database");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DatabaseExecutor() {
+    }
+
+    @VisibleForTesting
+    public static IdlingResource getIdlingResource() {
+        return idlingResource;
+    }
+
+    /**
+     * Run a database operation on the database thread.
+     * <p>
+     * Database errors are not expected. Like with queries on the main thread, they are rethrown on
+     * the main thread and crash the app, instead of being lost in the future.
+     *
+     * @param callback If not <code>null</code>, receives the result on the main thread
+     * @return The result, for callers on other background threads
+     */
+    public static <T> Future<T> execute(@NonNull Callable<T> operation,
+                                        @Nullable Callback<T> callback) {
+        idlingResource.increment();
+        return executor.submit(() -> {
+            T result;
+            try {
+                result = operation.call();
+            } catch (Exception | Error e) {
+                mainHandler.post(() -> {
+                    idlingResource.decrement();
+                    throw new IllegalStateException("Database operation failed", e);
+                });
+                throw e;
+            }
+
+            mainHandler.post(() -> {
+                try {
+                    if (callback != null) {
+                        callback.onResult(result);
+                    }
+                } finally {
+                    idlingResource.decrement();
+                }
+            });
+            return result;
+        });
+    }
+
+    /** Run a database operation on the database thread, without a result */
+    public static Future<Void> execute(@NonNull Runnable operation) {
+        return execute(() -> {
+            operation.run();
+            return null;
+        }, null);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.security.KeyStoreException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+
+/**
+ * Reconcile the banking keys in the key store with the banking tokens in the database and delete
+ * keys without a token.
+ */
+public class OrphanedKeySweeper {
+
+    private static final String TAG = OrphanedKeySweeper.class.getSimpleName();
+
+    /**
+     * During initialization, the banking key is stored before the banking token. Younger keys are
+     * kept, even if there is no token yet.
+     */
+    private static final long GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int BATCH_SIZE = 16;
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Sweep the key store once per process in a background thread.
+     */
+    public static void sweepInBackground(@NonNull Context context) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        Thread thread = new Thread(() -> {
+            try {
+                int deleted = sweep(applicationContext);
+                Log.i(TAG, "Deleted " + deleted + " orphaned banking keys");
+            } catch (KeyStoreException e) {
+                Log.e(TAG, "Cannot delete orphaned banking keys", e);
+            }
+        }, "OrphanedKeySweeper");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return Number of deleted banking keys
+     */
+    public static int sweep(@NonNull Context context) throws KeyStoreException {
+        Set<String> tokenAliases = new HashSet<>(
+                AppDatabase.getInstance(context).bankingTokenDao().getAllKeyAliases());
+
+        return BankingKeyRepository.deleteOrphanedBankingKeys(
+                tokenAliases, GRACE_PERIOD_MILLIS, BATCH_SIZE);
+    }
+
+}
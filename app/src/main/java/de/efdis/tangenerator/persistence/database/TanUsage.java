@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.Date;
+
+/**
+ * Journal entry for a generated TAN.
+ * <p/>
+ * The journal helps support to reconstruct, when and for which kind of transaction a token has
+ * been used. It does not contain any transaction data.
+ */
+@Entity(
+        tableName = "tan_usage",
+        indices = {
+            @Index({"generated_on"})
+        })
+public class TanUsage {
+
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    /**
+     * Id of the {@link BankingToken}, the token may have been deleted meanwhile.
+     */
+    @ColumnInfo(name = "token_id")
+    @NonNull
+    public String tokenId;
+
+    /**
+     * Transaction counter, which has been used for the TAN.
+     */
+    @ColumnInfo(name = "atc")
+    public int transactionCounter;
+
+    @ColumnInfo(name = "generated_on")
+    @NonNull
+    public Date generatedOn;
+
+    /**
+     * Id of the {@link de.efdis.tangenerator.activetan.VisualisationClass} or
+     * <code>null</code>, if the challenge had no visualisation class.
+     */
+    @ColumnInfo(name = "visualisation_class")
+    public Integer visualisationClass;
+
+    /**
+     * Hex encoded prefix of the challenge's SHA-256 hash, to match the entry with the backend's
+     * records.
+     */
+    @ColumnInfo(name = "hash_prefix")
+    @NonNull
+    public String hashPrefix;
+
+    /**
+     * Time needed to compute the TAN, including the key store access, but without storing the
+     * transaction counter.
+     */
+    @ColumnInfo(name = "latency_micros")
+    public long latencyMicros;
+
+}
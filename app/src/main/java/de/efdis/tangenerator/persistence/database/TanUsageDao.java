@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.database.Cursor;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This DAO is used for low level access to the database. High level business logic shall use the
+ * {@link TanUsageJournal} instead.
+ */
+@Dao
+interface TanUsageDao {
+
+    /** Insert all entries in a single transaction */
+    @Insert
+    void insertAll(List<TanUsage> entries);
+
+    /**
+     * Delete entries older than the given date and all but the youngest entries.
+     *
+     * @return number of deleted entries
+     */
+    @Query("delete from tan_usage where generated_on < :before"
+            + " or id <= (select max(id) from tan_usage) - :maxEntries")
+    int compact(Date before, int maxEntries);
+
+    /**
+     * Query all entries, ordered by their creation. The cursor reads the result in windows, so
+     * it must be used instead of a list for large journals.
+     */
+    @Query("select * from tan_usage order by id")
+    Cursor queryAll();
+
+}
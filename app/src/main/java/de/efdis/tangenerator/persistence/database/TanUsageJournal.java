@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.efdis.tangenerator.activetan.VisualisationClass;
+
+/**
+ * Append-only journal of the generated TANs.
+ * <p>
+ * New entries are stored in a fixed size ring buffer, which is written to the database by the
+ * {@link DatabaseExecutor} in a single transaction. Thus, the TAN generation never waits for the
+ * database. If the buffer overflows before it has been written, the oldest entries are dropped.
+ * <p>
+ * Entries are kept for a limited time only. The journal is compacted with the first write of
+ * each process.
+ */
+public class TanUsageJournal {
+
+    private static final String TAG = TanUsageJournal.class.getSimpleName();
+
+    static final int BUFFER_CAPACITY = 64;
+    private static final int HASH_PREFIX_LENGTH = 4;
+
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(400);
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final TanUsage[] buffer = new TanUsage[BUFFER_CAPACITY];
+    /** Index of the oldest entry in the {@link #buffer} */
+    private static int head;
+    private static int size;
+    private static int dropped;
+    private static boolean flushScheduled;
+    private static boolean compacted;
+
+    private TanUsageJournal() {
+    }
+
+    /**
+     * Remember a generated TAN. The entry is written to the database in the background.
+     *
+     * @param challenge The raw challenge, which is only used to compute the hash prefix
+     * @param latencyNanos Time needed to compute the TAN, see {@link TanUsage#latencyMicros}
+     */
+    public static void record(@NonNull Context context, @NonNull BankingToken token,
+                              int transactionCounter,
+                              @Nullable VisualisationClass visualisationClass,
+                              @NonNull byte[] challenge, long latencyNanos) {
+        TanUsage entry = new TanUsage();
+        entry.tokenId = token.id;
+        entry.transactionCounter = transactionCounter;
+        entry.generatedOn = new Date();
+        entry.visualisationClass
+                = visualisationClass == null ? null : visualisationClass.getId();
+        entry.hashPrefix = hashPrefix(challenge);
+        entry.latencyMicros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+
+        boolean scheduleFlush;
+        synchronized (buffer) {
+            if (size == BUFFER_CAPACITY) {
+                head = (head + 1) % BUFFER_CAPACITY;
+                size--;
+                dropped++;
+            }
+            buffer[(head + size) % BUFFER_CAPACITY] = entry;
+            size++;
+
+            scheduleFlush = !flushScheduled;
+            flushScheduled = true;
+        }
+
+        if (scheduleFlush) {
+            Context applicationContext = context.getApplicationContext();
+            DatabaseExecutor.execute(() -> flush(applicationContext));
+        }
+    }
+
+    private static String hashPrefix(byte[] challenge) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(challenge);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always supported", e);
+        }
+
+        StringBuilder prefix = new StringBuilder(2 * HASH_PREFIX_LENGTH);
+        for (int i = 0; i < HASH_PREFIX_LENGTH; i++) {
+            prefix.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            prefix.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return prefix.toString();
+    }
+
+    @WorkerThread
+    private static void flush(Context context) {
+        List<TanUsage> entries;
+        int droppedEntries;
+        boolean compact;
+        synchronized (buffer) {
+            entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % BUFFER_CAPACITY;
+                entries.add(buffer[index]);
+                buffer[index] = null;
+            }
+            head = 0;
+            size = 0;
+            droppedEntries = dropped;
+            dropped = 0;
+            flushScheduled = false;
+
+            compact = !compacted;
+            compacted = true;
+        }
+
+        if (droppedEntries > 0) {
+            Log.w(TAG, "Dropped " + droppedEntries + " journal entries");
+        }
+
+        // The journal is not essential, so failures must not crash the app
+        try {
+            TanUsageDao dao = AppDatabase.getInstance(context).tanUsageDao();
+            dao.insertAll(entries);
+
+            if (compact) {
+                int deleted = dao.compact(
+                        new Date(System.currentTimeMillis() - RETENTION_MILLIS), MAX_ENTRIES);
+                Log.i(TAG, "Deleted " + deleted + " old journal entries");
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot write " + entries.size() + " journal entries", e);
+        }
+    }
+
+    /**
+     * Write all entries as CSV. The entries are streamed from the database, so the journal is
+     * never loaded into memory completely.
+     */
+    @WorkerThread
+    public static void export(@NonNull Context context, @NonNull Writer writer)
+            throws IOException {
+        writer.write("token_id,atc,generated_on,visualisation_class,hash_prefix,latency_micros\n");
+
+        try (Cursor cursor = AppDatabase.getInstance(context).tanUsageDao().queryAll()) {
+            int tokenId = cursor.getColumnIndexOrThrow("token_id");
+            int transactionCounter = cursor.getColumnIndexOrThrow("atc");
+            int generatedOn = cursor.getColumnIndexOrThrow("generated_on");
+            int visualisationClass = cursor.getColumnIndexOrThrow("visualisation_class");
+            int hashPrefix = cursor.getColumnIndexOrThrow("hash_prefix");
+            int latencyMicros = cursor.getColumnIndexOrThrow("latency_micros");
+
+            while (cursor.moveToNext()) {
+                writer.write(cursor.getString(tokenId));
+                writer.write(',');
+                writer.write(Integer.toString(cursor.getInt(transactionCounter)));
+                writer.write(',');
+                writer.write(Long.toString(cursor.getLong(generatedOn)));
+                writer.write(',');
+                if (!cursor.isNull(visualisationClass)) {
+                    writer.write(Integer.toString(cursor.getInt(visualisationClass)));
+                }
+                writer.write(',');
+                writer.write(cursor.getString(hashPrefix));
+                writer.write(',');
+                writer.write(Long.toString(cursor.getLong(latencyMicros)));
+                writer.write('\n');
+            }
+        }
+    }
+
+}
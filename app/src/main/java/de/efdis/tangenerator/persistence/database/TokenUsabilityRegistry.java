@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.database;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.core.content.ContextCompat;
+
+import java.security.KeyStoreException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyRepository;
+
+/**
+ * Remembers which banking tokens have a usable key, so that screens need not access the key store
+ * for every token each time they are shown.
+ * <p>
+ * The keys are checked in parallel on a background executor and the results are published as an
+ * immutable {@link Snapshot}. The registry is invalidated, when the device policy has changed,
+ * when tokens are inserted or deleted and when a key failure has been reported by
+ * {@link BankingKeyRepository#reportBankingKeyFailure(String, Throwable)}. After the device has
+ * been unlocked, the known results are kept, but each key is checked again in the background
+ * once its result is requested.
+ * <p>
+ * A key is only registered as invalid, if it is missing or has been invalidated. If the key store
+ * cannot be used, e. g., because it has not responded in time, the previous result is kept and
+ * the key is checked again on the next request.
+ */
+public class TokenUsabilityRegistry {
+
+    private static final String TAG = TokenUsabilityRegistry.class.getSimpleName();
+
+    /** Notified on the main thread, whenever a new snapshot has been published */
+    public interface Listener {
+        void onTokenUsabilityChanged(@NonNull Snapshot snapshot);
+    }
+
+    /** Immutable state of the registry */
+    public static final class Snapshot {
+        private final Map<String, Boolean> validKeyByAlias;
+
+        private Snapshot(Map<String, Boolean> validKeyByAlias) {
+            this.validKeyByAlias = Collections.unmodifiableMap(validKeyByAlias);
+        }
+
+        /**
+         * @return <code>null</code>, if the token's key has not been checked yet
+         */
+        @Nullable
+        public Boolean hasValidKey(@NonNull String keyAlias) {
+            return validKeyByAlias.get(keyAlias);
+        }
+
+        private Snapshot with(String keyAlias, @Nullable Boolean validKey) {
+            Map<String, Boolean> copy = new HashMap<>(validKeyByAlias);
+            if (validKey == null) {
+                copy.remove(keyAlias);
+            } else {
+                copy.put(keyAlias, validKey);
+            }
+            return new Snapshot(copy);
+        }
+    }
+
+    private static TokenUsabilityRegistry instance;
+
+    private final Context context;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Incremented by each invalidation, to discard results of outdated checks */
+    private final AtomicInteger generation = new AtomicInteger();
+    private Snapshot snapshot = new Snapshot(Collections.emptyMap());
+    /** Results which are still shown, but must be checked again on their next request */
+    private final Set<String> staleKeyAliases = new HashSet<>();
+    /** Generation of the checks which have been scheduled, but not completed yet */
+    private final Map<String, Integer> pendingChecks = new HashMap<>();
+
+    public static synchronized TokenUsabilityRegistry getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new TokenUsabilityRegistry(context.getApplicationContext());
+            instance.invalidateAll();
+        }
+        return instance;
+    }
+
+    private TokenUsabilityRegistry(Context context) {
+        this.context = context;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "TokenUsability-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        // Keys get invalidated once the lock screen is disabled. Changes of the lock screen
+        // cannot be observed directly, but the user must unlock the device afterwards. Unlocking
+        // is frequent and usually does not affect the keys, so the results are only marked stale.
+        IntentFilter filter = new IntentFilter(Intent.ACTION_USER_PRESENT);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            filter.addAction(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+        }
+        ContextCompat.registerReceiver(context, new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (Intent.ACTION_USER_PRESENT.equals(intent.getAction())) {
+                    markAllStale();
+                } else {
+                    invalidateAll();
+                }
+            }
+        }, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+
+        BankingKeyRepository.addKeyInvalidationListener(
+                keyAlias -> publish(generation.get(), keyAlias, Boolean.FALSE));
+    }
+
+    @NonNull
+    public synchronized Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Look up whether the token has a usable key, without accessing the key store. If the result
+     * is unknown or stale, the key is checked in the background and the listeners are notified
+     * once the result is available.
+     *
+     * @return <code>null</code>, if the token's key has not been checked yet
+     */
+    @Nullable
+    public Boolean getKeyValidity(@NonNull BankingToken bankingToken) {
+        Boolean validKey;
+        boolean stale;
+        synchronized (this) {
+            validKey = snapshot.hasValidKey(bankingToken.keyAlias);
+            stale = staleKeyAliases.contains(bankingToken.keyAlias);
+        }
+
+        if (validKey == null || stale) {
+            scheduleCheck(generation.get(), bankingToken);
+        }
+        return validKey;
+    }
+
+    /**
+     * Check whether the token has a usable key. The result from the current snapshot is used, if
+     * available and not stale. Otherwise, the key store is accessed in the calling thread.
+     *
+     * @throws KeyStoreException if the key store cannot be used right now, the failure is not
+     *                           registered as a result
+     */
+    @WorkerThread
+    public boolean hasValidKey(@NonNull BankingToken bankingToken) throws KeyStoreException {
+        synchronized (this) {
+            Boolean validKey = snapshot.hasValidKey(bankingToken.keyAlias);
+            if (validKey != null && !staleKeyAliases.contains(bankingToken.keyAlias)) {
+                return validKey;
+            }
+        }
+
+        int checkGeneration = generation.get();
+        boolean result = BankingTokenRepository.hasValidKey(bankingToken);
+        publish(checkGeneration, bankingToken.keyAlias, result);
+        return result;
+    }
+
+    /** Discard all results and check all tokens again in the background */
+    public void invalidateAll() {
+        int checkGeneration;
+        synchronized (this) {
+            checkGeneration = generation.incrementAndGet();
+            snapshot = new Snapshot(Collections.emptyMap());
+            staleKeyAliases.clear();
+        }
+        notifyListeners();
+
+        executor.execute(() -> {
+            for (BankingToken bankingToken : BankingTokenRepository.getAll(context)) {
+                scheduleCheck(checkGeneration, bankingToken);
+            }
+        });
+    }
+
+    /** Keep all results, but check each token again when its result is requested next time */
+    public synchronized void markAllStale() {
+        staleKeyAliases.addAll(snapshot.validKeyByAlias.keySet());
+    }
+
+    /** Discard the result for a new or deleted token and check it again in the background */
+    public void invalidate(@NonNull BankingToken bankingToken, boolean deleted) {
+        int checkGeneration = generation.get();
+        publish(checkGeneration, bankingToken.keyAlias, null);
+        if (!deleted) {
+            scheduleCheck(checkGeneration, bankingToken);
+        }
+    }
+
+    private void scheduleCheck(int checkGeneration, BankingToken bankingToken) {
+        synchronized (this) {
+            Integer pendingGeneration = pendingChecks.get(bankingToken.keyAlias);
+            if (pendingGeneration != null && pendingGeneration == checkGeneration) {
+                // the same check is already in progress
+                return;
+            }
+            pendingChecks.put(bankingToken.keyAlias, checkGeneration);
+        }
+
+        executor.execute(() -> check(checkGeneration, bankingToken));
+    }
+
+    private void check(int checkGeneration, BankingToken bankingToken) {
+        try {
+            if (checkGeneration != generation.get()) {
+                return;
+            }
+
+            boolean validKey;
+            try {
+                validKey = BankingTokenRepository.hasValidKey(bankingToken);
+            } catch (KeyStoreException e) {
+                Log.w(TAG, "Cannot check banking key for token " + bankingToken.id, e);
+                markStale(checkGeneration, bankingToken.keyAlias);
+                return;
+            }
+            publish(checkGeneration, bankingToken.keyAlias, validKey);
+        } finally {
+            synchronized (this) {
+                Integer pendingGeneration = pendingChecks.get(bankingToken.keyAlias);
+                if (pendingGeneration != null && pendingGeneration == checkGeneration) {
+                    pendingChecks.remove(bankingToken.keyAlias);
+                }
+            }
+        }
+    }
+
+    /** Keep a previous result, but check the key again on its next request */
+    private synchronized void markStale(int checkGeneration, String keyAlias) {
+        if (checkGeneration == generation.get()
+                && snapshot.validKeyByAlias.containsKey(keyAlias)) {
+            staleKeyAliases.add(keyAlias);
+        }
+    }
+
+    private void publish(int checkGeneration, String keyAlias, @Nullable Boolean validKey) {
+        synchronized (this) {
+            if (checkGeneration != generation.get()) {
+                // the result might be outdated
+                return;
+            }
+            snapshot = snapshot.with(keyAlias, validKey);
+            staleKeyAliases.remove(keyAlias);
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        mainHandler.post(() -> {
+            Snapshot current = getSnapshot();
+            for (Listener listener : listeners) {
+                listener.onTokenUsabilityChanged(current);
+            }
+        });
+    }
+
+}
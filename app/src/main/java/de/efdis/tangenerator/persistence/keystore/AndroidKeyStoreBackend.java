@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import android.os.Build;
+import android.os.RemoteException;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.KeyProtection;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Keys in the Android key store, which are protected by the device's secure lock screen.
+ */
+public class AndroidKeyStoreBackend implements KeyStoreBackend {
+
+    private static final String TAG = AndroidKeyStoreBackend.class.getSimpleName();
+
+    private static final String PROVIDER = "AndroidKeyStore";
+
+    private volatile KeyStore keyStore;
+
+    @Override
+    public void load() throws KeyStoreException {
+        KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+
+        // key store doesn't work w/o initialization
+        try {
+            keyStore.load(null);
+        } catch (CertificateException | NoSuchAlgorithmException | IOException e) {
+            throw new KeyStoreException("Cannot initialize key store", e);
+        }
+
+        this.keyStore = keyStore;
+    }
+
+    private KeyStore getKeyStore() throws KeyStoreException {
+        KeyStore keyStore = this.keyStore;
+        if (keyStore == null) {
+            throw new NotLoadedException("Key store has not been loaded");
+        }
+        return keyStore;
+    }
+
+    @Override
+    public SecretKey loadKey(String alias) throws KeyStoreException {
+        Key key;
+        try {
+            key = getKeyStore().getKey(alias, null);
+        } catch (NoSuchAlgorithmException | UnrecoverableKeyException e) {
+            Log.e(TAG, "cannot recover key", e);
+            return null;
+        }
+
+        if (key instanceof SecretKey) {
+            return (SecretKey) key;
+        } else {
+            // Key not found or key has invalid type
+            return null;
+        }
+    }
+
+    @Override
+    public boolean containsKey(String alias) throws KeyStoreException {
+        return getKeyStore().containsAlias(alias);
+    }
+
+    @Override
+    public void storeKey(String alias, SecretKey key, Protection protection) throws KeyStoreException {
+        getKeyStore().setEntry(alias,
+                new KeyStore.SecretKeyEntry(key),
+                getKeyProtection(protection));
+    }
+
+    @Override
+    public void deleteKey(String alias) throws KeyStoreException {
+        KeyStore keyStore = getKeyStore();
+        if (keyStore.containsAlias(alias)) {
+            keyStore.deleteEntry(alias);
+        }
+    }
+
+    @Override
+    public List<String> listKeys() throws KeyStoreException {
+        return Collections.list(getKeyStore().aliases());
+    }
+
+    @Override
+    public Date getCreationDate(String alias) throws KeyStoreException {
+        return getKeyStore().getCreationDate(alias);
+    }
+
+    @Override
+    public void initEncryption(Cipher cipher, SecretKey key, AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (params == null) {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, key, params);
+        }
+    }
+
+    /**
+     * The connection to the key store service is lost, if the service has died in the meantime.
+     */
+    @Override
+    public boolean isStale(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof NotLoadedException || e instanceof RemoteException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Failure classifyFailure(String alias, Throwable failure) {
+        boolean invalidKey = false;
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof KeyPermanentlyInvalidatedException) {
+                return Failure.KEY_PERMANENTLY_INVALIDATED;
+            }
+            if (e instanceof UserNotAuthenticatedException) {
+                return Failure.USER_NOT_AUTHENTICATED;
+            }
+            invalidKey |= e instanceof InvalidKeyException;
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return invalidKey ? Failure.INVALID_KEY : Failure.OTHER;
+    }
+
+    /**
+     * Protection parameters for the secret banking key,
+     * used for TAN generation of banking transactions.
+     */
+    private static KeyProtection getKeyProtection(Protection protection) {
+        // The key may only be used for encryption (see AecCbcMac computation)
+        KeyProtection.Builder builder = new KeyProtection.Builder(KeyProperties.PURPOSE_ENCRYPT);
+
+        // IV, Block mode and padding for AesCbcMac
+        builder.setRandomizedEncryptionRequired(false);
+        builder.setBlockModes(KeyProperties.BLOCK_MODE_CBC);
+        builder.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE);
+
+        // The user must be logged in at the device (pattern, PIN, password, biometric).
+        // The key will automatically be deleted once device protection is removed.
+        builder.setUserAuthenticationRequired(true);
+
+        // Don't ask for user authentication during key usage,
+        // if the device has been unlocked within the last X seconds.
+        // We must set this value, because otherwise the key could only be used with biometric
+        // authentication. See BankingKeyRepository.UserAuthenticationValidityDuration for details.
+        KeyProtectionCompat.setUserAuthenticationParameters(builder, protection.getValiditySeconds());
+
+        return builder.build();
+    }
+
+    private static class KeyProtectionCompat {
+
+        private static void setUserAuthenticationParameters(KeyProtection.Builder builder, int timeoutSeconds) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                builder.setUserAuthenticationParameters(timeoutSeconds,
+                        KeyProperties.AUTH_DEVICE_CREDENTIAL | KeyProperties.AUTH_BIOMETRIC_STRONG);
+            } else {
+                builder.setUserAuthenticationValidityDurationSeconds(timeoutSeconds);
+            }
+        }
+
+    }
+
+}
@@ -19,39 +19,49 @@
 
 package de.efdis.tangenerator.persistence.keystore;
 
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
-import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
-import android.security.keystore.KeyProtection;
-import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.biometric.BiometricManager;
 
-import java.io.IOException;
-import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.Key;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.security.ProviderException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import de.efdis.tangenerator.tracing.TraceSpan;
+import de.efdis.tangenerator.tracing.Tracing;
+
 public class BankingKeyRepository {
 
     private static final String TAG = BankingKeyRepository.class.getSimpleName();
 
-    private static final String PROVIDER = "AndroidKeyStore";
-
     private static final String BANKING_KEY_ALIAS_PREFIX = "banking_key_";
     private static final String BANKING_KEY_ALGORITHM = KeyProperties.KEY_ALGORITHM_AES;
     private static final String BANKING_KEY_BLOCK_MODE = KeyProperties.BLOCK_MODE_CBC;
@@ -110,49 +120,223 @@ public class BankingKeyRepository {
      * respective protection parameters. See {@link #PROBE_KEY_LONG} and {@link #PROBE_KEY_SHORT}.
      */
     private enum UserAuthenticationValidityDuration {
-        LONG, SHORT
+        LONG(PROBE_KEY_LONG, KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY),
+        SHORT(PROBE_KEY_SHORT, KeyStoreBackend.Protection.SHORT_AUTHENTICATION_VALIDITY);
+
+        private final String probeKeyAlias;
+        private final KeyStoreBackend.Protection protection;
+
+        UserAuthenticationValidityDuration(String probeKeyAlias,
+                                           KeyStoreBackend.Protection protection) {
+            this.probeKeyAlias = probeKeyAlias;
+            this.protection = protection;
+        }
+    }
+
+    /**
+     * Probe results depend on the OS build and on the lock screen configuration only. They are
+     * stored in this preferences file together with a {@link #getDeviceState(Context) state}.
+     */
+    private static final String PROBE_PREFERENCES = "key_store_probe";
+    private static final String PROBE_PREFERENCE_DEVICE_STATE = "device_state";
+
+    /** A key operation has failed although the stored probe results suggest otherwise */
+    private static volatile boolean probeResultsContradicted;
+
+    /**
+     * Serializes probing, independent of the other key store operations of this class.
+     */
+    private static final Object PROBE_RESULTS_LOCK = new Object();
+
+    /**
+     * Both probe keys may be used concurrently, but each must be stored only once.
+     */
+    private static final Map<UserAuthenticationValidityDuration, Object> PROBE_KEY_LOCKS;
+    static {
+        PROBE_KEY_LOCKS = new EnumMap<>(UserAuthenticationValidityDuration.class);
+        for (UserAuthenticationValidityDuration duration : UserAuthenticationValidityDuration.values()) {
+            PROBE_KEY_LOCKS.put(duration, new Object());
+        }
     }
 
-    private static KeyStore getKeyStore() throws KeyStoreException {
-        KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+    private static volatile KeyStoreBackend backend = new AndroidKeyStoreBackend();
 
-        // key store doesn't work w/o initialization
+    /**
+     * Loaded key store, shared by all operations. Loading the Android key store requires IPC
+     * with the key store service, so we don't want to do this for every key.
+     */
+    private static volatile KeyStoreBackend loadedBackend;
+    private static final Object KEY_STORE_LOCK = new Object();
+    private static final AtomicInteger keyStoreLoadCount = new AtomicInteger();
+    private static final AtomicBoolean keyStorePrewarmed = new AtomicBoolean();
+
+    private static final List<KeyInvalidationListener> keyInvalidationListeners
+            = new CopyOnWriteArrayList<>();
+
+    private interface KeyStoreOperation<T> {
+        T run(KeyStoreBackend keyStore) throws KeyStoreException;
+    }
+
+    /**
+     * Replace the Android key store, e. g., with the <code>InMemoryKeyStoreBackend</code> of the
+     * tests.
+     * The new key store is loaded on its first usage and the device support is probed again.
+     */
+    @VisibleForTesting
+    public static void setBackend(@NonNull KeyStoreBackend backend) {
+        synchronized (KEY_STORE_LOCK) {
+            BankingKeyRepository.backend = backend;
+            loadedBackend = null;
+            probeResultsContradicted = true;
+        }
+    }
+
+    private static KeyStoreBackend getKeyStore() throws KeyStoreException {
+        KeyStoreBackend keyStore = loadedBackend;
+        if (keyStore != null) {
+            return keyStore;
+        }
+
+        synchronized (KEY_STORE_LOCK) {
+            keyStore = loadedBackend;
+            if (keyStore == null) {
+                keyStore = backend;
+                loadKeyStore(keyStore);
+                loadedBackend = keyStore;
+            }
+            return keyStore;
+        }
+    }
+
+    private static void loadKeyStore(KeyStoreBackend keyStore) throws KeyStoreException {
+        long traceStart = Tracing.begin(TraceSpan.KEY_STORE_LOAD);
         try {
-            keyStore.load(null);
-        } catch (CertificateException | NoSuchAlgorithmException | IOException e) {
+            keyStoreLoadCount.incrementAndGet();
+            KeyStoreExecutor.recordKeyStoreLoad();
+
+            // key store doesn't work w/o initialization
+            keyStore.load();
+        } catch (KeyStoreException e) {
             Log.e(TAG, "error during initialization of key store", e);
+            throw e;
+        } finally {
+            Tracing.end(TraceSpan.KEY_STORE_LOAD, traceStart);
         }
+    }
 
-        return keyStore;
+    /**
+     * Run an operation with the shared key store. If the operation fails, because the loaded
+     * key store is stale, e. g., because the key store service has been restarted, the key store
+     * is loaded again and the operation is repeated once. Other failures are not repeated.
+     */
+    private static <T> T withKeyStore(KeyStoreOperation<T> operation) throws KeyStoreException {
+        KeyStoreBackend keyStore = getKeyStore();
+        try {
+            return operation.run(keyStore);
+        } catch (KeyStoreException | ProviderException e) {
+            if (!keyStore.isStale(e)) {
+                throw e;
+            }
+            Log.w(TAG, "key store is stale, reloading key store", e);
+            synchronized (KEY_STORE_LOCK) {
+                if (loadedBackend == keyStore) {
+                    loadedBackend = null;
+                }
+            }
+            return operation.run(getKeyStore());
+        }
     }
 
     /**
-     * Load a secret key from the Android Keystore.
-     *
-     * @return <code>null</code>, if the key is missing in the key store or permanently destroyed.
-     * @throws KeyStoreException if the key store cannot be used
+     * Load the key store on a background thread, so that it is ready when the user scans the
+     * first QR code. Subsequent calls have no effect.
      */
-    public static AutoDestroyable<SecretKey> getKey(String keyAlias) throws KeyStoreException {
-        KeyStore keyStore = getKeyStore();
+    public static void prewarmKeyStore() {
+        if (!keyStorePrewarmed.compareAndSet(false, true)) {
+            return;
+        }
 
-        Key key = null;
-        try {
-            key = keyStore.getKey(keyAlias, null);
-        } catch (NoSuchAlgorithmException | UnrecoverableKeyException e) {
-            Log.e(TAG, "cannot recover key", e);
+        KeyStoreExecutor.submit(KeyStoreExecutor.Operation.LOAD_KEY_STORE, () -> {
+            try {
+                return getKeyStore();
+            } catch (KeyStoreException e) {
+                Log.e(TAG, "cannot prewarm key store", e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Number of times the key store has been loaded in this process. This should only increase
+     * on the first usage or after the key store service has failed.
+     */
+    public static int getKeyStoreLoadCount() {
+        return keyStoreLoadCount.get();
+    }
+
+    public static void addKeyInvalidationListener(@NonNull KeyInvalidationListener listener) {
+        keyInvalidationListeners.add(listener);
+    }
+
+    public static void removeKeyInvalidationListener(@NonNull KeyInvalidationListener listener) {
+        keyInvalidationListeners.remove(listener);
+    }
+
+    private static void notifyKeyInvalidated(String keyAlias) {
+        if (!keyAlias.startsWith(BANKING_KEY_ALIAS_PREFIX)) {
+            // probe keys are replaced automatically
+            return;
         }
 
-        if (!(key instanceof SecretKey)) {
-            // Key not found or key has invalid type
+        String bankingTokenAlias = keyAlias.substring(BANKING_KEY_ALIAS_PREFIX.length());
+        for (KeyInvalidationListener listener : keyInvalidationListeners) {
+            listener.onBankingKeyInvalidated(bankingTokenAlias);
+        }
+    }
+
+    /**
+     * Load a secret key from the Android Keystore without checking whether it can be used.
+     *
+     * @return <code>null</code>, if the key is missing in the key store or destroyed.
+     * @throws KeyStoreException if the key store cannot be used
+     */
+    private static AutoDestroyable<SecretKey> getKeyWithoutValidation(String keyAlias)
+            throws KeyStoreException {
+        SecretKey key = withKeyStore(keyStore -> keyStore.loadKey(keyAlias));
+        if (key == null) {
             return null;
         }
 
         // Wrap the key in an AutoClosable.
         // The caller may use a try-with-resources statement to automatically unreference the handle
         // for the secret key as soon as it is no longer needed.
-        AutoDestroyable<SecretKey> secretKey = new AutoDestroyable<>((SecretKey) key);
+        AutoDestroyable<SecretKey> secretKey = new AutoDestroyable<>(key);
         if (secretKey.isDestroyed()) {
             Log.e(TAG, "Key permanently destroyed for alias " + keyAlias);
+            notifyKeyInvalidated(keyAlias);
+            return null;
+        }
+
+        return secretKey;
+    }
+
+    /**
+     * Load a secret key from the Android Keystore and check that it can still be used.
+     * <p>
+     * The check requires a key store operation. Before a cryptographic operation, use
+     * {@link #getBankingKeyForUse(String)} instead.
+     *
+     * @return <code>null</code>, if the key is missing in the key store or permanently destroyed.
+     * @throws KeyStoreException if the key store cannot be used
+     */
+    public static AutoDestroyable<SecretKey> getKey(String keyAlias) throws KeyStoreException {
+        return KeyStoreExecutor.call(KeyStoreExecutor.Operation.VALIDATE_KEY,
+                () -> getValidatedKey(keyAlias));
+    }
+
+    private static AutoDestroyable<SecretKey> getValidatedKey(String keyAlias) throws KeyStoreException {
+        AutoDestroyable<SecretKey> secretKey = getKeyWithoutValidation(keyAlias);
+        if (secretKey == null) {
             return null;
         }
 
@@ -164,33 +348,43 @@ public class BankingKeyRepository {
          * We can detect this with the KeyPermanentlyInvalidatedException,
          * by attempting to use the key.
          */
+        KeyStoreBackend keyStore = getKeyStore();
         try {
             Cipher aes = Cipher.getInstance(
                     BANKING_KEY_ALGORITHM + "/" + BANKING_KEY_BLOCK_MODE + "/" + BANKING_KEY_PADDING);
-            aes.init(Cipher.ENCRYPT_MODE, secretKey.getKeyMaterial());
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            keyStore.initEncryption(aes, secretKey.getKeyMaterial(), null);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException
+                 | InvalidAlgorithmParameterException e) {
             secretKey.destroy();
             throw new KeyStoreException("Cannot initialize AES cipher", e);
-        } catch (KeyPermanentlyInvalidatedException e) {
-            Log.e(TAG, "Key permanently invalidated for alias " + keyAlias, e);
-            secretKey.destroy();
-            return null;
-        } catch (UserNotAuthenticatedException e) {
-            // the key can probably be used, but the user must repeat authentication
-            return secretKey;
         } catch (InvalidKeyException e) {
-            Log.e(TAG, "Invalid key for alias " + keyAlias, e);
+            switch (keyStore.classifyFailure(keyAlias, e)) {
+                case USER_NOT_AUTHENTICATED:
+                    // the key can probably be used, but the user must repeat authentication
+                    return secretKey;
+                case KEY_PERMANENTLY_INVALIDATED:
+                    Log.e(TAG, "Key permanently invalidated for alias " + keyAlias, e);
+                    break;
+                default:
+                    Log.e(TAG, "Invalid key for alias " + keyAlias, e);
+                    // we assume, that this is a permanent error
+                    if (keyAlias.startsWith(BANKING_KEY_ALIAS_PREFIX)) {
+                        // Unusable probe keys are the expected result of a probe instead
+                        probeResultsContradicted = true;
+                    }
+                    break;
+            }
             secretKey.destroy();
-            // we assume, that this is a permanent error
+            notifyKeyInvalidated(keyAlias);
             return null;
         }
 
-
         return secretKey;
     }
 
     /**
-     * Load the secret banking key used for TAN generation of banking transactions.
+     * Load the secret banking key used for TAN generation of banking transactions and check that
+     * it can still be used, e. g., to list usable tokens.
      *
      * @return <code>null</code>, if the key is missing in the key store or permanently destroyed
      * @throws KeyStoreException if the key store cannot be used
@@ -200,71 +394,76 @@ public class BankingKeyRepository {
     }
 
     /**
-     * Protection parameters for the secret banking key,
-     * used for TAN generation of banking transactions.
+     * Load the secret banking key right before a cryptographic operation.
+     * <p>
+     * Unlike {@link #getBankingKey(String)}, the key is not checked with an extra key store
+     * operation. If the operation fails, the caller must pass the exception to
+     * {@link #reportBankingKeyFailure(String, Throwable)}.
+     *
+     * @return <code>null</code>, if the key is missing in the key store or destroyed
+     * @throws KeyStoreException if the key store cannot be used
      */
-    private static KeyProtection getBankingKeyProtection(
-            @NonNull UserAuthenticationValidityDuration userAuthenticationValidityDuration) {
-        // The key may only be used for encryption (see AecCbcMac computation)
-        KeyProtection.Builder builder = new KeyProtection.Builder(KeyProperties.PURPOSE_ENCRYPT);
-
-        // IV, Block mode and padding for AesCbcMac
-        builder.setRandomizedEncryptionRequired(false);
-        builder.setBlockModes(BANKING_KEY_BLOCK_MODE);
-        builder.setEncryptionPaddings(BANKING_KEY_PADDING);
-
-        // The user must be logged in at the device (pattern, PIN, password, biometric).
-        // The key will automatically be deleted once device protection is removed.
-        builder.setUserAuthenticationRequired(true);
-
-        // Don't ask for user authentication during key usage,
-        // if the device has been unlocked within the last X seconds.
-        // We must set this value, because otherwise the key could only be used with biometric
-        // authentication. See documentation at UserAuthenticationValidityDuration for details.
-        int timeout;
-        switch (userAuthenticationValidityDuration) {
-            case LONG:
-                timeout = 24 * 60 * 60;
-                break;
-            case SHORT:
-                timeout = 5 * 60;
-                break;
-            default:
-                throw new IllegalArgumentException("unknown user authentication validity duration");
+    public static AutoDestroyable<SecretKey> getBankingKeyForUse(String bankingTokenAlias) throws KeyStoreException {
+        long traceStart = Tracing.begin(TraceSpan.GET_BANKING_KEY);
+        try {
+            return KeyStoreExecutor.call(KeyStoreExecutor.Operation.LOAD_KEY,
+                    () -> getKeyWithoutValidation(BANKING_KEY_ALIAS_PREFIX + bankingTokenAlias));
+        } finally {
+            Tracing.end(TraceSpan.GET_BANKING_KEY, traceStart);
         }
-        KeyProtectionCompat.setUserAuthenticationParameters(builder, timeout);
+    }
 
-        return builder.build();
+    /**
+     * Check whether a cryptographic operation with a banking key failed, because the key has
+     * been permanently invalidated. If so, the {@link KeyInvalidationListener}s are notified.
+     *
+     * @param failure Exception thrown by the operation, possibly wrapping the key store's exception
+     * @return <code>true</code>, iff. the key has been permanently invalidated
+     */
+    public static boolean reportBankingKeyFailure(String bankingTokenAlias, Throwable failure) {
+        String keyAlias = BANKING_KEY_ALIAS_PREFIX + bankingTokenAlias;
+        switch (backend.classifyFailure(keyAlias, failure)) {
+            case KEY_PERMANENTLY_INVALIDATED:
+                Log.e(TAG, "Key permanently invalidated for token " + bankingTokenAlias, failure);
+                notifyKeyInvalidated(keyAlias);
+                return true;
+            case INVALID_KEY:
+                // The device might not support the key's protection parameters after all
+                probeResultsContradicted = true;
+                return false;
+            default:
+                return false;
+        }
     }
 
     @NonNull
-    private static synchronized AutoDestroyable<SecretKey> getProbeKey(
+    private static AutoDestroyable<SecretKey> getProbeKey(
             @NonNull UserAuthenticationValidityDuration userAuthenticationValidityDuration)
             throws KeyStoreException {
-        String keyAlias;
-        switch (userAuthenticationValidityDuration) {
-            case LONG:
-                keyAlias = PROBE_KEY_LONG;
-                break;
-            case SHORT:
-                keyAlias = PROBE_KEY_SHORT;
-                break;
-            default:
-                throw new IllegalArgumentException("unknown user authentication validity duration");
+        synchronized (PROBE_KEY_LOCKS.get(userAuthenticationValidityDuration)) {
+            return getOrCreateProbeKey(userAuthenticationValidityDuration.probeKeyAlias,
+                    userAuthenticationValidityDuration);
         }
+    }
 
-        AutoDestroyable<SecretKey> probeKey = getKey(keyAlias);
+    @NonNull
+    private static AutoDestroyable<SecretKey> getOrCreateProbeKey(
+            @NonNull String keyAlias,
+            @NonNull UserAuthenticationValidityDuration userAuthenticationValidityDuration)
+            throws KeyStoreException {
+        AutoDestroyable<SecretKey> probeKey = getValidatedKey(keyAlias);
 
         // Automatically add the missing key or replace an invalid key
         if (probeKey == null) {
-            KeyStore keyStore = getKeyStore();
             SecretKeySpec keySpec = new SecretKeySpec(
                     new byte[BankingKeyComponents.BANKING_KEY_LENGTH],
                     BANKING_KEY_ALGORITHM);
-            keyStore.setEntry(keyAlias,
-                    new KeyStore.SecretKeyEntry(keySpec),
-                    getBankingKeyProtection(userAuthenticationValidityDuration));
-            probeKey = getKey(keyAlias);
+            withKeyStore(keyStore -> {
+                keyStore.storeKey(keyAlias, keySpec,
+                        userAuthenticationValidityDuration.protection);
+                return null;
+            });
+            probeKey = getValidatedKey(keyAlias);
 
             if (probeKey == null) {
                 throw new KeyStoreException("cannot store key for testing");
@@ -275,47 +474,115 @@ public class BankingKeyRepository {
     }
 
     /**
-     * Try to actually use a secret AES key from the Android key store with a particular user
-     * authentication validity duration.
+     * Try to actually use a secret AES key from the key store with a particular user
+     * authentication validity duration. Must be executed by the {@link KeyStoreExecutor}.
      *
      * @param userAuthenticationValidityDuration Long or short duration values. The short value
      *                                           should be supported by any device.
-     * @return <code>true</code>, iff. the device supports the value and can use it.
-     * @throws KeyStoreException             If the key store is not available or does not support the AES
-     *                                       cipher.
-     * @throws UserNotAuthenticatedException If the device is locked or the user authentication
-     *                                       validity duration has exceeded.  Usually this means that the value is supported by the
-     *                                       device, but cannot be used right now.
+     * @return {@link KeyStoreBackend.ProbeResult#SUPPORTED}, iff. the device supports the value
+     * and can use it. {@link KeyStoreBackend.ProbeResult#USER_NOT_AUTHENTICATED}, if the device is
+     * locked or the user authentication validity duration has exceeded. Usually this means that the value is
+     * supported by the device, but cannot be used right now.
+     * @throws KeyStoreException If the key store is not available or does not support the AES
+     *                           cipher.
      */
-    private static boolean isSupportedByDevice(
+    private static KeyStoreBackend.ProbeResult probe(
             @NonNull UserAuthenticationValidityDuration userAuthenticationValidityDuration)
-            throws KeyStoreException, UserNotAuthenticatedException {
-        Cipher cipher;
-        try {
-            cipher = Cipher.getInstance(
-                    BANKING_KEY_ALGORITHM + "/" + BANKING_KEY_BLOCK_MODE + "/" + BANKING_KEY_PADDING);
-        } catch (GeneralSecurityException e) {
-            throw new KeyStoreException("cipher not supported by key store", e);
-        }
-
+            throws KeyStoreException {
         try (
                 // (Store and) load the key.
                 // The success of this operation should be independent of the
                 // userAuthenticationValidityDuration, since it is only checked when the key is top be used.
                 AutoDestroyable<SecretKey> probeKey = getProbeKey(userAuthenticationValidityDuration)
         ) {
-            cipher.init(Cipher.ENCRYPT_MODE, probeKey.getKeyMaterial(),
-                    new IvParameterSpec(new byte[cipher.getBlockSize()]));
-            return true;
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new KeyStoreException("cipher parameters not supported by key store", e);
-        } catch (UserNotAuthenticatedException e) {
-            // device not unlocked or user authentication validity duration exceeded
-            throw e;
-        } catch (InvalidKeyException e) {
-            Log.e(TAG, "cannot use the key although the device is unlocked", e);
-            return false;
+            KeyStoreBackend.ProbeResult result = getKeyStore().probe(
+                    userAuthenticationValidityDuration.probeKeyAlias, probeKey.getKeyMaterial());
+            if (result == KeyStoreBackend.ProbeResult.UNSUPPORTED) {
+                Log.e(TAG, "cannot use the key although the device is unlocked");
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The OS build and the lock screen configuration, which determine the probe results.
+     */
+    private static String getDeviceState(@NonNull Context context) {
+        KeyguardManager keyguardManager
+                = (KeyguardManager) context.getSystemService(Context.KEYGUARD_SERVICE);
+        boolean deviceSecure = keyguardManager != null && keyguardManager.isDeviceSecure();
+        int biometricStatus = BiometricManager.from(context)
+                .canAuthenticate(BiometricManager.Authenticators.BIOMETRIC_STRONG);
+
+        return Build.FINGERPRINT + "#"
+                + Integer.toHexString(Objects.hash(deviceSecure, biometricStatus));
+    }
+
+    /**
+     * Probe the device's support for both user authentication validity durations.
+     * <p>
+     * Results are stored and reused, until the {@link #getDeviceState(Context) device state}
+     * changes or a key operation contradicts the results. Missing results are probed
+     * concurrently, unless this is called by a key store operation. Then, they are probed one
+     * after the other on the current key store thread.
+     */
+    private static Map<UserAuthenticationValidityDuration, KeyStoreBackend.ProbeResult> getProbeResults(
+            @NonNull Context context) throws KeyStoreException {
+        synchronized (PROBE_RESULTS_LOCK) {
+            return loadOrProbeResults(context);
+        }
+    }
+
+    private static Map<UserAuthenticationValidityDuration, KeyStoreBackend.ProbeResult> loadOrProbeResults(
+            @NonNull Context context) throws KeyStoreException {
+        SharedPreferences preferences = context.getSharedPreferences(
+                PROBE_PREFERENCES, Context.MODE_PRIVATE);
+        String deviceState = getDeviceState(context);
+
+        Map<UserAuthenticationValidityDuration, KeyStoreBackend.ProbeResult> results
+                = new EnumMap<>(UserAuthenticationValidityDuration.class);
+        if (probeResultsContradicted) {
+            probeResultsContradicted = false;
+            Log.i(TAG, "stored probe results have been contradicted, probing again");
+        } else if (deviceState.equals(preferences.getString(PROBE_PREFERENCE_DEVICE_STATE, null))) {
+            for (UserAuthenticationValidityDuration duration : UserAuthenticationValidityDuration.values()) {
+                String result = preferences.getString(duration.name(), null);
+                if (result != null) {
+                    results.put(duration, KeyStoreBackend.ProbeResult.valueOf(result));
+                }
+            }
+        }
+
+        Future<KeyStoreBackend.ProbeResult> shortProbe = null;
+        if (!results.containsKey(UserAuthenticationValidityDuration.SHORT)) {
+            shortProbe = KeyStoreExecutor.submit(KeyStoreExecutor.Operation.PROBE,
+                    () -> probe(UserAuthenticationValidityDuration.SHORT));
+        }
+        if (!results.containsKey(UserAuthenticationValidityDuration.LONG)) {
+            results.put(UserAuthenticationValidityDuration.LONG,
+                    KeyStoreExecutor.call(KeyStoreExecutor.Operation.PROBE,
+                            () -> probe(UserAuthenticationValidityDuration.LONG)));
         }
+        if (shortProbe != null) {
+            try {
+                results.put(UserAuthenticationValidityDuration.SHORT,
+                        KeyStoreExecutor.await(KeyStoreExecutor.Operation.PROBE, shortProbe));
+            } catch (ExecutionException e) {
+                throw new KeyStoreException("cannot probe key store", e.getCause());
+            }
+        }
+
+        SharedPreferences.Editor editor = preferences.edit()
+                .clear()
+                .putString(PROBE_PREFERENCE_DEVICE_STATE, deviceState);
+        for (Map.Entry<UserAuthenticationValidityDuration, KeyStoreBackend.ProbeResult> result : results.entrySet()) {
+            if (result.getValue() != KeyStoreBackend.ProbeResult.USER_NOT_AUTHENTICATED) {
+                editor.putString(result.getKey().name(), result.getValue().name());
+            }
+        }
+        editor.apply();
+
+        return results;
     }
 
     /**
@@ -328,16 +595,16 @@ public class BankingKeyRepository {
      * @throws KeyStoreException If the key store is not available or does not support the AES
      *                           cipher.
      */
-    public static boolean isDeviceMissingUnlock() throws KeyStoreException {
+    @WorkerThread
+    public static boolean isDeviceMissingUnlock(@NonNull Context context) throws KeyStoreException {
         // The 'LONG' probe key should be usable if the device is unlocked.
         // If not and we see a UserNotAuthenticatedException, the device either has never been
         // unlocked (since the lock screen has been activated) or requires a reboot.
-        try {
-            isSupportedByDevice(UserAuthenticationValidityDuration.LONG);
-            return false;
-        } catch (UserNotAuthenticatedException e) {
-            return true;
-        }
+        // Unlike the device's support, this is a transient state, so the stored results must not
+        // be used.
+        return KeyStoreExecutor.call(KeyStoreExecutor.Operation.PROBE,
+                () -> probe(UserAuthenticationValidityDuration.LONG))
+                == KeyStoreBackend.ProbeResult.USER_NOT_AUTHENTICATED;
     }
 
     /**
@@ -351,12 +618,16 @@ public class BankingKeyRepository {
      * @throws KeyStoreException If the key store is not available or does not support the AES
      *                           cipher.
      */
-    public static boolean isNoAuthKeySupportedByDevice() throws KeyStoreException {
-        try {
-            return isSupportedByDevice(UserAuthenticationValidityDuration.LONG);
-        } catch (UserNotAuthenticatedException e) {
-            Log.e(TAG, "key should be supported once the device has been unlocked or rebooted", e);
-            return true;
+    @WorkerThread
+    public static boolean isNoAuthKeySupportedByDevice(@NonNull Context context) throws KeyStoreException {
+        switch (getProbeResults(context).get(UserAuthenticationValidityDuration.LONG)) {
+            case UNSUPPORTED:
+                return false;
+            case USER_NOT_AUTHENTICATED:
+                Log.e(TAG, "key should be supported once the device has been unlocked or rebooted");
+                // fall through
+            default:
+                return true;
         }
     }
 
@@ -369,19 +640,56 @@ public class BankingKeyRepository {
      * @throws KeyStoreException If the key store is not available or does not support the AES
      *                           cipher.
      */
-    public static boolean isNonBiometricKeySupportedByDevice() throws KeyStoreException {
+    @WorkerThread
+    public static boolean isNonBiometricKeySupportedByDevice(@NonNull Context context) throws KeyStoreException {
         // If this method return false, the device supports keys with biometric authentication only.
         // That is, the key cannot be used with the device's pin, pattern or password. Currently, it
         // is not known if such devices exist. All known devices support at least the 'SHORT' probe
         // key.
-        try {
-            return isSupportedByDevice(UserAuthenticationValidityDuration.SHORT);
-        } catch (UserNotAuthenticatedException e) {
-            Log.e(TAG, "key should be supported once the device has been unlocked or rebooted", e);
-            return true;
+        switch (getProbeResults(context).get(UserAuthenticationValidityDuration.SHORT)) {
+            case UNSUPPORTED:
+                return false;
+            case USER_NOT_AUTHENTICATED:
+                Log.e(TAG, "key should be supported once the device has been unlocked or rebooted");
+                // fall through
+            default:
+                return true;
         }
     }
 
+    /** Key store requirements for a new banking token, see {@link #checkDeviceSupport(Context)} */
+    public static final class DeviceSupport {
+        /** See {@link #isNonBiometricKeySupportedByDevice(Context)} */
+        public final boolean nonBiometricKeySupported;
+        /** See {@link #isDeviceMissingUnlock(Context)} */
+        public final boolean deviceMissingUnlock;
+        /** See {@link #isNoAuthKeySupportedByDevice(Context)} */
+        public final boolean noAuthKeySupported;
+
+        private DeviceSupport(boolean nonBiometricKeySupported, boolean deviceMissingUnlock,
+                              boolean noAuthKeySupported) {
+            this.nonBiometricKeySupported = nonBiometricKeySupported;
+            this.deviceMissingUnlock = deviceMissingUnlock;
+            this.noAuthKeySupported = noAuthKeySupported;
+        }
+    }
+
+    /**
+     * Check all key store requirements for a new banking token at once. The probes may take
+     * seconds, so this should be run as {@link KeyStoreExecutor.Operation#CHECK_DEVICE}.
+     *
+     * @throws KeyStoreException If the key store is not available or does not support the AES
+     *                           cipher.
+     */
+    @WorkerThread
+    @NonNull
+    public static DeviceSupport checkDeviceSupport(@NonNull Context context) throws KeyStoreException {
+        return new DeviceSupport(
+                isNonBiometricKeySupportedByDevice(context),
+                isDeviceMissingUnlock(context),
+                isNoAuthKeySupportedByDevice(context));
+    }
+
     /**
      * Store a new protected, symmetric, secret key in the key store.
      *
@@ -390,8 +698,6 @@ public class BankingKeyRepository {
      */
     public synchronized static String insertNewBankingKey(@NonNull BankingKeyComponents keyComponents)
             throws KeyStoreException {
-        KeyStore keyStore = getKeyStore();
-
         UserAuthenticationValidityDuration userAuthenticationValidityDuration
                 = Boolean.TRUE.equals(keyComponents.userAuthMandatoryForUsage)
                 ? UserAuthenticationValidityDuration.SHORT
@@ -399,18 +705,34 @@ public class BankingKeyRepository {
 
         byte[] secretKey = keyComponents.combine();
 
-        String tokenAlias;
-        do {
-            tokenAlias = UUID.randomUUID().toString().replace("-", "");
-        } while (keyStore.containsAlias(BANKING_KEY_ALIAS_PREFIX + tokenAlias));
-
         // Store secret key in key store
         try (
                 AutoDestroyable<SecretKeySpec> wrapped = new AutoDestroyable<>(new SecretKeySpec(secretKey, BANKING_KEY_ALGORITHM))
         ) {
-            keyStore.setEntry(BANKING_KEY_ALIAS_PREFIX + tokenAlias,
-                    new KeyStore.SecretKeyEntry(wrapped.getKeyMaterial()),
-                    getBankingKeyProtection(userAuthenticationValidityDuration));
+            // A repeated attempt stores the key with the same alias, instead of a second key
+            String[] tokenAlias = new String[1];
+            return KeyStoreExecutor.call(KeyStoreExecutor.Operation.STORE_KEY, () -> withKeyStore(keyStore -> {
+                if (tokenAlias[0] == null) {
+                    String newAlias;
+                    do {
+                        newAlias = UUID.randomUUID().toString().replace("-", "");
+                    } while (keyStore.containsKey(BANKING_KEY_ALIAS_PREFIX + newAlias));
+                    tokenAlias[0] = newAlias;
+                }
+
+                keyStore.storeKey(BANKING_KEY_ALIAS_PREFIX + tokenAlias[0],
+                        wrapped.getKeyMaterial(),
+                        userAuthenticationValidityDuration.protection);
+
+                if (KeyStoreExecutor.isAbandoned()) {
+                    // The caller has given up and will never create a token for this key
+                    Log.w(TAG, "storing the key has timed out, deleting the orphaned key");
+                    keyStore.deleteKey(BANKING_KEY_ALIAS_PREFIX + tokenAlias[0]);
+                    throw new KeyStoreExecutor.StalledException(
+                            KeyStoreExecutor.Operation.STORE_KEY);
+                }
+                return tokenAlias[0];
+            }));
         } finally {
             // Clear unprotected secret key data from memory
             for (int i = 0; i < secretKey.length; i++) {
@@ -420,30 +742,71 @@ public class BankingKeyRepository {
                 keyComponents.portalKeyComponent[i] = 0;
             }
         }
-
-        return tokenAlias;
     }
 
     public static void deleteBankingKey(String tokenAlias)
             throws KeyStoreException {
-        KeyStore keyStore = getKeyStore();
+        String keyAlias = BANKING_KEY_ALIAS_PREFIX + tokenAlias;
+        KeyStoreExecutor.call(KeyStoreExecutor.Operation.DELETE_KEY, () -> withKeyStore(keyStore -> {
+            keyStore.deleteKey(keyAlias);
+            return null;
+        }));
+    }
 
-        if (keyStore.containsAlias(tokenAlias)) {
-            keyStore.deleteEntry(tokenAlias);
+    /**
+     * Delete banking keys, which do not belong to any banking token. Such keys remain from
+     * aborted initializations and, in previous versions of this app, from deleted tokens.
+     *
+     * @param tokenAliases     Aliases of all existing banking tokens
+     * @param minAgeMillis     Keys created more recently are kept, because the corresponding
+     *                         token might not have been stored yet
+     * @param batchSize        Number of keys deleted at once, before other key store operations
+     *                         may continue
+     * @return Number of deleted keys
+     * @throws KeyStoreException if the key store cannot be used
+     */
+    public static int deleteOrphanedBankingKeys(@NonNull Set<String> tokenAliases,
+                                                long minAgeMillis, int batchSize)
+            throws KeyStoreException {
+        Date createdBefore = new Date(System.currentTimeMillis() - minAgeMillis);
+        List<String> orphanedKeyAliases = KeyStoreExecutor.call(
+                KeyStoreExecutor.Operation.LIST_KEYS, () -> withKeyStore(keyStore -> {
+                    List<String> result = new ArrayList<>();
+                    for (String keyAlias : keyStore.listKeys()) {
+                        if (!keyAlias.startsWith(BANKING_KEY_ALIAS_PREFIX)
+                                || tokenAliases.contains(
+                                        keyAlias.substring(BANKING_KEY_ALIAS_PREFIX.length()))) {
+                            continue;
+                        }
+
+                        Date creationDate = keyStore.getCreationDate(keyAlias);
+                        if (creationDate != null && creationDate.before(createdBefore)) {
+                            result.add(keyAlias);
+                        }
+                    }
+                    return result;
+                }));
+
+        int deleted = 0;
+        for (int i = 0; i < orphanedKeyAliases.size(); i += batchSize) {
+            deleted += deleteBatch(orphanedKeyAliases.subList(
+                    i, Math.min(i + batchSize, orphanedKeyAliases.size())));
         }
+        return deleted;
     }
 
-    private static class KeyProtectionCompat {
-
-        private static void setUserAuthenticationParameters(KeyProtection.Builder builder, int timeoutSeconds) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-                builder.setUserAuthenticationParameters(timeoutSeconds,
-                        KeyProperties.AUTH_DEVICE_CREDENTIAL | KeyProperties.AUTH_BIOMETRIC_STRONG);
-            } else {
-                builder.setUserAuthenticationValidityDurationSeconds(timeoutSeconds);
+    private synchronized static int deleteBatch(List<String> keyAliases)
+            throws KeyStoreException {
+        return KeyStoreExecutor.call(KeyStoreExecutor.Operation.DELETE_KEY, () -> withKeyStore(keyStore -> {
+            int deleted = 0;
+            for (String keyAlias : keyAliases) {
+                if (keyStore.containsKey(keyAlias)) {
+                    keyStore.deleteKey(keyAlias);
+                    deleted++;
+                }
             }
-        }
-
+            return deleted;
+        }));
     }
 
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+/**
+ * Receives banking keys, which have been found to be permanently invalidated, either while
+ * validating the key or during a cryptographic operation.
+ *
+ * @see BankingKeyRepository#addKeyInvalidationListener(KeyInvalidationListener)
+ */
+public interface KeyInvalidationListener {
+
+    /**
+     * The banking key of a token can no longer be used, e. g., because the secure lock screen
+     * has been disabled. This may be called on any thread.
+     */
+    void onBankingKeyInvalidated(String bankingTokenAlias);
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Storage for the app's secret keys, as used by {@link BankingKeyRepository}.
+ * <p>
+ * The app uses the {@link AndroidKeyStoreBackend}. Tests and benchmarks use the
+ * <code>InMemoryKeyStoreBackend</code> of the shared test sources, which simulates the key store's
+ * behavior on a plain JVM.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface KeyStoreBackend {
+
+    /**
+     * Protection parameters for stored keys. The key may only be used for unpadded AES/CBC
+     * encryption and only if the user has authenticated within the validity duration.
+     */
+    enum Protection {
+        /** The device has been unlocked within the last 24 hours */
+        LONG_AUTHENTICATION_VALIDITY(24 * 60 * 60),
+        /** The user has authenticated within the last 5 minutes */
+        SHORT_AUTHENTICATION_VALIDITY(5 * 60),
+        ;
+
+        private final int validitySeconds;
+
+        Protection(int validitySeconds) {
+            this.validitySeconds = validitySeconds;
+        }
+
+        public int getValiditySeconds() {
+            return validitySeconds;
+        }
+    }
+
+    /** Reason why a key could not be used */
+    enum Failure {
+        /** The key can never be used again, e. g., because the lock screen has been disabled */
+        KEY_PERMANENTLY_INVALIDATED,
+        /** The key can be used after the user has authenticated */
+        USER_NOT_AUTHENTICATED,
+        /** The key cannot be used for other reasons, e. g., unsupported protection parameters */
+        INVALID_KEY,
+        /** The failure is not related to the key */
+        OTHER
+    }
+
+    /** Outcome of {@link #probe(String, SecretKey)} */
+    enum ProbeResult {
+        SUPPORTED,
+        UNSUPPORTED,
+        /** The device must be unlocked first, this is not stored */
+        USER_NOT_AUTHENTICATED
+    }
+
+    /**
+     * Thrown by operations, if the key store has not been loaded or must be loaded again.
+     */
+    class NotLoadedException extends KeyStoreException {
+        public NotLoadedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Initialize the key store, or initialize it again after an operation has failed.
+     * This must be called before any other operation.
+     */
+    void load() throws KeyStoreException;
+
+    /**
+     * Determine whether an operation has failed, because the loaded key store cannot be used
+     * anymore, e. g., because the key store service has been restarted. Only then, the operation
+     * may succeed after {@link #load()}.
+     */
+    default boolean isStale(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof NotLoadedException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>null</code>, if there is no secret key for the alias or it cannot be recovered
+     */
+    SecretKey loadKey(String alias) throws KeyStoreException;
+
+    boolean containsKey(String alias) throws KeyStoreException;
+
+    void storeKey(String alias, SecretKey key, Protection protection) throws KeyStoreException;
+
+    /** Delete the key, if it exists */
+    void deleteKey(String alias) throws KeyStoreException;
+
+    List<String> listKeys() throws KeyStoreException;
+
+    /**
+     * @return <code>null</code>, if there is no key for the alias
+     */
+    Date getCreationDate(String alias) throws KeyStoreException;
+
+    /**
+     * Initialize a cipher for encryption with a key of this key store. This is the cheapest way
+     * to check whether the key can currently be used.
+     *
+     * @throws InvalidKeyException if the key cannot be used, see {@link #classifyFailure(String, Throwable)}
+     */
+    void initEncryption(Cipher cipher, SecretKey key, AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException;
+
+    /**
+     * Determine why an operation with a key of this key store has failed.
+     *
+     * @param alias   Alias of the key that has been used
+     * @param failure Exception thrown by the operation, possibly wrapping the key store's exception
+     */
+    Failure classifyFailure(String alias, Throwable failure);
+
+    /**
+     * Check whether the device supports keys with certain protection parameters, by trying to use
+     * a trivial key, which has been stored with these parameters. Some devices accept to store
+     * such keys, but fail to use them later.
+     *
+     * @param alias    Alias of the probe key
+     * @param probeKey Probe key loaded from this key store
+     * @throws KeyStoreException if the key store does not support unpadded AES/CBC encryption
+     */
+    default ProbeResult probe(String alias, SecretKey probeKey) throws KeyStoreException {
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException("cipher not supported by key store", e);
+        }
+
+        try {
+            initEncryption(cipher, probeKey, new IvParameterSpec(new byte[cipher.getBlockSize()]));
+            return ProbeResult.SUPPORTED;
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new KeyStoreException("cipher parameters not supported by key store", e);
+        } catch (InvalidKeyException e) {
+            if (classifyFailure(alias, e) == Failure.USER_NOT_AUTHENTICATED) {
+                // device not unlocked or user authentication validity duration exceeded
+                return ProbeResult.USER_NOT_AUTHENTICATED;
+            }
+            return ProbeResult.UNSUPPORTED;
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.test.espresso.IdlingResource;
+import androidx.test.espresso.idling.CountingIdlingResource;
+
+import java.io.PrintWriter;
+import java.security.KeyStoreException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.efdis.tangenerator.tracing.LatencyHistogram;
+
+/**
+ * Executes all key store operations on dedicated threads.
+ * <p>
+ * On some devices, the Android key store stalls for seconds. Callers wait for an operation at most
+ * for the operation's timeout and receive a {@link StalledException} afterwards. Stalled
+ * operations continue in the background (key store calls cannot be interrupted). Further
+ * operations wait in the queue until a thread is available; if that takes longer than their
+ * timeout, they fail with a {@link StalledException} as well and are skipped.
+ * A running operation may check {@link #isAbandoned()} to avoid side effects, after its caller
+ * has given up.
+ * <p>
+ * The execution time of each operation type is recorded in a {@link LatencyHistogram}, together
+ * with the number of key store loads during the operations. Each user action consists of certain
+ * operations, e. g., {@link Operation#LOAD_KEY} and {@link Operation#GENERATE_TAN} for a TAN, so
+ * this shows which actions (re)load the key store.
+ */
+public final class KeyStoreExecutor {
+
+    public enum Operation {
+        /** Initialize the key store */
+        LOAD_KEY_STORE(5_000),
+        /** Load a key without validation, right before using it */
+        LOAD_KEY(2_000),
+        /** Load a key and check that it can be used */
+        VALIDATE_KEY(3_000),
+        /** Check the keys of all tokens, consisting of key validations */
+        LIST_USABLE_TOKENS(5_000),
+        /** Check whether the device supports certain key protection parameters */
+        PROBE(4_000),
+        /** Check all key store requirements for a new banking token, consisting of probes */
+        CHECK_DEVICE(8_000),
+        /** Enumerate the key store's aliases */
+        LIST_KEYS(3_000),
+        /** Store a new key */
+        STORE_KEY(10_000),
+        /** Delete a key */
+        DELETE_KEY(4_000),
+        /** Compute a TAN with a key from the key store */
+        GENERATE_TAN(4_000),
+        ;
+
+        private final long timeoutMillis;
+
+        Operation(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+    }
+
+    /** A key store operation, which may throw a checked exception in addition */
+    public interface Task<T, E extends Exception> {
+        T run() throws E, KeyStoreException;
+    }
+
+    /** Receives the result of {@link #execute(Operation, Task, Callback)} on the main thread */
+    public interface Callback<T> {
+
+        /**
+         * The operation takes noticeably long, e. g., show that the key is being prepared.
+         * Called at most once, before the result.
+         */
+        default void onPreparing() {
+        }
+
+        void onSuccess(T result);
+
+        /**
+         * @param e Exception thrown by the operation or a {@link StalledException}
+         */
+        void onFailure(@NonNull Exception e);
+    }
+
+    /** The key store did not complete an operation within its timeout */
+    public static class StalledException extends KeyStoreException {
+        public StalledException(Operation operation) {
+            super("Key store operation " + operation + " timed out after "
+                    + operation.getTimeoutMillis() + " ms");
+        }
+    }
+
+    /** Two threads, so that one stalled operation does not block everything */
+    private static final int THREADS = 2;
+
+    /** Delay before {@link Callback#onPreparing()} */
+    private static final long PREPARING_DELAY_MILLIS = 300;
+
+    private static final CountingIdlingResource idlingResource
+            = new CountingIdlingResource(KeyStoreExecutor.class.getName(), true);
+
+    private static final ExecutorService executor;
+    private static final Map<Operation, LatencyHistogram> histograms
+            = new EnumMap<>(Operation.class);
+    private static final Map<Operation, AtomicLong> timeouts
+            = new EnumMap<>(Operation.class);
+    private static final Map<Operation, AtomicLong> keyStoreLoads
+            = new EnumMap<>(Operation.class);
+
+    /** Operation, which is running on the current key store thread */
+    private static final ThreadLocal<Operation> currentOperation = new ThreadLocal<>();
+    /** Set, once the caller has stopped waiting for the current thread's operation */
+    private static final ThreadLocal<AtomicBoolean> currentAbandoned = new ThreadLocal<>();
+
+    private static final class KeyStoreThread extends Thread {
+        KeyStoreThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
+    static {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new KeyStoreThread(runnable,
+                    "KeyStore-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new LatencyHistogram());
+            timeouts.put(operation, new AtomicLong());
+            keyStoreLoads.put(operation, new AtomicLong());
+        }
+    }
+
+    private static <T, E extends Exception> T runAndRecord(Operation operation, Task<T, E> task,
+                                                           AtomicBoolean abandoned)
+            throws E, KeyStoreException {
+        Operation outerOperation = currentOperation.get();
+        AtomicBoolean outerAbandoned = currentAbandoned.get();
+        currentOperation.set(operation);
+        currentAbandoned.set(abandoned);
+        long start = System.nanoTime();
+        try {
+            return task.run();
+        } finally {
+            histograms.get(operation).record(System.nanoTime() - start);
+            currentOperation.set(outerOperation);
+            currentAbandoned.set(outerAbandoned);
+        }
+    }
+
+    /**
+     * Check whether the caller of the operation, which is running on the current thread, has
+     * stopped waiting for its result, because the operation has timed out. The operation should
+     * then avoid or undo side effects, which would otherwise remain unnoticed by the user.
+     */
+    public static boolean isAbandoned() {
+        AtomicBoolean abandoned = currentAbandoned.get();
+        return abandoned != null && abandoned.get();
+    }
+
+    /** Busy, while the callback of an {@link #execute(Operation, Task, Callback)} is pending */
+    @VisibleForTesting
+    public static IdlingResource getIdlingResource() {
+        return idlingResource;
+    }
+
+    /**
+     * Count a key store load for the operation, which is running on the current thread.
+     */
+    static void recordKeyStoreLoad() {
+        Operation operation = currentOperation.get();
+        if (operation != null) {
+            keyStoreLoads.get(operation).incrementAndGet();
+        }
+    }
+
+    /**
+     * Submit an operation without waiting for the result.
+     * <p>
+     * Like with {@link #call(Operation, Task)}, nested operations are executed directly in the
+     * current key store thread. Otherwise, they would wait for the other key store thread, which
+     * may be busy, and the outer operation would stall.
+     */
+    public static <T> Future<T> submit(@NonNull Operation operation,
+                                       @NonNull Task<T, ? extends Exception> task) {
+        if (Thread.currentThread() instanceof KeyStoreThread) {
+            AtomicBoolean outerAbandoned = currentAbandoned.get();
+            FutureTask<T> future = new FutureTask<>(
+                    () -> runAndRecord(operation, task, outerAbandoned));
+            future.run();
+            return future;
+        }
+
+        AtomicBoolean abandoned = new AtomicBoolean();
+        FutureTask<T> future = new FutureTask<T>(() -> runAndRecord(operation, task, abandoned)) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                abandoned.set(true);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Execute an operation and wait for the result at most for the operation's timeout.
+     * Nested operations are executed directly in the current key store thread.
+     *
+     * @throws StalledException if the operation did not complete in time
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, E extends Exception> T call(@NonNull Operation operation,
+                                                  @NonNull Task<T, E> task)
+            throws E, KeyStoreException {
+        if (Thread.currentThread() instanceof KeyStoreThread) {
+            return runAndRecord(operation, task, currentAbandoned.get());
+        }
+
+        try {
+            return await(operation, submit(operation, task));
+        } catch (ExecutionException e) {
+            // The task may only throw E or KeyStoreException, which is handled by await
+            throw (E) e.getCause();
+        }
+    }
+
+    /**
+     * Wait for a {@link #submit(Operation, Task) submitted} operation at most for the
+     * operation's timeout.
+     *
+     * @throws ExecutionException if the operation has thrown another checked exception than
+     *                            KeyStoreException
+     * @throws StalledException   if the operation did not complete in time
+     */
+    public static <T> T await(@NonNull Operation operation, @NonNull Future<T> future)
+            throws ExecutionException, KeyStoreException {
+        try {
+            return future.get(operation.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.get(operation).incrementAndGet();
+            future.cancel(false);
+            throw new StalledException(operation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyStoreException("Interrupted while waiting for the key store", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof KeyStoreException) {
+                throw (KeyStoreException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Execute an operation in the background and report the result on the main thread.
+     * If the operation takes longer than its timeout, the callback receives a
+     * {@link StalledException}, the operation is {@link #isAbandoned() abandoned} and the late
+     * result is discarded.
+     */
+    public static <T> void execute(@NonNull Operation operation,
+                                   @NonNull Task<T, ? extends Exception> task,
+                                   @NonNull Callback<T> callback) {
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        AtomicBoolean completed = new AtomicBoolean();
+
+        Runnable preparing = () -> {
+            if (!completed.get()) {
+                callback.onPreparing();
+            }
+        };
+        Runnable timeout = () -> {
+            if (completed.compareAndSet(false, true)) {
+                timeouts.get(operation).incrementAndGet();
+                try {
+                    callback.onFailure(new StalledException(operation));
+                } finally {
+                    idlingResource.decrement();
+                }
+            }
+        };
+        idlingResource.increment();
+        mainHandler.postDelayed(preparing, PREPARING_DELAY_MILLIS);
+        mainHandler.postDelayed(timeout, operation.getTimeoutMillis());
+
+        executor.execute(() -> {
+            if (completed.get()) {
+                // timed out while waiting in the queue
+                return;
+            }
+
+            T result;
+            Exception failure;
+            try {
+                result = runAndRecord(operation, task, completed);
+                failure = null;
+            } catch (Exception e) {
+                result = null;
+                failure = e;
+            }
+
+            T finalResult = result;
+            Exception finalFailure = failure;
+            mainHandler.post(() -> {
+                if (!completed.compareAndSet(false, true)) {
+                    // timed out before
+                    return;
+                }
+                mainHandler.removeCallbacks(preparing);
+                mainHandler.removeCallbacks(timeout);
+                try {
+                    if (finalFailure == null) {
+                        callback.onSuccess(finalResult);
+                    } else {
+                        callback.onFailure(finalFailure);
+                    }
+                } finally {
+                    idlingResource.decrement();
+                }
+            });
+        });
+    }
+
+    public static LatencyHistogram getHistogram(@NonNull Operation operation) {
+        return histograms.get(operation);
+    }
+
+    public static long getTimeoutCount(@NonNull Operation operation) {
+        return timeouts.get(operation).get();
+    }
+
+    /** Number of key store loads during operations of this type */
+    public static long getKeyStoreLoadCount(@NonNull Operation operation) {
+        return keyStoreLoads.get(operation).get();
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Key store operations");
+
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot snapshot = histograms.get(operation).getSnapshot();
+            long timeoutCount = timeouts.get(operation).get();
+            if (snapshot.getCount() > 0 || timeoutCount > 0) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(operation);
+                writer.print(": ");
+                writer.print(snapshot);
+                writer.print(", timeouts ");
+                writer.print(timeoutCount);
+                writer.print(", key store loads ");
+                writer.println(keyStoreLoads.get(operation).get());
+            }
+        }
+    }
+
+    private KeyStoreExecutor() {
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+import android.os.Trace;
+
+/**
+ * Show the spans as sections in system traces, e. g., with Perfetto or Android Studio's
+ * CPU profiler.
+ */
+public class AndroidTraceSections implements Tracing.SectionListener {
+
+    @Override
+    public void beginSection(String sectionName) {
+        Trace.beginSection(sectionName);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram for latencies in nanoseconds.
+ * <p>
+ * The buckets have a fixed log-linear layout: Each power of two is divided into 16 linear
+ * sub-buckets, which limits the relative error of the reported values to 1/16. Values above
+ * 2^40 ns (about 18 minutes) are counted in the last bucket.
+ * <p>
+ * Recording a value does not allocate any objects, does not lock and may be done concurrently
+ * from any thread. The values are recorded into one of two interval buffers. A snapshot swaps
+ * the buffers, waits until the recorders of the previous buffer have left it and adds the
+ * previous buffer to the total. Thus, the buckets, count, sum and maximum of a snapshot are
+ * consistent, while recorders never wait for a snapshot. Values, which are recorded while a
+ * snapshot is taken, may be missing from it and are included in the next one.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+
+    /** Largest value, which is counted in its own bucket */
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+    static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Buffer, which is currently recorded into */
+    private volatile Counts active = new Counts();
+
+    /** Buffer, which is used for the next interval, only accessed while taking a snapshot */
+    private Counts inactive = new Counts();
+
+    /** Values of all previous intervals, only accessed while taking a snapshot */
+    private final Counts total = new Counts();
+
+    /**
+     * Number of recorders, which entered the current phase. The sign distinguishes the odd and
+     * even phases, such that a recorder knows which end counter to increment on exit.
+     */
+    private final AtomicLong startEpoch = new AtomicLong();
+    private final AtomicLong evenEndEpoch = new AtomicLong();
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            return BUCKET_COUNT - 1;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return bucketLowerBound(index) + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /** Count a latency value in nanoseconds. Negative values are counted as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        long epoch = startEpoch.getAndIncrement();
+        try {
+            active.record(nanos);
+        } finally {
+            (epoch < 0 ? oddEndEpoch : evenEndEpoch).incrementAndGet();
+        }
+    }
+
+    /**
+     * Reset all counters. Values, which are recorded concurrently, are either counted completely
+     * before or after the reset.
+     */
+    public synchronized void reset() {
+        flipBuffers();
+        inactive.clear();
+        total.clear();
+    }
+
+    public synchronized Snapshot getSnapshot() {
+        flipBuffers();
+        total.add(inactive);
+        inactive.clear();
+        return total.toSnapshot();
+    }
+
+    /**
+     * Swap the buffers and wait until all recorders of the previous buffer have finished. The
+     * previous buffer is available as {@link #inactive} afterwards.
+     */
+    private void flipBuffers() {
+        Counts previous = active;
+        active = inactive;
+        inactive = previous;
+
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialEpoch = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialEpoch);
+        long epochAtFlip = startEpoch.getAndSet(initialEpoch);
+
+        // Recorders finish in a few instructions, unless they have been preempted
+        AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (previousEndEpoch.get() != epochAtFlip) {
+            Thread.yield();
+        }
+    }
+
+    /** Buckets, sum and maximum of the values of an interval */
+    private static class Counts {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucketIndex(nanos));
+            sum.addAndGet(nanos);
+
+            long currentMax;
+            do {
+                currentMax = max.get();
+            } while (nanos > currentMax && !max.compareAndSet(currentMax, nanos));
+        }
+
+        void add(Counts other) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.addAndGet(i, other.buckets.get(i));
+            }
+            sum.addAndGet(other.sum.get());
+            max.set(Math.max(max.get(), other.max.get()));
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            sum.set(0);
+            max.set(0);
+        }
+
+        Snapshot toSnapshot() {
+            long[] counts = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, sum.get(), max.get());
+        }
+    }
+
+    /** Consistent copy of the histogram's buckets for evaluation */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0. : (double) sum / count;
+        }
+
+        /**
+         * @param percentile
+         *      value between 0 and 100
+         * @return
+         *      the highest value of the bucket, which contains the requested percentile,
+         *      but not more than the recorded maximum.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100. * count));
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /** Single line summary with values in microseconds */
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                    count,
+                    getMean() / 1000.,
+                    toMicros(getValueAtPercentile(50)),
+                    toMicros(getValueAtPercentile(90)),
+                    toMicros(getValueAtPercentile(99)),
+                    toMicros(max));
+        }
+
+        private static double toMicros(long nanos) {
+            return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+        }
+    }
+}
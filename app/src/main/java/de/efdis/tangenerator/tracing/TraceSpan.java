@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+/**
+ * Stages between a detected QR code and the TAN shown to the user, which are traced by
+ * {@link Tracing}.
+ */
+public enum TraceSpan {
+    SCAN_RESULT("QrCodeHandler.handleResult"),
+    BQR_UNWRAP("BQRContainer.unwrap"),
+    HHDUC_PARSE("HHDuc.parse"),
+    GET_BANKING_KEY("BankingKeyRepository.getBankingKey"),
+    KEY_STORE_LOAD("BankingKeyRepository.loadKeyStore"),
+    INC_TRANSACTION_COUNTER("BankingTokenRepository.incTransactionCounter"),
+    TAN_GENERATION("TanGenerator.generateTan"),
+    AES_CBC_MAC("AesCbcMac"),
+    ;
+
+    private final String sectionName;
+
+    TraceSpan(String sectionName) {
+        this.sectionName = sectionName;
+    }
+
+    /** Name of the span in traces and dumps */
+    public String getSectionName() {
+        return sectionName;
+    }
+}
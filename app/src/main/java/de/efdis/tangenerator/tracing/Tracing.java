@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Lightweight instrumentation of the hot path from a scanned QR code to the TAN.
+ * <p>
+ * Each {@link TraceSpan} has a {@link LatencyHistogram}, which can be dumped on demand.
+ * On a device, the spans are additionally reported to a {@link SectionListener}, e. g., to
+ * show them as {@link android.os.Trace} sections in system traces.
+ * <p>
+ * Usage:
+ * <pre>
+ * long start = Tracing.begin(TraceSpan.HHDUC_PARSE);
+ * try {
+ *     ...
+ * } finally {
+ *     Tracing.end(TraceSpan.HHDUC_PARSE, start);
+ * }
+ * </pre>
+ * Tracing is disabled by default. Then, both calls only read a volatile field.
+ */
+public final class Tracing {
+
+    /** Receives the begin and end of each span on the thread, which executes the span. */
+    public interface SectionListener {
+        void beginSection(String sectionName);
+        void endSection();
+    }
+
+    /** Start time, if tracing has been disabled at the begin of a span */
+    private static final long NOT_TRACED = Long.MIN_VALUE;
+
+    /** Placeholder for spans, which have begun without a listener */
+    private static final SectionListener NO_LISTENER = new SectionListener() {
+        @Override
+        public void beginSection(String sectionName) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    /**
+     * Listeners of the spans, which are open on the current thread. The sections are ended on
+     * the same listener, even if tracing is disabled or enabled with another listener in
+     * between.
+     */
+    private static final ThreadLocal<ArrayDeque<SectionListener>> OPEN_SECTIONS
+            = new ThreadLocal<ArrayDeque<SectionListener>>() {
+        @Override
+        protected ArrayDeque<SectionListener> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private static final LatencyHistogram[] HISTOGRAMS;
+    static {
+        HISTOGRAMS = new LatencyHistogram[TraceSpan.values().length];
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static volatile SectionListener sectionListener;
+
+    private Tracing() {
+    }
+
+    /**
+     * Start recording latencies.
+     *
+     * @param listener
+     *      Optional listener for trace sections, may be <code>null</code>
+     */
+    public static void enable(SectionListener listener) {
+        sectionListener = listener;
+        enabled = true;
+    }
+
+    /**
+     * Stop recording latencies. Spans, which are open, are still ended and recorded.
+     */
+    public static void disable() {
+        enabled = false;
+        sectionListener = null;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin a span. The result must be passed to {@link #end(TraceSpan, long)}.
+     *
+     * @return start time of the span
+     */
+    public static long begin(TraceSpan span) {
+        if (!enabled) {
+            return NOT_TRACED;
+        }
+
+        SectionListener listener = sectionListener;
+        if (listener != null) {
+            listener.beginSection(span.getSectionName());
+        } else {
+            listener = NO_LISTENER;
+        }
+        OPEN_SECTIONS.get().push(listener);
+
+        return System.nanoTime();
+    }
+
+    /**
+     * End a span, which has been started with {@link #begin(TraceSpan)} on the same thread.
+     */
+    public static void end(TraceSpan span, long startTime) {
+        if (startTime == NOT_TRACED) {
+            return;
+        }
+
+        HISTOGRAMS[span.ordinal()].record(System.nanoTime() - startTime);
+
+        SectionListener listener = OPEN_SECTIONS.get().poll();
+        if (listener != null) {
+            listener.endSection();
+        }
+    }
+
+    public static LatencyHistogram getHistogram(TraceSpan span) {
+        return HISTOGRAMS[span.ordinal()];
+    }
+
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+
+    /** Print a summary line for each span, which has been recorded at least once. */
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Tracing " + (enabled ? "enabled" : "disabled"));
+
+        for (TraceSpan span : TraceSpan.values()) {
+            LatencyHistogram.Snapshot snapshot = getHistogram(span).getSnapshot();
+            if (snapshot.getCount() > 0) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(span.getSectionName());
+                writer.print(": ");
+                writer.println(snapshot);
+            }
+        }
+    }
+}
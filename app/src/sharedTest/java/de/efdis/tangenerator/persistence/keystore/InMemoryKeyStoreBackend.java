@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Simulation of the Android key store with the JVM's JCE provider, to run the key handling on a
+ * plain JVM for tests and benchmarks.
+ * <p>
+ * Like in the Android key store, the loaded keys are handles to the stored entries. A key can
+ * only be used while the simulated device state allows it:
+ * <ul>
+ *     <li>
+ *         {@link #invalidateKey(String)} and {@link #invalidateAllKeys()} simulate the
+ *         permanent invalidation, e. g., when the secure lock screen is disabled.
+ *     </li>
+ *     <li>
+ *         {@link #setLastUserAuthentication(long)} simulates an expired user authentication for
+ *         keys with the respective {@link Protection}.
+ *     </li>
+ *     <li>
+ *         {@link #setUnsupported(Protection, boolean)} simulates devices, which can store but not
+ *         use keys with certain protection parameters.
+ *     </li>
+ *     <li>
+ *         {@link #simulateServiceRestart()} lets all operations fail, until the key store has
+ *         been loaded again.
+ *     </li>
+ * </ul>
+ * Each operation may be delayed with {@link #setLatency(long, long, TimeUnit)} to simulate the
+ * IPC with the key store service.
+ */
+public class InMemoryKeyStoreBackend implements KeyStoreBackend {
+
+    private static final class Entry {
+        final byte[] keyMaterial;
+        final String algorithm;
+        final Protection protection;
+        volatile Date creationDate = new Date();
+        volatile boolean invalidated;
+
+        Entry(byte[] keyMaterial, String algorithm, Protection protection) {
+            this.keyMaterial = keyMaterial;
+            this.algorithm = algorithm;
+            this.protection = protection;
+        }
+    }
+
+    /**
+     * Handle for a stored key. Like with the Android key store, the JCE provider fails to use the
+     * key while the key cannot be used.
+     */
+    private static final class SimulatedKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final transient InMemoryKeyStoreBackend backend;
+        private final transient Entry entry;
+
+        SimulatedKey(InMemoryKeyStoreBackend backend, Entry entry) {
+            this.backend = backend;
+            this.entry = entry;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return entry.algorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (backend.getFailure(entry) != null) {
+                return null;
+            }
+            return entry.keyMaterial.clone();
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<Protection> unsupported = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean loaded;
+    private volatile long loadLatencyNanos;
+    private volatile long operationLatencyNanos;
+    private volatile long lastUserAuthentication = System.currentTimeMillis();
+
+    private final AtomicInteger loadCount = new AtomicInteger();
+    private final AtomicInteger operationCount = new AtomicInteger();
+
+    /**
+     * Delay each operation, like the IPC with the key store service.
+     *
+     * @param loadLatency      Delay of {@link #load()}
+     * @param operationLatency Delay of all other operations, including each usage of a key
+     */
+    public void setLatency(long loadLatency, long operationLatency, TimeUnit unit) {
+        this.loadLatencyNanos = unit.toNanos(loadLatency);
+        this.operationLatencyNanos = unit.toNanos(operationLatency);
+    }
+
+    /**
+     * Time of the last device unlock or user authentication. Keys, whose
+     * {@link Protection#getValiditySeconds() validity duration} has expired since then, fail
+     * with {@link Failure#USER_NOT_AUTHENTICATED}. Initially, this is the time of creation.
+     */
+    public void setLastUserAuthentication(long currentTimeMillis) {
+        this.lastUserAuthentication = currentTimeMillis;
+    }
+
+    /** Simulate a device unlock right now */
+    public void authenticateUser() {
+        setLastUserAuthentication(System.currentTimeMillis());
+    }
+
+    /**
+     * Keys with unsupported protection can be stored, but fail with {@link Failure#INVALID_KEY}.
+     */
+    public void setUnsupported(Protection protection, boolean unsupported) {
+        if (unsupported) {
+            this.unsupported.add(protection);
+        } else {
+            this.unsupported.remove(protection);
+        }
+    }
+
+    /**
+     * Pretend that a key has been created at another time, e. g., before the grace period of a
+     * cleanup.
+     */
+    public void setCreationDate(String alias, Date creationDate) {
+        Entry entry = entries.get(alias);
+        if (entry != null) {
+            entry.creationDate = (Date) creationDate.clone();
+        }
+    }
+
+    /** Simulate the permanent invalidation of a key */
+    public void invalidateKey(String alias) {
+        Entry entry = entries.get(alias);
+        if (entry != null) {
+            entry.invalidated = true;
+        }
+    }
+
+    /** Simulate disabling the secure lock screen, which invalidates all keys */
+    public void invalidateAllKeys() {
+        for (Entry entry : entries.values()) {
+            entry.invalidated = true;
+        }
+    }
+
+    /** Simulate a restart of the key store service, the key store must be loaded again */
+    public void simulateServiceRestart() {
+        loaded = false;
+    }
+
+    /** Number of calls to {@link #load()} */
+    public int getLoadCount() {
+        return loadCount.get();
+    }
+
+    /** Number of operations, other than {@link #load()} */
+    public int getOperationCount() {
+        return operationCount.get();
+    }
+
+    private static void simulateLatency(long nanos) {
+        // Like key store IPC, this cannot be interrupted
+        long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void beginOperation() throws KeyStoreException {
+        operationCount.incrementAndGet();
+        simulateLatency(operationLatencyNanos);
+        if (!loaded) {
+            throw new NotLoadedException("Key store has not been loaded");
+        }
+    }
+
+    private Failure getFailure(Entry entry) {
+        if (entry.invalidated) {
+            return Failure.KEY_PERMANENTLY_INVALIDATED;
+        }
+        if (unsupported.contains(entry.protection)) {
+            return Failure.INVALID_KEY;
+        }
+        long validUntil = lastUserAuthentication
+                + TimeUnit.SECONDS.toMillis(entry.protection.getValiditySeconds());
+        if (System.currentTimeMillis() > validUntil) {
+            return Failure.USER_NOT_AUTHENTICATED;
+        }
+        return null;
+    }
+
+    @Override
+    public void load() {
+        loadCount.incrementAndGet();
+        simulateLatency(loadLatencyNanos);
+        loaded = true;
+    }
+
+    @Override
+    public SecretKey loadKey(String alias) throws KeyStoreException {
+        beginOperation();
+        Entry entry = entries.get(alias);
+        if (entry == null) {
+            return null;
+        }
+        return new SimulatedKey(this, entry);
+    }
+
+    @Override
+    public boolean containsKey(String alias) throws KeyStoreException {
+        beginOperation();
+        return entries.containsKey(alias);
+    }
+
+    @Override
+    public void storeKey(String alias, SecretKey key, Protection protection) throws KeyStoreException {
+        beginOperation();
+        byte[] keyMaterial = key.getEncoded();
+        if (keyMaterial == null) {
+            throw new KeyStoreException("Key material is not available");
+        }
+        Entry previous = entries.put(alias, new Entry(keyMaterial, key.getAlgorithm(), protection));
+        if (previous != null) {
+            previous.invalidated = true;
+        }
+    }
+
+    @Override
+    public void deleteKey(String alias) throws KeyStoreException {
+        beginOperation();
+        Entry entry = entries.remove(alias);
+        if (entry != null) {
+            entry.invalidated = true;
+        }
+    }
+
+    @Override
+    public List<String> listKeys() throws KeyStoreException {
+        beginOperation();
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public Date getCreationDate(String alias) throws KeyStoreException {
+        beginOperation();
+        Entry entry = entries.get(alias);
+        if (entry == null) {
+            return null;
+        }
+        return (Date) entry.creationDate.clone();
+    }
+
+    @Override
+    public void initEncryption(Cipher cipher, SecretKey key, AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        operationCount.incrementAndGet();
+        simulateLatency(operationLatencyNanos);
+
+        if (key instanceof SimulatedKey) {
+            Failure failure = getFailure(((SimulatedKey) key).entry);
+            if (failure != null) {
+                throw new InvalidKeyException("Simulated key store failure: " + failure);
+            }
+        }
+
+        if (params == null) {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, key, params);
+        }
+    }
+
+    /**
+     * The exceptions of the JCE provider do not tell why a key cannot be used. Thus, the failure
+     * is determined from the key's current state.
+     */
+    @Override
+    public Failure classifyFailure(String alias, Throwable failure) {
+        boolean invalidKey = false;
+        for (Throwable e = failure; e != null && !invalidKey; e = e.getCause()) {
+            invalidKey = e instanceof InvalidKeyException;
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+        if (!invalidKey) {
+            return Failure.OTHER;
+        }
+
+        Entry entry = entries.get(alias);
+        if (entry == null) {
+            return Failure.INVALID_KEY;
+        }
+        Failure keyFailure = getFailure(entry);
+        return keyFailure != null ? keyFailure : Failure.INVALID_KEY;
+    }
+
+}
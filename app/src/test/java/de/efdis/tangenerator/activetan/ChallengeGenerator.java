@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.activetan;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.SplittableRandom;
+import java.util.zip.Checksum;
+
+/**
+ * Seeded generator for syntactically valid HHDuc challenges.
+ * <p>
+ * The generator covers all visualisation classes, the start code variants "1xx" (default data
+ * elements of the visualisation class), "2xx" (custom data elements) and "08" (display of the
+ * ATC), BCD and ASCII encoded data elements as well as data elements of maximum length.
+ * Every generated challenge can be parsed with {@link HHDuc#parse(byte[])} and yields the same
+ * data elements.
+ * <p>
+ * Challenges can either be generated as {@link HHDuc} objects, which are encoded with
+ * {@link HHDuc#getBytes()}, or directly into a reusable buffer. The latter does not allocate
+ * any objects and is meant for load tests and benchmarks. For the same seed and configuration
+ * both methods produce the same sequence of challenges.
+ * <p>
+ * Instances are not thread safe. Use one generator per thread with distinct seeds.
+ */
+public class ChallengeGenerator {
+
+    /**
+     * Maximum length of a raw challenge:
+     * LC, LS, control byte, 12 ASCII digits start code, 3 ASCII data elements with 36 bytes
+     * and their length bytes, check byte.
+     */
+    public static final int MAX_CHALLENGE_LENGTH = 1 + 1 + 1 + 12 + 3 * (1 + 36) + 1;
+
+    /**
+     * Maximum length of a challenge wrapped in a BQR container:
+     * 2 bytes prefix, AMS flag, challenge, 2 bytes CRC-16.
+     */
+    public static final int MAX_BQR_LENGTH = 2 + 1 + MAX_CHALLENGE_LENGTH + 2;
+
+    public enum StartCodeVariant {
+        /** Start code "1xx" with the default data elements of the visualisation class */
+        DEFAULT_ELEMENTS,
+        /** Start code "2xx" with up to 3 custom data elements */
+        CUSTOM_ELEMENTS,
+        /** Start code "08" without visualisation class for display of the ATC */
+        DISPLAY_ATC,
+    }
+
+    private static final int MAX_DATA_ELEMENTS = 3;
+    private static final int MAX_DATA_ELEMENT_LENGTH = 36;
+    private static final int HHD_CONTROL_BYTE = 0x01;
+    private static final byte AMS_FLAG_NO = 0x4e;
+
+    private static final DataElementType[] ALL_DATA_ELEMENT_TYPES = DataElementType.values();
+
+    /**
+     * All printable characters of the DK charset. Each byte is decoded to a unique character,
+     * which is encoded to the same byte again.
+     */
+    private static final byte[] ALPHANUMERIC_BYTES;
+    static {
+        ALPHANUMERIC_BYTES = new byte[0x7f - 0x20];
+        for (int i = 0; i < ALPHANUMERIC_BYTES.length; i++) {
+            ALPHANUMERIC_BYTES[i] = (byte) (0x20 + i);
+        }
+    }
+
+    private final SplittableRandom random;
+    private final VisualisationClass[] visualisationClasses;
+    private final DataElementType[][] defaultDataElements;
+    private final StartCodeVariant[] startCodeVariants;
+    private final double maxLengthRate;
+    private final double negativeNumberRate;
+    private final double asciiStartCodeRate;
+    private final boolean wrapInBqr;
+
+    /*
+     * State of the current challenge, which is reused for each challenge
+     */
+    private VisualisationClass visualisationClass;
+    private final DataElementType[] dataElementTypes = new DataElementType[MAX_DATA_ELEMENTS];
+    private int dataElementCount;
+    private long startCode;
+    private int startCodeLength;
+    private int startCodeDigits;
+    private boolean asciiStartCode;
+    private final byte[][] values = new byte[MAX_DATA_ELEMENTS][MAX_DATA_ELEMENT_LENGTH];
+    private final int[] valueLengths = new int[MAX_DATA_ELEMENTS];
+
+    private final Checksum luhnDigit = new LuhnChecksum();
+    private final Checksum xor = new XorChecksum();
+    private final Checksum crc16 = new CRC16Checksum(0);
+
+    private ChallengeGenerator(Builder builder) {
+        this.random = new SplittableRandom(builder.seed);
+        this.visualisationClasses = builder.visualisationClasses
+                .toArray(new VisualisationClass[0]);
+        this.startCodeVariants = builder.startCodeVariants
+                .toArray(new StartCodeVariant[0]);
+        this.maxLengthRate = builder.maxLengthRate;
+        this.negativeNumberRate = builder.negativeNumberRate;
+        this.asciiStartCodeRate = builder.asciiStartCodeRate;
+        this.wrapInBqr = builder.wrapInBqr;
+
+        this.defaultDataElements = new DataElementType[visualisationClasses.length][];
+        for (int i = 0; i < visualisationClasses.length; i++) {
+            defaultDataElements[i] = visualisationClasses[i].getDataElements()
+                    .toArray(new DataElementType[0]);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Generate the next challenge as {@link HHDuc} object.
+     * <p>
+     * Start codes are always BCD encoded by {@link HHDuc#getBytes()}, regardless of the
+     * configured rate of ASCII start codes.
+     */
+    public HHDuc nextHHDuc() {
+        nextChallengeState();
+
+        HHDuc hhduc;
+        if (visualisationClass == null) {
+            hhduc = new HHDuc();
+        } else {
+            hhduc = new HHDuc(visualisationClass,
+                    Arrays.copyOf(dataElementTypes, dataElementCount));
+        }
+        hhduc.setUnpredictableNumber((int) (startCode % pow10(startCodeDigits)));
+
+        for (int i = 0; i < dataElementCount; i++) {
+            hhduc.setDataElement(dataElementTypes[i],
+                    new String(values[i], 0, valueLengths[i], DKCharset.INSTANCE));
+        }
+
+        return hhduc;
+    }
+
+    /**
+     * Generate the next raw challenge, wrapped in a BQR container if configured.
+     */
+    public byte[] nextChallenge() {
+        byte[] buffer = new byte[wrapInBqr ? MAX_BQR_LENGTH : MAX_CHALLENGE_LENGTH];
+        int length = nextChallenge(buffer, 0);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Generate the next raw challenge into the given buffer, wrapped in a BQR container if
+     * configured. No objects are allocated.
+     *
+     * @return number of bytes written into the buffer
+     */
+    public int nextChallenge(byte[] buffer, int offset) {
+        nextChallengeState();
+
+        if (!wrapInBqr) {
+            return encodeHHDuc(buffer, offset);
+        }
+
+        // 2 bytes prefix
+        buffer[offset] = 'D';
+        buffer[offset + 1] = 'K';
+        // AMS flag
+        buffer[offset + 2] = AMS_FLAG_NO;
+        // wrapped HHDuc, starting with LC as block length
+        int end = offset + 3 + encodeHHDuc(buffer, offset + 3);
+
+        // 2 bytes CRC-16
+        crc16.reset();
+        crc16.update(buffer, offset, end - offset);
+        int checksum = (int) crc16.getValue();
+        buffer[end++] = (byte) ((checksum & 0xff00) >> 8);
+        buffer[end++] = (byte) (checksum & 0x00ff);
+
+        // scramble content with the prefix
+        for (int i = offset + 2; i < end; i++) {
+            buffer[i] ^= buffer[offset + ((i - offset) % 2)];
+        }
+
+        return end - offset;
+    }
+
+    private void nextChallengeState() {
+        StartCodeVariant variant = startCodeVariants[random.nextInt(startCodeVariants.length)];
+        asciiStartCode = random.nextDouble() < asciiStartCodeRate;
+
+        switch (variant) {
+            case DISPLAY_ATC:
+                visualisationClass = null;
+                dataElementCount = 0;
+                startCodeLength = 8;
+                startCodeDigits = 6;
+                startCode = 8_000_000L;
+                break;
+
+            case DEFAULT_ELEMENTS: {
+                int vcIndex = random.nextInt(visualisationClasses.length);
+                visualisationClass = visualisationClasses[vcIndex];
+                DataElementType[] defaults = defaultDataElements[vcIndex];
+                System.arraycopy(defaults, 0, dataElementTypes, 0, defaults.length);
+                dataElementCount = defaults.length;
+                startCodeLength = 12;
+                startCodeDigits = 9;
+                startCode = 100_000_000_000L
+                        + visualisationClass.getId() * 1_000_000_000L;
+                break;
+            }
+
+            case CUSTOM_ELEMENTS: {
+                int vcIndex = random.nextInt(visualisationClasses.length);
+                visualisationClass = visualisationClasses[vcIndex];
+                do {
+                    selectCustomDataElements();
+                } while (isSelection(defaultDataElements[vcIndex]));
+
+                startCode = 2;
+                startCode = startCode * 100 + visualisationClass.getId();
+                for (int i = 0; i < dataElementCount; i++) {
+                    startCode = startCode * 100 + dataElementTypes[i].getId();
+                }
+                int prefixDigits = 3 + 2 * dataElementCount;
+                if (dataElementCount < MAX_DATA_ELEMENTS) {
+                    startCode *= 10;
+                    prefixDigits++;
+                }
+                startCodeLength = 12;
+                startCodeDigits = startCodeLength - prefixDigits;
+                startCode *= pow10(startCodeDigits);
+                break;
+            }
+
+            default:
+                throw new IllegalStateException();
+        }
+
+        startCode += random.nextLong(pow10(startCodeDigits));
+
+        for (int i = 0; i < dataElementCount; i++) {
+            valueLengths[i] = nextValue(dataElementTypes[i], values[i]);
+        }
+    }
+
+    private void selectCustomDataElements() {
+        dataElementCount = random.nextInt(MAX_DATA_ELEMENTS + 1);
+        for (int i = 0; i < dataElementCount; i++) {
+            DataElementType type;
+            boolean duplicate;
+            do {
+                type = ALL_DATA_ELEMENT_TYPES[random.nextInt(ALL_DATA_ELEMENT_TYPES.length)];
+                duplicate = false;
+                for (int j = 0; j < i; j++) {
+                    duplicate |= dataElementTypes[j] == type;
+                }
+            } while (duplicate);
+            dataElementTypes[i] = type;
+        }
+    }
+
+    private boolean isSelection(DataElementType[] types) {
+        if (types.length != dataElementCount) {
+            return false;
+        }
+        for (int i = 0; i < dataElementCount; i++) {
+            if (types[i] != dataElementTypes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a random, format-correct value for the data element type into the buffer, using
+     * the DK charset.
+     *
+     * @return length of the value
+     */
+    private int nextValue(DataElementType type, byte[] value) {
+        boolean maxLength = random.nextDouble() < maxLengthRate;
+
+        if (DataElementType.Format.ALPHANUMERIC.equals(type.getFormat())) {
+            int length = maxLength
+                    ? type.getMaxLength()
+                    : random.nextInt(type.getMaxLength() + 1);
+            for (int i = 0; i < length; i++) {
+                value[i] = ALPHANUMERIC_BYTES[random.nextInt(ALPHANUMERIC_BYTES.length)];
+            }
+            return length;
+        }
+
+        int length = 0;
+        int integerDigits = type.getIntegerDigits();
+        if (random.nextDouble() < negativeNumberRate) {
+            value[length++] = '-';
+            integerDigits--;
+        }
+
+        if (!maxLength) {
+            integerDigits = 1 + random.nextInt(integerDigits);
+        }
+
+        // no leading zeros, because BCD coded numbers are parsed as long value
+        value[length++] = (byte) (integerDigits == 1
+                ? '0' + random.nextInt(10)
+                : '1' + random.nextInt(9));
+        for (int i = 1; i < integerDigits; i++) {
+            value[length++] = (byte) ('0' + random.nextInt(10));
+        }
+
+        if (type.getFractionDigits() > 0) {
+            value[length++] = ',';
+            for (int i = 0; i < type.getFractionDigits(); i++) {
+                value[length++] = (byte) ('0' + random.nextInt(10));
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Encode the current challenge the same way as {@link HHDuc#getBytes()} does.
+     */
+    private int encodeHHDuc(byte[] buffer, int offset) {
+        luhnDigit.reset();
+        int pos = offset + 1;
+
+        // LS, with control byte
+        if (asciiStartCode) {
+            buffer[pos++] = (byte) (0x80 | 0x40 | startCodeLength);
+        } else {
+            buffer[pos++] = (byte) (0x80 | ((startCodeLength + 1) / 2));
+        }
+
+        // Control byte
+        buffer[pos++] = HHD_CONTROL_BYTE;
+        luhnDigit.update(HHD_CONTROL_BYTE);
+
+        // Start code
+        {
+            int start = pos;
+            if (asciiStartCode) {
+                pos = writeDigits(buffer, pos, startCode, startCodeLength);
+            } else {
+                pos = writeBcd(buffer, pos, startCode, startCodeLength);
+            }
+            luhnDigit.update(buffer, start, pos - start);
+        }
+
+        // Data elements
+        for (int i = 0; i < dataElementCount; i++) {
+            DataElementType type = dataElementTypes[i];
+            byte[] value = values[i];
+            int length = valueLengths[i];
+
+            int lengthPos = pos++;
+            if (DataElementType.Format.NUMERIC.equals(type.getFormat())
+                    && type.getFractionDigits() == 0
+                    && (length == 0 || value[0] != '-')) {
+                // non-negative integers are BCD encoded
+                for (int j = 0; j < length; j += 2) {
+                    int firstNibble = value[j] - '0';
+                    int secondNibble = j + 1 < length ? value[j + 1] - '0' : 0xf;
+                    buffer[pos++] = (byte) ((firstNibble << 4) | secondNibble);
+                }
+                buffer[lengthPos] = (byte) (pos - lengthPos - 1);
+            } else {
+                System.arraycopy(value, 0, buffer, pos, length);
+                pos += length;
+                buffer[lengthPos] = (byte) (0x40 | length);
+            }
+
+            luhnDigit.update(buffer, lengthPos + 1, pos - lengthPos - 1);
+        }
+
+        // LC
+        buffer[offset] = (byte) (pos - offset);
+
+        // Check byte
+        xor.reset();
+        xor.update(buffer, offset, pos - offset);
+        buffer[pos++] = (byte) ((luhnDigit.getValue() << 4) | xor.getValue());
+
+        return pos - offset;
+    }
+
+    private static int writeDigits(byte[] buffer, int pos, long number, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[pos + i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        return pos + digits;
+    }
+
+    private static int writeBcd(byte[] buffer, int pos, long number, int digits) {
+        int bytes = (digits + 1) / 2;
+        for (int nibble = 2 * bytes - 1; nibble >= 0; nibble--) {
+            int value;
+            if (nibble >= digits) {
+                // odd number of digits, fill the last half-byte
+                value = 0xf;
+            } else {
+                value = (int) (number % 10);
+                number /= 10;
+            }
+
+            if (nibble % 2 == 0) {
+                buffer[pos + nibble / 2] |= (byte) (value << 4);
+            } else {
+                buffer[pos + nibble / 2] = (byte) value;
+            }
+        }
+        return pos + bytes;
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+
+    public static class Builder {
+        private long seed = 0;
+        private EnumSet<VisualisationClass> visualisationClasses
+                = EnumSet.allOf(VisualisationClass.class);
+        private EnumSet<StartCodeVariant> startCodeVariants
+                = EnumSet.allOf(StartCodeVariant.class);
+        private double maxLengthRate = 0.1;
+        private double negativeNumberRate = 0.05;
+        private double asciiStartCodeRate = 0.;
+        private boolean wrapInBqr = false;
+
+        private Builder() {
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder visualisationClasses(VisualisationClass first, VisualisationClass... rest) {
+            this.visualisationClasses = EnumSet.of(first, rest);
+            return this;
+        }
+
+        public Builder startCodeVariants(StartCodeVariant first, StartCodeVariant... rest) {
+            this.startCodeVariants = EnumSet.of(first, rest);
+            return this;
+        }
+
+        /** Probability that a data element has its maximum length */
+        public Builder maxLengthRate(double rate) {
+            this.maxLengthRate = rate;
+            return this;
+        }
+
+        /** Probability that a numeric data element is negative, thus ASCII encoded */
+        public Builder negativeNumberRate(double rate) {
+            this.negativeNumberRate = rate;
+            return this;
+        }
+
+        /**
+         * Probability that the start code is ASCII encoded. This is only supported by the
+         * raw challenge methods, because {@link HHDuc#getBytes()} always uses BCD encoding.
+         */
+        public Builder asciiStartCodeRate(double rate) {
+            this.asciiStartCodeRate = rate;
+            return this;
+        }
+
+        /** Wrap raw challenges in a BQR container, like in the QR codes */
+        public Builder wrapInBqr(boolean wrapInBqr) {
+            this.wrapInBqr = wrapInBqr;
+            return this;
+        }
+
+        public ChallengeGenerator build() {
+            return new ChallengeGenerator(this);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.activetan;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+public class ChallengeGeneratorTest {
+
+    private static final int ITERATIONS = 20_000;
+
+    private static void assertSameContent(HHDuc expected, HHDuc actual) {
+        Assert.assertEquals(expected.getVisualisationClass(), actual.getVisualisationClass());
+        Assert.assertEquals(expected.getDataElementTypes(), actual.getDataElementTypes());
+        for (DataElementType type : expected.getDataElementTypes()) {
+            Assert.assertEquals(expected.getDataElement(type), actual.getDataElement(type));
+        }
+        Assert.assertArrayEquals(expected.getStartCode(), actual.getStartCode());
+    }
+
+    @Test
+    public void generatedChallengesCanBeParsed() throws HHDuc.UnsupportedDataFormatException {
+        ChallengeGenerator generator = ChallengeGenerator.builder()
+                .seed(1)
+                .maxLengthRate(0.5)
+                .build();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            HHDuc hhduc = generator.nextHHDuc();
+            byte[] challenge = hhduc.getBytes();
+
+            HHDuc parsed = HHDuc.parse(challenge);
+            assertSameContent(hhduc, parsed);
+            Assert.assertArrayEquals(challenge, parsed.getBytes());
+        }
+    }
+
+    @Test
+    public void rawChallengesAreEncodedLikeHHDuc() {
+        ChallengeGenerator hhducGenerator = ChallengeGenerator.builder()
+                .seed(2)
+                .build();
+        ChallengeGenerator rawGenerator = ChallengeGenerator.builder()
+                .seed(2)
+                .build();
+
+        byte[] buffer = new byte[ChallengeGenerator.MAX_CHALLENGE_LENGTH];
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] expected = hhducGenerator.nextHHDuc().getBytes();
+            int length = rawGenerator.nextChallenge(buffer, 0);
+            Assert.assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+        }
+    }
+
+    @Test
+    public void asciiStartCodesCanBeParsed() throws HHDuc.UnsupportedDataFormatException {
+        ChallengeGenerator bcdGenerator = ChallengeGenerator.builder()
+                .seed(3)
+                .build();
+        ChallengeGenerator asciiGenerator = ChallengeGenerator.builder()
+                .seed(3)
+                .asciiStartCodeRate(1.)
+                .build();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            HHDuc expected = bcdGenerator.nextHHDuc();
+            byte[] challenge = asciiGenerator.nextChallenge();
+
+            // LS with ASCII flag
+            Assert.assertEquals(0x40, challenge[1] & 0x40);
+            assertSameContent(expected, HHDuc.parse(challenge));
+        }
+    }
+
+    @Test
+    public void bqrWrappedChallenges() {
+        ChallengeGenerator hhducGenerator = ChallengeGenerator.builder()
+                .seed(4)
+                .build();
+        ChallengeGenerator bqrGenerator = ChallengeGenerator.builder()
+                .seed(4)
+                .wrapInBqr(true)
+                .build();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] hhduc = hhducGenerator.nextHHDuc().getBytes();
+
+            // AMS flag 'N', followed by the HHDuc
+            byte[] payload = new byte[1 + hhduc.length];
+            payload[0] = 'N';
+            System.arraycopy(hhduc, 0, payload, 1, hhduc.length);
+
+            Assert.assertArrayEquals(
+                    BQRContainer.wrap(BQRContainer.ContentType.TRANSACTION_DATA, payload),
+                    bqrGenerator.nextChallenge());
+        }
+    }
+
+    @Test
+    public void sameSeedSameChallenges() {
+        ChallengeGenerator first = ChallengeGenerator.builder()
+                .seed(5)
+                .build();
+        ChallengeGenerator second = ChallengeGenerator.builder()
+                .seed(5)
+                .build();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertArrayEquals(first.nextChallenge(), second.nextChallenge());
+        }
+    }
+
+    @Test
+    public void allVariantsAreCovered() {
+        ChallengeGenerator generator = ChallengeGenerator.builder()
+                .seed(6)
+                .build();
+
+        EnumSet<VisualisationClass> visualisationClasses = EnumSet.noneOf(VisualisationClass.class);
+        EnumSet<DataElementType> maxLengthElements = EnumSet.noneOf(DataElementType.class);
+        boolean displayAtc = false, defaultElements = false, customElements = false;
+        boolean asciiNumber = false, bcdNumber = false;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            HHDuc hhduc = generator.nextHHDuc();
+
+            if (hhduc.getVisualisationClass() == null) {
+                displayAtc |= hhduc.isDisplayAtc();
+            } else {
+                visualisationClasses.add(hhduc.getVisualisationClass());
+                if (hhduc.getVisualisationClass().getDataElements()
+                        .equals(hhduc.getDataElementTypes())) {
+                    defaultElements = true;
+                } else {
+                    customElements = true;
+                }
+            }
+
+            for (DataElementType type : hhduc.getDataElementTypes()) {
+                String value = hhduc.getDataElement(type);
+                if (value.length() == type.getMaxLength()) {
+                    maxLengthElements.add(type);
+                }
+                if (DataElementType.Format.NUMERIC.equals(type.getFormat())
+                        && type.getFractionDigits() == 0) {
+                    if (value.startsWith("-")) {
+                        asciiNumber = true;
+                    } else {
+                        bcdNumber = true;
+                    }
+                }
+            }
+        }
+
+        Assert.assertEquals(EnumSet.allOf(VisualisationClass.class), visualisationClasses);
+        Assert.assertEquals(EnumSet.allOf(DataElementType.class), maxLengthElements);
+        Assert.assertTrue(displayAtc);
+        Assert.assertTrue(defaultElements);
+        Assert.assertTrue(customElements);
+        Assert.assertTrue(asciiNumber);
+        Assert.assertTrue(bcdNumber);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP proxy in front of a stand-in server, which simulates a slow or black-holed server address.
+ * <p/>
+ * Connections are accepted by the operating system immediately, but data is only forwarded after
+ * the configured delay. A black hole never forwards any data.
+ */
+class DelayingProxy implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "DelayingProxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param target <code>null</code> for a black hole
+     */
+    DelayingProxy(InetSocketAddress target, long delayMillis) throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        if (target == null) {
+            // Never accept, the handshake stalls in the backlog
+            return;
+        }
+
+        executor.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    clients.add(client);
+                    executor.execute(() -> forward(client, target, delayMillis));
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+    }
+
+    private void forward(Socket client, InetSocketAddress target, long delayMillis) {
+        try (Socket server = new Socket()) {
+            TimeUnit.MILLISECONDS.sleep(delayMillis);
+            server.connect(target);
+            executor.execute(() -> pipe(server, client));
+            pipe(client, server);
+        } catch (IOException | InterruptedException e) {
+            // Connection ends
+        } finally {
+            clients.remove(client);
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Closed already
+            }
+        }
+    }
+
+    private static void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[4096];
+        try {
+            InputStream is = from.getInputStream();
+            OutputStream os = to.getOutputStream();
+            int length;
+            while ((length = is.read(buffer)) >= 0) {
+                os.write(buffer, 0, length);
+                os.flush();
+            }
+            to.shutdownOutput();
+        } catch (IOException e) {
+            // Connection ends
+        }
+    }
+
+    /** Close the accepted connections, like a server closing idle connections */
+    void closeConnections() throws IOException {
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    /** Reset the accepted connections, like a server failing while it processes a request */
+    void resetConnections() throws IOException {
+        for (Socket client : clients) {
+            client.setSoLinger(true, 0);
+            client.close();
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+
+public class DeviceKeyApiTest {
+
+    private static DeviceKeyStandInServer standIn;
+    private static SecuredRestApiEndpoint endpoint;
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        standIn = new DeviceKeyStandInServer();
+        endpoint = standIn.createEndpoint();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        standIn.close();
+    }
+
+    private static List<byte[]> generateDeviceKeys(int count) {
+        List<byte[]> deviceKeys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BankingKeyComponents keyComponents = new BankingKeyComponents();
+            keyComponents.generateDeviceKeyComponent();
+            deviceKeys.add(keyComponents.deviceKeyComponent);
+        }
+        return deviceKeys;
+    }
+
+    @Test
+    public void knownTokenIdsAreAvoided() throws SecuredRestApiEndpoint.CallFailedException {
+        List<String> tokenIds = DeviceKeyApi.uploadDeviceKeys(
+                endpoint, generateDeviceKeys(1), Collections.emptyList());
+
+        // The stand-in issues consecutive serial numbers, the next ones are known already
+        long serialNumber = Long.parseLong(tokenIds.get(0).substring(2));
+        List<String> knownTokenIds = Arrays.asList(
+                "XX" + (serialNumber + 1),
+                "XX" + (serialNumber + 2),
+                "XX" + (serialNumber + 4));
+
+        List<byte[]> deviceKeys = generateDeviceKeys(5);
+        tokenIds = DeviceKeyApi.uploadDeviceKeys(endpoint, deviceKeys, knownTokenIds);
+
+        Assert.assertEquals(deviceKeys.size(), tokenIds.size());
+        Set<String> distinctTokenIds = new HashSet<>(tokenIds);
+        Assert.assertEquals(deviceKeys.size(), distinctTokenIds.size());
+        for (int i = 0; i < deviceKeys.size(); i++) {
+            Assert.assertFalse(knownTokenIds.contains(tokenIds.get(i)));
+            Assert.assertArrayEquals(deviceKeys.get(i), standIn.getDeviceKey(tokenIds.get(i)));
+        }
+    }
+
+}
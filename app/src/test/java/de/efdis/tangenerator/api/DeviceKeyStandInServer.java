@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+
+/**
+ * Stands in for the device key api of the banking backend.
+ * <p/>
+ * The uploaded device key component is decrypted with a throwaway api key pair and a new token
+ * ID is returned, signed like by the banking backend. Batch requests are answered with one
+ * token ID per device key, avoiding the excluded token IDs. Latency and failures can be injected
+ * with {@link #getServer()}.
+ */
+class DeviceKeyStandInServer implements AutoCloseable {
+
+    private final HttpsStandInServer server;
+    private final KeyPair apiKey;
+
+    private final AtomicLong nextSerialNumber = new AtomicLong(1_000_000_000L);
+    private final Map<String, byte[]> deviceKeys = new ConcurrentHashMap<>();
+
+    DeviceKeyStandInServer() throws IOException, GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(
+                SecuredRestApiEndpoint.API_UPLOAD_ALGORITHM);
+        keyPairGenerator.initialize(2048);
+        apiKey = keyPairGenerator.generateKeyPair();
+
+        server = new HttpsStandInServer();
+        server.setHandler((path, request, responseHeaders) -> {
+            byte[] response = path.endsWith("/" + SecuredRestApiEndpoint.API_BATCH_PATH)
+                    ? uploadDeviceKeys(request)
+                    : uploadDeviceKey(request);
+            responseHeaders.set(SecuredRestApiEndpoint.API_SIGNATURE_HEADER,
+                    Base64.getEncoder().encodeToString(sign(request, response)));
+            return response;
+        });
+    }
+
+    private byte[] uploadDeviceKey(byte[] request) throws IOException {
+        String tokenId = registerDeviceKey(decryptDeviceKey(request), Collections.emptySet());
+        return tokenId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] uploadDeviceKeys(byte[] request) throws IOException {
+        List<byte[]> deviceKeys = new ArrayList<>();
+        Set<String> excludedTokenIds = new HashSet<>();
+        boolean trailingData;
+        try (DataInputStream envelope = new DataInputStream(new ByteArrayInputStream(request))) {
+            int count = envelope.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                byte[] encryptedDeviceKey = new byte[envelope.readUnsignedShort()];
+                envelope.readFully(encryptedDeviceKey);
+                deviceKeys.add(decryptDeviceKey(encryptedDeviceKey));
+            }
+            count = envelope.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                byte[] tokenId = new byte[envelope.readUnsignedShort()];
+                envelope.readFully(tokenId);
+                excludedTokenIds.add(new String(tokenId, StandardCharsets.UTF_8));
+            }
+            trailingData = envelope.read() >= 0;
+        } catch (EOFException e) {
+            throw new HttpsStandInServer.StatusException(
+                    HttpURLConnection.HTTP_BAD_REQUEST, "Truncated batch request");
+        }
+        if (deviceKeys.isEmpty() || trailingData) {
+            throw new HttpsStandInServer.StatusException(
+                    HttpURLConnection.HTTP_BAD_REQUEST, "Illegal batch request");
+        }
+
+        StringBuilder response = new StringBuilder();
+        for (byte[] deviceKey : deviceKeys) {
+            response.append(registerDeviceKey(deviceKey, excludedTokenIds)).append('\n');
+        }
+        return response.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] decryptDeviceKey(byte[] encryptedDeviceKey) throws IOException {
+        byte[] deviceKey;
+        try {
+            Cipher cipher = Cipher.getInstance(SecuredRestApiEndpoint.API_UPLOAD_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, apiKey.getPrivate());
+            deviceKey = cipher.doFinal(encryptedDeviceKey);
+        } catch (GeneralSecurityException e) {
+            throw new HttpsStandInServer.StatusException(
+                    HttpURLConnection.HTTP_BAD_REQUEST, "Cannot decrypt device key");
+        }
+        if (deviceKey.length != BankingKeyComponents.BANKING_KEY_LENGTH) {
+            throw new HttpsStandInServer.StatusException(
+                    HttpURLConnection.HTTP_BAD_REQUEST, "Illegal device key");
+        }
+        return deviceKey;
+    }
+
+    /**
+     * @return A new token ID, which is neither excluded nor in use
+     */
+    private String registerDeviceKey(byte[] deviceKey, Set<String> excludedTokenIds) {
+        while (true) {
+            String tokenId = "XX" + nextSerialNumber.getAndIncrement();
+            if (!excludedTokenIds.contains(tokenId)
+                    && deviceKeys.putIfAbsent(tokenId, deviceKey) == null) {
+                return tokenId;
+            }
+        }
+    }
+
+    /** Signature of the encrypted request and the response */
+    private byte[] sign(byte[] request, byte[] response) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(request);
+        data.write(response);
+        try {
+            Signature signature = Signature.getInstance(
+                    SecuredRestApiEndpoint.API_DOWNLOAD_SIGNATURE);
+            signature.initSign(apiKey.getPrivate());
+            signature.update(data.toByteArray());
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot sign response", e);
+        }
+    }
+
+    /** For latency and failure injection */
+    HttpsStandInServer getServer() {
+        return server;
+    }
+
+    PublicKey getApiKey() {
+        return apiKey.getPublic();
+    }
+
+    /**
+     * @return The device key, which has been uploaded for the token, or <code>null</code>
+     */
+    byte[] getDeviceKey(String tokenId) {
+        return deviceKeys.get(tokenId);
+    }
+
+    /** Number of successfully uploaded device keys */
+    int getUploadCount() {
+        return deviceKeys.size();
+    }
+
+    /**
+     * Create a transport, which trusts the stand-in's certificate and keeps connections alive.
+     */
+    PooledHttpTransport createTransport() {
+        return new PooledHttpTransport(
+                new RacingConnector(server.getSocketFactory(), server.getHostnameVerifier()),
+                SecuredRestApiEndpoint.CONNECT_TIMEOUT_MILLIS,
+                SecuredRestApiEndpoint.READ_TIMEOUT_MILLIS, null);
+    }
+
+    /**
+     * Create a client endpoint with the stand-in's key.
+     */
+    SecuredRestApiEndpoint createEndpoint(HttpTransport transport) throws IOException {
+        return new SecuredRestApiEndpoint(
+                server.getUrl(), apiKey.getPublic(), "StandIn", transport);
+    }
+
+    SecuredRestApiEndpoint createEndpoint() throws IOException {
+        return createEndpoint(createTransport());
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Local HTTPS server, which stands in for the banking backend in tests.
+ * <p/>
+ * It answers every request with the configured response or the response of a
+ * {@link RequestHandler}, which may be split into slow fragments and may be sent with chunked
+ * transfer encoding. Latency can be added and failures can be injected for a number of requests
+ * or at random.
+ * <p/>
+ * The {@link InProcessTransport} passes requests to the stand-in without the network.
+ */
+class HttpsStandInServer implements AutoCloseable {
+
+    /**
+     * Computes the response for a request.
+     */
+    interface RequestHandler {
+        /**
+         * @param path Path of the request URL
+         * @param responseHeaders May be extended by the handler
+         * @return The response body
+         */
+        byte[] handle(String path, byte[] request, Headers responseHeaders) throws IOException;
+    }
+
+    /**
+     * Thrown by a {@link RequestHandler} to answer with an error status.
+     */
+    static class StatusException extends IOException {
+        final int status;
+
+        StatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private static final char[] KEY_STORE_PASSWORD = "standin".toCharArray();
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+    private final SSLContext sslContext;
+
+    private volatile RequestHandler handler;
+    private volatile long latencyMillis;
+
+    private volatile byte[] responseBody = new byte[0];
+    private volatile String signatureHeader;
+    private volatile boolean chunked;
+    private volatile int fragmentSize = Integer.MAX_VALUE;
+    private volatile long fragmentDelayMillis;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger remainingFailures = new AtomicInteger();
+    private volatile int failureStatus;
+    private volatile String failureRetryAfter;
+    private volatile double failureRate;
+
+    HttpsStandInServer() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = HttpsStandInServer.class.getResourceAsStream("standin.p12")) {
+            keyStore.load(is, KEY_STORE_PASSWORD);
+        }
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(),
+                trustManagerFactory.getTrustManagers(), null);
+
+        server = HttpsServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            try (InputStream is = exchange.getRequestBody()) {
+                byte[] buffer = new byte[4096];
+                int length;
+                while ((length = is.read(buffer)) >= 0) {
+                    request.write(buffer, 0, length);
+                }
+            }
+
+            Response response = respond(
+                    exchange.getRequestURI().getPath(), request.toByteArray());
+            exchange.getResponseHeaders().putAll(response.headers);
+            if (response.status != HttpURLConnection.HTTP_OK) {
+                exchange.sendResponseHeaders(response.status, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = response.body;
+            // Length 0 selects chunked transfer encoding, -1 an empty body
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK,
+                    chunked ? 0 : body.length == 0 ? -1 : body.length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                for (int offset = 0; offset < body.length; offset += fragmentSize) {
+                    if (offset > 0 && fragmentDelayMillis > 0) {
+                        TimeUnit.MILLISECONDS.sleep(fragmentDelayMillis);
+                    }
+                    os.write(body, offset, Math.min(fragmentSize, body.length - offset));
+                    os.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+    }
+
+    void setResponse(byte[] body, String signatureHeader) {
+        this.responseBody = body;
+        this.signatureHeader = signatureHeader;
+    }
+
+    /**
+     * Response to a request, before it is sent.
+     */
+    static class Response {
+        int status = HttpURLConnection.HTTP_OK;
+        final Headers headers = new Headers();
+        byte[] body = new byte[0];
+    }
+
+    /**
+     * Answer a request like the server, including latency and failures, but without sending
+     * the response.
+     */
+    Response respond(String path, byte[] request) {
+        Response response = new Response();
+
+        requestCount.incrementAndGet();
+        try {
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (remainingFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0
+                || ThreadLocalRandom.current().nextDouble() < failureRate) {
+            if (failureRetryAfter != null) {
+                response.headers.set("Retry-After", failureRetryAfter);
+            }
+            response.status = failureStatus;
+            return response;
+        }
+
+        RequestHandler handler = this.handler;
+        if (handler == null) {
+            response.body = responseBody;
+            if (signatureHeader != null) {
+                response.headers.set("X-Signature", signatureHeader);
+            }
+        } else {
+            try {
+                response.body = handler.handle(path, request, response.headers);
+            } catch (IOException | RuntimeException e) {
+                response.headers.clear();
+                response.status = e instanceof StatusException
+                        ? ((StatusException) e).status
+                        : HttpURLConnection.HTTP_INTERNAL_ERROR;
+            }
+        }
+        return response;
+    }
+
+    /** Answer requests by the handler instead of the fixed response */
+    void setHandler(RequestHandler handler) {
+        this.handler = handler;
+    }
+
+    /** Delay each response */
+    void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    void setFragments(int fragmentSize, long fragmentDelayMillis) {
+        this.fragmentSize = fragmentSize;
+        this.fragmentDelayMillis = fragmentDelayMillis;
+    }
+
+    /**
+     * Answer the next requests with an error status.
+     *
+     * @param retryAfter Value of the <code>Retry-After</code> header or <code>null</code>
+     */
+    void failNextRequests(int count, int status, String retryAfter) {
+        this.failureStatus = status;
+        this.failureRetryAfter = retryAfter;
+        this.remainingFailures.set(count);
+    }
+
+    /**
+     * Answer requests with an error status at random.
+     *
+     * @param rate Probability of a failure, between 0 and 1
+     * @param retryAfter Value of the <code>Retry-After</code> header or <code>null</code>
+     */
+    void setFailureRate(double rate, int status, String retryAfter) {
+        this.failureStatus = status;
+        this.failureRetryAfter = retryAfter;
+        this.failureRate = rate;
+    }
+
+    /** Number of requests received since the last call */
+    int resetRequestCount() {
+        return requestCount.getAndSet(0);
+    }
+
+    /** Api URL, with a trailing slash like the configured backends */
+    URL getUrl() throws IOException {
+        return new URL("https", "localhost", server.getAddress().getPort(), "/api/");
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /** Sockets, which trust the stand-in's self-signed certificate */
+    SSLSocketFactory getSocketFactory() {
+        return sslContext.getSocketFactory();
+    }
+
+    /** Verifies the host name of the stand-in's self-signed certificate */
+    HostnameVerifier getHostnameVerifier() {
+        return (host, session) -> {
+            try {
+                return "localhost".equals(host)
+                        && session.getPeerPrincipal().getName().contains("CN=localhost");
+            } catch (SSLPeerUnverifiedException e) {
+                return false;
+            }
+        };
+    }
+
+    /** Open a connection, which trusts the stand-in's self-signed certificate */
+    HttpsURLConnection openConnection() throws IOException {
+        HttpsURLConnection connection = (HttpsURLConnection) getUrl().openConnection();
+        connection.setSSLSocketFactory(getSocketFactory());
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
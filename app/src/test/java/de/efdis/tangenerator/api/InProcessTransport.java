@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Passes requests directly to a {@link HttpsStandInServer}, without network, TLS and HTTP.
+ * <p/>
+ * This isolates the cost of the endpoint's encryption and signature verification from the
+ * transport.
+ */
+class InProcessTransport implements HttpTransport {
+
+    private final HttpsStandInServer server;
+
+    InProcessTransport(HttpsStandInServer server) {
+        this.server = server;
+    }
+
+    @NonNull
+    @Override
+    public Exchange open(@NonNull URL url, @NonNull Map<String, String> headers) {
+        return new Exchange() {
+            private HttpsStandInServer.Response response;
+
+            @Override
+            public void post(@NonNull byte[] body) {
+                response = server.respond(url.getPath(), body);
+            }
+
+            private HttpsStandInServer.Response getResponse() throws ProtocolException {
+                if (response == null) {
+                    throw new ProtocolException("Request has not been sent");
+                }
+                return response;
+            }
+
+            @Override
+            public int getResponseCode() throws IOException {
+                return getResponse().status;
+            }
+
+            @Override
+            public String getHeaderField(@NonNull String name) {
+                return response == null ? null : response.headers.getFirst(name);
+            }
+
+            @Override
+            public long getContentLength() {
+                return response == null ? -1 : response.body.length;
+            }
+
+            @NonNull
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new ByteArrayInputStream(getResponse().body);
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PooledHttpTransportTest {
+
+    private static final int TIMEOUT_MILLIS = 10_000;
+    private static final Map<String, String> HEADERS
+            = Collections.singletonMap("Content-Type", "application/octet-stream");
+    private static final byte[] REQUEST = "request".getBytes(StandardCharsets.US_ASCII);
+
+    private static HttpsStandInServer server;
+    private static byte[] body;
+
+    private DelayingProxy proxy;
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        server = new HttpsStandInServer();
+
+        body = new byte[10_000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void resetServer() {
+        server.setResponse(body, "signature");
+        server.setChunked(false);
+        server.setFragments(Integer.MAX_VALUE, 0);
+        server.setLatency(0);
+        server.failNextRequests(0, 0, null);
+        server.setHandler(null);
+        server.resetRequestCount();
+    }
+
+    @After
+    public void closeProxy() throws IOException {
+        if (proxy != null) {
+            proxy.close();
+        }
+    }
+
+    private static PooledHttpTransport transport(InetSocketAddress... addresses) {
+        return transport(PooledHttpTransport.DEFAULT_MAX_IDLE_CONNECTIONS,
+                PooledHttpTransport.DEFAULT_KEEP_ALIVE_MILLIS, addresses);
+    }
+
+    private static PooledHttpTransport transport(int maxIdleConnections, long keepAliveMillis,
+                                                 InetSocketAddress... addresses) {
+        return new PooledHttpTransport(
+                new RacingConnector(server.getSocketFactory(), server.getHostnameVerifier(),
+                        (host, port) -> Arrays.asList(addresses),
+                        RacingConnector.DEFAULT_STAGGER_MILLIS),
+                TIMEOUT_MILLIS, TIMEOUT_MILLIS, null,
+                maxIdleConnections, keepAliveMillis);
+    }
+
+    private static byte[] post(HttpTransport transport) throws IOException {
+        try (HttpTransport.Exchange exchange = transport.open(server.getUrl(), HEADERS)) {
+            exchange.post(REQUEST);
+
+            Assert.assertEquals(200, exchange.getResponseCode());
+            Assert.assertEquals("signature", exchange.getHeaderField("x-signature"));
+
+            ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+            try (InputStream is = exchange.getInputStream()) {
+                byte[] buffer = new byte[100];
+                int length;
+                while ((length = is.read(buffer)) >= 0) {
+                    responseBody.write(buffer, 0, length);
+                }
+            }
+            return responseBody.toByteArray();
+        }
+    }
+
+    @Test
+    public void fixedLengthResponse() throws IOException {
+        PooledHttpTransport transport = transport(server.getAddress());
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertArrayEquals(body, post(transport));
+        }
+        Assert.assertEquals(1, transport.getConnectCount());
+        Assert.assertEquals(1, transport.getIdleConnectionCount());
+    }
+
+    @Test
+    public void chunkedResponse() throws IOException {
+        server.setChunked(true);
+        server.setFragments(1000, 0);
+        PooledHttpTransport transport = transport(server.getAddress());
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertArrayEquals(body, post(transport));
+        }
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void errorWithoutBodyKeepsConnection() throws IOException {
+        server.failNextRequests(1, 429, "1");
+        PooledHttpTransport transport = transport(server.getAddress());
+
+        try (HttpTransport.Exchange exchange = transport.open(server.getUrl(), HEADERS)) {
+            exchange.post(REQUEST);
+            Assert.assertEquals(429, exchange.getResponseCode());
+            Assert.assertEquals("1", exchange.getHeaderField("Retry-After"));
+        }
+        Assert.assertArrayEquals(body, post(transport));
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void unreadResponseClosesConnection() throws IOException {
+        PooledHttpTransport transport = transport(server.getAddress());
+
+        try (HttpTransport.Exchange exchange = transport.open(server.getUrl(), HEADERS)) {
+            exchange.post(REQUEST);
+        }
+        Assert.assertEquals(0, transport.getIdleConnectionCount());
+        Assert.assertArrayEquals(body, post(transport));
+        Assert.assertEquals(2, transport.getConnectCount());
+    }
+
+    @Test
+    public void openedConnectionIsUsedByNextRequest() throws IOException {
+        PooledHttpTransport transport = transport(server.getAddress());
+
+        // Like pre-warming
+        transport.open(server.getUrl(), HEADERS).close();
+        Assert.assertArrayEquals(body, post(transport));
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void expiredConnectionIsNotReused() throws IOException, InterruptedException {
+        PooledHttpTransport transport = transport(4, 100, server.getAddress());
+
+        post(transport);
+        TimeUnit.MILLISECONDS.sleep(200);
+        post(transport);
+        Assert.assertEquals(2, transport.getConnectCount());
+    }
+
+    @Test
+    public void connectionClosedByServerIsReplaced() throws IOException {
+        proxy = new DelayingProxy(server.getAddress(), 0);
+        PooledHttpTransport transport = transport(proxy.getAddress());
+
+        Assert.assertArrayEquals(body, post(transport));
+        proxy.closeConnections();
+        Assert.assertArrayEquals(body, post(transport));
+        Assert.assertEquals(2, transport.getConnectCount());
+    }
+
+    @Test
+    public void receivedRequestIsNotSentAgain() throws IOException {
+        proxy = new DelayingProxy(server.getAddress(), 0);
+        PooledHttpTransport transport = transport(proxy.getAddress());
+
+        Assert.assertArrayEquals(body, post(transport));
+
+        // The server fails after it has received the request on the reused connection
+        server.setHandler((path, request, responseHeaders) -> {
+            proxy.resetConnections();
+            return body;
+        });
+        try {
+            post(transport);
+            Assert.fail("Reset connection has been ignored");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(2, server.resetRequestCount());
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void requestIsNotSentAgainAfterCloseWithoutResponse() throws IOException {
+        proxy = new DelayingProxy(server.getAddress(), 0);
+        PooledHttpTransport transport = transport(proxy.getAddress());
+
+        Assert.assertArrayEquals(body, post(transport));
+
+        // The server closes the reused connection after it has received the request
+        server.setHandler((path, request, responseHeaders) -> {
+            proxy.closeConnections();
+            return body;
+        });
+        try {
+            post(transport);
+            Assert.fail("Closed connection has been ignored");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(2, server.resetRequestCount());
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void concurrentRequests()
+            throws InterruptedException, ExecutionException, IOException {
+        server.setLatency(50);
+        PooledHttpTransport transport = transport(4, 30_000, server.getAddress());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<byte[]>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(executor.submit(() -> {
+                    start.await();
+                    return post(transport);
+                }));
+            }
+            start.countDown();
+            for (Future<byte[]> response : responses) {
+                Assert.assertArrayEquals(body, response.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // One connection per concurrent request, only some are kept
+        Assert.assertEquals(8, transport.getConnectCount());
+        Assert.assertEquals(4, transport.getIdleConnectionCount());
+
+        for (int i = 0; i < 4; i++) {
+            post(transport);
+        }
+        Assert.assertEquals(8, transport.getConnectCount());
+
+        transport.evictAll();
+        Assert.assertEquals(0, transport.getIdleConnectionCount());
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+public class RacingConnectorTest {
+
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    private static HttpsStandInServer server;
+    private final List<DelayingProxy> proxies = new ArrayList<>();
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        server = new HttpsStandInServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @After
+    public void closeProxies() throws IOException {
+        for (DelayingProxy proxy : proxies) {
+            proxy.close();
+        }
+        proxies.clear();
+    }
+
+    private InetSocketAddress slowAddress(long delayMillis) throws IOException {
+        DelayingProxy proxy = new DelayingProxy(server.getAddress(), delayMillis);
+        proxies.add(proxy);
+        return proxy.getAddress();
+    }
+
+    private InetSocketAddress blackHoledAddress() throws IOException {
+        DelayingProxy proxy = new DelayingProxy(null, 0);
+        proxies.add(proxy);
+        return proxy.getAddress();
+    }
+
+    private static InetSocketAddress closedAddress() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(serverSocket.getInetAddress(),
+                    serverSocket.getLocalPort());
+        }
+    }
+
+    private static RacingConnector connector(long staggerMillis,
+                                             InetSocketAddress... addresses) {
+        return new RacingConnector(server.getSocketFactory(), server.getHostnameVerifier(),
+                (host, port) -> Arrays.asList(addresses), staggerMillis);
+    }
+
+    private static long connectMillis(RacingConnector connector, int timeoutMillis)
+            throws IOException {
+        long start = System.nanoTime();
+        try (SSLSocket socket = connector.connect(
+                "localhost", server.getAddress().getPort(), timeoutMillis)) {
+            Assert.assertTrue(socket.getSession().isValid());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void slowAddressIsOvertaken() throws IOException {
+        InetSocketAddress slow = slowAddress(3000);
+        RacingConnector connector = connector(250, slow, server.getAddress());
+
+        Assert.assertTrue(connectMillis(connector, TIMEOUT_MILLIS) < 2000);
+        Assert.assertTrue(connector.getLatencyNanos(server.getAddress()) > 0);
+        // Cancelled, not failed
+        Assert.assertEquals(-1, connector.getLatencyNanos(slow));
+    }
+
+    @Test
+    public void blackHoledAddressIsOvertaken() throws IOException {
+        RacingConnector connector = connector(250, blackHoledAddress(), server.getAddress());
+
+        Assert.assertTrue(connectMillis(connector, TIMEOUT_MILLIS) < 2000);
+    }
+
+    @Test
+    public void fastestAddressIsTriedFirst() throws IOException {
+        InetSocketAddress slow = slowAddress(1000);
+        InetSocketAddress fast = slowAddress(0);
+        RacingConnector connector = connector(100, slow, fast);
+
+        connectMillis(connector, TIMEOUT_MILLIS);
+        Assert.assertEquals(fast, connector.order(Arrays.asList(slow, fast)).get(0));
+
+        // The slow address is not waited for anymore
+        Assert.assertTrue(connectMillis(connector, TIMEOUT_MILLIS) < 500);
+    }
+
+    @Test
+    public void failedAddressStartsNextAttemptImmediately() throws IOException {
+        InetSocketAddress closed = closedAddress();
+        RacingConnector connector = connector(5000, closed, server.getAddress());
+
+        Assert.assertTrue(connectMillis(connector, TIMEOUT_MILLIS) < 2000);
+
+        // Failed addresses are tried last
+        Assert.assertEquals(server.getAddress(),
+                connector.order(Arrays.asList(closed, server.getAddress())).get(0));
+    }
+
+    @Test
+    public void errorOfPreferredAddressIsThrown() throws IOException {
+        RacingConnector connector = connector(250, closedAddress(), blackHoledAddress());
+
+        try {
+            connectMillis(connector, 1000);
+            Assert.fail("Connection must fail");
+        } catch (IOException e) {
+            Assert.assertFalse(e instanceof SocketTimeoutException);
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertTrue(e.getSuppressed()[0] instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void unverifiedHostIsRejected() throws IOException {
+        RacingConnector connector = new RacingConnector(server.getSocketFactory(),
+                (host, session) -> false,
+                (host, port) -> Arrays.asList(server.getAddress()), 250);
+
+        try {
+            connectMillis(connector, TIMEOUT_MILLIS);
+            Assert.fail("Connection must fail");
+        } catch (SSLPeerUnverifiedException e) {
+            // expected
+        }
+    }
+
+}
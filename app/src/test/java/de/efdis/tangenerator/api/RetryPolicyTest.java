@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.HttpsURLConnection;
+
+public class RetryPolicyTest {
+
+    private static HttpsStandInServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        server = new HttpsStandInServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void resetServer() {
+        server.failNextRequests(0, 0, null);
+        server.resetRequestCount();
+    }
+
+    /**
+     * Call the stand-in like {@link SecuredRestApiEndpoint#performRequest(byte[])}.
+     *
+     * @return The final response code
+     */
+    private static int callWithRetries(RetryPolicy policy) throws IOException {
+        RetryPolicy.Execution retries = policy.start();
+        while (true) {
+            HttpsURLConnection connection = server.openConnection();
+            try {
+                int responseCode = connection.getResponseCode();
+                if (!RetryPolicy.isBusy(responseCode)) {
+                    return responseCode;
+                }
+
+                long retryAfterMillis = RetryPolicy.parseRetryAfter(
+                        connection.getHeaderField("Retry-After"), System.currentTimeMillis());
+                if (!retries.awaitRetry(retryAfterMillis)) {
+                    return responseCode;
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void busyBackendIsRetried() throws IOException {
+        server.failNextRequests(3, HttpURLConnection.HTTP_UNAVAILABLE, null);
+
+        Assert.assertEquals(HttpURLConnection.HTTP_OK,
+                callWithRetries(new RetryPolicy(10, 100, 5000, 6)));
+        Assert.assertEquals(4, server.resetRequestCount());
+    }
+
+    @Test
+    public void retryAfterIsRespected() throws IOException {
+        server.failNextRequests(1, 429, "1");
+
+        long start = System.nanoTime();
+        Assert.assertEquals(HttpURLConnection.HTTP_OK,
+                callWithRetries(new RetryPolicy(10, 100, 5000, 6)));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(2, server.resetRequestCount());
+    }
+
+    @Test
+    public void budgetStopsRetries() throws IOException {
+        server.failNextRequests(5, HttpURLConnection.HTTP_UNAVAILABLE, "2");
+
+        long start = System.nanoTime();
+        Assert.assertEquals(HttpURLConnection.HTTP_UNAVAILABLE,
+                callWithRetries(new RetryPolicy(10, 100, 1000, 6)));
+        // Don't wait, if the delay exceeds the budget anyway
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(1, server.resetRequestCount());
+    }
+
+    @Test
+    public void maxRetriesStopRetries() throws IOException {
+        server.failNextRequests(10, 429, null);
+
+        Assert.assertEquals(429, callWithRetries(new RetryPolicy(1, 10, 5000, 3)));
+        Assert.assertEquals(4, server.resetRequestCount());
+    }
+
+    @Test
+    public void retriesCanBeCancelled() throws InterruptedException {
+        RetryPolicy.Execution retries = new RetryPolicy(10, 100, 60_000, 6).start();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread thread = new Thread(() -> {
+            try {
+                retries.awaitRetry(TimeUnit.SECONDS.toMillis(30));
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        thread.start();
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(1));
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertTrue(failure.get() instanceof InterruptedIOException);
+    }
+
+    @Test
+    public void delaysAreDecorrelated() {
+        RetryPolicy.Execution retries
+                = new RetryPolicy(100, 1000, Long.MAX_VALUE, 1000, new Random(1)).start();
+
+        Set<Long> delays = new HashSet<>();
+        long previousDelay = 100;
+        for (int i = 0; i < 1000; i++) {
+            long delay = retries.nextDelayMillis(-1);
+            Assert.assertTrue(delay >= 100);
+            Assert.assertTrue(delay <= Math.min(1000, 3 * previousDelay));
+            delays.add(delay);
+            previousDelay = delay;
+        }
+        Assert.assertEquals(-1, retries.nextDelayMillis(-1));
+
+        // Devices failing at the same time must not retry in lockstep
+        Assert.assertTrue(delays.size() > 100);
+    }
+
+    @Test
+    public void retryAfterIsSpreadSlightly() {
+        RetryPolicy.Execution retries
+                = new RetryPolicy(100, 1000, Long.MAX_VALUE, 10, new Random(2)).start();
+
+        for (int i = 0; i < 10; i++) {
+            long delay = retries.nextDelayMillis(5000);
+            Assert.assertTrue(delay >= 5000);
+            Assert.assertTrue(delay < 5100);
+        }
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        long now = 1445412480000L; // Wed, 21 Oct 2015 07:28:00 GMT
+
+        Assert.assertEquals(120_000, RetryPolicy.parseRetryAfter("120", now));
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter(" 0 ", now));
+        Assert.assertEquals(30_000, RetryPolicy.parseRetryAfter(
+                "Wed, 21 Oct 2015 07:28:30 GMT", now));
+        Assert.assertEquals(0, RetryPolicy.parseRetryAfter(
+                "Wed, 21 Oct 2015 07:27:00 GMT", now));
+
+        Assert.assertEquals(-1, RetryPolicy.parseRetryAfter(null, now));
+        Assert.assertEquals(-1, RetryPolicy.parseRetryAfter("", now));
+        Assert.assertEquals(-1, RetryPolicy.parseRetryAfter("-5", now));
+        Assert.assertEquals(-1, RetryPolicy.parseRetryAfter("soon", now));
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+
+public class SecuredRestApiEndpointTest {
+
+    private static DeviceKeyStandInServer standIn;
+
+    private SecuredRestApiEndpoint endpoint;
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        standIn = new DeviceKeyStandInServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        standIn.close();
+    }
+
+    @Before
+    public void createEndpoint() throws IOException {
+        standIn.getServer().failNextRequests(0, 0, null);
+        standIn.getServer().resetRequestCount();
+        endpoint = standIn.createEndpoint();
+    }
+
+    private static byte[] generateDeviceKey() {
+        BankingKeyComponents keyComponents = new BankingKeyComponents();
+        keyComponents.generateDeviceKeyComponent();
+        return keyComponents.deviceKeyComponent;
+    }
+
+    private String uploadDeviceKey(byte[] deviceKey)
+            throws SecuredRestApiEndpoint.CallFailedException {
+        return new String(endpoint.performRequest(deviceKey), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void deviceKeyIsUploaded() throws SecuredRestApiEndpoint.CallFailedException {
+        byte[] deviceKey = generateDeviceKey();
+
+        String tokenId = uploadDeviceKey(deviceKey);
+
+        Assert.assertArrayEquals(deviceKey, standIn.getDeviceKey(tokenId));
+        Assert.assertEquals(1, standIn.getServer().resetRequestCount());
+    }
+
+    @Test
+    public void prewarmedEndpointIsUsed() throws SecuredRestApiEndpoint.CallFailedException {
+        endpoint.prewarm();
+        byte[] deviceKey = generateDeviceKey();
+
+        Assert.assertArrayEquals(deviceKey, standIn.getDeviceKey(uploadDeviceKey(deviceKey)));
+    }
+
+    @Test
+    public void concurrentUploads() throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> tokenIds = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                byte[] deviceKey = generateDeviceKey();
+                tokenIds.add(executor.submit(() -> {
+                    String tokenId = uploadDeviceKey(deviceKey);
+                    Assert.assertArrayEquals(deviceKey, standIn.getDeviceKey(tokenId));
+                    return tokenId;
+                }));
+            }
+
+            Set<String> distinctTokenIds = new HashSet<>();
+            for (Future<String> tokenId : tokenIds) {
+                distinctTokenIds.add(tokenId.get());
+            }
+            Assert.assertEquals(tokenIds.size(), distinctTokenIds.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void connectionIsKeptAlive() throws IOException,
+            SecuredRestApiEndpoint.CallFailedException {
+        PooledHttpTransport transport = standIn.createTransport();
+        endpoint = standIn.createEndpoint(transport);
+
+        for (int i = 0; i < 10; i++) {
+            byte[] deviceKey = generateDeviceKey();
+            Assert.assertArrayEquals(deviceKey,
+                    standIn.getDeviceKey(uploadDeviceKey(deviceKey)));
+        }
+        Assert.assertEquals(1, transport.getConnectCount());
+    }
+
+    @Test
+    public void inProcessTransport() throws IOException,
+            SecuredRestApiEndpoint.CallFailedException {
+        endpoint = standIn.createEndpoint(new InProcessTransport(standIn.getServer()));
+        standIn.getServer().failNextRequests(1, 429, "0");
+        byte[] deviceKey = generateDeviceKey();
+
+        Assert.assertArrayEquals(deviceKey, standIn.getDeviceKey(uploadDeviceKey(deviceKey)));
+        Assert.assertEquals(2, standIn.getServer().resetRequestCount());
+    }
+
+    @Test
+    public void busyBackendIsRetried() throws SecuredRestApiEndpoint.CallFailedException {
+        standIn.getServer().failNextRequests(2, HttpURLConnection.HTTP_UNAVAILABLE, "0");
+        byte[] deviceKey = generateDeviceKey();
+
+        Assert.assertArrayEquals(deviceKey, standIn.getDeviceKey(uploadDeviceKey(deviceKey)));
+        Assert.assertEquals(3, standIn.getServer().resetRequestCount());
+    }
+
+    @Test
+    public void batchOfDeviceKeysIsUploaded() throws SecuredRestApiEndpoint.CallFailedException {
+        List<byte[]> deviceKeys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            deviceKeys.add(generateDeviceKey());
+        }
+
+        List<byte[]> tokenIds = endpoint.performBatchRequest(
+                deviceKeys, Collections.emptyList());
+
+        Assert.assertEquals(1, standIn.getServer().resetRequestCount());
+        Assert.assertEquals(deviceKeys.size(), tokenIds.size());
+        Set<String> distinctTokenIds = new HashSet<>();
+        for (int i = 0; i < deviceKeys.size(); i++) {
+            String tokenId = new String(tokenIds.get(i), StandardCharsets.UTF_8);
+            Assert.assertArrayEquals(deviceKeys.get(i), standIn.getDeviceKey(tokenId));
+            distinctTokenIds.add(tokenId);
+        }
+        Assert.assertEquals(deviceKeys.size(), distinctTokenIds.size());
+    }
+
+    @Test
+    public void busyBackendIsRetriedForBatch() throws IOException,
+            SecuredRestApiEndpoint.CallFailedException {
+        endpoint = standIn.createEndpoint(new InProcessTransport(standIn.getServer()));
+        standIn.getServer().failNextRequests(1, 429, "0");
+        byte[] deviceKey = generateDeviceKey();
+
+        List<byte[]> tokenIds = endpoint.performBatchRequest(
+                Collections.singletonList(deviceKey), Collections.emptyList());
+
+        Assert.assertArrayEquals(deviceKey,
+                standIn.getDeviceKey(new String(tokenIds.get(0), StandardCharsets.UTF_8)));
+        Assert.assertEquals(2, standIn.getServer().resetRequestCount());
+    }
+
+    @Test
+    public void fullBatchIsUploaded() throws IOException,
+            SecuredRestApiEndpoint.CallFailedException {
+        endpoint = standIn.createEndpoint(new InProcessTransport(standIn.getServer()));
+        List<byte[]> deviceKeys = new ArrayList<>();
+        for (int i = 0; i < SecuredRestApiEndpoint.MAX_BATCH_SIZE; i++) {
+            deviceKeys.add(generateDeviceKey());
+        }
+
+        List<byte[]> tokenIds = endpoint.performBatchRequest(
+                deviceKeys, Collections.emptyList());
+
+        Assert.assertEquals(SecuredRestApiEndpoint.MAX_BATCH_SIZE, tokenIds.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedBatchIsRejected() throws SecuredRestApiEndpoint.CallFailedException {
+        List<byte[]> deviceKeys = new ArrayList<>();
+        for (int i = 0; i <= SecuredRestApiEndpoint.MAX_BATCH_SIZE; i++) {
+            deviceKeys.add(generateDeviceKey());
+        }
+
+        endpoint.performBatchRequest(deviceKeys, Collections.emptyList());
+    }
+
+    @Test
+    public void batchPathIsAppendedToApiPath() throws MalformedURLException {
+        // Compare strings, URL.equals() resolves the host names
+        Assert.assertEquals("https://banking.example:8443/api/batch",
+                SecuredRestApiEndpoint.getBatchUrl(
+                        new URL("https://banking.example:8443/api/")).toString());
+        Assert.assertEquals("https://banking.example/api/batch",
+                SecuredRestApiEndpoint.getBatchUrl(
+                        new URL("https://banking.example/api")).toString());
+        Assert.assertEquals("https://banking.example/batch",
+                SecuredRestApiEndpoint.getBatchUrl(
+                        new URL("https://banking.example")).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBatchIsRejected() throws SecuredRestApiEndpoint.CallFailedException {
+        endpoint.performBatchRequest(Collections.emptyList(), Collections.emptyList());
+    }
+
+    @Test(expected = SecuredRestApiEndpoint.IncompatibleClientException.class)
+    public void wrongApiKeyIsRejected()
+            throws IOException, GeneralSecurityException,
+            SecuredRestApiEndpoint.CallFailedException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(
+                SecuredRestApiEndpoint.API_UPLOAD_ALGORITHM);
+        keyPairGenerator.initialize(2048);
+        endpoint = new SecuredRestApiEndpoint(standIn.getServer().getUrl(),
+                keyPairGenerator.generateKeyPair().getPublic(), "StandIn",
+                standIn.createTransport());
+
+        uploadDeviceKey(generateDeviceKey());
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.net.ssl.HttpsURLConnection;
+
+public class SignedResponseReaderTest {
+
+    private static final String SIGNATURE_ALGORITHM = "SHA512withRSA";
+    private static final byte[] REQUEST = "encrypted request".getBytes();
+
+    private static KeyPair apiKey;
+    private static HttpsStandInServer server;
+
+    private SignedResponseReader reader;
+
+    @BeforeClass
+    public static void startServer() throws IOException, GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        apiKey = keyPairGenerator.generateKeyPair();
+
+        server = new HttpsStandInServer();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Before
+    public void createReader() {
+        // Small buffer, so that bodies are read in several iterations
+        reader = new SignedResponseReader(256, 16 * 1024);
+    }
+
+    private static byte[] randomBody(int length) {
+        byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+
+    /** The backend signs the encrypted request and the response body */
+    private static byte[] sign(byte[] body) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(apiKey.getPrivate());
+        signature.update(REQUEST);
+        signature.update(body);
+        return signature.sign();
+    }
+
+    private static Signature verifier() throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initVerify(apiKey.getPublic());
+        signature.update(REQUEST);
+        return signature;
+    }
+
+    private byte[] performRequest() throws IOException, GeneralSecurityException {
+        HttpsURLConnection connection = server.openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(REQUEST);
+            }
+
+            Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+            byte[] signatureData = Base64.getDecoder().decode(
+                    connection.getHeaderField("X-Signature"));
+            try (InputStream is = connection.getInputStream()) {
+                return reader.read(is, connection.getContentLength(), verifier(), signatureData);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void setResponse(byte[] body, byte[] signatureData) {
+        server.setResponse(body, Base64.getEncoder().encodeToString(signatureData));
+    }
+
+    @Test
+    public void fixedLengthResponse() throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(1000);
+        setResponse(body, sign(body));
+        server.setChunked(false);
+        server.setFragments(Integer.MAX_VALUE, 0);
+
+        Assert.assertArrayEquals(body, performRequest());
+    }
+
+    @Test
+    public void slowFragmentedResponse() throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(1000);
+        setResponse(body, sign(body));
+        server.setChunked(false);
+        server.setFragments(7, 2);
+
+        Assert.assertArrayEquals(body, performRequest());
+    }
+
+    @Test
+    public void chunkedResponse() throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(5000);
+        setResponse(body, sign(body));
+        server.setChunked(true);
+        server.setFragments(333, 1);
+
+        Assert.assertArrayEquals(body, performRequest());
+    }
+
+    @Test
+    public void emptyResponse() throws IOException, GeneralSecurityException {
+        byte[] body = new byte[0];
+        setResponse(body, sign(body));
+        server.setChunked(false);
+        server.setFragments(Integer.MAX_VALUE, 0);
+
+        Assert.assertArrayEquals(body, performRequest());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidSignatureIsRejected() throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(1000);
+        byte[] signatureData = sign(body);
+        body[500] ^= 1;
+        setResponse(body, signatureData);
+        server.setChunked(true);
+        server.setFragments(100, 0);
+
+        performRequest();
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedChunkedResponseIsRejected()
+            throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(20 * 1024);
+        setResponse(body, sign(body));
+        server.setChunked(true);
+        server.setFragments(1024, 0);
+
+        performRequest();
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedContentLengthIsRejected()
+            throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(100);
+        reader.read(new ByteArrayInputStream(body), 20 * 1024, verifier(), sign(body));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedResponseIsRejected() throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(100);
+        reader.read(new ByteArrayInputStream(body, 0, 50), body.length,
+                verifier(), sign(body));
+    }
+
+    @Test(expected = IOException.class)
+    public void responseLongerThanAnnouncedIsRejected()
+            throws IOException, GeneralSecurityException {
+        byte[] body = randomBody(100);
+        reader.read(new ByteArrayInputStream(body), 50, verifier(), sign(body));
+    }
+
+    @Test
+    public void signatureHeaderIsDecoded() throws IOException {
+        Random random = new Random(1);
+        for (int length = 0; length < 600; length++) {
+            byte[] signature = new byte[length];
+            random.nextBytes(signature);
+
+            Assert.assertArrayEquals(signature, SignedResponseReader.decodeSignature(
+                    Base64.getEncoder().encodeToString(signature)));
+            Assert.assertArrayEquals(signature, SignedResponseReader.decodeSignature(
+                    Base64.getMimeEncoder().encodeToString(signature)));
+            Assert.assertArrayEquals(signature, SignedResponseReader.decodeSignature(
+                    Base64.getEncoder().withoutPadding().encodeToString(signature)));
+        }
+    }
+
+    @Test
+    public void illegalSignatureHeaderIsRejected() {
+        for (String illegal : new String[]{"AAA-", "A", "AA=A", "AAAA_AAA", "AAAAB"}) {
+            try {
+                SignedResponseReader.decodeSignature(illegal);
+                Assert.fail("Must reject " + illegal);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+}
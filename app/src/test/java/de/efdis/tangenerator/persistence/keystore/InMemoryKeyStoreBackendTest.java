@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.efdis.tangenerator.activetan.TanGenerator;
+
+public class InMemoryKeyStoreBackendTest {
+
+    private static final String ALIAS = "banking_key_test";
+
+    private InMemoryKeyStoreBackend keyStore;
+    private SecretKeySpec keySpec;
+
+    @Before
+    public void setUp() throws KeyStoreException {
+        keyStore = new InMemoryKeyStoreBackend();
+        keyStore.load();
+
+        keySpec = new SecretKeySpec(
+                new byte[BankingKeyComponents.BANKING_KEY_LENGTH], "AES");
+        keyStore.storeKey(ALIAS, keySpec,
+                KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY);
+    }
+
+    private KeyStoreBackend.Failure useKey() throws GeneralSecurityException {
+        SecretKey key = keyStore.loadKey(ALIAS);
+        try {
+            keyStore.initEncryption(Cipher.getInstance("AES/CBC/NoPadding"), key, null);
+            return null;
+        } catch (InvalidKeyException e) {
+            return keyStore.classifyFailure(ALIAS, e);
+        }
+    }
+
+    @Test
+    public void storedKeyCanBeUsed() throws GeneralSecurityException {
+        Assert.assertTrue(keyStore.containsKey(ALIAS));
+        Assert.assertEquals(Collections.singletonList(ALIAS), keyStore.listKeys());
+        Assert.assertNotNull(keyStore.getCreationDate(ALIAS));
+        Assert.assertNull(useKey());
+
+        // same TAN as with the plain key
+        Assert.assertEquals(
+                TanGenerator.generateTanForInitialization(keySpec, 0),
+                TanGenerator.generateTanForInitialization(keyStore.loadKey(ALIAS), 0));
+    }
+
+    @Test
+    public void deletedKeyIsMissing() throws GeneralSecurityException {
+        keyStore.deleteKey(ALIAS);
+        Assert.assertFalse(keyStore.containsKey(ALIAS));
+        Assert.assertNull(keyStore.loadKey(ALIAS));
+        Assert.assertNull(keyStore.getCreationDate(ALIAS));
+        Assert.assertTrue(keyStore.listKeys().isEmpty());
+
+        // deleting a missing key has no effect
+        keyStore.deleteKey(ALIAS);
+    }
+
+    @Test
+    public void invalidatedKeyCannotBeUsed() throws GeneralSecurityException {
+        SecretKey key = keyStore.loadKey(ALIAS);
+        keyStore.invalidateAllKeys();
+
+        Assert.assertEquals(KeyStoreBackend.Failure.KEY_PERMANENTLY_INVALIDATED, useKey());
+        try {
+            // previously loaded keys are affected as well
+            TanGenerator.generateTanForInitialization(key, 0);
+            Assert.fail("invalidated key has been used");
+        } catch (InvalidKeyException e) {
+            Assert.assertEquals(KeyStoreBackend.Failure.KEY_PERMANENTLY_INVALIDATED,
+                    keyStore.classifyFailure(ALIAS, e));
+        }
+    }
+
+    @Test
+    public void expiredAuthenticationRequiresUserAuthentication() throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        keyStore.setLastUserAuthentication(now - TimeUnit.HOURS.toMillis(25));
+        Assert.assertEquals(KeyStoreBackend.Failure.USER_NOT_AUTHENTICATED, useKey());
+
+        // The short validity has expired as well
+        keyStore.setLastUserAuthentication(now - TimeUnit.MINUTES.toMillis(10));
+        Assert.assertNull(useKey());
+        keyStore.storeKey(ALIAS, keySpec,
+                KeyStoreBackend.Protection.SHORT_AUTHENTICATION_VALIDITY);
+        Assert.assertEquals(KeyStoreBackend.Failure.USER_NOT_AUTHENTICATED, useKey());
+
+        keyStore.authenticateUser();
+        Assert.assertNull(useKey());
+    }
+
+    @Test
+    public void unsupportedProtectionCannotBeUsed() throws GeneralSecurityException {
+        keyStore.setUnsupported(KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY, true);
+        Assert.assertEquals(KeyStoreBackend.Failure.INVALID_KEY, useKey());
+
+        keyStore.setUnsupported(KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY, false);
+        Assert.assertNull(useKey());
+    }
+
+    @Test
+    public void probeReportsSupportOfProtection() throws KeyStoreException {
+        Assert.assertEquals(KeyStoreBackend.ProbeResult.SUPPORTED,
+                keyStore.probe(ALIAS, keyStore.loadKey(ALIAS)));
+
+        keyStore.setLastUserAuthentication(
+                System.currentTimeMillis() - TimeUnit.HOURS.toMillis(25));
+        Assert.assertEquals(KeyStoreBackend.ProbeResult.USER_NOT_AUTHENTICATED,
+                keyStore.probe(ALIAS, keyStore.loadKey(ALIAS)));
+
+        keyStore.authenticateUser();
+        keyStore.setUnsupported(KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY, true);
+        Assert.assertEquals(KeyStoreBackend.ProbeResult.UNSUPPORTED,
+                keyStore.probe(ALIAS, keyStore.loadKey(ALIAS)));
+    }
+
+    @Test
+    public void otherFailuresAreNotRelatedToTheKey() {
+        Assert.assertEquals(KeyStoreBackend.Failure.OTHER,
+                keyStore.classifyFailure(ALIAS, new KeyStoreException("test")));
+    }
+
+    @Test
+    public void keyStoreMustBeLoadedAfterServiceRestart() throws KeyStoreException {
+        keyStore.simulateServiceRestart();
+        try {
+            keyStore.loadKey(ALIAS);
+            Assert.fail("key store has not been loaded");
+        } catch (KeyStoreException e) {
+            Assert.assertTrue(keyStore.isStale(e));
+        }
+
+        keyStore.load();
+        Assert.assertNotNull(keyStore.loadKey(ALIAS));
+        Assert.assertFalse(keyStore.isStale(new KeyStoreException("other failure")));
+        Assert.assertEquals(2, keyStore.getLoadCount());
+    }
+
+    @Test
+    public void operationsAreDelayed() throws KeyStoreException {
+        keyStore.setLatency(0, 5, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        keyStore.loadKey(ALIAS);
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+}
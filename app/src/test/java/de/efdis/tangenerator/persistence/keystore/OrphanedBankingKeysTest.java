@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.persistence.keystore;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+public class OrphanedBankingKeysTest {
+
+    private static final String PREFIX = "banking_key_";
+
+    private static final long GRACE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private InMemoryKeyStoreBackend keyStore;
+
+    @Before
+    public void setUp() throws KeyStoreException {
+        keyStore = new InMemoryKeyStoreBackend();
+        keyStore.load();
+        BankingKeyRepository.setBackend(keyStore);
+    }
+
+    @After
+    public void restoreKeyStore() {
+        BankingKeyRepository.setBackend(new AndroidKeyStoreBackend());
+    }
+
+    private void storeKey(String keyAlias, long ageMillis) throws KeyStoreException {
+        keyStore.storeKey(keyAlias,
+                new SecretKeySpec(new byte[BankingKeyComponents.BANKING_KEY_LENGTH], "AES"),
+                KeyStoreBackend.Protection.LONG_AUTHENTICATION_VALIDITY);
+        keyStore.setCreationDate(keyAlias, new Date(System.currentTimeMillis() - ageMillis));
+    }
+
+    private List<String> listKeys() throws KeyStoreException {
+        List<String> keyAliases = keyStore.listKeys();
+        Collections.sort(keyAliases);
+        return keyAliases;
+    }
+
+    @Test
+    public void youngOrphanedKeyIsKept() throws KeyStoreException {
+        storeKey(PREFIX + "young", GRACE_PERIOD_MILLIS / 2);
+        storeKey(PREFIX + "old", 2 * GRACE_PERIOD_MILLIS);
+
+        Assert.assertEquals(1, BankingKeyRepository.deleteOrphanedBankingKeys(
+                Collections.emptySet(), GRACE_PERIOD_MILLIS, 16));
+        Assert.assertEquals(Collections.singletonList(PREFIX + "young"), listKeys());
+    }
+
+    @Test
+    public void otherKeysAreKept() throws KeyStoreException {
+        storeKey("probe_key_long", 2 * GRACE_PERIOD_MILLIS);
+        storeKey("other", 2 * GRACE_PERIOD_MILLIS);
+
+        Assert.assertEquals(0, BankingKeyRepository.deleteOrphanedBankingKeys(
+                Collections.emptySet(), GRACE_PERIOD_MILLIS, 16));
+        Assert.assertEquals(Arrays.asList("other", "probe_key_long"), listKeys());
+    }
+
+    @Test
+    public void keysOfTokensAreKept() throws KeyStoreException {
+        storeKey(PREFIX + "token1", 2 * GRACE_PERIOD_MILLIS);
+        storeKey(PREFIX + "token2", 2 * GRACE_PERIOD_MILLIS);
+        storeKey(PREFIX + "orphan", 2 * GRACE_PERIOD_MILLIS);
+
+        Assert.assertEquals(1, BankingKeyRepository.deleteOrphanedBankingKeys(
+                new HashSet<>(Arrays.asList("token1", "token2")), GRACE_PERIOD_MILLIS, 16));
+        Assert.assertEquals(Arrays.asList(PREFIX + "token1", PREFIX + "token2"), listKeys());
+    }
+
+    @Test
+    public void partialLastBatchIsDeleted() throws KeyStoreException {
+        for (int i = 0; i < 7; i++) {
+            storeKey(PREFIX + "orphan" + i, 2 * GRACE_PERIOD_MILLIS);
+        }
+        storeKey(PREFIX + "token", 2 * GRACE_PERIOD_MILLIS);
+
+        // Batches of 3, 3 and 1 keys
+        Assert.assertEquals(7, BankingKeyRepository.deleteOrphanedBankingKeys(
+                Collections.singleton("token"), GRACE_PERIOD_MILLIS, 3));
+        Assert.assertEquals(Collections.singletonList(PREFIX + "token"), listKeys());
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContinuous() {
+        Assert.assertEquals(0, LatencyHistogram.bucketLowerBound(0));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            Assert.assertEquals(LatencyHistogram.bucketUpperBound(i - 1) + 1,
+                    LatencyHistogram.bucketLowerBound(i));
+        }
+        Assert.assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE,
+                LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void valuesAreInTheirBucket() {
+        for (long value = 1; value > 0 && value <= LatencyHistogram.MAX_TRACKABLE_VALUE; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.bucketIndex(value);
+            Assert.assertTrue(LatencyHistogram.bucketLowerBound(index) <= value);
+            Assert.assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+
+            // relative error of at most 1/16
+            long width = LatencyHistogram.bucketUpperBound(index)
+                    - LatencyHistogram.bucketLowerBound(index);
+            Assert.assertTrue(width * 16 <= Math.max(16, value));
+        }
+
+        Assert.assertEquals(0, LatencyHistogram.bucketIndex(-1));
+        Assert.assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1_000_000L, snapshot.getMax());
+        Assert.assertEquals(500_500., snapshot.getMean(), 0.1);
+        Assert.assertEquals(500_000., snapshot.getValueAtPercentile(50), 500_000. / 16);
+        Assert.assertEquals(990_000., snapshot.getValueAtPercentile(99), 990_000. / 16);
+        Assert.assertEquals(1_000_000L, snapshot.getValueAtPercentile(100));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getSnapshot().getCount());
+        Assert.assertEquals(0, histogram.getSnapshot().getValueAtPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int valuesPerThread = 100_000;
+
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            recorders[t] = new Thread(() -> {
+                for (int i = 0; i < valuesPerThread; i++) {
+                    histogram.record(i);
+                }
+            });
+            recorders[t].start();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(threads * valuesPerThread, snapshot.getCount());
+        Assert.assertEquals(valuesPerThread - 1, snapshot.getMax());
+    }
+
+    @Test
+    public void snapshotsAreConsistentDuringRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long value = 1000;
+
+        Thread[] recorders = new Thread[4];
+        for (int t = 0; t < recorders.length; t++) {
+            recorders[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(value);
+                }
+            });
+            recorders[t].start();
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+            if (snapshot.getCount() > 0) {
+                // Sum and count of the same values
+                Assert.assertEquals(value, snapshot.getMean(), 0.);
+                Assert.assertEquals(value, snapshot.getMax());
+            }
+        }
+
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+    }
+
+    @Test
+    public void valuesRecordedDuringSnapshotsAreNotLost() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int valuesPerThread = 100_000;
+
+        Thread[] recorders = new Thread[4];
+        for (int t = 0; t < recorders.length; t++) {
+            recorders[t] = new Thread(() -> {
+                for (int i = 0; i < valuesPerThread; i++) {
+                    histogram.record(i);
+                }
+            });
+            recorders[t].start();
+        }
+
+        long previousCount = 0;
+        for (int i = 0; i < 1000; i++) {
+            long count = histogram.getSnapshot().getCount();
+            Assert.assertTrue(count >= previousCount);
+            previousCount = count;
+        }
+
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(recorders.length * valuesPerThread, snapshot.getCount());
+        Assert.assertEquals(valuesPerThread - 1, snapshot.getMax());
+    }
+
+}
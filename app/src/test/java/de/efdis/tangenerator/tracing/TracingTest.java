@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.tracing;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TracingTest {
+
+    @After
+    public void tearDown() {
+        Tracing.disable();
+        Tracing.reset();
+    }
+
+    @Test
+    public void disabledTracingRecordsNothing() {
+        long start = Tracing.begin(TraceSpan.HHDUC_PARSE);
+        Tracing.end(TraceSpan.HHDUC_PARSE, start);
+
+        Assert.assertEquals(0, Tracing.getHistogram(TraceSpan.HHDUC_PARSE).getSnapshot().getCount());
+    }
+
+    @Test
+    public void enabledTracingRecordsSpans() {
+        final List<String> sections = new ArrayList<>();
+        Tracing.enable(new Tracing.SectionListener() {
+            @Override
+            public void beginSection(String sectionName) {
+                sections.add("begin " + sectionName);
+            }
+
+            @Override
+            public void endSection() {
+                sections.add("end");
+            }
+        });
+
+        long outer = Tracing.begin(TraceSpan.TAN_GENERATION);
+        long inner = Tracing.begin(TraceSpan.AES_CBC_MAC);
+        Tracing.end(TraceSpan.AES_CBC_MAC, inner);
+        Tracing.end(TraceSpan.TAN_GENERATION, outer);
+
+        Assert.assertEquals(1, Tracing.getHistogram(TraceSpan.TAN_GENERATION).getSnapshot().getCount());
+        Assert.assertEquals(1, Tracing.getHistogram(TraceSpan.AES_CBC_MAC).getSnapshot().getCount());
+        Assert.assertEquals(0, Tracing.getHistogram(TraceSpan.BQR_UNWRAP).getSnapshot().getCount());
+
+        Assert.assertEquals(4, sections.size());
+        Assert.assertEquals("begin TanGenerator.generateTan", sections.get(0));
+        Assert.assertEquals("begin AesCbcMac", sections.get(1));
+
+        StringWriter dump = new StringWriter();
+        Tracing.dump("", new PrintWriter(dump));
+        Assert.assertTrue(dump.toString().contains("AesCbcMac: count=1"));
+        Assert.assertFalse(dump.toString().contains("BQRContainer.unwrap"));
+    }
+
+    @Test
+    public void disablingKeepsSectionsBalanced() {
+        final List<String> sections = new ArrayList<>();
+        Tracing.enable(new Tracing.SectionListener() {
+            @Override
+            public void beginSection(String sectionName) {
+                sections.add("begin " + sectionName);
+            }
+
+            @Override
+            public void endSection() {
+                sections.add("end");
+            }
+        });
+
+        long start = Tracing.begin(TraceSpan.TAN_GENERATION);
+        Tracing.disable();
+        Tracing.end(TraceSpan.TAN_GENERATION, start);
+
+        long untraced = Tracing.begin(TraceSpan.AES_CBC_MAC);
+        Tracing.end(TraceSpan.AES_CBC_MAC, untraced);
+
+        Assert.assertEquals(2, sections.size());
+        Assert.assertEquals("end", sections.get(1));
+        Assert.assertEquals(1, Tracing.getHistogram(TraceSpan.TAN_GENERATION).getSnapshot().getCount());
+        Assert.assertEquals(0, Tracing.getHistogram(TraceSpan.AES_CBC_MAC).getSnapshot().getCount());
+    }
+
+}
@@ -63,6 +63,9 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
     private int mViewFinderOffset = 0;
     private final float mAspectTolerance = 0.1f;
 
+    private ScanTelemetryListener mScanTelemetryListener;
+    private volatile ScanSessionStatistics mScanSession;
+
     public BarcodeScannerView(Context context) {
         super(context);
         init();
@@ -167,7 +170,18 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
         mViewFinderView.setupViewFinder();
     }
 
+    /**
+     * Receive statistics of each processed preview frame and a summary, when the camera is
+     * stopped. Must be set before the camera is started.
+     */
+    public void setScanTelemetryListener(ScanTelemetryListener listener) {
+        mScanTelemetryListener = listener;
+    }
+
     public void startCamera(int cameraId) {
+        endScanSession();
+        mScanSession = new ScanSessionStatistics(System.nanoTime());
+
         if(mCameraHandlerThread == null) {
             mCameraHandlerThread = new CameraHandlerThread(this);
         }
@@ -201,6 +215,41 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
             mCameraHandlerThread.quit();
             mCameraHandlerThread = null;
         }
+        endScanSession();
+    }
+
+    private void endScanSession() {
+        ScanSessionStatistics session = mScanSession;
+        mScanSession = null;
+        if (session != null) {
+            session.end(System.nanoTime());
+
+            ScanTelemetryListener listener = mScanTelemetryListener;
+            if (listener != null) {
+                listener.onScanSessionEnd(session);
+            }
+        }
+    }
+
+    /** Add a processed preview frame to the statistics of the current scan session */
+    protected void recordFrame(FrameStatistics frame) {
+        ScanSessionStatistics session = mScanSession;
+        if (session != null) {
+            session.recordFrame(frame, System.nanoTime());
+        }
+
+        ScanTelemetryListener listener = mScanTelemetryListener;
+        if (listener != null) {
+            listener.onFrameProcessed(frame);
+        }
+    }
+
+    /** Add the time, which the detection thread slept between two frames */
+    protected void recordIdleTime(long idleMillis) {
+        ScanSessionStatistics session = mScanSession;
+        if (session != null) {
+            session.recordIdleTime(idleMillis);
+        }
     }
 
     public void stopCameraPreview() {
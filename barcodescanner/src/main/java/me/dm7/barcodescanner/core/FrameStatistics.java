@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.core;
+
+/**
+ * Timing and outcome of the QR code detection in a single camera preview frame.
+ * <p>
+ * The object is reused for each frame. Listeners must copy values, which they need later on.
+ */
+public class FrameStatistics {
+
+    public enum Outcome {
+        /** A QR code has been decoded */
+        DECODED,
+        /** No QR code found in the frame */
+        NOT_FOUND,
+        /** A QR code has been found, but error correction failed */
+        CHECKSUM_ERROR,
+        /** A QR code has been found, but its content could not be decoded */
+        FORMAT_ERROR,
+        /** The frame has not been processed, e. g., because the camera was not ready */
+        SKIPPED,
+    }
+
+    private Outcome outcome;
+    private long cropNanos;
+    private long binarizeNanos;
+    private long detectNanos;
+    private long decodeNanos;
+    private int errorsCorrected;
+
+    public FrameStatistics() {
+        reset();
+    }
+
+    public void reset() {
+        outcome = Outcome.SKIPPED;
+        cropNanos = 0;
+        binarizeNanos = 0;
+        detectNanos = 0;
+        decodeNanos = 0;
+        errorsCorrected = 0;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    /** Time to crop the framing rect from the preview frame */
+    public long getCropNanos() {
+        return cropNanos;
+    }
+
+    public void setCropNanos(long cropNanos) {
+        this.cropNanos = cropNanos;
+    }
+
+    /** Time to convert the luminance data into a black and white image */
+    public long getBinarizeNanos() {
+        return binarizeNanos;
+    }
+
+    public void setBinarizeNanos(long binarizeNanos) {
+        this.binarizeNanos = binarizeNanos;
+    }
+
+    /** Time to locate the finder patterns of a QR code */
+    public long getDetectNanos() {
+        return detectNanos;
+    }
+
+    public void setDetectNanos(long detectNanos) {
+        this.detectNanos = detectNanos;
+    }
+
+    /** Time to read and error correct the QR code's content */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public void setDecodeNanos(long decodeNanos) {
+        this.decodeNanos = decodeNanos;
+    }
+
+    /**
+     * Number of codewords, which have been corrected in a decoded QR code. Many corrections
+     * indicate a blurry or partially covered code.
+     */
+    public int getErrorsCorrected() {
+        return errorsCorrected;
+    }
+
+    public void setErrorsCorrected(int errorsCorrected) {
+        this.errorsCorrected = errorsCorrected;
+    }
+
+    public long getTotalNanos() {
+        return cropNanos + binarizeNanos + detectNanos + decodeNanos;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of all frames processed between starting and stopping the camera.
+ * <p>
+ * Frames are recorded on the detection thread, while the session is started and ended on the
+ * main thread. Thus, all methods are synchronized.
+ */
+public class ScanSessionStatistics {
+
+    private final long startNanos;
+    private long endNanos = -1;
+
+    private int frames;
+    private int decodedFrames;
+    private int notFoundFrames;
+    private int checksumErrorFrames;
+    private int formatErrorFrames;
+    private int skippedFrames;
+
+    private long cropNanos;
+    private long binarizeNanos;
+    private long detectNanos;
+    private long decodeNanos;
+    private long maxFrameNanos;
+    private long idleMillis;
+    private int errorsCorrected;
+
+    private int framesToFirstDecode = -1;
+    private long nanosToFirstDecode = -1;
+
+    /**
+     * @param startNanos
+     *      Start of the session, e. g., when the camera has been started, as
+     *      {@link System#nanoTime()}
+     */
+    public ScanSessionStatistics(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public synchronized void recordFrame(FrameStatistics frame, long nowNanos) {
+        frames++;
+        switch (frame.getOutcome()) {
+            case DECODED:
+                decodedFrames++;
+                if (framesToFirstDecode < 0) {
+                    framesToFirstDecode = frames;
+                    nanosToFirstDecode = nowNanos - startNanos;
+                }
+                break;
+            case NOT_FOUND:
+                notFoundFrames++;
+                break;
+            case CHECKSUM_ERROR:
+                checksumErrorFrames++;
+                break;
+            case FORMAT_ERROR:
+                formatErrorFrames++;
+                break;
+            case SKIPPED:
+                skippedFrames++;
+                break;
+        }
+
+        cropNanos += frame.getCropNanos();
+        binarizeNanos += frame.getBinarizeNanos();
+        detectNanos += frame.getDetectNanos();
+        decodeNanos += frame.getDecodeNanos();
+        maxFrameNanos = Math.max(maxFrameNanos, frame.getTotalNanos());
+        errorsCorrected += frame.getErrorsCorrected();
+    }
+
+    /** Time the detection thread slept between two frames */
+    public synchronized void recordIdleTime(long millis) {
+        idleMillis += millis;
+    }
+
+    public synchronized void end(long nowNanos) {
+        if (endNanos < 0) {
+            endNanos = nowNanos;
+        }
+    }
+
+    public synchronized boolean isEnded() {
+        return endNanos >= 0;
+    }
+
+    public synchronized long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+    /** Number of processed frames, including skipped frames */
+    public synchronized int getFrames() {
+        return frames;
+    }
+
+    public synchronized int getDecodedFrames() {
+        return decodedFrames;
+    }
+
+    public synchronized int getNotFoundFrames() {
+        return notFoundFrames;
+    }
+
+    public synchronized int getChecksumErrorFrames() {
+        return checksumErrorFrames;
+    }
+
+    public synchronized int getFormatErrorFrames() {
+        return formatErrorFrames;
+    }
+
+    public synchronized int getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /** Frames until and including the first decoded frame, or -1 if nothing has been decoded */
+    public synchronized int getFramesToFirstDecode() {
+        return framesToFirstDecode;
+    }
+
+    /** Time from session start to the first decoded frame, or -1 if nothing has been decoded */
+    public synchronized long getNanosToFirstDecode() {
+        return nanosToFirstDecode;
+    }
+
+    public synchronized long getCropNanos() {
+        return cropNanos;
+    }
+
+    public synchronized long getBinarizeNanos() {
+        return binarizeNanos;
+    }
+
+    public synchronized long getDetectNanos() {
+        return detectNanos;
+    }
+
+    public synchronized long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public synchronized long getMaxFrameNanos() {
+        return maxFrameNanos;
+    }
+
+    public synchronized long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /** Corrected codewords in all decoded frames */
+    public synchronized int getErrorsCorrected() {
+        return errorsCorrected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int processedFrames = Math.max(1, frames - skippedFrames);
+        return String.format(Locale.US,
+                "%d frames (decoded %d, not found %d, checksum error %d, format error %d, skipped %d), "
+                        + "first decode after %d frames / %d ms, "
+                        + "avg. crop %.1f ms, binarize %.1f ms, detect %.1f ms, decode %.1f ms, "
+                        + "max. frame %.1f ms, idle %d ms, errors corrected %d",
+                frames, decodedFrames, notFoundFrames, checksumErrorFrames, formatErrorFrames,
+                skippedFrames,
+                framesToFirstDecode,
+                nanosToFirstDecode < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanosToFirstDecode),
+                toMillis(cropNanos) / processedFrames,
+                toMillis(binarizeNanos) / processedFrames,
+                toMillis(detectNanos) / processedFrames,
+                toMillis(decodeNanos) / processedFrames,
+                toMillis(maxFrameNanos),
+                idleMillis, errorsCorrected);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
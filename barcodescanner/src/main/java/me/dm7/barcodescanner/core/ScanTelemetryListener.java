@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.core;
+
+/**
+ * Telemetry of the barcode detection, e. g., to tune scanning on slow devices.
+ *
+ * @see BarcodeScannerView#setScanTelemetryListener(ScanTelemetryListener)
+ */
+public interface ScanTelemetryListener {
+
+    /**
+     * Called on the detection thread after each camera preview frame.
+     * The frame statistics object is reused for the next frame.
+     */
+    void onFrameProcessed(FrameStatistics frame);
+
+    /**
+     * Called on the main thread, when the camera has been stopped.
+     */
+    void onScanSessionEnd(ScanSessionStatistics session);
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.zxing;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Container file for camera preview frames, which can be replayed to benchmark and
+ * regression-test QR code detection without a device.
+ * <p>
+ * The file is GZIP compressed and starts with {@link #MAGIC} and {@link #VERSION}. Each frame
+ * consists of its capture time (ms since start of recording), preview width and height, the
+ * framing rect in preview coordinates (left, top, width, height) and the luminance plane.
+ * <p>
+ * Only the luminance (Y) plane of the NV21 preview frame is stored, because the chroma plane
+ * is never used for detection. This reduces the file size by one third.
+ */
+public class FrameRecording {
+
+    public static final int MAGIC = 0x4e563231; // NV21
+    public static final int VERSION = 1;
+
+    /** File name suffix of recordings */
+    public static final String FILE_SUFFIX = ".nv21.gz";
+
+    /** A recorded preview frame */
+    public static class Frame {
+        private final long timeMillis;
+        private final int dataWidth;
+        private final int dataHeight;
+        private final int left;
+        private final int top;
+        private final int width;
+        private final int height;
+        private final byte[] luminance;
+
+        public Frame(long timeMillis, int dataWidth, int dataHeight,
+                     int left, int top, int width, int height,
+                     byte[] luminance) {
+            this.timeMillis = timeMillis;
+            this.dataWidth = dataWidth;
+            this.dataHeight = dataHeight;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.luminance = luminance;
+        }
+
+        /** Capture time in ms since the start of the recording */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public int getDataWidth() {
+            return dataWidth;
+        }
+
+        public int getDataHeight() {
+            return dataHeight;
+        }
+
+        public int getLeft() {
+            return left;
+        }
+
+        public int getTop() {
+            return top;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /** The first {@code dataWidth * dataHeight} bytes of the NV21 preview frame */
+        public byte[] getLuminance() {
+            return luminance;
+        }
+    }
+
+    /**
+     * Append preview frames to a recording.
+     * <p>
+     * The methods are synchronized, so that the recording may be closed by another thread
+     * than the detection thread.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startMillis;
+        private boolean closed;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new GZIPOutputStream(out, 64 * 1024));
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.startMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * @param yuvData
+         *      NV21 preview frame, only the luminance plane is stored
+         */
+        public synchronized void writeFrame(byte[] yuvData, int dataWidth, int dataHeight,
+                                            int left, int top, int width, int height)
+                throws IOException {
+            if (closed) {
+                throw new IOException("Recording has been closed");
+            }
+            if (yuvData.length < dataWidth * dataHeight) {
+                throw new IllegalArgumentException("Frame data is smaller than preview size");
+            }
+
+            out.writeLong(System.currentTimeMillis() - startMillis);
+            out.writeInt(dataWidth);
+            out.writeInt(dataHeight);
+            out.writeInt(left);
+            out.writeInt(top);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.write(yuvData, 0, dataWidth * dataHeight);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    /** Read the frames of a recording in order */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new GZIPInputStream(in, 64 * 1024));
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a frame recording");
+            }
+            int version = this.in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported frame recording version " + version);
+            }
+        }
+
+        /**
+         * @return
+         *      The next frame or <code>null</code> at the end of the recording
+         */
+        public Frame readFrame() throws IOException {
+            long timeMillis;
+            try {
+                timeMillis = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            int dataWidth = in.readInt();
+            int dataHeight = in.readInt();
+            int left = in.readInt();
+            int top = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            if (dataWidth <= 0 || dataHeight <= 0
+                    || (long) dataWidth * dataHeight > Integer.MAX_VALUE) {
+                throw new IOException("Invalid preview size " + dataWidth + "x" + dataHeight);
+            }
+
+            byte[] luminance = new byte[dataWidth * dataHeight];
+            in.readFully(luminance);
+
+            return new Frame(timeMillis, dataWidth, dataHeight,
+                    left, top, width, height, luminance);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private FrameRecording() {
+    }
+}
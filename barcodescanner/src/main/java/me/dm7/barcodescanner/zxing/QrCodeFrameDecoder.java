@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.zxing;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.DecoderResult;
+import com.google.zxing.common.DetectorResult;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.decoder.QRCodeDecoderMetaData;
+import com.google.zxing.qrcode.detector.Detector;
+
+import me.dm7.barcodescanner.core.FrameStatistics;
+
+/**
+ * QR code detection in the luminance data of a camera preview frame.
+ * <p>
+ * This does the same as {@link com.google.zxing.qrcode.QRCodeReader}, but measures the time
+ * of each step. It does not depend on Android, so recorded frames can be processed on any JVM.
+ */
+public class QrCodeFrameDecoder {
+
+    private final Decoder decoder = new Decoder();
+
+    /**
+     * Crop the framing rect from an NV21 (or other planar YUV) preview frame and decode a
+     * QR code within.
+     *
+     * @param statistics
+     *      Receives the time of each step and the outcome
+     * @throws ReaderException
+     *      If no QR code could be decoded
+     * @throws IllegalArgumentException
+     *      If the framing rect exceeds the frame
+     */
+    public Result decode(byte[] yuvData, int dataWidth, int dataHeight,
+                         int left, int top, int width, int height,
+                         FrameStatistics statistics) throws ReaderException {
+        long time = System.nanoTime();
+        long stepStart;
+
+        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(yuvData,
+                dataWidth, dataHeight,
+                left, top,
+                width, height,
+                false);
+        stepStart = time;
+        time = System.nanoTime();
+        statistics.setCropNanos(time - stepStart);
+
+        try {
+            BitMatrix bitMatrix;
+            try {
+                bitMatrix = new HybridBinarizer(source).getBlackMatrix();
+            } finally {
+                stepStart = time;
+                time = System.nanoTime();
+                statistics.setBinarizeNanos(time - stepStart);
+            }
+
+            DetectorResult detectorResult;
+            try {
+                detectorResult = new Detector(bitMatrix).detect();
+            } finally {
+                stepStart = time;
+                time = System.nanoTime();
+                statistics.setDetectNanos(time - stepStart);
+            }
+
+            DecoderResult decoderResult;
+            try {
+                decoderResult = decoder.decode(detectorResult.getBits());
+            } finally {
+                stepStart = time;
+                time = System.nanoTime();
+                statistics.setDecodeNanos(time - stepStart);
+            }
+
+            statistics.setOutcome(FrameStatistics.Outcome.DECODED);
+            if (decoderResult.getErrorsCorrected() != null) {
+                statistics.setErrorsCorrected(decoderResult.getErrorsCorrected());
+            }
+            return createResult(detectorResult, decoderResult);
+        } catch (NotFoundException e) {
+            statistics.setOutcome(FrameStatistics.Outcome.NOT_FOUND);
+            throw e;
+        } catch (ChecksumException e) {
+            statistics.setOutcome(FrameStatistics.Outcome.CHECKSUM_ERROR);
+            throw e;
+        } catch (FormatException e) {
+            statistics.setOutcome(FrameStatistics.Outcome.FORMAT_ERROR);
+            throw e;
+        }
+    }
+
+    /** Same result like from {@link com.google.zxing.qrcode.QRCodeReader} */
+    private static Result createResult(DetectorResult detectorResult, DecoderResult decoderResult) {
+        ResultPoint[] points = detectorResult.getPoints();
+
+        // If the code was mirrored, swap the bottom-left and the top-right points.
+        if (decoderResult.getOther() instanceof QRCodeDecoderMetaData) {
+            ((QRCodeDecoderMetaData) decoderResult.getOther()).applyMirroredCorrection(points);
+        }
+
+        Result result = new Result(
+                decoderResult.getText(), decoderResult.getRawBytes(),
+                points, BarcodeFormat.QR_CODE);
+
+        if (decoderResult.getErrorsCorrected() != null) {
+            result.putMetadata(ResultMetadataType.ERRORS_CORRECTED,
+                    decoderResult.getErrorsCorrected());
+        }
+        result.putMetadata(ResultMetadataType.SYMBOLOGY_IDENTIFIER,
+                "]Q" + decoderResult.getSymbologyModifier());
+        if (decoderResult.getByteSegments() != null) {
+            result.putMetadata(ResultMetadataType.BYTE_SEGMENTS,
+                    decoderResult.getByteSegments());
+        }
+        if (decoderResult.getECLevel() != null) {
+            result.putMetadata(ResultMetadataType.ERROR_CORRECTION_LEVEL,
+                    decoderResult.getECLevel());
+        }
+        if (decoderResult.hasStructuredAppend()) {
+            result.putMetadata(ResultMetadataType.STRUCTURED_APPEND_SEQUENCE,
+                    decoderResult.getStructuredAppendSequenceNumber());
+            result.putMetadata(ResultMetadataType.STRUCTURED_APPEND_PARITY,
+                    decoderResult.getStructuredAppendParity());
+        }
+
+        return result;
+    }
+}
@@ -24,14 +24,16 @@ import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
 
-import com.google.zxing.BinaryBitmap;
-import com.google.zxing.PlanarYUVLuminanceSource;
 import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
-import com.google.zxing.common.HybridBinarizer;
-import com.google.zxing.qrcode.QRCodeReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import me.dm7.barcodescanner.core.BarcodeScannerView;
+import me.dm7.barcodescanner.core.FrameStatistics;
 
 /**
  * This is a replacement for {@code me.dm7.barcodescanner.zxing.ZXingScannerView}
@@ -46,18 +48,32 @@ import me.dm7.barcodescanner.core.BarcodeScannerView;
  *          performance on slow devices with few cores, which in turn accelerates auto-focus and
  *          thus detection speed. On fast devices, this barely has any impact.</li>
  * </ul>
+ *
+ * For offline benchmarking, the processed preview frames can be recorded with
+ * {@link #startFrameRecording(File)} and replayed on any JVM, see {@link FrameRecording}.
+ * <p>
+ * Telemetry of each frame is reported to the
+ * {@link #setScanTelemetryListener(me.dm7.barcodescanner.core.ScanTelemetryListener)}.
  */
 public class QrCodeScannerView extends BarcodeScannerView {
     private ResultHandler resultHandler;
-    private final QRCodeReader qrCodeReader;
+    private final QrCodeFrameDecoder qrCodeDecoder = new QrCodeFrameDecoder();
+
+    /** Statistics of the current frame, only used by the detection thread */
+    private final FrameStatistics frameStatistics = new FrameStatistics();
+
+    private volatile FrameRecording.Writer frameRecording;
+
+    /** Size and framing rect of the current frame, only used by the detection thread */
+    private int frameWidth;
+    private int frameHeight;
+    private Rect frameRect;
 
     public QrCodeScannerView(Context context, AttributeSet attributeSet) {
         super(context, attributeSet);
 
         setLaserEnabled(false);
         setSquareViewFinder(true);
-
-        qrCodeReader = new QRCodeReader();
     }
 
     public QrCodeScannerView(Context context) {
@@ -65,8 +81,6 @@ public class QrCodeScannerView extends BarcodeScannerView {
 
         setLaserEnabled(false);
         setSquareViewFinder(true);
-
-        qrCodeReader = new QRCodeReader();
     }
 
 
@@ -83,18 +97,64 @@ public class QrCodeScannerView extends BarcodeScannerView {
         resumeCameraPreview();
     }
 
+    /**
+     * Store each processed preview frame together with the framing rect in the given file,
+     * until {@link #stopFrameRecording()} is called. An existing file is overwritten.
+     */
+    public void startFrameRecording(File file) throws IOException {
+        stopFrameRecording();
+        frameRecording = new FrameRecording.Writer(new FileOutputStream(file));
+    }
+
+    public void stopFrameRecording() {
+        FrameRecording.Writer recording = frameRecording;
+        frameRecording = null;
+        if (recording != null) {
+            try {
+                recording.close();
+            } catch (IOException e) {
+                Log.e(getClass().getSimpleName(),
+                        "Cannot finish frame recording", e);
+            }
+        }
+    }
+
+    private void recordPreviewFrame(byte[] data) {
+        FrameRecording.Writer recording = frameRecording;
+        if (recording == null || frameRect == null) {
+            return;
+        }
+
+        try {
+            recording.writeFrame(data, frameWidth, frameHeight,
+                    frameRect.left, frameRect.top, frameRect.width(), frameRect.height());
+        } catch (IOException | RuntimeException e) {
+            // It is possible that the recording has been stopped in the meantime.
+            Log.e(getClass().getSimpleName(),
+                    "Cannot record camera picture", e);
+        }
+    }
+
     @Override
     public void onPreviewFrame(byte[] data, final Camera camera) {
-        long startTime = System.currentTimeMillis();
+        frameStatistics.reset();
+        frameRect = null;
+
+        long startTime = System.nanoTime();
         boolean detected = detectFast(data, camera);
-        long endTime = System.currentTimeMillis();
+        long endTime = System.nanoTime();
+
+        recordFrame(frameStatistics);
+        // Writing the frame is not part of the measured detection time
+        recordPreviewFrame(data);
 
         if (!detected) {
-            long frameProcessingTime = endTime - startTime;
+            long frameProcessingTime = TimeUnit.NANOSECONDS.toMillis(endTime - startTime);
 
             // Sleep after unsuccessful detection to reduce cpu load
             // from 100% to approx. 66%.
             long idleTime = Math.max(0L, Math.min(500L, frameProcessingTime / 2));
+            recordIdleTime(idleTime);
 
             try {
                 Log.v(getClass().getSimpleName(),
@@ -140,34 +200,30 @@ public class QrCodeScannerView extends BarcodeScannerView {
             return false;
         }
 
-        PlanarYUVLuminanceSource source;
-        try {
-            Rect rect = getFramingRectInPreview(width, height);
-            if (rect == null) {
-                return false;
-            }
-
-            source = new PlanarYUVLuminanceSource(data,
-                    width, height,
-                    rect.left, rect.top,
-                    rect.width(), rect.height(),
-                    false);
-        } catch (RuntimeException e) {
-            Log.e(getClass().getSimpleName(),
-                    "Cannot crop camera picture", e);
+        Rect rect = getFramingRectInPreview(width, height);
+        if (rect == null) {
             return false;
         }
 
+        frameWidth = width;
+        frameHeight = height;
+        frameRect = rect;
+
         final Result detectedResult;
         try {
-            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-
-            detectedResult = qrCodeReader.decode(bitmap);
+            detectedResult = qrCodeDecoder.decode(data,
+                    width, height,
+                    rect.left, rect.top,
+                    rect.width(), rect.height(),
+                    frameStatistics);
         } catch (ReaderException re) {
             // no QR code found
             return false;
-        } finally {
-            qrCodeReader.reset();
+        } catch (IllegalArgumentException e) {
+            // The framing rect does not fit into the preview frame
+            Log.e(getClass().getSimpleName(),
+                    "Cannot crop camera picture", e);
+            return false;
         }
 
         Handler handler = new Handler(Looper.getMainLooper());
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.activetan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of scanned challenges: BQR container and HHDuc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChallengeParsingBenchmark {
+
+    /** Number of distinct challenges, to avoid unrealistic branch prediction */
+    private static final int CHALLENGES = 1024;
+
+    private byte[][] bqrChallenges;
+    private byte[][] hhducChallenges;
+    private int next;
+
+    @Setup
+    public void generateChallenges() {
+        ChallengeGenerator bqrGenerator = ChallengeGenerator.builder()
+                .seed(42)
+                .wrapInBqr(true)
+                .build();
+        ChallengeGenerator hhducGenerator = ChallengeGenerator.builder()
+                .seed(42)
+                .build();
+
+        bqrChallenges = new byte[CHALLENGES][];
+        hhducChallenges = new byte[CHALLENGES][];
+        for (int i = 0; i < CHALLENGES; i++) {
+            bqrChallenges[i] = bqrGenerator.nextChallenge();
+            hhducChallenges[i] = hhducGenerator.nextChallenge();
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (CHALLENGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public BQRContainer.Content bqrUnwrap() throws BQRContainer.InvalidBankingQrCodeException {
+        return BQRContainer.unwrap(bqrChallenges[nextIndex()]);
+    }
+
+    @Benchmark
+    public HHDuc hhducParse() throws HHDuc.UnsupportedDataFormatException {
+        return HHDuc.parse(hhducChallenges[nextIndex()]);
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.activetan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+
+/**
+ * TAN computation steps and the end-to-end path from a scanned BQR container to the
+ * formatted TAN.
+ * <p>
+ * The banking key is a {@link SecretKeySpec}, so the benchmarks measure the app's code and the
+ * JCE provider of the JVM, but not the Android key store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TanGeneratorBenchmark {
+
+    /** Number of distinct challenges, to avoid unrealistic branch prediction */
+    private static final int CHALLENGES = 1024;
+
+    private SecretKeySpec bankingKey;
+    private MessageDigest sha256;
+    private Mac aesCbcMac;
+
+    private byte[][] bqrChallenges;
+    private HHDuc[] hhducs;
+    private byte[][] aacInputs;
+    private byte[][] aacs;
+    private int[] tans;
+    private int next;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        byte[] key = new byte[BankingKeyComponents.BANKING_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        bankingKey = new SecretKeySpec(key, "AES");
+
+        sha256 = MessageDigest.getInstance("SHA-256");
+        aesCbcMac = AesCbcMac.getInstance();
+        aesCbcMac.init(bankingKey);
+
+        ChallengeGenerator bqrGenerator = ChallengeGenerator.builder()
+                .seed(42)
+                .wrapInBqr(true)
+                .build();
+        ChallengeGenerator hhducGenerator = ChallengeGenerator.builder()
+                .seed(42)
+                .build();
+
+        bqrChallenges = new byte[CHALLENGES][];
+        hhducs = new HHDuc[CHALLENGES];
+        aacInputs = new byte[CHALLENGES][];
+        aacs = new byte[CHALLENGES][];
+        tans = new int[CHALLENGES];
+        for (int i = 0; i < CHALLENGES; i++) {
+            bqrChallenges[i] = bqrGenerator.nextChallenge();
+            hhducs[i] = hhducGenerator.nextHHDuc();
+
+            VisDataBuffer visData = new VisDataBuffer();
+            visData.write(hhducs[i]);
+            aacInputs[i] = visData.getHash(sha256);
+
+            aacs[i] = aesCbcMac.doFinal(aacInputs[i]);
+            tans[i] = TanGenerator.decimalization(aacs[i], 6);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (CHALLENGES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public byte[] visDataHash() {
+        VisDataBuffer visData = new VisDataBuffer();
+        visData.write(hhducs[nextIndex()]);
+        return visData.getHash(sha256);
+    }
+
+    /** MAC computation like for each TAN, including initialization with the key */
+    @Benchmark
+    public byte[] aesCbcMac() throws GeneralSecurityException {
+        Mac mac = AesCbcMac.getInstance();
+        mac.init(bankingKey);
+        return mac.doFinal(aacInputs[nextIndex()]);
+    }
+
+    /** MAC computation only, with an initialized instance */
+    @Benchmark
+    public byte[] aesCbcMacDoFinal() {
+        return aesCbcMac.doFinal(aacInputs[nextIndex()]);
+    }
+
+    @Benchmark
+    public int decimalization() {
+        return TanGenerator.decimalization(aacs[nextIndex()], 6);
+    }
+
+    @Benchmark
+    public String formatTan() {
+        return TanGenerator.formatTAN(tans[nextIndex()]);
+    }
+
+    /** Scanned BQR container to formatted TAN, without key store access */
+    @Benchmark
+    public String bqrToTan() throws GeneralSecurityException,
+            BQRContainer.InvalidBankingQrCodeException, HHDuc.UnsupportedDataFormatException {
+        int index = nextIndex();
+
+        BQRContainer.Content content = BQRContainer.unwrap(bqrChallenges[index]);
+        HHDuc hhduc = HHDuc.parse(content.getPayload());
+        int tan = TanGenerator.generateTan(bankingKey, index, hhduc);
+
+        return TanGenerator.formatTAN(tan);
+    }
+
+}
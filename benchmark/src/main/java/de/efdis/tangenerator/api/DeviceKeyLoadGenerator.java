@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * This file is part of the activeTAN app for Android.
+ *
+ * The activeTAN app is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * The activeTAN app is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with the activeTAN app.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.efdis.tangenerator.api;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.efdis.tangenerator.persistence.keystore.BankingKeyComponents;
+import de.efdis.tangenerator.tracing.LatencyHistogram;
+
+/**
+ * Drive the device key upload of {@link SecuredRestApiEndpoint} against a local
+ * {@link DeviceKeyStandInServer} from many concurrent clients and report throughput, latency
+ * percentiles and error rates.
+ * <p>
+ * Usage: {@code DeviceKeyLoadGenerator [--threads N] [--requests N] [--warmup N]
+ * [--latency MS] [--fail-rate R] [--fail-status S] [--retry-after SECONDS]
+ * [--transport pooled|in-process] [--batch N]}
+ * <p>
+ * Each upload is an api call of the app, including encryption, retries and signature
+ * verification. The stand-in delays every response by {@code --latency} and answers a fraction
+ * {@code --fail-rate} (0..1) of the requests with the status {@code --fail-status}, e. g., 429
+ * or 503 to exercise the retries. The {@code --warmup} uploads are not reported.
+ * <p>
+ * By default the uploads use the {@link PooledHttpTransport} of the app over loopback TLS. With
+ * {@code --transport in-process} they skip the network and TLS and measure the client and the
+ * stand-in only.
+ * <p>
+ * With {@code --batch N}, each api call uploads up to N device keys at once, see
+ * {@link SecuredRestApiEndpoint#performBatchRequest(List, java.util.Collection)}. The
+ * {@code --requests} and {@code --warmup} options count device keys then, so that the
+ * throughput and the cost per token can be compared with single uploads.
+ */
+public class DeviceKeyLoadGenerator {
+
+    /** Results of a load run */
+    static class Report {
+        final LatencyHistogram latency = new LatencyHistogram();
+        /** Latency of a batch call divided by its actual number of tokens */
+        final LatencyHistogram tokenLatency = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder tokens = new LongAdder();
+        int batchSize;
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+        long durationNanos;
+        int serverRequests;
+        int connects = -1;
+
+        void addError(Exception e) {
+            errors.computeIfAbsent(e.getClass().getSimpleName(), name -> new LongAdder())
+                    .increment();
+        }
+
+        long getErrorCount() {
+            return errors.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        void print(PrintStream out) {
+            long calls = succeeded.sum() + getErrorCount();
+            LatencyHistogram.Snapshot snapshot = latency.getSnapshot();
+
+            out.printf(Locale.ROOT, "%d calls in %.2f s, %.1f calls/s, %d server requests%n",
+                    calls, durationNanos / 1e9,
+                    calls / (durationNanos / 1e9), serverRequests);
+            out.printf(Locale.ROOT, "  %d tokens, %.1f tokens/s%n",
+                    tokens.sum(), tokens.sum() / (durationNanos / 1e9));
+            if (connects >= 0) {
+                out.printf(Locale.ROOT, "  connections opened: %d%n", connects);
+            }
+            out.printf(Locale.ROOT, "  latency ms: p50 %.2f, p90 %.2f, p99 %.2f,"
+                            + " p99.9 %.2f, max %.2f%n",
+                    snapshot.getValueAtPercentile(50) / 1e6,
+                    snapshot.getValueAtPercentile(90) / 1e6,
+                    snapshot.getValueAtPercentile(99) / 1e6,
+                    snapshot.getValueAtPercentile(99.9) / 1e6,
+                    snapshot.getMax() / 1e6);
+            if (batchSize > 0) {
+                LatencyHistogram.Snapshot tokenSnapshot = tokenLatency.getSnapshot();
+                out.printf(Locale.ROOT, "  latency ms per token of a batch: p50 %.3f, p99 %.3f%n",
+                        tokenSnapshot.getValueAtPercentile(50) / 1e6,
+                        tokenSnapshot.getValueAtPercentile(99) / 1e6);
+            }
+            out.printf(Locale.ROOT, "  errors: %d (%.2f %%)%n",
+                    getErrorCount(), calls == 0 ? 0. : 100. * getErrorCount() / calls);
+            for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+                out.printf(Locale.ROOT, "    %s: %d%n", error.getKey(), error.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * @param batchSize Device keys per batch call, or <code>0</code> for single uploads
+     */
+    static Report run(DeviceKeyStandInServer standIn, HttpTransport transport,
+                      int threads, int requests, int batchSize)
+            throws IOException, InterruptedException {
+        SecuredRestApiEndpoint endpoint = standIn.createEndpoint(transport);
+        Report report = new Report();
+        report.batchSize = batchSize;
+        AtomicInteger remaining = new AtomicInteger(requests);
+
+        // Java 11 has no virtual threads, but the clients spend most time waiting anyway
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        standIn.getServer().resetRequestCount();
+        int connectsBefore = transport instanceof PooledHttpTransport
+                ? ((PooledHttpTransport) transport).getConnectCount() : -1;
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                BankingKeyComponents keyComponents = new BankingKeyComponents();
+                List<byte[]> deviceKeys = new ArrayList<>();
+                int count;
+                while ((count = takeRequests(remaining, Math.max(1, batchSize))) > 0) {
+                    deviceKeys.clear();
+                    for (int k = 0; k < count; k++) {
+                        keyComponents.generateDeviceKeyComponent();
+                        deviceKeys.add(keyComponents.deviceKeyComponent.clone());
+                    }
+                    long callStart = System.nanoTime();
+                    try {
+                        if (batchSize > 0) {
+                            endpoint.performBatchRequest(deviceKeys, Collections.emptyList());
+                        } else {
+                            endpoint.performRequest(deviceKeys.get(0));
+                        }
+                        long callNanos = System.nanoTime() - callStart;
+                        report.latency.record(callNanos);
+                        // The last batch may be smaller
+                        report.tokenLatency.record(callNanos / count);
+                        report.succeeded.increment();
+                        report.tokens.add(count);
+                    } catch (SecuredRestApiEndpoint.CallFailedException
+                            | RuntimeException e) {
+                        report.addError(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        report.durationNanos = System.nanoTime() - start;
+        report.serverRequests = standIn.getServer().resetRequestCount();
+        if (connectsBefore >= 0) {
+            report.connects = ((PooledHttpTransport) transport).getConnectCount() - connectsBefore;
+        }
+        return report;
+    }
+
+    /**
+     * @return Number of requests taken, at most <code>max</code>
+     */
+    private static int takeRequests(AtomicInteger remaining, int max) {
+        int before = remaining.getAndUpdate(n -> Math.max(0, n - max));
+        return Math.min(before, max);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: DeviceKeyLoadGenerator [--threads N] [--requests N]"
+                + " [--warmup N] [--latency MS] [--fail-rate R] [--fail-status S]"
+                + " [--retry-after SECONDS] [--transport pooled|in-process] [--batch N]");
+        System.exit(2);
+    }
+
+    private static String optionValue(String[] args, int i) {
+        if (i >= args.length) {
+            usage();
+        }
+        return args[i];
+    }
+
+    public static void main(String[] args)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        int threads = 32;
+        int requests = 2000;
+        int warmup = 200;
+        long latencyMillis = 0;
+        double failRate = 0.;
+        int failStatus = 429;
+        String retryAfter = null;
+        boolean inProcess = false;
+        int batchSize = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--latency":
+                    latencyMillis = Long.parseLong(optionValue(args, ++i));
+                    break;
+                case "--fail-rate":
+                    failRate = Double.parseDouble(optionValue(args, ++i));
+                    break;
+                case "--fail-status":
+                    failStatus = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                case "--retry-after":
+                    retryAfter = optionValue(args, ++i);
+                    break;
+                case "--transport":
+                    switch (optionValue(args, ++i)) {
+                        case "pooled":
+                            inProcess = false;
+                            break;
+                        case "in-process":
+                            inProcess = true;
+                            break;
+                        default:
+                            usage();
+                    }
+                    break;
+                case "--batch":
+                    batchSize = Integer.parseInt(optionValue(args, ++i));
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (threads < 1 || requests < 1 || warmup < 0
+                || batchSize < 0 || batchSize > SecuredRestApiEndpoint.MAX_BATCH_SIZE) {
+            usage();
+        }
+
+        // Retries are expected with injected failures, don't flood the console
+        Logger.getLogger(SecuredRestApiEndpoint.class.getSimpleName()).setLevel(Level.WARNING);
+
+        try (DeviceKeyStandInServer standIn = new DeviceKeyStandInServer()) {
+            HttpTransport transport = inProcess
+                    ? new InProcessTransport(standIn.getServer())
+                    : standIn.createTransport();
+            if (warmup > 0) {
+                run(standIn, transport, threads, warmup, batchSize);
+            }
+
+            standIn.getServer().setLatency(latencyMillis);
+            standIn.getServer().setFailureRate(failRate, failStatus, retryAfter);
+            System.out.printf(Locale.ROOT,
+                    "%d threads, %s transport, %s, latency %d ms, %.1f %% failing with %d%n",
+                    threads, inProcess ? "in-process" : "pooled",
+                    batchSize > 0 ? "batches of " + batchSize : "single uploads",
+                    latencyMillis, 100. * failRate, failStatus);
+            run(standIn, transport, threads, requests, batchSize).print(System.out);
+        }
+    }
+}
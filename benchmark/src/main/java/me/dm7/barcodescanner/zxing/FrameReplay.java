@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019 EFDIS AG Bankensoftware, Freising <info@efdis.de>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.dm7.barcodescanner.zxing;
+
+import com.google.zxing.ReaderException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import me.dm7.barcodescanner.core.FrameStatistics;
+
+/**
+ * Replay camera preview frames, which have been recorded by
+ * {@link QrCodeScannerView#startFrameRecording(File)}, through the same detection code that
+ * runs on the device and report success rate and latency per recording.
+ * <p>
+ * Usage: {@code FrameReplay [--repeat N] [--min-success-rate R] <recording or directory>...}
+ * <p>
+ * With {@code --repeat}, all frames of a recording are decoded N times, to warm up the JIT
+ * before the latencies of the last run are reported. With {@code --min-success-rate}, the
+ * process exits with status 1, if less than the given fraction (0..1) of frames is decoded
+ * in any recording. This allows to use a corpus of recordings as a regression test.
+ */
+public class FrameReplay {
+
+    /** Replay results of a single recording */
+    static class Report {
+        final String name;
+        final Map<FrameStatistics.Outcome, Integer> outcomes
+                = new EnumMap<>(FrameStatistics.Outcome.class);
+        long[] totalNanos = new long[16];
+        int frames;
+        long binarizeNanos;
+        long detectNanos;
+        long decodeNanos;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        void add(FrameStatistics statistics) {
+            outcomes.merge(statistics.getOutcome(), 1, Integer::sum);
+            if (frames == totalNanos.length) {
+                totalNanos = Arrays.copyOf(totalNanos, 2 * frames);
+            }
+            totalNanos[frames++] = statistics.getTotalNanos();
+            binarizeNanos += statistics.getBinarizeNanos();
+            detectNanos += statistics.getDetectNanos();
+            decodeNanos += statistics.getDecodeNanos();
+        }
+
+        int count(FrameStatistics.Outcome outcome) {
+            return outcomes.getOrDefault(outcome, 0);
+        }
+
+        double getSuccessRate() {
+            return frames == 0 ? 0. : (double) count(FrameStatistics.Outcome.DECODED) / frames;
+        }
+
+        /** Latency quantile in ms, nearest-rank method */
+        double getQuantileMillis(double quantile) {
+            if (frames == 0) {
+                return 0.;
+            }
+            long[] sorted = Arrays.copyOf(totalNanos, frames);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(quantile * frames);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        void print(PrintStream out) {
+            out.printf(Locale.ROOT, "%s: %d frames, %.1f %% decoded"
+                            + " (not found %d, checksum error %d, format error %d)%n",
+                    name, frames, 100. * getSuccessRate(),
+                    count(FrameStatistics.Outcome.NOT_FOUND),
+                    count(FrameStatistics.Outcome.CHECKSUM_ERROR),
+                    count(FrameStatistics.Outcome.FORMAT_ERROR));
+            if (frames > 0) {
+                out.printf(Locale.ROOT, "  latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+                        getQuantileMillis(.5), getQuantileMillis(.9),
+                        getQuantileMillis(.99), getQuantileMillis(1.));
+                out.printf(Locale.ROOT, "  mean ms per step: binarize %.2f, detect %.2f, decode %.2f%n",
+                        binarizeNanos / 1e6 / frames,
+                        detectNanos / 1e6 / frames,
+                        decodeNanos / 1e6 / frames);
+            }
+        }
+    }
+
+    static Report replay(File file, int repeat) throws IOException {
+        List<FrameRecording.Frame> frames = new ArrayList<>();
+        try (FrameRecording.Reader reader
+                     = new FrameRecording.Reader(new FileInputStream(file))) {
+            FrameRecording.Frame frame;
+            while ((frame = reader.readFrame()) != null) {
+                frames.add(frame);
+            }
+        }
+
+        QrCodeFrameDecoder decoder = new QrCodeFrameDecoder();
+        FrameStatistics statistics = new FrameStatistics();
+        Report report = null;
+        for (int run = 0; run < repeat; run++) {
+            report = new Report(file.getName());
+            for (FrameRecording.Frame frame : frames) {
+                statistics.reset();
+                try {
+                    decoder.decode(frame.getLuminance(),
+                            frame.getDataWidth(), frame.getDataHeight(),
+                            frame.getLeft(), frame.getTop(),
+                            frame.getWidth(), frame.getHeight(),
+                            statistics);
+                } catch (ReaderException e) {
+                    // outcome has been recorded
+                }
+                report.add(statistics);
+            }
+        }
+        return report;
+    }
+
+    private static void collectRecordings(File file, List<File> recordings) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    if (child.isDirectory() || child.getName().endsWith(FrameRecording.FILE_SUFFIX)) {
+                        collectRecordings(child, recordings);
+                    }
+                }
+            }
+        } else {
+            recordings.add(file);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: FrameReplay [--repeat N] [--min-success-rate R]"
+                + " <recording or directory>...");
+        System.exit(2);
+    }
+
+    private static String optionValue(String[] args, int i) {
+        if (i >= args.length) {
+            usage();
+        }
+        return args[i];
+    }
+
+    public static void main(String[] args) throws IOException {
+        int repeat = 1;
+        double minSuccessRate = 0.;
+        List<File> recordings = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--repeat":
+                    repeat = Integer.parseInt(optionValue(args, ++i));
+                    if (repeat < 1) {
+                        usage();
+                    }
+                    break;
+                case "--min-success-rate":
+                    minSuccessRate = Double.parseDouble(optionValue(args, ++i));
+                    break;
+                default:
+                    collectRecordings(new File(args[i]), recordings);
+            }
+        }
+        if (recordings.isEmpty()) {
+            usage();
+        }
+
+        boolean failed = false;
+        for (File recording : recordings) {
+            Report report = replay(recording, repeat);
+            report.print(System.out);
+            if (report.getSuccessRate() < minSuccessRate) {
+                System.out.printf(Locale.ROOT, "  FAILED: success rate below %.1f %%%n",
+                        100. * minSuccessRate);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}